@@ -0,0 +1,64 @@
+package org.hl7.fhir.benchmarks;
+
+/*-
+ * #%L
+ * org.hl7.fhir.benchmarks
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks - takes the usual JMH command line (e.g. a regex to pick the benchmarks),
+ * but unless told otherwise, writes the results as JSON to jmh-result-[version].json, so the
+ * results can be compared from one release to the next
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+    if (!cmd.getResultFormat().hasValue())
+      options.resultFormat(ResultFormatType.JSON);
+    if (!cmd.getResult().hasValue())
+      options.result("jmh-result-"+version()+".json");
+    new Runner(options.build()).run();
+  }
+
+  private static String version() throws Exception {
+    Properties p = new Properties();
+    InputStream stream = BenchmarkRunner.class.getResourceAsStream("/benchmark.properties");
+    if (stream != null) {
+      try {
+        p.load(stream);
+      } finally {
+        stream.close();
+      }
+    }
+    return p.getProperty("version", "dev");
+  }
+
+}
@@ -0,0 +1,100 @@
+package org.hl7.fhir.benchmarks;
+
+/*-
+ * #%L
+ * org.hl7.fhir.benchmarks
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.MetadataResourceManager;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Registering resources in a context: loading the whole core specification (with the v2 and v3
+ * terminology) into a new context, and registering many versions of the same value sets in a
+ * MetadataResourceManager, then looking them up again
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ContextLoadBenchmarks {
+
+  private static final int URLS = 500;
+
+  @Param({"10000", "100000"})
+  public int count;
+
+  private Map<String, byte[]> definitions;
+  private List<ValueSet> resources;
+
+  @Setup
+  public void setup() throws IOException {
+    definitions = Fixtures.definitions(true);
+    resources = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ValueSet vs = new ValueSet();
+      vs.setId("vs"+i);
+      vs.setUrl("http://example.org/fhir/ValueSet/vs"+(i % URLS));
+      vs.setVersion((i / URLS) % 10+"."+(i / (URLS * 10))+"."+i % 7);
+      resources.add(vs);
+    }
+  }
+
+  @Benchmark
+  public SimpleWorkerContext loadCore() throws IOException, FHIRException {
+    return Fixtures.load(definitions);
+  }
+
+  @Benchmark
+  public int register() {
+    MetadataResourceManager<ValueSet> mrm = new MetadataResourceManager<>(true);
+    for (ValueSet vs : resources)
+      mrm.see(vs);
+    int res = 0;
+    for (int i = 0; i < URLS; i++) {
+      if (mrm.get("http://example.org/fhir/ValueSet/vs"+i, "1.0") != null)
+        res++;
+    }
+    for (int i = 0; i < count; i += 2)
+      mrm.drop("vs"+i);
+    return res + mrm.size();
+  }
+
+}
@@ -0,0 +1,75 @@
+package org.hl7.fhir.benchmarks;
+
+/*-
+ * #%L
+ * org.hl7.fhir.benchmarks
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.convertors.VersionConvertor_30_40;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converting resources between R3 and R4
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmarks {
+
+  @Param({Fixtures.PATIENT, Fixtures.OBSERVATION, Fixtures.BUNDLE})
+  public String fixture;
+
+  private org.hl7.fhir.r4.model.Resource r4;
+  private org.hl7.fhir.dstu3.model.Resource r3;
+
+  @Setup
+  public void setup() throws IOException, FHIRException {
+    r4 = Fixtures.loadR4(fixture);
+    r3 = VersionConvertor_30_40.convertResource(r4, false);
+  }
+
+  @Benchmark
+  public org.hl7.fhir.r4.model.Resource r3ToR4() throws FHIRException {
+    return VersionConvertor_30_40.convertResource(r3, false);
+  }
+
+  @Benchmark
+  public org.hl7.fhir.dstu3.model.Resource r4ToR3() throws FHIRException {
+    return VersionConvertor_30_40.convertResource(r4, false);
+  }
+
+}
@@ -0,0 +1,100 @@
+package org.hl7.fhir.benchmarks;
+
+/*-
+ * #%L
+ * org.hl7.fhir.benchmarks
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and composing with the R5 element model (the parsers the validator uses), in JSON and XML
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ElementModelBenchmarks {
+
+  @Param({Fixtures.PATIENT, Fixtures.OBSERVATION, Fixtures.BUNDLE})
+  public String fixture;
+
+  private IWorkerContext context;
+  private byte[] json;
+  private byte[] xml;
+  private Element element;
+
+  @Setup
+  public void setup() throws IOException, FHIRException {
+    context = Fixtures.context();
+    org.hl7.fhir.r5.model.Resource r = Fixtures.loadR5(fixture);
+    json = new org.hl7.fhir.r5.formats.JsonParser().composeBytes(r);
+    xml = new org.hl7.fhir.r5.formats.XmlParser().composeBytes(r);
+    element = Manager.parse(context, new ByteArrayInputStream(json), FhirFormat.JSON);
+  }
+
+  @Benchmark
+  public Element parseJson() throws IOException, FHIRException {
+    return Manager.parse(context, new ByteArrayInputStream(json), FhirFormat.JSON);
+  }
+
+  @Benchmark
+  public Element parseXml() throws IOException, FHIRException {
+    return Manager.parse(context, new ByteArrayInputStream(xml), FhirFormat.XML);
+  }
+
+  @Benchmark
+  public byte[] composeJson() throws IOException, FHIRException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream(json.length);
+    Manager.compose(context, element, bs, FhirFormat.JSON, OutputStyle.NORMAL, null);
+    return bs.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] composeXml() throws IOException, FHIRException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream(xml.length);
+    Manager.compose(context, element, bs, FhirFormat.XML, OutputStyle.NORMAL, null);
+    return bs.toByteArray();
+  }
+
+}
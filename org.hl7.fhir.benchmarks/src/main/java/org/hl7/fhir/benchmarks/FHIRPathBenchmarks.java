@@ -0,0 +1,91 @@
+package org.hl7.fhir.benchmarks;
+
+/*-
+ * #%L
+ * org.hl7.fhir.benchmarks
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.utils.FHIRPathEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and evaluating FHIRPath expressions against the bundle fixture
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FHIRPathBenchmarks {
+
+  @Param({
+    "Bundle.entry.resource.ofType(Patient).name.where(use = 'official').given.first()",
+    "Bundle.entry.resource.ofType(Observation).where(code.coding.system = 'http://loinc.org').value.ofType(Quantity).where(value > 50).exists()",
+    "Bundle.entry.all(fullUrl.startsWith('urn:uuid:') and request.method = 'POST')",
+    "Bundle.descendants().ofType(Reference).reference.distinct().count()"
+  })
+  public String expression;
+
+  private FHIRPathEngine engine;
+  private Resource bundle;
+  private ExpressionNode node;
+
+  @Setup
+  public void setup() throws IOException, FHIRException {
+    engine = new FHIRPathEngine(Fixtures.context());
+    bundle = Fixtures.loadR5(Fixtures.BUNDLE);
+    node = engine.parse(expression);
+  }
+
+  @Benchmark
+  public ExpressionNode parse() throws FHIRException {
+    return engine.parse(expression);
+  }
+
+  @Benchmark
+  public List<Base> evaluate() throws FHIRException {
+    return engine.evaluate(bundle, node);
+  }
+
+  @Benchmark
+  public List<Base> parseAndEvaluate() throws FHIRException {
+    return engine.evaluate(bundle, engine.parse(expression));
+  }
+
+}
@@ -0,0 +1,130 @@
+package org.hl7.fhir.benchmarks;
+
+/*-
+ * #%L
+ * org.hl7.fhir.benchmarks
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.convertors.R4ToR5Loader;
+import org.hl7.fhir.convertors.VersionConvertor_40_50;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.utilities.TextFile;
+
+/**
+ * The content the benchmarks run against. The resources are R4 JSON in /fixtures, and the
+ * definitions are the R4 core profiles and value sets from hapi-fhir-validation-resources-r4,
+ * converted to R5 - so nothing comes from the network
+ */
+public class Fixtures {
+
+  public static final String PATIENT = "patient";
+  public static final String OBSERVATION = "observation";
+  public static final String BUNDLE = "bundle";
+  public static final String PROFILE = "profile";
+
+  private static final String DEFINITIONS = "/org/hl7/fhir/r4/model/";
+  private static SimpleWorkerContext context;
+
+  /**
+   * @return the fixture, as R4 JSON
+   */
+  public static byte[] load(String name) throws IOException {
+    InputStream stream = Fixtures.class.getResourceAsStream("/fixtures/"+name+".json");
+    if (stream == null)
+      throw new IOException("Unknown fixture "+name);
+    try {
+      return TextFile.streamToBytes(stream);
+    } finally {
+      stream.close();
+    }
+  }
+
+  public static org.hl7.fhir.r4.model.Resource loadR4(String name) throws IOException {
+    return new org.hl7.fhir.r4.formats.JsonParser().parse(load(name));
+  }
+
+  public static Resource loadR5(String name) throws IOException {
+    return VersionConvertor_40_50.convertResource(loadR4(name));
+  }
+
+  /**
+   * @return the fixture, as R4 XML
+   */
+  public static byte[] loadR4Xml(String name) throws IOException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    new org.hl7.fhir.r4.formats.XmlParser().compose(bs, loadR4(name));
+    return bs.toByteArray();
+  }
+
+  /**
+   * The context is loaded once for each benchmark JVM, and shared by all the benchmarks that run in it. It takes a few seconds
+   */
+  public static synchronized SimpleWorkerContext context() throws IOException, FHIRException {
+    if (context == null)
+      context = load(definitions(false));
+    return context;
+  }
+
+  /**
+   * @param terminology whether to include the v2 and v3 code systems and value sets as well as the core definitions
+   * @return the definitions, by file name, as SimpleWorkerContext.fromDefinitions expects them
+   */
+  public static Map<String, byte[]> definitions(boolean terminology) throws IOException {
+    Map<String, byte[]> source = new HashMap<String, byte[]>();
+    source.put("version.info", "[FHIR]\r\nversion=4.0.1\r\n".getBytes());
+    source.put("profiles-types.xml", definition("profile/profiles-types.xml"));
+    source.put("profiles-resources.xml", definition("profile/profiles-resources.xml"));
+    source.put("valuesets.xml", definition("valueset/valuesets.xml"));
+    if (terminology) {
+      source.put("v2-tables.xml", definition("valueset/v2-tables.xml"));
+      source.put("v3-codesystems.xml", definition("valueset/v3-codesystems.xml"));
+    }
+    return source;
+  }
+
+  /**
+   * @return a new context with the definitions loaded (converted from R4)
+   */
+  public static SimpleWorkerContext load(Map<String, byte[]> source) throws IOException, FHIRException {
+    SimpleWorkerContext ctxt = SimpleWorkerContext.fromDefinitions(source, new R4ToR5Loader(new String[] { "StructureDefinition", "ValueSet", "CodeSystem", "SearchParameter", "OperationDefinition" }));
+    ctxt.setCanRunWithoutTerminology(true);
+    return ctxt;
+  }
+
+  private static byte[] definition(String name) throws IOException {
+    InputStream stream = Fixtures.class.getResourceAsStream(DEFINITIONS+name);
+    if (stream == null)
+      throw new IOException("Unable to find "+DEFINITIONS+name+" - is hapi-fhir-validation-resources-r4 on the class path?");
+    try {
+      return TextFile.streamToBytes(stream);
+    } finally {
+      stream.close();
+    }
+  }
+
+}
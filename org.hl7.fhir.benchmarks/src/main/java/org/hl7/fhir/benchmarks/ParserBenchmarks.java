@@ -0,0 +1,167 @@
+package org.hl7.fhir.benchmarks;
+
+/*-
+ * #%L
+ * org.hl7.fhir.benchmarks
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.utilities.json.JsonLocations;
+import org.hl7.fhir.utilities.json.JsonTrackingParser;
+import org.hl7.fhir.utilities.json.JsonTrackingParser.LocationData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Parsing and composing resources with the R4 and R5 object model parsers, in JSON and XML
+ * (and the R5 binary format), and parsing the JSON with JsonTrackingParser, with and without 
+ * locations
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmarks {
+
+  @Param({Fixtures.PATIENT, Fixtures.OBSERVATION, Fixtures.BUNDLE})
+  public String fixture;
+
+  private byte[] r4Json;
+  private String r4JsonString;
+  private byte[] r4Xml;
+  private org.hl7.fhir.r4.model.Resource r4;
+  private byte[] r5Json;
+  private byte[] r5Xml;
+  private byte[] r5Binary;
+  private org.hl7.fhir.r5.model.Resource r5;
+
+  @Setup
+  public void setup() throws IOException, FHIRException {
+    r4Json = Fixtures.load(fixture);
+    r4JsonString = new String(r4Json, StandardCharsets.UTF_8);
+    r4 = new org.hl7.fhir.r4.formats.JsonParser().parse(r4Json);
+    r4Xml = new org.hl7.fhir.r4.formats.XmlParser().composeBytes(r4);
+    r5 = Fixtures.loadR5(fixture);
+    r5Json = new org.hl7.fhir.r5.formats.JsonParser().composeBytes(r5);
+    r5Xml = new org.hl7.fhir.r5.formats.XmlParser().composeBytes(r5);
+    r5Binary = new org.hl7.fhir.r5.formats.BinaryParser().composeBytes(r5);
+  }
+
+  @Benchmark
+  public org.hl7.fhir.r4.model.Resource r4ParseJson() throws IOException, FHIRException {
+    return new org.hl7.fhir.r4.formats.JsonParser().parse(r4Json);
+  }
+
+  @Benchmark
+  public org.hl7.fhir.r4.model.Resource r4ParseXml() throws IOException, FHIRException {
+    return new org.hl7.fhir.r4.formats.XmlParser().parse(r4Xml);
+  }
+
+  @Benchmark
+  public byte[] r4ComposeJson() throws IOException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream(r4Json.length);
+    new org.hl7.fhir.r4.formats.JsonParser().compose(bs, r4);
+    return bs.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] r4ComposeXml() throws IOException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream(r4Xml.length);
+    new org.hl7.fhir.r4.formats.XmlParser().compose(bs, r4);
+    return bs.toByteArray();
+  }
+
+  @Benchmark
+  public JsonObject trackingParseJson() throws IOException {
+    return JsonTrackingParser.parseJson(r4Json);
+  }
+
+  @Benchmark
+  public Map<JsonElement, LocationData> trackingParseJsonMap() throws IOException {
+    Map<JsonElement, LocationData> map = new HashMap<JsonElement, LocationData>();
+    JsonTrackingParser.parse(r4JsonString, map);
+    return map;
+  }
+
+  @Benchmark
+  public JsonLocations trackingParseJsonLocations() throws IOException {
+    JsonLocations locations = new JsonLocations();
+    JsonTrackingParser.parseWithLocations(r4JsonString, locations);
+    return locations;
+  }
+
+  @Benchmark
+  public org.hl7.fhir.r5.model.Resource r5ParseJson() throws IOException, FHIRException {
+    return new org.hl7.fhir.r5.formats.JsonParser().parse(r5Json);
+  }
+
+  @Benchmark
+  public org.hl7.fhir.r5.model.Resource r5ParseXml() throws IOException, FHIRException {
+    return new org.hl7.fhir.r5.formats.XmlParser().parse(r5Xml);
+  }
+
+  @Benchmark
+  public org.hl7.fhir.r5.model.Resource r5ParseBinary() throws IOException, FHIRException {
+    return new org.hl7.fhir.r5.formats.BinaryParser().parse(r5Binary);
+  }
+
+  @Benchmark
+  public byte[] r5ComposeJson() throws IOException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream(r5Json.length);
+    new org.hl7.fhir.r5.formats.JsonParser().compose(bs, r5);
+    return bs.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] r5ComposeXml() throws IOException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream(r5Xml.length);
+    new org.hl7.fhir.r5.formats.XmlParser().compose(bs, r5);
+    return bs.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] r5ComposeBinary() throws IOException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream(r5Binary.length);
+    new org.hl7.fhir.r5.formats.BinaryParser().compose(bs, r5);
+    return bs.toByteArray();
+  }
+
+}
@@ -0,0 +1,105 @@
+package org.hl7.fhir.benchmarks;
+
+/*-
+ * #%L
+ * org.hl7.fhir.benchmarks
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.conformance.ProfileUtilities;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.validation.InstanceValidator;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Validating the patient fixture with the InstanceValidator against the profile fixture
+ * (which has a snapshot generated for it when the benchmark starts)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProfileValidationBenchmarks {
+
+  @Param({"JSON", "XML"})
+  public String format;
+
+  private InstanceValidator validator;
+  private byte[] content;
+  private FhirFormat fmt;
+  private StructureDefinition profile;
+
+  @Setup
+  public void setup() throws IOException, FHIRException {
+    SimpleWorkerContext context = Fixtures.context();
+    validator = new InstanceValidator(context, null);
+    validator.setAnyExtensionsAllowed(true);
+    fmt = FhirFormat.valueOf(format);
+    org.hl7.fhir.r5.model.Resource r = Fixtures.loadR5(Fixtures.PATIENT);
+    content = fmt == FhirFormat.JSON ? new org.hl7.fhir.r5.formats.JsonParser().composeBytes(r) : new org.hl7.fhir.r5.formats.XmlParser().composeBytes(r);
+    profile = profile(context);
+  }
+
+  /**
+   * the profile fixture, with a snapshot, loaded into the context (once)
+   */
+  private static StructureDefinition profile(SimpleWorkerContext context) throws IOException, FHIRException {
+    synchronized (context) {
+      StructureDefinition sd = (StructureDefinition) Fixtures.loadR5(Fixtures.PROFILE);
+      StructureDefinition res = context.fetchResource(StructureDefinition.class, sd.getUrl());
+      if (res == null) {
+        StructureDefinition base = context.fetchResource(StructureDefinition.class, sd.getBaseDefinition());
+        new ProfileUtilities(context, new ArrayList<ValidationMessage>(), null).generateSnapshot(base, sd, sd.getUrl(), "http://example.org/fhir", sd.getName());
+        context.cacheResource(sd);
+        res = sd;
+      }
+      return res;
+    }
+  }
+
+  @Benchmark
+  public List<ValidationMessage> validate() throws FHIRException {
+    List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
+    validator.validate(null, messages, new ByteArrayInputStream(content), fmt, profile);
+    return messages;
+  }
+
+}
@@ -0,0 +1,85 @@
+package org.hl7.fhir.benchmarks;
+
+/*-
+ * #%L
+ * org.hl7.fhir.benchmarks
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.conformance.ProfileUtilities;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generating snapshots with ProfileUtilities: the profile fixture (a constraint on Patient, with slicing),
+ * and some of the core resource definitions, regenerated from their differentials
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmarks {
+
+  @Param({Fixtures.PROFILE, "Observation", "Bundle"})
+  public String profile;
+
+  private SimpleWorkerContext context;
+  private StructureDefinition base;
+  private StructureDefinition derived;
+
+  @Setup
+  public void setup() throws IOException, FHIRException {
+    context = Fixtures.context();
+    if (Fixtures.PROFILE.equals(profile))
+      derived = (StructureDefinition) Fixtures.loadR5(Fixtures.PROFILE);
+    else
+      derived = context.fetchResource(StructureDefinition.class, "http://hl7.org/fhir/StructureDefinition/"+profile).copy();
+    derived.setSnapshot(null);
+    base = context.fetchResource(StructureDefinition.class, derived.getBaseDefinition());
+  }
+
+  @Benchmark
+  public StructureDefinition generateSnapshot() throws FHIRException {
+    StructureDefinition sd = derived.copy();
+    List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
+    new ProfileUtilities(context, messages, null).generateSnapshot(base, sd, sd.getUrl(), "http://example.org/fhir", sd.getName());
+    return sd;
+  }
+
+}
@@ -51,6 +51,7 @@ import org.hl7.fhir.utilities.json.JsonTrackingParser;
 import org.hl7.fhir.utilities.json.JsonTrackingParser.LocationData;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 import org.hl7.fhir.utilities.xhtml.XhtmlParser;
 
 import com.google.gson.JsonArray;
@@ -274,7 +275,9 @@ public class JsonParser extends ParserBase {
 				if (main != null) {
 					JsonPrimitive p = (JsonPrimitive) main;
 					n.setValue(p.getAsString());
-					if (!n.getProperty().isChoice() && n.getType().equals("xhtml")) {
+					if (!n.getProperty().isChoice() && n.getType().equals("xhtml") && lazyNarrative && policy != ValidationPolicy.EVERYTHING) {
+					  n.setXhtml(XhtmlNode.lazy(n.getValue()));
+					} else if (!n.getProperty().isChoice() && n.getType().equals("xhtml")) {
 						try {
           	  n.setXhtml(new XhtmlParser().setValidatorMode(policy == ValidationPolicy.EVERYTHING).parse(n.getValue(), null).getDocumentElement());
 						} catch (Exception e) {
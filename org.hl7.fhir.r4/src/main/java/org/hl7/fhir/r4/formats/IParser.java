@@ -121,6 +121,14 @@ public interface IParser {
    */
   public IParser setSuppressXhtml(String message);
 
+  /**
+   * When reading JSON, keep the narrative as the xhtml source, and only parse it when the 
+   * content is first accessed. A narrative that is never accessed is written back out exactly 
+   * as it was read. Errors in the xhtml are not found until it is accessed
+   */
+  public boolean isLazyNarrative();
+  public IParser setLazyNarrative(boolean value);
+
   // -- Reading methods ----------------------------------------
   
   /**
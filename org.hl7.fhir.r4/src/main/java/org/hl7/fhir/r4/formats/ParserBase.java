@@ -129,6 +129,17 @@ public abstract class ParserBase extends FormatUtilities implements IParser {
     return this;
   }
   
+  protected boolean lazyNarrative = false;
+
+  public boolean isLazyNarrative() {
+    return lazyNarrative;
+  }
+
+  public IParser setLazyNarrative(boolean value) {
+    this.lazyNarrative = value;
+    return this;
+  }
+
   protected boolean handleComments = false;
   
   public boolean getHandleComments() {
@@ -0,0 +1,276 @@
+package org.hl7.fhir.r5.conformance;
+
+/*-
+ * #%L
+ * org.hl7.fhir.r5
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.CanonicalType;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition.StructureDefinitionKind;
+
+/**
+ * Generates the snapshots for a set of profiles (typically, everything in a package) in parallel. 
+ * 
+ * The profiles are arranged by their dependencies (the baseDefinition, and the types, profiles 
+ * and content references in the differential), and each profile is generated once everything it 
+ * depends on has been generated, so profiles that don't depend on each other are generated at the 
+ * same time. Profiles that depend on each other in a cycle are generated together, in 
+ * the order they were provided. 
+ * 
+ * The actual generation is done by IWorkerContext.generateSnapshot, so the outcome is 
+ * the same as generating the snapshots one at a time in dependency order. This is only 
+ * for bulk loading: nothing else may use the context while the snapshots are generated
+ *  
+ */
+public class ParallelSnapshotGenerator {
+
+  public static class SnapshotTiming {
+    private StructureDefinition profile;
+    private long duration; // nanoseconds
+    private Exception error;
+
+    private SnapshotTiming(StructureDefinition profile) {
+      this.profile = profile;
+    }
+
+    public StructureDefinition getProfile() {
+      return profile;
+    }
+
+    /**
+     * @return how long it took to generate the snapshot, in milliseconds
+     */
+    public long getMillis() {
+      return duration / 1000000;
+    }
+
+    public long getNanos() {
+      return duration;
+    }
+
+    /**
+     * @return the problem generating the snapshot, if there was one
+     */
+    public Exception getError() {
+      return error;
+    }
+
+    public boolean isOk() {
+      return error == null;
+    }
+
+    @Override
+    public String toString() {
+      return profile.getUrl()+": "+getMillis()+"ms"+(error == null ? "" : " ("+error.getMessage()+")");
+    }
+  }
+
+  private class Node {
+    private StructureDefinition sd;
+    private int position;
+    private SnapshotTiming timing;
+    private List<Node> dependencies = new ArrayList<>();
+    // for finding strongly connected components (Tarjan)
+    private int index = -1;
+    private int lowlink;
+    private boolean onStack;
+    private Unit unit;
+
+    private Node(StructureDefinition sd, int position) {
+      this.sd = sd;
+      this.position = position;
+      this.timing = new SnapshotTiming(sd);
+    }
+  }
+
+  // a set of profiles that are generated together, one after the other 
+  private class Unit {
+    private List<Node> nodes = new ArrayList<>();
+    private CompletableFuture<Void> done;
+  }
+
+  private IWorkerContext context;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  public ParallelSnapshotGenerator(IWorkerContext context) {
+    super();
+    this.context = context;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public ParallelSnapshotGenerator setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  /**
+   * Generate the snapshots for any of the profiles that don't have one. 
+   * 
+   * Problems generating snapshots don't stop the other snapshots being generated; they 
+   * are reported in the timings 
+   * 
+   * @return the timings for the profiles that needed a snapshot, in the order they were provided
+   */
+  public List<SnapshotTiming> generate(Collection<StructureDefinition> profiles) throws FHIRException {
+    List<Node> nodes = new ArrayList<>();
+    Map<StructureDefinition, Node> byProfile = new IdentityHashMap<>();
+    Map<String, Node> byUrl = new HashMap<>();
+    for (StructureDefinition sd : profiles) {
+      if (!sd.hasSnapshot() && sd.getKind() != StructureDefinitionKind.LOGICAL && !byProfile.containsKey(sd)) {
+        Node n = new Node(sd, nodes.size());
+        nodes.add(n);
+        byProfile.put(sd, n);
+        if (sd.hasUrl() && !byUrl.containsKey(sd.getUrl()))
+          byUrl.put(sd.getUrl(), n);
+      }
+    }
+    List<SnapshotTiming> res = new ArrayList<>();
+    if (nodes.isEmpty())
+      return res;
+
+    for (Node n : nodes) {
+      addDependency(n, byUrl, n.sd.getBaseDefinition());
+      for (ElementDefinition ed : n.sd.getDifferential().getElement()) {
+        if (ed.hasContentReference())
+          addDependency(n, byUrl, ed.getContentReference());
+        for (TypeRefComponent t : ed.getType()) {
+          if (t.hasCode())
+            addDependency(n, byUrl, ProfileUtilities.sdNs(t.getCode(), context.getOverrideVersionNs()));
+          for (CanonicalType p : t.getProfile())
+            addDependency(n, byUrl, p.getValue());
+        }
+      }
+    }
+
+    List<Unit> units = findUnits(nodes);
+    if (parallelism <= 1 || units.size() == 1) {
+      for (Unit u : units)
+        generate(u);
+    } else {
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      try {
+        // units are in dependency order, so the dependencies of a unit are always already scheduled
+        for (Unit u : units) {
+          List<CompletableFuture<Void>> deps = new ArrayList<>();
+          for (Node n : u.nodes)
+            for (Node d : n.dependencies)
+              if (d.unit != u)
+                deps.add(d.unit.done);
+          u.done = CompletableFuture.allOf(deps.toArray(new CompletableFuture[deps.size()])).thenRunAsync(() -> generate(u), pool);
+        }
+        List<CompletableFuture<Void>> all = new ArrayList<>();
+        for (Unit u : units)
+          all.add(u.done);
+        CompletableFuture.allOf(all.toArray(new CompletableFuture[all.size()])).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new FHIRException("Interrupted generating snapshots", e);
+      } catch (ExecutionException e) {
+        throw new FHIRException("Error generating snapshots: "+e.getCause().getMessage(), e.getCause());
+      } finally {
+        pool.shutdown();
+      }
+    }
+    for (Node n : nodes)
+      res.add(n.timing);
+    return res;
+  }
+
+  private void addDependency(Node n, Map<String, Node> byUrl, String url) {
+    if (url == null)
+      return;
+    if (url.contains("|"))
+      url = url.substring(0, url.indexOf("|"));
+    if (url.contains("#"))
+      url = url.substring(0, url.indexOf("#"));
+    Node d = byUrl.get(url);
+    if (d != null && d != n && !n.dependencies.contains(d))
+      n.dependencies.add(d);
+  }
+
+  private void generate(Unit u) {
+    for (Node n : u.nodes) {
+      long t = System.nanoTime();
+      try {
+        context.generateSnapshot(n.sd);
+      } catch (Exception e) {
+        n.timing.error = e;
+      }
+      n.timing.duration = System.nanoTime() - t;
+    }
+  }
+
+  /**
+   * Tarjan's algorithm. Components come out with everything they depend on before them
+   */
+  private List<Unit> findUnits(List<Node> nodes) {
+    List<Unit> units = new ArrayList<>();
+    List<Node> stack = new ArrayList<>();
+    int[] index = new int[1];
+    for (Node n : nodes)
+      if (n.index == -1)
+        connect(n, index, stack, units);
+    return units;
+  }
+
+  private void connect(Node n, int[] index, List<Node> stack, List<Unit> units) {
+    n.index = index[0];
+    n.lowlink = index[0];
+    index[0]++;
+    stack.add(n);
+    n.onStack = true;
+    for (Node d : n.dependencies) {
+      if (d.index == -1) {
+        connect(d, index, stack, units);
+        n.lowlink = Math.min(n.lowlink, d.lowlink);
+      } else if (d.onStack)
+        n.lowlink = Math.min(n.lowlink, d.index);
+    }
+    if (n.lowlink == n.index) {
+      Unit u = new Unit();
+      Node m;
+      do {
+        m = stack.remove(stack.size()-1);
+        m.onStack = false;
+        m.unit = u;
+        u.nodes.add(m);
+      } while (m != n);
+      // keep the order the profiles were provided in
+      u.nodes.sort((a, b) -> Integer.compare(a.position, b.position));
+      units.add(u);
+    }
+  }
+}
@@ -32,6 +32,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.exceptions.DefinitionException;
@@ -247,7 +248,6 @@ public class ProfileUtilities extends TranslatingUtilities {
   public static final String DERIVATION_POINTER = "derived.pointer";
   public static final String IS_DERIVED = "derived.fact";
   public static final String UD_ERROR_STATUS = "error-status";
-  private static final String GENERATED_IN_SNAPSHOT = "profileutilities.snapshot.processed";
   private final boolean ADD_REFERENCE_TO_TABLE = true;
 
   private boolean useTableForFixedValues = true;
@@ -257,6 +257,10 @@ public class ProfileUtilities extends TranslatingUtilities {
   private final IWorkerContext context;
   private List<ValidationMessage> messages;
   private List<String> snapshotStack = new ArrayList<String>();
+  // differential elements that have been processed into the snapshot. This is kept here rather than in the user data of
+  // the elements, so that generating a snapshot doesn't write to definitions that might be shared. It's keyed by the
+  // (distinct) element instances, so it's safe when re-entered 
+  private Map<ElementDefinition, ElementDefinition> generatedInSnapshot = new WeakHashMap<ElementDefinition, ElementDefinition>();
   private ProfileKnowledgeProvider pkp;
   private boolean igmode;
   private boolean exception;
@@ -481,7 +485,7 @@ public class ProfileUtilities extends TranslatingUtilities {
         throw new Error("type on first differential element!");
 
       for (ElementDefinition e : derived.getDifferential().getElement()) 
-        e.clearUserData(GENERATED_IN_SNAPSHOT);
+        generatedInSnapshot.remove(e);
 
       // we actually delegate the work to a subroutine so we can re-enter it with a different cursors
       StructureDefinitionDifferentialComponent diff = cloneDiff(derived.getDifferential()); // we make a copy here because we're sometimes going to hack the differential while processing it. Have to migrate user data back afterwards
@@ -497,9 +501,9 @@ public class ProfileUtilities extends TranslatingUtilities {
           derived.getDifferential().hasElement() ? derived.getDifferential().getElement().size()-1 : -1, url, webUrl, derived.present(), null, null, false, base.getUrl(), null, false, null, new ArrayList<ElementRedirection>(), base);
       if (derived.getDerivation().equals(TypeDerivationRule.SPECIALIZATION)) {
         for (ElementDefinition e : diff.getElement()) {
-          if (!e.hasUserData(GENERATED_IN_SNAPSHOT)) {
+          if (!generatedInSnapshot.containsKey(e)) {
             ElementDefinition outcome = updateURLs(url, webUrl, e.copy());
-            e.setUserData(GENERATED_IN_SNAPSHOT, outcome);
+            generatedInSnapshot.put(e, outcome);
             derived.getSnapshot().addElement(outcome);
           }
         }
@@ -529,7 +533,7 @@ public class ProfileUtilities extends TranslatingUtilities {
           if (e.hasUserData(DERIVATION_POINTER))
             ((Base) e.getUserData("diff-source")).setUserData(DERIVATION_POINTER, e.getUserData(DERIVATION_POINTER));
         }
-        if (!e.hasUserData(GENERATED_IN_SNAPSHOT)) {
+        if (!generatedInSnapshot.containsKey(e)) {
           b.append(e.hasId() ? "id: "+e.getId() : "path: "+e.getPath());
           if (e.hasId()) {
             String msg = "No match found in the generated snapshot: check that the path and definitions are legal in the differential (including order)";
@@ -726,12 +730,8 @@ public class ProfileUtilities extends TranslatingUtilities {
             CanonicalType p = diffMatches.get(0).getType().get(0).getProfile().get(0);
             StructureDefinition sd = context.fetchResource(StructureDefinition.class, p.getValue());
             if (sd != null) {
-              if (!sd.hasSnapshot()) {
-                StructureDefinition sdb = context.fetchResource(StructureDefinition.class, sd.getBaseDefinition());
-                if (sdb == null)
-                  throw new DefinitionException("Unable to find base "+sd.getBaseDefinition()+" for "+sd.getUrl());
-                generateSnapshot(sdb, sd, sd.getUrl(), (sdb.hasUserData("path")) ? Utilities.extractBaseUrl(sdb.getUserString("path")) : webUrl, sd.getName());
-              }
+              // through the context, which waits if another thread is building it, so it isn't seen half done
+              context.generateSnapshot(sd, true);
               ElementDefinition src;
               if (p.hasExtension(ToolingExtensions.EXT_PROFILE_ELEMENT)) {
                  src = null;
@@ -1243,7 +1243,7 @@ public class ProfileUtilities extends TranslatingUtilities {
             updateFromDefinition(outcome, diffMatches.get(0), profileName, closed, url, srcSD); // if there's no slice, we don't want to update the unsliced description
             removeStatusExtensions(outcome);
           } else if (!diffMatches.get(0).hasSliceName())
-            diffMatches.get(0).setUserData(GENERATED_IN_SNAPSHOT, outcome); // because of updateFromDefinition isn't called 
+            generatedInSnapshot.put(diffMatches.get(0), outcome); // because of updateFromDefinition isn't called 
           
           result.getElement().add(outcome);
 
@@ -2036,7 +2036,7 @@ public class ProfileUtilities extends TranslatingUtilities {
   }
 
   private void updateFromDefinition(ElementDefinition dest, ElementDefinition source, String pn, boolean trimDifferential, String purl, StructureDefinition srcSD) throws DefinitionException, FHIRException {
-    source.setUserData(GENERATED_IN_SNAPSHOT, dest);
+    generatedInSnapshot.put(source, dest);
     // we start with a clone of the base profile ('dest') and we copy from the profile ('source')
     // over the top for anything the source has
     ElementDefinition base = dest;
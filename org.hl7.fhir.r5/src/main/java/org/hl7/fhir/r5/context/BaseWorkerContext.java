@@ -1151,6 +1151,14 @@ public abstract class BaseWorkerContext implements IWorkerContext {
     }
   }
 
+  public List<SearchParameter> allSearchParameters() {
+    synchronized (lock) {
+      List<SearchParameter> result = new ArrayList<SearchParameter>();
+      searchParameters.listAll(result);
+      return result;
+    }
+  }
+
   @Override
   public String getOverrideVersionNs() {
     return overrideVersionNs;
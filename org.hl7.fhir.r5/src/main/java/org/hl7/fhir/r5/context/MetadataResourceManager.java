@@ -1,16 +1,15 @@
 package org.hl7.fhir.r5.context;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 
-import org.hl7.fhir.r5.context.BaseWorkerContext.MetadataResourceVersionComparator;
-import org.hl7.fhir.r5.model.CodeSystem;
 import org.hl7.fhir.r5.model.MetadataResource;
 import org.hl7.fhir.utilities.VersionUtilities;
 
@@ -18,19 +17,78 @@ import org.hl7.fhir.utilities.VersionUtilities;
  * This manages a cached list of resources, and provides high speed access by URL / URL+version, and assumes that patch version doesn't matter for access
  * note, though, that not all resources have semver versions
  * 
+ * Internally, resources are kept in the order they were seen, and each URL has its own 
+ * set of versions, sorted (as much as possible) by version. So registering or dropping 
+ * a resource only looks at the other versions of the same URL, and loading n resources 
+ * is O(n log n), not O(n^2)
+ * 
  * @author graha
  *
  */
 
 public class MetadataResourceManager<T extends MetadataResource> {
 
+  /**
+   * how a resource was registered: the url and version when it was seen, and the order it was seen in 
+   */
+  private static class Entry<T> {
+    private T resource;
+    private String url;
+    private String version;
+    private String key; // major.minor if there is one, else the version
+    private long seq;
+    private int count; // the same resource can be seen more than once
+
+    private Entry(T resource, String url, String version, long seq) {
+      this.resource = resource;
+      this.url = url;
+      this.version = version;
+      this.key = version == null ? null : keyFor(version);
+      this.seq = seq;
+    }
+
+    private Entry(Entry<T> other) {
+      this.resource = other.resource;
+      this.url = other.url;
+      this.version = other.version;
+      this.key = other.key;
+      this.seq = other.seq;
+      this.count = other.count;
+    }
+  }
+
+  private static String keyFor(String version) {
+    String mm = VersionUtilities.getMajMin(version);
+    return mm == null ? version : mm;
+  }
+
+  /**
+   * no version first (in the order seen), then by major.minor (or the version, if it's not semver), then in the order seen
+   */
+  private static final Comparator<Entry<?>> ENTRY_ORDER = new Comparator<Entry<?>>() {
+    @Override
+    public int compare(Entry<?> e1, Entry<?> e2) {
+      if (e1.key == null && e2.key != null) {
+        return -1;
+      } else if (e1.key != null && e2.key == null) {
+        return 1;
+      } else if (e1.key != null) {
+        int c = e1.key.compareTo(e2.key);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return Long.compare(e1.seq, e2.seq);
+    }
+  };
+
   public class MetadataResourceVersionComparator<T extends MetadataResource> implements Comparator<T> {
     @Override
     public int compare(T arg1, T arg2) {
       String v1 = arg1.getVersion();
       String v2 = arg2.getVersion();
       if (v1 == null && v2 == null) {
-        return Integer.compare(list.indexOf(arg1), list.indexOf(arg2)); // retain original order
+        return Long.compare(seqOf(arg1), seqOf(arg2)); // retain original order
       } else if (v1 == null) {
         return -1;
       } else if (v2 == null) {
@@ -45,12 +103,21 @@ public class MetadataResourceManager<T extends MetadataResource> {
         }
       }
     }
+
+    private long seqOf(T t) {
+      Entry<?> e = entries.get(t);
+      return e == null ? -1 : e.seq;
+    }
   }
 
 
   private boolean enforceUniqueId; 
-  private List<T> list = new ArrayList<>();
+  private Map<T, Entry<T>> entries = new LinkedHashMap<>(); // in the order seen
+  private Map<String, TreeSet<Entry<T>>> versions = new HashMap<>(); // url -> versions, sorted
+  private Map<String, List<T>> ids = new HashMap<>();
   private Map<String, T> map = new HashMap<>();
+  private int size;
+  private long seq;
   
   
   public MetadataResourceManager(boolean enforceUniqueId) {
@@ -59,10 +126,20 @@ public class MetadataResourceManager<T extends MetadataResource> {
   }
 
   public void copy(MetadataResourceManager<T> source) {
-    list.clear();
-    map.clear();
-    list.addAll(source.list);
+    clear();
+    for (Entry<T> e : source.entries.values()) {
+      Entry<T> n = new Entry<>(e);
+      entries.put(n.resource, n);
+      if (n.url != null) {
+        versions.computeIfAbsent(n.url, k -> new TreeSet<>(ENTRY_ORDER)).add(n);
+      }
+    }
+    for (Map.Entry<String, List<T>> e : source.ids.entrySet()) {
+      ids.put(e.getKey(), new ArrayList<>(e.getValue()));
+    }
     map.putAll(source.map);
+    size = source.size;
+    seq = source.seq;
   }
   
   public void see(T r) {
@@ -72,7 +149,17 @@ public class MetadataResourceManager<T extends MetadataResource> {
     if (enforceUniqueId && map.containsKey(r.getId())) {
       drop(r.getId());      
     }
-    list.add(r);
+    size++;
+    Entry<T> e = entries.get(r);
+    if (e == null) {
+      e = new Entry<>(r, r.hasUrl() ? r.getUrl() : null, r.hasVersion() ? r.getVersion() : null, seq++);
+      entries.put(r, e);
+      if (e.url != null) {
+        versions.computeIfAbsent(e.url, k -> new TreeSet<>(ENTRY_ORDER)).add(e);
+      }
+    }
+    e.count++;
+    ids.computeIfAbsent(r.getId(), k -> new ArrayList<>()).add(r);
     map.put(r.getId(), r); // we do this so we can drop by id
 
     if (r.hasUrl()) {
@@ -85,29 +172,17 @@ public class MetadataResourceManager<T extends MetadataResource> {
   }
 
   private void updateList(String url, String version) {
-    List<T> rl = new ArrayList<T>();
-    for (T t : list) {
-      if (url.equals(t.getUrl()) && !rl.contains(t)) {
-        rl.add(t);
-      }
-    }
-    if (rl.size() > 0) {
-      // sort by version as much as we are able
-      Collections.sort(rl, new MetadataResourceVersionComparator<T>());
+    TreeSet<Entry<T>> rl = versions.get(url);
+    if (rl != null && !rl.isEmpty()) {
       // the current is the latest
-      map.put(url, rl.get(rl.size()-1));
+      map.put(url, rl.last().resource);
       // now, also, the latest for major/minor
-      if (version != null) {
-        T latest = null;
-        for (T t : rl) {
-          if (VersionUtilities.versionsCompatible(t.getVersion(), version)) {
-            latest = t;
-          }
-        }
-        if (latest != null) { // might be null if it's not using semver
-          String lv = VersionUtilities.getMajMin(latest.getVersion());
-          if (lv != null && !lv.equals(version))
-            map.put(url+"|"+lv, rl.get(rl.size()-1));
+      String lv = VersionUtilities.getMajMin(version);
+      if (lv != null) { // might be null if it's not using semver
+        Entry<T> probe = new Entry<>(null, url, lv, Long.MAX_VALUE);
+        Entry<T> latest = rl.floor(probe);
+        if (latest != null && lv.equals(latest.key) && !lv.equals(version)) {
+          map.put(url+"|"+lv, latest.resource);
         }
       }
     }
@@ -143,57 +218,67 @@ public class MetadataResourceManager<T extends MetadataResource> {
   }
   
   public int size() {
-    return list.size();
+    return size;
   }
   
   public void drop(String id) {
-    T res = null;
-    do {
-      res = null;
-      for (T t : list) {
-        if (t.getId().equals(id)) {
-          res = t;
-        }
+    List<T> rl = ids.remove(id);
+    if (rl == null) {
+      return;
+    }
+    map.remove(id);
+    for (T t : rl) {
+      Entry<T> e = entries.remove(t);
+      if (e == null) {
+        continue; // seen more than once with this id
       }
-      if (res != null) {
-        list.remove(res);
-        map.remove(id);
-        map.remove(res.getUrl());
-        if (res.hasVersion()) {
-          map.remove(res.getUrl()+"|"+res.getVersion());
-          String mm = VersionUtilities.getMajMin(res.getVersion());
+      size = size - e.count;
+      if (e.url != null) {
+        TreeSet<Entry<T>> vl = versions.get(e.url);
+        vl.remove(e);
+        if (vl.isEmpty()) {
+          versions.remove(e.url);
+        }
+        map.remove(e.url);
+        if (e.version != null) {
+          map.remove(e.url+"|"+e.version);
+          String mm = VersionUtilities.getMajMin(e.version);
           if (mm != null) {
-            map.remove(res.getUrl()+"|"+mm);
+            map.remove(e.url+"|"+mm);
           }
         }
-        updateList(res.getUrl(), res.getVersion()); 
+        updateList(e.url, e.version);
       }
-    } while (res != null);
+    }
   }
   
   
   public void listAll(List<T> result) {
-    result.addAll(list);    
+    for (Entry<T> e : entries.values()) {
+      for (int i = 0; i < e.count; i++) {
+        result.add(e.resource);
+      }
+    }
   }
 
   public void listAllM(List<MetadataResource> result) {
-    result.addAll(list);    
+    for (Entry<T> e : entries.values()) {
+      for (int i = 0; i < e.count; i++) {
+        result.add(e.resource);
+      }
+    }
   }
 
   public void clear() {
-    list.clear();
+    entries.clear();
+    versions.clear();
+    ids.clear();
     map.clear();
-    
+    size = 0;
   }
 
   public List<T> getList() {
-    List<T> res = new ArrayList<>();
-    for (T t : list) {
-      if (!res.contains(t)) {
-        res.add(t);
-      }
-    }
-    return res;
+    return new ArrayList<>(entries.keySet());
   }
 
   public Set<String> keys() {
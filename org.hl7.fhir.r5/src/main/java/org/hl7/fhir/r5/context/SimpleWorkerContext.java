@@ -34,9 +34,11 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -44,10 +46,13 @@ import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.exceptions.DefinitionException;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.exceptions.FHIRFormatError;
+import org.hl7.fhir.r5.conformance.ParallelSnapshotGenerator;
+import org.hl7.fhir.r5.conformance.ParallelSnapshotGenerator.SnapshotTiming;
 import org.hl7.fhir.r5.conformance.ProfileUtilities;
 import org.hl7.fhir.r5.conformance.ProfileUtilities.ProfileKnowledgeProvider;
 import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService.LogCategory;
 import org.hl7.fhir.r5.context.SimpleWorkerContext.ILoadFilter;
+import org.hl7.fhir.r5.formats.BinaryParser;
 import org.hl7.fhir.r5.formats.IParser;
 import org.hl7.fhir.r5.formats.JsonParser;
 import org.hl7.fhir.r5.formats.ParserType;
@@ -112,7 +117,14 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
   private String date;
   private IValidatorFactory validatorFactory;
   private boolean ignoreProfileErrors;
+  private SnapshotCache snapshotCache;
   private boolean progress;
+  // who is building which snapshot, and which snapshot each waiting thread is waiting for (see generateSnapshot). 
+  // Shared with copies, which have the same profiles
+  private Object snapshotLock = new Object();
+  private Map<StructureDefinition, Thread> snapshotBuilders = new IdentityHashMap<>();
+  private Map<Thread, StructureDefinition> snapshotWaits = new HashMap<>();
+  private Set<StructureDefinition> snapshotsDone = Collections.newSetFromMap(new ConcurrentHashMap<>());
   
   public SimpleWorkerContext() throws FileNotFoundException, IOException, FHIRException {
     super();
@@ -131,6 +143,11 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
     revision = other.revision;
     date = other.date;
     validatorFactory = other.validatorFactory;
+    snapshotCache = other.snapshotCache;
+    snapshotLock = other.snapshotLock;
+    snapshotBuilders = other.snapshotBuilders;
+    snapshotWaits = other.snapshotWaits;
+    snapshotsDone = other.snapshotsDone;
   }
 
   // -- Initializations
@@ -388,6 +405,7 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
 		switch (type) {
 		case JSON: return newJsonParser();
 		case XML: return newXmlParser();
+		case BINARY: return new BinaryParser();
 		default:
 			throw new Error("Parser Type "+type.toString()+" not supported");
 		}
@@ -399,6 +417,8 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
 			return new JsonParser();
 		if (type.equalsIgnoreCase("XML"))
 			return new XmlParser();
+		if (type.equalsIgnoreCase("BINARY"))
+			return new BinaryParser();
 		throw new Error("Parser Type "+type.toString()+" not supported");
 	}
 
@@ -529,6 +549,18 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
     return result;
   }
 
+  /**
+   * Generate any missing snapshots for the profiles, in parallel where the profiles don't depend on each other.
+   * 
+   * This is for bulk loading (e.g. after loading a package): nothing else may use the context 
+   * while it runs. allStructures() always generates the snapshots one at a time
+   * 
+   * @return how long each snapshot took to generate, and any problems  
+   */
+  public List<SnapshotTiming> generateSnapshots(List<StructureDefinition> profiles) throws FHIRException {
+    return new ParallelSnapshotGenerator(this).generate(profiles);
+  }
+
   private String tail(String url) {
     if (Utilities.noString(url)) {
       return "noname";
@@ -639,6 +671,70 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
   
   @Override
   public void generateSnapshot(StructureDefinition p, boolean logical) throws DefinitionException, FHIRException {
+    // generateSnapshots may generate snapshots on several threads. The snapshot is visible while 
+    // it is being built, so anyone else generating it on demand has to wait until it's finished
+    if (snapshotsDone.contains(p) && p.hasSnapshot())
+      return;
+    if (startSnapshot(p)) {
+      try {
+        generateSnapshotInner(p, logical);
+      } finally {
+        endSnapshot(p);
+      }
+    }
+  }
+
+  /**
+   * true if this thread is to build the snapshot. Otherwise waits until whoever is building it has finished, 
+   * unless that would be a deadlock: if it's being built further up this thread's stack, or by a thread 
+   * that is waiting on this one, it's used as it is, the same as when there's only one thread
+   */
+  private boolean startSnapshot(StructureDefinition p) throws FHIRException {
+    Thread me = Thread.currentThread();
+    synchronized (snapshotLock) {
+      while (true) {
+        Thread builder = snapshotBuilders.get(p);
+        if (builder == null) {
+          if (p.hasSnapshot()) {
+            snapshotsDone.add(p);
+            return false;
+          }
+          snapshotBuilders.put(p, me);
+          return true;
+        }
+        if (waitsFor(builder, me))
+          return false;
+        snapshotWaits.put(me, p);
+        try {
+          snapshotLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new FHIRException("Interrupted waiting for the snapshot of "+p.getUrl());
+        } finally {
+          snapshotWaits.remove(me);
+        }
+      }
+    }
+  }
+
+  private boolean waitsFor(Thread thread, Thread other) {
+    while (thread != null && thread != other) {
+      StructureDefinition p = snapshotWaits.get(thread);
+      thread = p == null ? null : snapshotBuilders.get(p);
+    }
+    return thread == other;
+  }
+
+  private void endSnapshot(StructureDefinition p) {
+    synchronized (snapshotLock) {
+      snapshotBuilders.remove(p);
+      if (p.hasSnapshot())
+        snapshotsDone.add(p);
+      snapshotLock.notifyAll();
+    }
+  }
+
+  private void generateSnapshotInner(StructureDefinition p, boolean logical) throws DefinitionException, FHIRException {
     if (!p.hasSnapshot() && (logical || p.getKind() != StructureDefinitionKind.LOGICAL)) {
       if (!p.hasBaseDefinition())
         throw new DefinitionException("Profile "+p.getName()+" ("+p.getUrl()+") has no base and no snapshot");
@@ -659,7 +755,20 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
       pu.setDebug(false);
       for (String err : errors)
         msgs.add(new ValidationMessage(Source.ProfileValidator, IssueType.EXCEPTION, p.getUserString("path"), "Error sorting Differential: "+err, ValidationMessage.IssueSeverity.ERROR));
-      pu.generateSnapshot(sd, p, p.getUrl(), Utilities.extractBaseUrl(sd.getUserString("path")), p.getName());
+      String key = null;
+      if (snapshotCache != null) {
+        try {
+          key = snapshotCache.key(this, sd, p);
+        } catch (IOException e) {
+          key = null;
+        }
+      }
+      if (key == null || !snapshotCache.load(key, p, msgs)) {
+        int start = msgs.size();
+        pu.generateSnapshot(sd, p, p.getUrl(), Utilities.extractBaseUrl(sd.getUserString("path")), p.getName());
+        if (key != null && p.hasSnapshot())
+          snapshotCache.store(key, p, msgs.subList(start, msgs.size()));
+      }
       for (ValidationMessage msg : msgs) {
         if ((!ignoreProfileErrors && msg.getLevel() == ValidationMessage.IssueSeverity.ERROR) || msg.getLevel() == ValidationMessage.IssueSeverity.FATAL)
           throw new DefinitionException("Profile "+p.getName()+" ("+p.getUrl()+"). Error generating snapshot: "+msg.getMessage());
@@ -670,6 +779,17 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
     }
   }
 
+  public SnapshotCache getSnapshotCache() {
+    return snapshotCache;
+  }
+
+  /**
+   * Use a persistent cache of generated snapshots (off by default). See SnapshotCache
+   */
+  public void setSnapshotCache(SnapshotCache snapshotCache) {
+    this.snapshotCache = snapshotCache;
+  }
+
   public boolean isIgnoreProfileErrors() {
     return ignoreProfileErrors;
   }
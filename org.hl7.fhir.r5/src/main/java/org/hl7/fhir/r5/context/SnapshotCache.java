@@ -0,0 +1,350 @@
+package org.hl7.fhir.r5.context;
+
+/*-
+ * #%L
+ * org.hl7.fhir.r5
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.conformance.ProfileUtilities;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Bundle.BundleType;
+import org.hl7.fhir.r5.model.CanonicalType;
+import org.hl7.fhir.r5.model.Constants;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.utils.OperationOutcomeUtilities;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.cache.ToolsVersion;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+
+/**
+ * A persistent cache of generated snapshots, kept in the package cache folder so that 
+ * it's shared by every tool that uses the package cache. 
+ * 
+ * Entries are keyed by a hash of the content that goes into generating the snapshot: 
+ * the profile itself (which has no snapshot yet), its base, the profiles, types and content 
+ * references in its differential, and the tooling and FHIR versions. Profiles that don't 
+ * have a snapshot yet are hashed with everything they depend on in turn, so a change 
+ * anywhere in the chain changes the key. Snapshots are assumed not to change once they 
+ * have been generated.
+ * 
+ * A cached snapshot comes with the messages from generating it, and the ids generated for 
+ * the differential, but not the user data that ProfileUtilities leaves on the elements for 
+ * rendering, so the cache is only for tools that don't render the profiles (e.g. the validator). 
+ * 
+ * Entries are written to a temporary file and then renamed into place, so several processes 
+ * can share the cache folder: readers never see a partial entry, and if two processes 
+ * generate the same snapshot at once, they write the same content. An entry that can't 
+ * be read is deleted, and the snapshot generated again. The least recently used entries 
+ * are deleted once there are more than maxEntries
+ * 
+ */
+public class SnapshotCache {
+
+  // change this if the way snapshots are generated or stored changes in a way that's not reflected in the tools version
+  private static final String CACHE_VERSION = "2";
+  private static final int PRUNE_INTERVAL = 1000;
+
+  private File folder;
+  private int maxEntries = 20000;
+  private Map<StructureDefinition, String> snapshotHashes = new WeakHashMap<>();
+  private AtomicInteger hits = new AtomicInteger();
+  private AtomicInteger misses = new AtomicInteger();
+  private AtomicInteger stores = new AtomicInteger();
+
+  /**
+   * @param packageCacheFolder - the folder of the package cache (see PackageCacheManager.getFolder()) 
+   */
+  public SnapshotCache(String packageCacheFolder) throws IOException {
+    folder = new File(Utilities.path(packageCacheFolder, "snapshots"));
+    if (!folder.exists())
+      folder.mkdirs();
+    prune();
+  }
+
+  public String getFolder() {
+    return folder.getAbsolutePath();
+  }
+
+  public int getHits() {
+    return hits.get();
+  }
+
+  public int getMisses() {
+    return misses.get();
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public SnapshotCache setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+    return this;
+  }
+
+  /**
+   * work out the key for the snapshot of the profile, given the profile it's based on. 
+   * 
+   * The differential should already be sorted, if it's going to be
+   */
+  public String key(IWorkerContext context, StructureDefinition base, StructureDefinition derived) throws IOException {
+    MessageDigest md = digest();
+    md.update(("v"+CACHE_VERSION+"|"+ToolsVersion.TOOLS_VERSION+"|"+Constants.VERSION+"|").getBytes("UTF-8"));
+    String impl = SnapshotCache.class.getPackage() == null ? null : SnapshotCache.class.getPackage().getImplementationVersion();
+    if (impl != null)
+      md.update(impl.getBytes("UTF-8"));
+    md.update(compose(derived));
+    Set<StructureDefinition> stack = new HashSet<>();
+    stack.add(derived);
+    md.update(contentHash(context, base, stack).getBytes("UTF-8"));
+    String path = base.getUserString("path");
+    if (path != null)
+      md.update(path.getBytes("UTF-8"));
+    references(context, derived, md, stack);
+    return hex(md.digest());
+  }
+
+  /**
+   * If there's a snapshot in the cache, copy it (and the ids generated for the differential) into the profile, 
+   * and add the messages from generating it 
+   *  
+   * @return true if the profile now has a snapshot
+   */
+  public boolean load(String key, StructureDefinition derived, List<ValidationMessage> messages) {
+    File f = new File(folder, key+".json");
+    if (!f.exists()) {
+      misses.incrementAndGet();
+      return false;
+    }
+    try {
+      InputStream s = new FileInputStream(f);
+      Bundle bnd;
+      try {
+        bnd = (Bundle) new JsonParser().parse(s);
+      } finally {
+        s.close();
+      }
+      StructureDefinition sd = (StructureDefinition) bnd.getEntry().get(0).getResource();
+      // no messages -> an empty OperationOutcome, which isn't written out
+      OperationOutcome oo = bnd.getEntry().size() > 1 ? (OperationOutcome) bnd.getEntry().get(1).getResource() : null;
+      if (!sd.hasSnapshot())
+        throw new FHIRException("no snapshot");
+      List<ElementDefinition> diff = derived.getDifferential().getElement();
+      if (sd.getDifferential().getElement().size() != diff.size())
+        throw new FHIRException("differential doesn't match");
+      for (int i = 0; i < diff.size(); i++) {
+        ElementDefinition ed = sd.getDifferential().getElement().get(i);
+        if (!ed.getPath().equals(diff.get(i).getPath()))
+          throw new FHIRException("differential doesn't match");
+      }
+      for (int i = 0; i < diff.size(); i++)
+        diff.get(i).setId(sd.getDifferential().getElement().get(i).getId());
+      derived.setSnapshot(sd.getSnapshot());
+      derived.getMapping().clear();
+      derived.getMapping().addAll(sd.getMapping());
+      if (oo != null)
+        for (OperationOutcomeIssueComponent issue : oo.getIssue())
+          messages.add(new ValidationMessage(Source.ProfileValidator, IssueType.fromCode(issue.getCode().toCode()), 
+              issue.hasExpression() ? issue.getExpression().get(0).getValue() : null, issue.getDetails().getText(), IssueSeverity.fromCode(issue.getSeverity().toCode())));
+      f.setLastModified(System.currentTimeMillis());
+      hits.incrementAndGet();
+      return true;
+    } catch (Exception e) {
+      // corrupt or from an incompatible version; get rid of it, and generate the snapshot again
+      f.delete();
+      misses.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * store the generated snapshot, and the messages from generating it, for next time. 
+   * Problems writing to the cache are ignored - the cache is only an optimisation
+   */
+  public void store(String key, StructureDefinition derived, List<ValidationMessage> messages) {
+    File tmp = null;
+    try {
+      Bundle bnd = new Bundle();
+      bnd.setType(BundleType.COLLECTION);
+      bnd.addEntry().setResource(derived);
+      bnd.addEntry().setResource(OperationOutcomeUtilities.createOutcome(messages));
+      tmp = File.createTempFile(key, ".tmp", folder);
+      OutputStream s = new FileOutputStream(tmp);
+      try {
+        new JsonParser().setOutputStyle(OutputStyle.NORMAL).compose(s, bnd);
+      } finally {
+        s.close();
+      }
+      File f = new File(folder, key+".json");
+      try {
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (Exception e) {
+      if (tmp != null)
+        tmp.delete();
+    }
+    if (stores.incrementAndGet() % PRUNE_INTERVAL == 0)
+      prune();
+  }
+
+  /**
+   * Delete the least recently used entries, so that there are no more than maxEntries, and any 
+   * temporary files that were left behind. This is done when the cache is created, and every 
+   * so often as entries are stored
+   */
+  public void prune() {
+    long stale = System.currentTimeMillis() - 60 * 60 * 1000;
+    File[] files = folder.listFiles();
+    if (files == null)
+      return;
+    int count = 0;
+    for (File f : files) {
+      if (f.getName().endsWith(".tmp") && f.lastModified() < stale)
+        f.delete();
+      else if (f.getName().endsWith(".json"))
+        files[count++] = f;
+    }
+    if (count > maxEntries) {
+      File[] entries = Arrays.copyOf(files, count);
+      // read the times first - they change when entries are used
+      Map<File, Long> used = new HashMap<>();
+      for (File f : entries)
+        used.put(f, f.lastModified());
+      Arrays.sort(entries, Comparator.comparing(used::get));
+      for (int i = 0; i < count - maxEntries; i++)
+        entries[i].delete();
+    }
+  }
+
+  /**
+   * A profile with a snapshot is identified by the snapshot. Otherwise, it's the differential, and 
+   * everything the snapshot will be generated from
+   */
+  private String contentHash(IWorkerContext context, StructureDefinition sd, Set<StructureDefinition> stack) throws IOException {
+    if (sd.hasSnapshot())
+      return snapshotHash(sd);
+    StructureDefinition t = new StructureDefinition();
+    t.setUrl(sd.getUrl());
+    t.setVersion(sd.getVersion());
+    t.setBaseDefinition(sd.getBaseDefinition());
+    t.setDifferential(sd.getDifferential());
+    MessageDigest md = digest();
+    md.update(compose(t));
+    if (stack.add(sd)) {
+      StructureDefinition base = sd.hasBaseDefinition() ? context.fetchResourceWithException(StructureDefinition.class, sd.getBaseDefinition()) : null;
+      if (base != null && !stack.contains(base))
+        md.update(contentHash(context, base, stack).getBytes("UTF-8"));
+      references(context, sd, md, stack);
+      stack.remove(sd);
+    }
+    return hex(md.digest());
+  }
+
+  // the other profiles that generating the snapshot reads
+  private void references(IWorkerContext context, StructureDefinition sd, MessageDigest md, Set<StructureDefinition> stack) throws IOException {
+    for (ElementDefinition ed : sd.getDifferential().getElement()) {
+      if (ed.hasContentReference() && !ed.getContentReference().startsWith("#"))
+        reference(context, ed.getContentReference(), md, stack);
+      for (TypeRefComponent t : ed.getType()) {
+        if (t.hasCode())
+          reference(context, ProfileUtilities.sdNs(t.getCode(), context.getOverrideVersionNs()), md, stack);
+        for (CanonicalType p : t.getProfile())
+          reference(context, p.getValue(), md, stack);
+      }
+    }
+  }
+
+  private void reference(IWorkerContext context, String url, MessageDigest md, Set<StructureDefinition> stack) throws IOException {
+    md.update(("|"+url+"|").getBytes("UTF-8"));
+    StructureDefinition sd = url == null ? null : context.fetchResourceWithException(StructureDefinition.class, url);
+    if (sd != null && !stack.contains(sd))
+      md.update(contentHash(context, sd, stack).getBytes("UTF-8"));
+  }
+
+  private synchronized String snapshotHash(StructureDefinition sd) throws IOException {
+    // snapshots don't change once they exist, and are shared by many profiles, so remember the hash
+    String res = snapshotHashes.get(sd);
+    if (res == null) {
+      StructureDefinition t = new StructureDefinition();
+      t.setUrl(sd.getUrl());
+      t.setVersion(sd.getVersion());
+      t.setSnapshot(sd.getSnapshot());
+      MessageDigest md = digest();
+      md.update(compose(t));
+      res = hex(md.digest());
+      snapshotHashes.put(sd, res);
+    }
+    return res;
+  }
+
+  private byte[] compose(StructureDefinition sd) throws IOException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    new JsonParser().setOutputStyle(OutputStyle.NORMAL).compose(bs, sd);
+    return bs.toByteArray();
+  }
+
+  private MessageDigest digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+
+  private String hex(byte[] bytes) {
+    StringBuilder b = new StringBuilder();
+    for (byte v : bytes)
+      b.append(String.format("%02x", v & 0xff));
+    return b.toString();
+  }
+
+}
@@ -25,9 +25,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.Validate;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -76,23 +78,112 @@ public class Element extends Base {
     }
 	}
 
-	private List<String> comments;// not relevant for production, but useful in documentation
+  /**
+   * Elements with at least this many children get an index of their children by name
+   * the first time they're looked up by name
+   */
+  public static final int INDEX_THRESHOLD = 12;
+
+  private static final int MAX_NAMES = 10000;
+  private static final Map<String, String> NAMES = new ConcurrentHashMap<>();
+
+  /**
+   * The children of an element. The name index is built on demand, and discarded when 
+   * the list is changed (or a child is renamed - see setProperty). It's never changed 
+   * once it's built, so readers on other threads see either all of it or none of it
+   */
+  private static class ChildList extends ArrayList<Element> {
+    private static final long serialVersionUID = 1L;
+
+    private static class NameIndex {
+      private final int modCount;
+      private final Map<String, List<Element>> names;
+
+      private NameIndex(int modCount, Map<String, List<Element>> names) {
+        this.modCount = modCount;
+        this.names = names;
+      }
+    }
+
+    private NameIndex index;
+
+    /**
+     * @return the index, or null if the list is too short to be worth indexing
+     */
+    private NameIndex index() {
+      if (size() < INDEX_THRESHOLD)
+        return null;
+      NameIndex ndx = index;
+      if (ndx == null || ndx.modCount != modCount) {
+        Map<String, List<Element>> names = new LinkedHashMap<>();
+        for (Element child : this) {
+          List<Element> list = names.get(child.getName());
+          if (list == null) {
+            list = new ArrayList<>(1);
+            names.put(child.getName(), list);
+          }
+          list.add(child);
+        }
+        ndx = new NameIndex(modCount, names);
+        index = ndx;
+      }
+      return ndx;
+    }
+
+    /**
+     * @return the children with the name, or null if the list isn't indexed
+     */
+    private List<Element> named(String name) {
+      NameIndex ndx = index();
+      if (ndx == null)
+        return null;
+      List<Element> res = ndx.names.get(name);
+      return res == null ? Collections.<Element>emptyList() : res;
+    }
+
+    /**
+     * @return the names of the children in the order they first appear, or null if the list isn't indexed
+     */
+    private Set<String> names() {
+      NameIndex ndx = index();
+      return ndx == null ? null : ndx.names.keySet();
+    }
+
+    private void invalidate() {
+      index = null;
+    }
+
+    @Override
+    public Element set(int i, Element element) {
+      index = null;
+      return super.set(i, element);
+    }
+  }
+
+  /**
+   * The things that are rarely present, kept out of the element so they don't take space in every node
+   */
+  private static class Extras {
+    private List<String> comments;// not relevant for production, but useful in documentation
+    private XhtmlNode xhtml; // if this is populated, then value will also hold the string representation
+    private String explicitType; // for xsi:type attribute
+  }
+
 	private String name;
 	private String type;
 	private String value;
 	private int index = -1;
-	private List<Element> children;
+	private ChildList children;
 	private Property property;
   private Property elementProperty; // this is used when special is set to true - it tracks the underlying element property which is used in a few places
 	private int line;
 	private int col;
 	private SpecialElement special;
-	private XhtmlNode xhtml; // if this is populated, then value will also hold the string representation
-	private String explicitType; // for xsi:type attribute
+	private Extras extras;
 
 	public Element(String name) {
 		super();
-		this.name = name;
+		this.name = intern(name);
 	}
 
   public Element(Element other) {
@@ -106,18 +197,40 @@ public class Element extends Base {
   
   public Element(String name, Property property) {
 		super();
-		this.name = name;
+		this.name = intern(name);
 		this.property = property;
 	}
 
 	public Element(String name, Property property, String type, String value) {
 		super();
-		this.name = name;
+		this.name = intern(name);
 		this.property = property;
-		this.type = type;
+		this.type = intern(type);
 		this.value = value;
 	}
 
+  /**
+   * names and types come from a small set (the names in the definitions), but the parsers 
+   * make a new string for each one they read 
+   */
+  private static String intern(String s) {
+    if (s == null)
+      return null;
+    String res = NAMES.get(s);
+    if (res != null)
+      return res;
+    if (NAMES.size() >= MAX_NAMES)
+      return s;
+    res = NAMES.putIfAbsent(s, s);
+    return res == null ? s : res;
+  }
+
+  private Extras extras() {
+    if (extras == null)
+      extras = new Extras();
+    return extras;
+  }
+
 	public void updateProperty(Property property, SpecialElement special, Property elementProperty) {
 		this.property = property;
     this.elementProperty = elementProperty;
@@ -149,18 +262,18 @@ public class Element extends Base {
 
 	public List<Element> getChildren() {
 		if (children == null)
-			children = new ArrayList<Element>();
+			children = new ChildList();
 		return children;
 	}
 
 	public boolean hasComments() {
-		return !(comments == null || comments.isEmpty());
+		return !(extras == null || extras.comments == null || extras.comments.isEmpty());
 	}
 
 	public List<String> getComments() {
-		if (comments == null)
-			comments = new ArrayList<String>();
-		return comments;
+		if (extras().comments == null)
+			extras.comments = new ArrayList<String>();
+		return extras.comments;
 	}
 
 	public Property getProperty() {
@@ -172,7 +285,7 @@ public class Element extends Base {
 	}
 
 	public void setType(String type) {
-		this.type = type;
+		this.type = intern(type);
 
 	}
 
@@ -181,18 +294,13 @@ public class Element extends Base {
 	}
 
 	public List<Element> getChildrenByName(String name) {
-		List<Element> res = new ArrayList<Element>();
-		if (hasChildren()) {
-			for (Element child : children)
-				if (name.equals(child.getName()))
-					res.add(child);
-		}
-		return res;
+	  return getChildren(name);
 	}
 
 	public void numberChildren() {
 		if (children == null)
 			return;
+		children.trimToSize();
 		
 		String last = "";
 		int index = 0;
@@ -227,6 +335,9 @@ public class Element extends Base {
 	public String getChildValue(String name) {
 		if (children == null)
 			return null;
+		List<Element> named = children.named(name);
+		if (named != null)
+		  return named.isEmpty() ? null : named.get(0).getValue();
 		for (Element child : children) {
 			if (name.equals(child.getName()))
 				return child.getValue();
@@ -236,7 +347,7 @@ public class Element extends Base {
 
   public void setChildValue(String name, String value) {
     if (children == null)
-      children = new ArrayList<Element>();
+      children = new ChildList();
     for (Element child : children) {
       if (name.equals(child.getName())) {
         if (!child.isPrimitive())
@@ -253,10 +364,15 @@ public class Element extends Base {
 
 	public List<Element> getChildren(String name) {
 		List<Element> res = new ArrayList<Element>(); 
-		if (children != null)
-		for (Element child : children) {
-			if (name.equals(child.getName()))
-				res.add(child);
+		if (children != null) {
+		  List<Element> named = children.named(name);
+		  if (named != null)
+		    res.addAll(named);
+		  else
+		    for (Element child : children) {
+		      if (name.equals(child.getName()))
+		        res.add(child);
+		    }
 		}
 		return res;
 	}
@@ -284,7 +400,17 @@ public class Element extends Base {
   	}
   		
   	List<Base> result = new ArrayList<Base>();
-  	if (children != null) {
+  	Set<String> names = children == null ? null : children.names();
+  	if (names != null) {
+  	  for (String n : names) {
+  	    if (n.startsWith(name)) {
+  	      for (Element child : children.named(n)) {
+  	        if (n.equals(name) || (child.getProperty().isChoice() && child.getProperty().getName().equals(name+"[x]")))
+  	          result.add(child);
+  	      }
+  	    }
+  	  }
+  	} else if (children != null) {
   	for (Element child : children) {
   		if (child.getName().equals(name))
   			result.add(child);
@@ -318,7 +444,7 @@ public class Element extends Base {
   @Override
   public Base setProperty(int hash, String name, Base value) throws FHIRException {
     if ("xhtml".equals(getType()) && (hash == "value".hashCode())) {
-      this.xhtml = castToXhtml(value);
+      extras().xhtml = castToXhtml(value);
       this.value =  castToXhtmlString(value);
       return this;
     }
@@ -335,7 +461,7 @@ public class Element extends Base {
     }
     
     if (children == null)
-      children = new ArrayList<Element>();
+      children = new ChildList();
     Element childForValue = null;
     
     // look through existing children
@@ -376,15 +502,18 @@ public class Element extends Base {
     if (childForValue == null)
       throw new Error("Cannot set property "+name+" on "+this.name);
     else if (value.isPrimitive()) {
-      if (childForValue.property.getName().endsWith("[x]"))
-        childForValue.name = name+Utilities.capitalize(value.fhirType());
+      if (childForValue.property.getName().endsWith("[x]")) {
+        childForValue.name = intern(name+Utilities.capitalize(value.fhirType()));
+        children.invalidate();
+      }
       childForValue.setValue(value.primitiveValue());
     } else {
       Element ve = (Element) value;
       childForValue.type = ve.getType();
-      if (childForValue.property.getName().endsWith("[x]"))
-        childForValue.name = name+Utilities.capitalize(childForValue.type);
-      else if (value.isResource()) {
+      if (childForValue.property.getName().endsWith("[x]")) {
+        childForValue.name = intern(name+Utilities.capitalize(childForValue.type));
+        children.invalidate();
+      } else if (value.isResource()) {
         if (childForValue.elementProperty == null)
           childForValue.elementProperty = childForValue.property;
         childForValue.property = ve.property;
@@ -392,7 +521,7 @@ public class Element extends Base {
       }
       if (ve.children != null) {
         if (childForValue.children == null)
-          childForValue.children = new ArrayList<Element>();
+          childForValue.children = new ChildList();
         else 
           childForValue.children.clear();
         childForValue.children.addAll(ve.children);
@@ -416,7 +545,7 @@ public class Element extends Base {
     }
 
     if (children == null)
-      children = new ArrayList<Element>();
+      children = new ChildList();
     
     // look through existing children
     for (Element child : children) {
@@ -504,8 +633,9 @@ public class Element extends Base {
 
 	public void clearDecorations() {
 	  clearUserData("fhir.decorations");
-	  for (Element e : children)
-	    e.clearDecorations();	  
+	  if (children != null)
+	    for (Element e : children)
+	      e.clearDecorations();	  
 	}
 	
 	public void markValidation(StructureDefinition profile, ElementDefinition definition) {
@@ -529,6 +659,12 @@ public class Element extends Base {
   public Element getNamedChild(String name) {
 	  if (children == null)
   		return null;
+	  List<Element> named = children.named(name);
+	  if (named != null) {
+	    if (named.size() > 1)
+	      throw new Error("Attempt to read a single element when there is more than one present ("+name+")");
+	    return named.isEmpty() ? null : named.get(0);
+	  }
 	  Element result = null;
 	  for (Element child : children) {
 	  	if (child.getName().equals(name)) {
@@ -542,10 +678,15 @@ public class Element extends Base {
 	}
 
   public void getNamedChildren(String name, List<Element> list) {
-  	if (children != null)
-  		for (Element child : children) 
-  			if (child.getName().equals(name))
-  				list.add(child);
+  	if (children != null) {
+  	  List<Element> named = children.named(name);
+  	  if (named != null)
+  	    list.addAll(named);
+  	  else
+  	    for (Element child : children) 
+  	      if (child.getName().equals(name))
+  	        list.add(child);
+  	}
   }
 
   public String getNamedChildValue(String name) {
@@ -568,11 +709,12 @@ public class Element extends Base {
 
   
 	public XhtmlNode getXhtml() {
-		return xhtml;
+		return extras == null ? null : extras.xhtml;
 	}
 
 	public Element setXhtml(XhtmlNode xhtml) {
-		this.xhtml = xhtml;
+	  if (xhtml != null || extras != null)
+	    extras().xhtml = xhtml;
 		return this;
  	}
 
@@ -584,10 +726,12 @@ public class Element extends Base {
 		if (value != null) {   
 			return false;
 		}
-		for (Element next : getChildren()) {
-			if (!next.isEmpty()) {
-				return false;
-			}
+		if (children != null) {
+		  for (Element next : children) {
+		    if (!next.isEmpty()) {
+		      return false;
+		    }
+		  }
 		}
 		return true;
 	}
@@ -605,13 +749,45 @@ public class Element extends Base {
   }
 
   public boolean hasChildren(String name) {
-    if (children != null)
-      for (Element child : children) 
-        if (child.getName().equals(name))
-          return true;
+    if (children == null)
+      return false;
+    List<Element> named = children.named(name);
+    if (named != null)
+      return !named.isEmpty();
+    for (Element child : children) 
+      if (child.getName().equals(name))
+        return true;
     return false;
   }
 
+  /**
+   * @return the first extension (not modifier extension) with the url, or null. Wide 
+   *   elements find their extensions through the name index, so this doesn't allocate
+   */
+  public Element getExtension(String url) {
+    if (children == null || url == null)
+      return null;
+    List<Element> named = children.named("extension");
+    if (named != null) {
+      for (int i = 0; i < named.size(); i++) {
+        Element ext = named.get(i);
+        if (url.equals(ext.getNamedChildValue("url")))
+          return ext;
+      }
+      return null;
+    }
+    for (int i = 0; i < children.size(); i++) {
+      Element child = children.get(i);
+      if (child.getName().equals("extension") && url.equals(child.getNamedChildValue("url")))
+        return child;
+    }
+    return null;
+  }
+
+  public boolean hasExtension(String url) {
+    return getExtension(url) != null;
+  }
+
   @Override
   public String toString() {
     return name+"="+fhirType() + "["+(children == null || hasValue() ? value : Integer.toString(children.size())+" children")+"]";
@@ -840,11 +1016,12 @@ public class Element extends Base {
   }
 
   public String getExplicitType() {
-    return explicitType;
+    return extras == null ? null : extras.explicitType;
   }
 
   public void setExplicitType(String explicitType) {
-    this.explicitType = explicitType;
+    if (explicitType != null || extras != null)
+      extras().explicitType = explicitType;
   }
 
   
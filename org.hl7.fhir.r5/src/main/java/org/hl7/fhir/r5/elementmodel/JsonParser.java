@@ -28,7 +28,6 @@ import java.io.OutputStreamWriter;
 import java.math.BigDecimal;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -45,12 +44,13 @@ import org.hl7.fhir.r5.formats.JsonCreatorCanonical;
 import org.hl7.fhir.r5.formats.JsonCreatorGson;
 import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
 import org.hl7.fhir.r5.model.StructureDefinition;
-import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.JsonLocations;
 import org.hl7.fhir.utilities.json.JsonTrackingParser;
 import org.hl7.fhir.utilities.json.JsonTrackingParser.LocationData;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 import org.hl7.fhir.utilities.xhtml.XhtmlParser;
 
 import com.google.gson.JsonArray;
@@ -62,7 +62,7 @@ import com.google.gson.JsonPrimitive;
 public class JsonParser extends ParserBase {
 
 	private JsonCreator json;
-	private Map<JsonElement, LocationData> map;
+	private JsonLocations map;
 
 	public JsonParser(IWorkerContext context) {
 		super(context);
@@ -87,30 +87,41 @@ public class JsonParser extends ParserBase {
 	@Override
 	public Element parse(InputStream stream) throws IOException, FHIRException {
 		// if we're parsing at this point, then we're going to use the custom parser
-		map = new IdentityHashMap<JsonElement, LocationData>();
-		String source = TextFile.streamToString(stream);
 		if (policy == ValidationPolicy.EVERYTHING) {
+			map = new JsonLocations();
 			JsonObject obj = null; 
       try {
-			  obj = JsonTrackingParser.parse(source, map);
+			  obj = JsonTrackingParser.parseWithLocations(stream, map);
       } catch (Exception e) {  
 				logError(-1, -1, "(document)", IssueType.INVALID, "Error parsing JSON: "+e.getMessage(), IssueSeverity.FATAL);
       	return null;
       }
-		  assert (map.containsKey(obj));
+		  assert (map.has(obj));
 			return parse(obj);	
 		} else {
-			JsonObject obj = JsonTrackingParser.parse(source, null); // (JsonObject) new com.google.gson.JsonParser().parse(source);
+			map = null;
+			JsonObject obj = JsonTrackingParser.parseJson(stream); // (JsonObject) new com.google.gson.JsonParser().parse(source);
 //			assert (map.containsKey(obj));
 			return parse(obj);	
 		} 
 	}
 
 	public Element parse(JsonObject object, Map<JsonElement, LocationData> map) throws FHIRException {
-		this.map = map;
+	  if (map == null)
+	    this.map = null;
+	  else {
+	    this.map = new JsonLocations(map.size());
+	    for (Entry<JsonElement, LocationData> e : map.entrySet())
+	      this.map.put(e.getKey(), e.getValue().getLine(), e.getValue().getCol());
+	  }
 		return parse(object);
 	}
 
+	public Element parse(JsonObject object, JsonLocations locations) throws FHIRException {
+	  this.map = locations;
+	  return parse(object);
+	}
+
   public Element parse(JsonObject object) throws FHIRException {
 		JsonElement rt = object.get("resourceType");
 		if (rt == null) {
@@ -291,7 +302,9 @@ public class JsonParser extends ParserBase {
           } else {
             n.setValue(p.getAsString());
           }
-					if (!n.getProperty().isChoice() && n.getType().equals("xhtml")) {
+					if (!n.getProperty().isChoice() && n.getType().equals("xhtml") && lazyNarrative && policy != ValidationPolicy.EVERYTHING) {
+					  n.setXhtml(XhtmlNode.lazy(n.getValue()));
+					} else if (!n.getProperty().isChoice() && n.getType().equals("xhtml")) {
 						try {
           	  n.setXhtml(new XhtmlParser().setValidatorMode(policy == ValidationPolicy.EVERYTHING).parse(n.getValue(), null).getDocumentElement());
 						} catch (Exception e) {
@@ -344,17 +357,17 @@ public class JsonParser extends ParserBase {
 	}
 
 	private int line(JsonElement e) {
-		if (map == null|| !map.containsKey(e))
+		if (map == null)
 			return -1;
 		else
-			return map.get(e).getLine();
+			return map.getLine(e);
 	}
 
 	private int col(JsonElement e) {
-		if (map == null|| !map.containsKey(e))
+		if (map == null)
 			return -1;
 		else
-			return map.get(e).getCol();
+			return map.getCol(e);
 	}
 
 
@@ -63,6 +63,7 @@ public abstract class ParserBase {
   protected List<ValidationMessage> errors;
   protected ILinkResolver linkResolver;
   protected boolean showDecorations;
+  protected boolean lazyNarrative;
   
 	public ParserBase(IWorkerContext context) {
 		super();
@@ -150,5 +151,16 @@ public abstract class ParserBase {
     this.showDecorations = showDecorations;
   }
 
+  public boolean isLazyNarrative() {
+    return lazyNarrative;
+  }
+
+  /**
+   * When not validating, keep the narrative as the xhtml source, and only parse it when it's accessed
+   */
+  public void setLazyNarrative(boolean lazyNarrative) {
+    this.lazyNarrative = lazyNarrative;
+  }
+
 
 }
@@ -0,0 +1,472 @@
+package org.hl7.fhir.r5.formats;
+
+/*-
+ * #%L
+ * org.hl7.fhir.r5
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.exceptions.FHIRFormatError;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.BackboneType;
+import org.hl7.fhir.r5.model.Base64BinaryType;
+import org.hl7.fhir.r5.model.Basic;
+import org.hl7.fhir.r5.model.BooleanType;
+import org.hl7.fhir.r5.model.Constants;
+import org.hl7.fhir.r5.model.Extension;
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.MetadataResource;
+import org.hl7.fhir.r5.model.Narrative;
+import org.hl7.fhir.r5.model.PrimitiveType;
+import org.hl7.fhir.r5.model.Property;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.ResourceFactory;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.model.Type;
+import org.hl7.fhir.r5.model.UriType;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.xhtml.XhtmlComposer;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+import org.hl7.fhir.utilities.xhtml.XhtmlParser;
+
+/**
+ * A compact binary format for resources, for caches and for moving resources between
+ * services - not for exchange with other systems.
+ *
+ * The format follows the object model: each element is a list of (field number, value) pairs
+ * ending with 0, where the field number is the position of the property in the element's
+ * children (which are generated from the StructureDefinitions, in the same order). Lengths and
+ * integers are varints, strings are UTF-8, and short strings are only written once per
+ * resource and referred to by index after that. Choice types and resources carry their
+ * type name. Primitives carry their id and extensions, so the content round-trips with JSON
+ * (except for comments)
+ *
+ * The content is marked with the version of the object model that wrote it, and can only be
+ * read by the same version. Like the other parsers, an instance is not thread safe
+ */
+public class BinaryParser extends ParserBase {
+
+  private static final byte[] MAGIC = { 'F', 'H', 'B', 1 };
+  private static final int MAX_INTERNED = 64;
+  private static final int TAG_LITERAL = 0;
+  private static final int TAG_INTERN = 1;
+  private static final int TAG_REF = 2;
+  private static final int FLAG_VALUE = 1;
+  private static final int FLAG_ID = 2;
+  private static final int FLAG_EXTENSION = 4;
+
+  private static class Field {
+    private String name;
+    private int hash;
+    private boolean polymorphic; // the type is written with the value
+  }
+
+  /**
+   * the fields of an element, in the order the object model lists them
+   */
+  private static class Schema {
+    private Field[] fields;
+    private int div; // the field number of the narrative div, which isn't one of the listed children
+  }
+
+  private static final Map<Class<?>, Schema> SCHEMAS = new ConcurrentHashMap<>();
+
+  private static Schema schema(Base element) {
+    Schema s = SCHEMAS.get(element.getClass());
+    if (s == null) {
+      List<Property> children = element.children();
+      if (element instanceof MetadataResource)
+        children.addAll(0, inheritedProperties(new Basic(), "modifierExtension"));
+      else if (element instanceof BackboneType)
+        children.addAll(0, inheritedProperties(new Extension(), "extension"));
+      s = new Schema();
+      s.fields = new Field[children.size()];
+      for (int i = 0; i < children.size(); i++) {
+        Property p = children.get(i);
+        Field f = new Field();
+        f.polymorphic = p.getName().endsWith("[x]") || "*".equals(p.getTypeCode()) || "Resource".equals(p.getTypeCode()) || "DomainResource".equals(p.getTypeCode());
+        f.name = p.getName().endsWith("[x]") ? p.getName().substring(0, p.getName().length()-3) : p.getName();
+        f.hash = f.name.hashCode();
+        s.fields[i] = f;
+      }
+      s.div = element instanceof Narrative ? s.fields.length + 1 : -1;
+      SCHEMAS.put(element.getClass(), s);
+    }
+    return s;
+  }
+
+  /**
+   * MetadataResource and BackboneType don't list the properties they inherit (from DomainResource
+   * and Element), so get them from the start of the list for another type with the same ancestry
+   */
+  private static List<Property> inheritedProperties(Base prototype, String last) {
+    List<Property> res = new ArrayList<>();
+    for (Property p : prototype.children()) {
+      res.add(p);
+      if (p.getName().equals(last))
+        break;
+    }
+    return res;
+  }
+
+  @Override
+  public ParserType getType() {
+    return ParserType.BINARY;
+  }
+
+  // -- Parsing -------------------------------------------------------------
+
+  private InputStream in;
+  private byte[] buf = new byte[8192];
+  private int pos;
+  private int limit;
+  private List<String> strings = new ArrayList<>();
+
+  @Override
+  public Resource parse(InputStream input) throws IOException, FHIRFormatError {
+    Base res = parseRoot(input);
+    if (!(res instanceof Resource))
+      throw new FHIRFormatError("The content is a "+res.fhirType()+", not a resource");
+    return (Resource) res;
+  }
+
+  @Override
+  public Type parseType(InputStream input, String knownType) throws IOException, FHIRFormatError {
+    Base res = parseRoot(input);
+    if (!(res instanceof Type))
+      throw new FHIRFormatError("The content is a "+res.fhirType()+", not a data type");
+    return (Type) res;
+  }
+
+  @Override
+  public Type parseAnyType(InputStream input, String knownType) throws IOException, FHIRFormatError {
+    return parseType(input, knownType);
+  }
+
+  private Base parseRoot(InputStream input) throws IOException, FHIRFormatError {
+    in = input;
+    pos = 0;
+    limit = 0;
+    strings.clear();
+    try {
+      for (byte b : MAGIC) {
+        if (readByte() != b)
+          throw new FHIRFormatError("The content is not in the FHIR binary format");
+      }
+      String version = readString();
+      if (!Constants.VERSION.equals(version))
+        throw new FHIRFormatError("The content was written by version "+version+" of the object model, not "+Constants.VERSION);
+      Base res = create(readString());
+      parseValue(res);
+      return res;
+    } catch (FHIRFormatError e) {
+      throw e;
+    } catch (FHIRException e) {
+      throw new FHIRFormatError(e.getMessage(), e);
+    } finally {
+      in = null;
+      strings.clear();
+    }
+  }
+
+  private Base create(String type) throws FHIRFormatError {
+    try {
+      return ResourceFactory.createResourceOrType(type);
+    } catch (FHIRException e) {
+      throw new FHIRFormatError("Unknown type '"+type+"'");
+    }
+  }
+
+  private void parseValue(Base value) throws IOException, FHIRException {
+    if (value.isPrimitive())
+      parsePrimitive((PrimitiveType<?>) value);
+    else
+      parseElement(value);
+  }
+
+  private void parseElement(Base element) throws IOException, FHIRException {
+    Schema s = schema(element);
+    int n;
+    while ((n = readVarint()) != 0) {
+      if (n == s.div) {
+        String xhtml = readString();
+        ((Narrative) element).setDiv(lazyNarrative ? XhtmlNode.lazy(xhtml) : parseXhtml(xhtml));
+      } else if (n > s.fields.length) {
+        throw new FHIRFormatError("Unknown field "+Integer.toString(n)+" in "+element.fhirType());
+      } else {
+        Field f = s.fields[n-1];
+        if (f.polymorphic) {
+          Base value = create(readString());
+          parseValue(value);
+          element.setProperty(f.hash, f.name, value);
+        } else {
+          Base value = element.makeProperty(f.hash, f.name);
+          if (value == null)
+            throw new FHIRFormatError("Unable to create "+element.fhirType()+"."+f.name);
+          parseValue(value);
+        }
+      }
+    }
+  }
+
+  private XhtmlNode parseXhtml(String value) throws IOException, FHIRFormatError {
+    try {
+      return new XhtmlParser().parse(value, "div").getChildNodes().get(0);
+    } catch (org.hl7.fhir.exceptions.FHIRFormatError e) {
+      throw new FHIRFormatError(e.getMessage(), e);
+    }
+  }
+
+  private void parsePrimitive(PrimitiveType<?> value) throws IOException, FHIRException {
+    int flags = readByte();
+    if ((flags & FLAG_VALUE) != 0) {
+      if (value instanceof BooleanType)
+        ((BooleanType) value).setValue(readByte() != 0);
+      else if (value instanceof IntegerType)
+        ((IntegerType) value).setValue(unzigzag(readVarint()));
+      else if (value instanceof Base64BinaryType)
+        ((Base64BinaryType) value).setValue(readBytes(readVarint()));
+      else if (value instanceof StringType)
+        ((StringType) value).setValue(readString()); // not setValueAsString - markdown and code trim the value
+      else if (value instanceof UriType)
+        ((UriType) value).setValue(readString());
+      else
+        value.setValueAsString(readString());
+    }
+    if ((flags & FLAG_ID) != 0)
+      value.setId(readString());
+    if ((flags & FLAG_EXTENSION) != 0) {
+      int count = readVarint();
+      for (int i = 0; i < count; i++)
+        parseElement(value.addExtension());
+    }
+  }
+
+  private int readByte() throws IOException {
+    if (pos == limit && !fill())
+      throw new FHIRFormatError("Unexpected end of content");
+    return buf[pos++] & 0xFF;
+  }
+
+  private boolean fill() throws IOException {
+    pos = 0;
+    limit = in.read(buf, 0, buf.length);
+    if (limit < 0) {
+      limit = 0;
+      return false;
+    }
+    return true;
+  }
+
+  private int readVarint() throws IOException {
+    int res = 0;
+    int shift = 0;
+    int b;
+    do {
+      if (shift > 28)
+        throw new FHIRFormatError("Malformed varint");
+      b = readByte();
+      res |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return res;
+  }
+
+  private static int unzigzag(int n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  private byte[] readBytes(int length) throws IOException {
+    byte[] res = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      if (pos == limit && !fill())
+        throw new FHIRFormatError("Unexpected end of content");
+      int n = Math.min(length - offset, limit - pos);
+      System.arraycopy(buf, pos, res, offset, n);
+      pos += n;
+      offset += n;
+    }
+    return res;
+  }
+
+  private String readString() throws IOException {
+    int tag = readVarint();
+    int kind = tag & 3;
+    int n = tag >>> 2;
+    if (kind == TAG_REF) {
+      if (n >= strings.size())
+        throw new FHIRFormatError("Unknown string reference "+Integer.toString(n));
+      return strings.get(n);
+    }
+    String res;
+    if (limit - pos >= n) {
+      res = new String(buf, pos, n, StandardCharsets.UTF_8);
+      pos += n;
+    } else
+      res = new String(readBytes(n), StandardCharsets.UTF_8);
+    if (kind == TAG_INTERN)
+      strings.add(res);
+    return res;
+  }
+
+  // -- Composing -----------------------------------------------------------
+
+  private OutputStream out;
+  private Map<String, Integer> interned = new HashMap<>();
+
+  @Override
+  public void compose(OutputStream stream, Resource resource) throws IOException {
+    composeRoot(stream, resource);
+  }
+
+  @Override
+  public void compose(OutputStream stream, Type type, String rootName) throws IOException {
+    composeRoot(stream, type);
+  }
+
+  private void composeRoot(OutputStream stream, Base root) throws IOException {
+    out = stream;
+    pos = 0;
+    interned.clear();
+    try {
+      for (byte b : MAGIC)
+        writeByte(b);
+      writeString(Constants.VERSION);
+      writeString(root.fhirType());
+      composeValue(root);
+      flush();
+    } catch (FHIRException e) {
+      throw new IOException(e.getMessage(), e);
+    } finally {
+      out = null;
+      interned.clear();
+    }
+  }
+
+  private void composeValue(Base value) throws IOException, FHIRException {
+    if (value.isPrimitive())
+      composePrimitive((PrimitiveType<?>) value);
+    else
+      composeElement(value);
+  }
+
+  private void composeElement(Base element) throws IOException, FHIRException {
+    Schema s = schema(element);
+    for (int i = 0; i < s.fields.length; i++) {
+      Field f = s.fields[i];
+      for (Base value : element.getProperty(f.hash, f.name, false)) {
+        if (value != null && !value.isEmpty()) {
+          writeVarint(i+1);
+          if (f.polymorphic)
+            writeString(value.fhirType());
+          composeValue(value);
+        }
+      }
+    }
+    if (s.div > 0 && ((Narrative) element).hasDiv()) {
+      writeVarint(s.div);
+      XhtmlNode div = ((Narrative) element).getDiv();
+      writeString(Utilities.noString(xhtmlMessage) ? new XhtmlComposer(XhtmlComposer.XML, false).compose(div) : "<div>!-- "+xhtmlMessage+" --></div>");
+    }
+    writeVarint(0);
+  }
+
+  private void composePrimitive(PrimitiveType<?> value) throws IOException, FHIRException {
+    int flags = (value.hasValue() ? FLAG_VALUE : 0) | (value.hasId() ? FLAG_ID : 0) | (value.hasExtension() ? FLAG_EXTENSION : 0);
+    writeByte(flags);
+    if (value.hasValue()) {
+      if (value instanceof BooleanType)
+        writeByte(((BooleanType) value).getValue() ? 1 : 0);
+      else if (value instanceof IntegerType) {
+        int n = ((IntegerType) value).getValue();
+        writeVarint((n << 1) ^ (n >> 31));
+      } else if (value instanceof Base64BinaryType) {
+        byte[] bytes = ((Base64BinaryType) value).getValue();
+        writeVarint(bytes.length);
+        writeBytes(bytes);
+      } else
+        writeString(value.getValueAsString());
+    }
+    if (value.hasId())
+      writeString(value.getId());
+    if (value.hasExtension()) {
+      writeVarint(value.getExtension().size());
+      for (Extension ext : value.getExtension())
+        composeElement(ext);
+    }
+  }
+
+  private void writeByte(int b) throws IOException {
+    if (pos == buf.length)
+      flush();
+    buf[pos++] = (byte) b;
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    if (bytes.length > buf.length - pos) {
+      flush();
+      if (bytes.length > buf.length) {
+        out.write(bytes);
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, buf, pos, bytes.length);
+    pos += bytes.length;
+  }
+
+  private void writeVarint(int n) throws IOException {
+    while ((n & ~0x7F) != 0) {
+      writeByte((n & 0x7F) | 0x80);
+      n = n >>> 7;
+    }
+    writeByte(n);
+  }
+
+  private void writeString(String s) throws IOException {
+    Integer i = interned.get(s);
+    if (i != null) {
+      writeVarint((i << 2) | TAG_REF);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    if (s.length() <= MAX_INTERNED) {
+      interned.put(s, interned.size());
+      writeVarint((bytes.length << 2) | TAG_INTERN);
+    } else
+      writeVarint((bytes.length << 2) | TAG_LITERAL);
+    writeBytes(bytes);
+  }
+
+  private void flush() throws IOException {
+    out.write(buf, 0, pos);
+    pos = 0;
+  }
+
+}
@@ -207,6 +207,8 @@ public abstract class JsonParserBase extends ParserBase implements IParser {
   }
   
   protected XhtmlNode parseXhtml(String value) throws IOException, FHIRFormatError {
+    if (lazyNarrative)
+      return XhtmlNode.lazy(value);
     XhtmlParser prsr = new XhtmlParser();
     try {
 		return prsr.parse(value, "div").getChildNodes().get(0);
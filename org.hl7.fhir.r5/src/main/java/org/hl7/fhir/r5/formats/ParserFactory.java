@@ -45,5 +45,16 @@ public class ParserFactory {
       throw new Error("Not supported at this time");
     }
   }
+
+  public static IParser parser(ParserType type) {
+    switch (type) {
+    case JSON : return new JsonParser();
+    case XML : return new XmlParser();
+    case RDF_TURTLE : return new RdfParser();
+    case BINARY : return new BinaryParser();
+    default:
+      throw new Error("Not supported at this time");
+    }
+  }
   
 }
@@ -47,5 +47,10 @@ public enum ParserType {
    /**
    * RDF is not supported yet
    */
-  RDF_TURTLE
+  RDF_TURTLE,
+
+  /**
+   * A compact binary format, for caches and transfer between services (see BinaryParser)
+   */
+  BINARY
 }
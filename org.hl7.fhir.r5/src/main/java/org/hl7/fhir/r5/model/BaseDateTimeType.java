@@ -281,6 +281,7 @@ public abstract class BaseDateTimeType extends PrimitiveType<Date> {
 	 * </p>
 	 */
 	public Long getNanos() {
+		getValue(); // the fractional seconds are set when the value is parsed
 		if (isBlank(myFractionalSeconds)) {
 			return null;
 		}
@@ -327,6 +328,11 @@ public abstract class BaseDateTimeType extends PrimitiveType<Date> {
 	 * supplied.
 	 */
 	public TimeZone getTimeZone() {
+		getValue(); // the time zone is set when the value is parsed
+		return parsedTimeZone();
+	}
+
+	private TimeZone parsedTimeZone() {
 		if (myTimeZoneZulu) {
 			return TimeZone.getTimeZone("GMT");
 		}
@@ -366,6 +372,7 @@ public abstract class BaseDateTimeType extends PrimitiveType<Date> {
 	 * Returns true if the timezone is set to GMT-0:00 (Z)
 	 */
 	public boolean isTimeZoneZulu() {
+		getValue();
 		return myTimeZoneZulu;
 	}
 
@@ -388,8 +395,48 @@ public abstract class BaseDateTimeType extends PrimitiveType<Date> {
 		theTarget.append(string);
 	}
 
+	/**
+	 * Values in the usual forms are checked (and their precision worked out) when they are 
+	 * set, but the Date isn't worked out until it's used. Note that the Date of a value without 
+	 * a time zone is worked out in the default time zone at the time it's first used
+	 */
+	@Override
+	protected boolean canDeferParse(String theValue) {
+		TemporalPrecisionEnum precision = DateTimeParser.precision(theValue);
+		if (precision == null) {
+			return false;
+		}
+		// the precision is needed straight away, to check that it's allowed for the type
+		myPrecision = precision;
+		return true;
+	}
+
 	@Override
 	protected Date parse(String theValue) throws DataFormatException {
+		TemporalPrecisionEnum precision = DateTimeParser.precision(theValue);
+		if (precision != null) {
+			long time = DateTimeParser.getTime(theValue, precision);
+			if (time != DateTimeParser.AMBIGUOUS) {
+				if (precision == TemporalPrecisionEnum.MILLI) {
+					myFractionalSeconds = theValue.substring(20, DateTimeParser.offsetIndex(theValue));
+				} else {
+					myFractionalSeconds = "";
+				}
+				if (precision.ordinal() > TemporalPrecisionEnum.DAY.ordinal()) {
+					int offsetIdx = DateTimeParser.offsetIndex(theValue);
+					if (offsetIdx < theValue.length()) {
+						setTimeZone(theValue, theValue.substring(offsetIdx));
+					}
+				}
+				myPrecision = precision;
+				return new Date(time);
+			}
+		}
+		return parseWithCalendar(theValue);
+	}
+
+	// not private, so the tests can check that DateTimeParser gets the same results
+	Date parseWithCalendar(String theValue) throws DataFormatException {
 		Calendar cal = new GregorianCalendar(0, 0, 0);
 		cal.setTimeZone(TimeZone.getDefault());
 		String value = theValue;
@@ -437,7 +484,7 @@ public abstract class BaseDateTimeType extends PrimitiveType<Date> {
 						time = value.substring(11, offsetIdx);
 						String offsetString = value.substring(offsetIdx);
 						setTimeZone(value, offsetString);
-						cal.setTimeZone(getTimeZone());
+						cal.setTimeZone(parsedTimeZone());
 					}
 					int timeLength = time.length();
 
@@ -607,6 +654,7 @@ public abstract class BaseDateTimeType extends PrimitiveType<Date> {
 		if (thePrecision == null) {
 			throw new NullPointerException("Precision may not be null");
 		}
+		getValue();
 		myPrecision = thePrecision;
 		updateStringValue();
 	}
@@ -641,6 +689,7 @@ public abstract class BaseDateTimeType extends PrimitiveType<Date> {
 	}
 
 	public BaseDateTimeType setTimeZone(TimeZone theTimeZone) {
+		getValue(); // so a later parse doesn't overwrite it
 		myTimeZone = theTimeZone;
 		myTimeZoneZulu = false;
 		updateStringValue();
@@ -648,6 +697,7 @@ public abstract class BaseDateTimeType extends PrimitiveType<Date> {
 	}
 
 	public BaseDateTimeType setTimeZoneZulu(boolean theTimeZoneZulu) {
+		getValue();
 		myTimeZoneZulu = theTimeZoneZulu;
 		myTimeZone = null;
 		updateStringValue();
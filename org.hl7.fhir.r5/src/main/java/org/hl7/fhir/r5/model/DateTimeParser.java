@@ -0,0 +1,196 @@
+package org.hl7.fhir.r5.model;
+
+/*-
+ * #%L
+ * org.hl7.fhir.r5
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+
+/**
+ * Reads the usual forms of FHIR dates and times (yyyy, yyyy-mm, yyyy-mm-dd and
+ * yyyy-mm-ddThh:mm:ss[.fff], with Z, +hh:mm, -hh:mm or no offset) by position, and works
+ * out the instant with java.time, without building a Calendar or taking the value apart
+ * with substring.
+ *
+ * It only takes values that it can work out exactly as the Calendar based parse in
+ * BaseDateTimeType does. Anything else - years before 1583 (where the Calendar changes to
+ * the Julian calendar), leap seconds, times without seconds, offsets beyond 18 hours, local
+ * times in a daylight savings change or before 1901, and anything malformed - is left to that, which also
+ * reports the errors
+ */
+class DateTimeParser {
+
+  /**
+   * returned by getTime when the value is a local time that doesn't exist, or exists twice, in the default time zone,
+   * or is from before 1901, where java.time uses local mean time, and the Calendar doesn't
+   */
+  static final long AMBIGUOUS = Long.MIN_VALUE;
+
+  /**
+   * @return the precision of the value, or null if it's not a value this parser handles
+   */
+  static TemporalPrecisionEnum precision(String v) {
+    int len = v.length();
+    if (len < 4)
+      return null;
+    int year = digits(v, 0, 4);
+    if (year < 1583)
+      return null;
+    if (len == 4)
+      return TemporalPrecisionEnum.YEAR;
+    if (len < 7 || v.charAt(4) != '-')
+      return null;
+    int month = digits(v, 5, 2);
+    if (month < 1 || month > 12)
+      return null;
+    if (len == 7)
+      return TemporalPrecisionEnum.MONTH;
+    if (len < 10 || v.charAt(7) != '-')
+      return null;
+    int day = digits(v, 8, 2);
+    if (day < 1 || day > daysInMonth(year, month))
+      return null;
+    if (len == 10)
+      return TemporalPrecisionEnum.DAY;
+    if (len < 19 || v.charAt(10) != 'T' || v.charAt(13) != ':' || v.charAt(16) != ':')
+      return null;
+    int hour = digits(v, 11, 2);
+    int minute = digits(v, 14, 2);
+    int second = digits(v, 17, 2);
+    if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+      return null;
+    int end = offsetIndex(v);
+    if (end < 19)
+      return null;
+    if (end == 19)
+      return TemporalPrecisionEnum.SECOND;
+    if (v.charAt(19) != '.' || end == 20)
+      return null;
+    for (int i = 20; i < end; i++)
+      if (!isDigit(v.charAt(i)))
+        return null;
+    return TemporalPrecisionEnum.MILLI;
+  }
+
+  /**
+   * @return where the offset starts (the length of the value if there isn't one), or -1 if what's at the end isn't an offset this parser handles
+   */
+  static int offsetIndex(String v) {
+    int len = v.length();
+    char last = v.charAt(len-1);
+    if (last == 'Z')
+      return len-1;
+    if (isDigit(last) && len >= 25 && (v.charAt(len-6) == '+' || v.charAt(len-6) == '-')) {
+      if (v.charAt(len-3) != ':')
+        return -1;
+      int hours = digits(v, len-5, 2);
+      int minutes = digits(v, len-2, 2);
+      if (hours < 0 || minutes < 0 || minutes > 59 || hours > 18 || (hours == 18 && minutes > 0))
+        return -1;
+      return len-6;
+    }
+    return isDigit(last) ? len : -1;
+  }
+
+  /**
+   * @param v a value that precision() accepted
+   * @return the value as milliseconds since the epoch, or AMBIGUOUS
+   */
+  static long getTime(String v, TemporalPrecisionEnum precision) {
+    int year = digits(v, 0, 4);
+    int month = precision.ordinal() >= TemporalPrecisionEnum.MONTH.ordinal() ? digits(v, 5, 2) : 1;
+    int day = precision.ordinal() >= TemporalPrecisionEnum.DAY.ordinal() ? digits(v, 8, 2) : 1;
+    int hour = 0;
+    int minute = 0;
+    int second = 0;
+    int millis = 0;
+    int offset = 0;
+    boolean local = true;
+    if (precision.ordinal() > TemporalPrecisionEnum.DAY.ordinal()) {
+      hour = digits(v, 11, 2);
+      minute = digits(v, 14, 2);
+      second = digits(v, 17, 2);
+      int end = offsetIndex(v);
+      if (precision == TemporalPrecisionEnum.MILLI) {
+        // milliseconds are the first 3 digits. Any more are kept in the fractional seconds, but don't affect the time
+        int count = Math.min(3, end - 20);
+        millis = digits(v, 20, count);
+        for (int i = count; i < 3; i++)
+          millis = millis * 10;
+      }
+      if (end < v.length()) {
+        local = false;
+        if (v.charAt(end) != 'Z') {
+          offset = digits(v, end+1, 2) * 3600 + digits(v, end+4, 2) * 60;
+          if (v.charAt(end) == '-')
+            offset = -offset;
+        }
+      }
+    }
+    LocalDateTime ldt = LocalDateTime.of(year, month, day, hour, minute, second);
+    long seconds;
+    if (local) {
+      if (year <= 1900)
+        return AMBIGUOUS;
+      ZoneRules rules = ZoneId.systemDefault().getRules();
+      if (rules.getTransition(ldt) != null)
+        return AMBIGUOUS;
+      seconds = ldt.toEpochSecond(rules.getOffset(ldt));
+    } else
+      seconds = ldt.toEpochSecond(ZoneOffset.ofTotalSeconds(offset));
+    return seconds * 1000 + millis;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+    case 2:
+      return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+    case 4:
+    case 6:
+    case 9:
+    case 11:
+      return 30;
+    default:
+      return 31;
+    }
+  }
+
+  /**
+   * @return the number in the count digits at offset, or -1 if they aren't all digits
+   */
+  private static int digits(String v, int offset, int count) {
+    int res = 0;
+    for (int i = offset; i < offset + count; i++) {
+      char ch = v.charAt(i);
+      if (!isDigit(ch))
+        return -1;
+      res = res * 10 + (ch - '0');
+    }
+    return res;
+  }
+
+  private static boolean isDigit(char ch) {
+    return ch >= '0' && ch <= '9';
+  }
+}
@@ -102,8 +102,8 @@ public class DecimalType extends PrimitiveType<BigDecimal> implements Comparable
 	 * Constructor
 	 */
 	public DecimalType(String theValue) {
-		setValue(new BigDecimal(theValue));
-		setRepresentation(theValue);
+		// keeps the presented form, and the BigDecimal is only made if it's used
+		setValueAsString(theValue);
 	}
 
 	@Override
@@ -141,6 +141,53 @@ public class DecimalType extends PrimitiveType<BigDecimal> implements Comparable
 		return new BigDecimal(theValue);
 	}
 
+	/**
+	 * Values in the FHIR decimal syntax are always accepted by BigDecimal, so they're not 
+	 * parsed until they're used. Anything else is parsed straight away, so errors are 
+	 * reported as before
+	 */
+	@Override
+	protected boolean canDeferParse(String theValue) {
+		int len = theValue.length();
+		int i = 0;
+		if (i < len && theValue.charAt(i) == '-') {
+			i++;
+		}
+		int count = countDigits(theValue, i);
+		if (count == 0) {
+			return false;
+		}
+		i = i + count;
+		if (i < len && theValue.charAt(i) == '.') {
+			count = countDigits(theValue, i + 1);
+			if (count == 0) {
+				return false;
+			}
+			i = i + 1 + count;
+		}
+		if (i < len && (theValue.charAt(i) == 'e' || theValue.charAt(i) == 'E')) {
+			i++;
+			if (i < len && (theValue.charAt(i) == '+' || theValue.charAt(i) == '-')) {
+				i++;
+			}
+			count = countDigits(theValue, i);
+			// a very large exponent can be too big for BigDecimal
+			if (count == 0 || count > 8) {
+				return false;
+			}
+			i = i + count;
+		}
+		return i == len;
+	}
+
+	private int countDigits(String theValue, int theStart) {
+		int i = theStart;
+		while (i < theValue.length() && theValue.charAt(i) >= '0' && theValue.charAt(i) <= '9') {
+			i++;
+		}
+		return i - theStart;
+	}
+
 	/**
 	 * Rounds the value to the given prevision
 	 * 
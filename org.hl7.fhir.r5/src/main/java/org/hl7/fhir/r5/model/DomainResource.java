@@ -473,27 +473,26 @@ Modifier extensions SHALL NOT change the meaning of any elements on Resource or
 
 
   public boolean hasExtension(String url) {
-    for (Extension e : getExtension())
-      if (url.equals(e.getUrl()))
-        return true;
-    return false;
+    return ExtensionIndex.has(extensionIndex(), extension, url);
     }
     
        public Extension getExtensionByUrl(String theUrl) {
      org.apache.commons.lang3.Validate.notBlank(theUrl, "theUrl must not be blank or null");
-     ArrayList<Extension> retVal = new ArrayList<Extension>();
-     for (Extension next : getExtension()) {
-       if (theUrl.equals(next.getUrl())) {
-         retVal.add(next);
-       }
-     }
-     if (retVal.size() == 0)
-       return null;
-     else {
-       org.apache.commons.lang3.Validate.isTrue(retVal.size() == 1, "Url "+theUrl+" must have only one match");
-       return retVal.get(0);
-     }
+     ExtensionIndex index = extensionIndex();
+     Extension retVal = ExtensionIndex.first(index, extension, theUrl);
+     if (retVal != null)
+       org.apache.commons.lang3.Validate.isTrue(ExtensionIndex.count(index, extension, theUrl) == 1, "Url "+theUrl+" must have only one match");
+     return retVal;
    }
+
+  // the index of the extensions by url, if there's enough of them (see ExtensionIndex)
+  private transient ExtensionIndex extensionIndex;
+
+  ExtensionIndex extensionIndex() {
+    ExtensionIndex index = ExtensionIndex.of(extensionIndex, extension);
+    extensionIndex = index;
+    return index;
+  }
   
       public Resource getContained(String ref) {
         if (ref == null)
@@ -39,13 +39,9 @@ public class ExtensionHelper {
   	if (element != null && element instanceof BackboneElement) 
   		return hasExtension((BackboneElement) element, name);
   	
-    if (name == null || element == null || !element.hasExtension())
+    if (name == null || element == null)
       return false;
-    for (Extension e : element.getExtension()) {
-      if (name.equals(e.getUrl()))
-        return true;
-    }
-    return false;
+    return ExtensionIndex.has(element.extensionIndex(), element.extension, name);
   }
   
   /**
@@ -53,17 +49,9 @@ public class ExtensionHelper {
    * @return true if the named extension is on this element. Will check modifier extensions
    */
   public static boolean hasExtension(BackboneElement element, String name) {
-    if (name == null || element == null || !(element.hasExtension() || element.hasModifierExtension()))
+    if (name == null || element == null)
       return false;
-    for (Extension e : element.getModifierExtension()) {
-      if (name.equals(e.getUrl()))
-        return true;
-    }
-    for (Extension e : element.getExtension()) {
-      if (name.equals(e.getUrl()))
-        return true;
-    }
-    return false;
+    return ExtensionIndex.has(element.modifierExtension, name) || ExtensionIndex.has(element.extensionIndex(), element.extension, name);
   }
   
   
@@ -75,13 +63,17 @@ public class ExtensionHelper {
   	if (element != null && element instanceof BackboneElement) 
   		return getExtension((BackboneElement) element, name);
   	
-    if (name == null || element == null || !element.hasExtension())
+    return findExtension(element, name);
+  }
+
+  /**
+   * @param name the identity of the extension of interest
+   * @return The extension, if on this element, else null. Doesn't check modifier extensions
+   */
+  public static Extension findExtension(Element element, String name) {
+    if (name == null || element == null)
       return null;
-    for (Extension e : element.getExtension()) {
-      if (name.equals(e.getUrl()))
-        return e;
-    }
-    return null;
+    return ExtensionIndex.first(element.extensionIndex(), element.extension, name);
   }
   
   /**
@@ -89,14 +81,9 @@ public class ExtensionHelper {
    * @return The extension, if on this element, else null. will check modifier extensions too, if appropriate
    */
   public static Extension getExtension(DomainResource resource, String name) {
-    
-    if (name == null || resource == null || !resource.hasExtension())
+    if (name == null || resource == null)
       return null;
-    for (Extension e : resource.getExtension()) {
-      if (name.equals(e.getUrl()))
-        return e;
-    }
-    return null;
+    return ExtensionIndex.first(resource.extensionIndex(), resource.extension, name);
   }
   
   /**
@@ -106,15 +93,8 @@ public class ExtensionHelper {
   public static Extension getExtension(BackboneElement element, String name) {
     if (name == null || element == null || !element.hasExtension())
       return null;
-    for (Extension e : element.getModifierExtension()) {
-      if (name.equals(e.getUrl()))
-        return e;
-    }
-    for (Extension e : element.getExtension()) {
-      if (name.equals(e.getUrl()))
-        return e;
-    }
-    return null;
+    Extension res = ExtensionIndex.first(element.modifierExtension, name);
+    return res != null ? res : ExtensionIndex.first(element.extensionIndex(), element.extension, name);
   }
 
   /**
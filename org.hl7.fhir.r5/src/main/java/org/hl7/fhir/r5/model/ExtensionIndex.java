@@ -0,0 +1,183 @@
+package org.hl7.fhir.r5.model;
+
+/*-
+ * #%L
+ * org.hl7.fhir.r5
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the extensions in an extension list by url.
+ *
+ * The static methods work on any list of extensions, and don't allocate. Tools look up the same
+ * few extensions on the same definitions over and over, so an element or resource with a long
+ * extension list (INDEX_THRESHOLD or more) keeps an index of it by url. The index belongs to the
+ * list it was built for: it records the extensions, their url elements and their urls as they were
+ * then, and it's replaced as soon as any of them is different. That catches every change - to the
+ * list, to an extension's url, or to the url element itself - at the cost of comparing references,
+ * but not strings, for each extension.
+ *
+ * An index is never changed once it's built, so threads that share definitions see all of it or none of it
+ */
+public class ExtensionIndex {
+
+  /**
+   * lists shorter than this are scanned - it's as fast as checking that the index is current
+   */
+  public static final int INDEX_THRESHOLD = 12;
+
+  private static final Extension[] NONE = new Extension[0];
+
+  private final List<Extension> list;
+  private final Extension[] extensions;
+  private final UriType[] urlElements;
+  private final String[] urls;
+  private final Map<String, Extension[]> byUrl;
+
+  private ExtensionIndex(List<Extension> list) {
+    this.list = list;
+    int size = list.size();
+    extensions = new Extension[size];
+    urlElements = new UriType[size];
+    urls = new String[size];
+    Map<String, List<Extension>> map = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      Extension ext = list.get(i);
+      extensions[i] = ext;
+      urlElements[i] = ext.url;
+      urls[i] = ext.url == null ? null : ext.url.asStringValue();
+      if (urls[i] != null) {
+        List<Extension> matches = map.get(urls[i]);
+        if (matches == null) {
+          matches = new ArrayList<>(1);
+          map.put(urls[i].intern(), matches);
+        }
+        matches.add(ext);
+      }
+    }
+    byUrl = new HashMap<>();
+    for (Map.Entry<String, List<Extension>> e : map.entrySet())
+      byUrl.put(e.getKey(), e.getValue().toArray(new Extension[e.getValue().size()]));
+  }
+
+  /**
+   * @param index the index the owner of the list has now, if it has one
+   * @return an index that's up to date with the list (index, if it still is), or null if the list is too short to index
+   */
+  static ExtensionIndex of(ExtensionIndex index, List<Extension> list) {
+    if (list == null || list.size() < INDEX_THRESHOLD)
+      return null;
+    return index != null && index.isCurrent(list) ? index : new ExtensionIndex(list);
+  }
+
+  private boolean isCurrent(List<Extension> list) {
+    if (list != this.list || list.size() != extensions.length)
+      return false;
+    for (int i = 0; i < extensions.length; i++) {
+      Extension ext = list.get(i);
+      if (ext != extensions[i] || ext.url != urlElements[i] || (ext.url != null && ext.url.asStringValue() != urls[i]))
+        return false;
+    }
+    return true;
+  }
+
+  private Extension[] get(String url) {
+    Extension[] res = byUrl.get(url);
+    return res == null ? NONE : res;
+  }
+
+  // -- lookups. index is the owner's index of the list, or null to scan it ------
+
+  /**
+   * @return the first extension in the list with the url, or null
+   */
+  public static Extension first(List<Extension> list, String url) {
+    return first(null, list, url);
+  }
+
+  static Extension first(ExtensionIndex index, List<Extension> list, String url) {
+    if (list == null || url == null || list.isEmpty())
+      return null;
+    if (index != null) {
+      Extension[] res = index.get(url);
+      return res.length == 0 ? null : res[0];
+    }
+    for (int i = 0; i < list.size(); i++) {
+      Extension ext = list.get(i);
+      if (url.equals(ext.getUrl()))
+        return ext;
+    }
+    return null;
+  }
+
+  public static boolean has(List<Extension> list, String url) {
+    return first(null, list, url) != null;
+  }
+
+  static boolean has(ExtensionIndex index, List<Extension> list, String url) {
+    return first(index, list, url) != null;
+  }
+
+  /**
+   * @return the number of extensions in the list with the url
+   */
+  public static int count(List<Extension> list, String url) {
+    return count(null, list, url);
+  }
+
+  static int count(ExtensionIndex index, List<Extension> list, String url) {
+    if (list == null || url == null || list.isEmpty())
+      return 0;
+    if (index != null)
+      return index.get(url).length;
+    int res = 0;
+    for (int i = 0; i < list.size(); i++) {
+      if (url.equals(list.get(i).getUrl()))
+        res++;
+    }
+    return res;
+  }
+
+  /**
+   * @return all the extensions in the list with the url, in list order
+   */
+  public static List<Extension> all(List<Extension> list, String url) {
+    return all(null, list, url);
+  }
+
+  static List<Extension> all(ExtensionIndex index, List<Extension> list, String url) {
+    List<Extension> res = new ArrayList<Extension>();
+    if (list == null || url == null || list.isEmpty())
+      return res;
+    if (index != null) {
+      for (Extension ext : index.get(url))
+        res.add(ext);
+      return res;
+    }
+    for (Extension ext : list) {
+      if (url.equals(ext.getUrl()))
+        res.add(ext);
+    }
+    return res;
+  }
+
+}
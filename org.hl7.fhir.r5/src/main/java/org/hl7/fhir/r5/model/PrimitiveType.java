@@ -41,6 +41,10 @@ public abstract class PrimitiveType<T> extends Type implements IPrimitiveType<T>
 
 	private T myCoercedValue;
 	private String myStringValue;
+	// true if myStringValue hasn't been parsed yet (see canDeferParse). The parse is done under a lock on this 
+	// object, and this is cleared last, so that a thread that sees it cleared also sees everything the parse set 
+	// (including the fields a subclass sets, such as the time zone of a date)
+	private volatile boolean myDeferred;
 
 	public String asStringValue() {
 		return myStringValue;
@@ -93,15 +97,31 @@ public abstract class PrimitiveType<T> extends Type implements IPrimitiveType<T>
 
 	public void fromStringValue(String theValue) {
 		myStringValue = theValue;
-		if (theValue == null) {
+		if (theValue != null && canDeferParse(theValue)) {
 			myCoercedValue = null;
+			myDeferred = true;
 		} else {
+			if (myDeferred) {
+				myDeferred = false;
+			}
 			// NB this might be null
-			myCoercedValue = parse(theValue);
+			myCoercedValue = theValue == null ? null : parse(theValue);
 		}
 	}
 
 	public T getValue() {
+		return coercedValue();
+	}
+
+	private T coercedValue() {
+		if (myDeferred) {
+			synchronized (this) {
+				if (myDeferred) {
+					myCoercedValue = parse(myStringValue);
+					myDeferred = false;
+				}
+			}
+		}
 		return myCoercedValue;
 	}
 
@@ -136,6 +156,18 @@ public abstract class PrimitiveType<T> extends Type implements IPrimitiveType<T>
 	 */
 	protected abstract T parse(String theValue);
 
+	/**
+	 * Subclasses can override to leave the parse until the value is first used - most values 
+	 * that are read are only ever written out again as they were. Only return true if 
+	 * parse is certain to succeed, so that bad values are still reported when they are set 
+	 * 
+	 * @param theValue
+	 *            Will not be null
+	 */
+	protected boolean canDeferParse(String theValue) {
+		return false;
+	}
+
 	public String primitiveValue() {
 		return asStringValue();
 	}
@@ -148,6 +180,9 @@ public abstract class PrimitiveType<T> extends Type implements IPrimitiveType<T>
 
 	public PrimitiveType<T> setValue(T theValue) {
 		myCoercedValue = theValue;
+		if (myDeferred) {
+			myDeferred = false;
+		}
 		updateStringValue();
 		return this;
 	}
@@ -166,11 +201,12 @@ public abstract class PrimitiveType<T> extends Type implements IPrimitiveType<T>
 	}
 
 	protected void updateStringValue() {
-		if (myCoercedValue == null) {
+		T value = coercedValue();
+		if (value == null) {
 			myStringValue = null;
 		} else {
 			// NB this might be null
-			myStringValue = encode(myCoercedValue);
+			myStringValue = encode(value);
 		}
 	}
 
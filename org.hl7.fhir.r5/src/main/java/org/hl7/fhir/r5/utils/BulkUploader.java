@@ -0,0 +1,761 @@
+package org.hl7.fhir.r5.utils;
+
+/*-
+ * #%L
+ * org.hl7.fhir.r5
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.formats.XmlParser;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r5.model.Bundle.BundleType;
+import org.hl7.fhir.r5.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.utils.client.FHIRToolingClient;
+import org.hl7.fhir.r5.utils.client.ResourceFormat;
+import org.hl7.fhir.utilities.IniFile;
+import org.hl7.fhir.utilities.TextFile;
+
+/**
+ * Uploads a large number of resources to a FHIR server, as a pipeline of three stages:
+ *
+ *  - one thread reads the sources (folders, .json, .xml, .ndjson and .zip files) in order, and queues the content of each resource
+ *  - a set of threads parse the resources (and optionally check them), and gather them into batches
+ *  - a set of threads post the batches to the server as batch (or transaction) bundles, so several are in flight at once
+ *
+ * The queues between the stages are bounded, so memory use doesn't depend on the size of the upload.
+ * Entries that fail with a status that may be transient (408, 429, 5xx), and bundles that fail altogether,
+ * are retried with exponential backoff.
+ *
+ * If there's a checkpoint file, it records how many resources (in the order they're read) are finished with,
+ * and an upload of the same sources starts from there. Entries that were in flight when an upload
+ * stopped are sent again, so resources should have ids (they're PUT to [type]/[id])
+ */
+public class BulkUploader {
+
+  /**
+   * How batches get to the server. Called from several threads at once
+   */
+  public interface IBatchSender {
+    /**
+     * @return the server's response. Throw an exception if the bundle as a whole failed
+     */
+    Bundle send(Bundle bundle) throws Exception;
+  }
+
+  public interface IResourceChecker {
+    /**
+     * @return null if the resource should be uploaded, or the reason it shouldn't be. Called from several threads at once
+     */
+    String check(Resource resource);
+  }
+
+  /**
+   * Sends the batches with a FHIRToolingClient (one for each thread), as JSON
+   */
+  public static class ToolingClientSender implements IBatchSender {
+    private String server;
+    private int timeout;
+    private ThreadLocal<FHIRToolingClient> clients = new ThreadLocal<>();
+
+    public ToolingClientSender(String server) {
+      this.server = server;
+    }
+
+    public int getTimeout() {
+      return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+      this.timeout = timeout;
+    }
+
+    @Override
+    public Bundle send(Bundle bundle) throws Exception {
+      FHIRToolingClient client = clients.get();
+      if (client == null) {
+        client = new FHIRToolingClient(server);
+        client.setPreferredResourceFormat(ResourceFormat.RESOURCE_JSON);
+        if (timeout > 0)
+          client.setTimeout(timeout);
+        clients.set(client);
+      }
+      return client.transaction(bundle);
+    }
+  }
+
+  public static class UploadStatistics {
+    private AtomicLong read = new AtomicLong();
+    private AtomicLong uploaded = new AtomicLong();
+    private AtomicLong failed = new AtomicLong();
+    private AtomicLong retried = new AtomicLong();
+    private AtomicLong batches = new AtomicLong();
+    private long skipped;
+    private long start = System.currentTimeMillis();
+    private long millis;
+    private boolean stopped;
+
+    /**
+     * @return the number of resources read from the sources in this upload (not counting the ones skipped because of the checkpoint)
+     */
+    public long getRead() {
+      return read.get();
+    }
+
+    public long getUploaded() {
+      return uploaded.get();
+    }
+
+    /**
+     * @return the number of resources that couldn't be parsed, were rejected by the checker, or failed on the server after all the retries
+     */
+    public long getFailed() {
+      return failed.get();
+    }
+
+    /**
+     * @return the number of times an entry was sent again
+     */
+    public long getRetried() {
+      return retried.get();
+    }
+
+    /**
+     * @return the number of bundles the server accepted
+     */
+    public long getBatches() {
+      return batches.get();
+    }
+
+    /**
+     * @return the number of resources that were skipped because the checkpoint said they were already done
+     */
+    public long getSkipped() {
+      return skipped;
+    }
+
+    public long getMillis() {
+      return millis == 0 ? System.currentTimeMillis() - start : millis;
+    }
+
+    /**
+     * @return true if the upload was stopped before all the sources were read
+     */
+    public boolean isStopped() {
+      return stopped;
+    }
+
+    public long perSecond() {
+      long ms = getMillis();
+      return ms == 0 ? 0 : (uploaded.get() + failed.get()) * 1000 / ms;
+    }
+
+    @Override
+    public String toString() {
+      return Long.toString(read.get())+" read, "+Long.toString(uploaded.get())+" uploaded, "+Long.toString(failed.get())+" failed, "+Long.toString(retried.get())+" retried ("+Long.toString(perSecond())+"/sec)";
+    }
+  }
+
+  private static class Item {
+    private long seq;
+    private String source;
+    private byte[] content;
+    private FhirFormat format;
+
+    private Item(long seq, String source, byte[] content, FhirFormat format) {
+      this.seq = seq;
+      this.source = source;
+      this.content = content;
+      this.format = format;
+    }
+  }
+
+  private static class Entry {
+    private long seq;
+    private String source;
+    private Resource resource;
+    private String error;
+
+    private Entry(Item item, Resource resource) {
+      this.seq = item.seq;
+      this.source = item.source;
+      this.resource = resource;
+    }
+  }
+
+  private static final Item END = new Item(-1, null, null, null);
+  private static final List<Entry> END_BATCH = new ArrayList<>();
+  private static final String SECTION = "upload";
+
+  private IBatchSender sender;
+  private IResourceChecker checker;
+  private ILoggingService logger;
+  private FhirFormat defaultFormat = FhirFormat.JSON;
+  private BundleType bundleType = BundleType.BATCH;
+  private int batchSize = 500;
+  private int parserThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  private int senderThreads = 4;
+  private int maxRetries = 5;
+  private long retryDelay = 1000;
+  private long maxRetryDelay = 60000;
+  private long reportInterval = 10000;
+  private String checkpoint;
+  private String failureLog;
+
+  // per upload
+  private volatile boolean stop;
+  private UploadStatistics stats;
+  private long skip; // from the checkpoint
+  private Object progress = new Object();
+  private long done; // all the resources before this (in the order read) are finished with
+  private TreeSet<Long> doneAhead = new TreeSet<>(); // finished, but not contiguous with done yet
+  private Writer failures;
+
+  public BulkUploader(IBatchSender sender) {
+    this.sender = sender;
+  }
+
+  public BulkUploader(String server) {
+    this(new ToolingClientSender(server));
+  }
+
+  public IResourceChecker getChecker() {
+    return checker;
+  }
+
+  public void setChecker(IResourceChecker checker) {
+    this.checker = checker;
+  }
+
+  public ILoggingService getLogger() {
+    return logger;
+  }
+
+  public void setLogger(ILoggingService logger) {
+    this.logger = logger;
+  }
+
+  public FhirFormat getDefaultFormat() {
+    return defaultFormat;
+  }
+
+  /**
+   * the format of files and zip entries that aren't called *.xml or *.json (default JSON)
+   */
+  public void setDefaultFormat(FhirFormat defaultFormat) {
+    this.defaultFormat = defaultFormat;
+  }
+
+  public BundleType getBundleType() {
+    return bundleType;
+  }
+
+  /**
+   * BATCH (the default) or TRANSACTION
+   */
+  public void setBundleType(BundleType bundleType) {
+    if (bundleType != BundleType.BATCH && bundleType != BundleType.TRANSACTION)
+      throw new FHIRException("Bundles can only be uploaded as a batch or a transaction");
+    this.bundleType = bundleType;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  public int getParserThreads() {
+    return parserThreads;
+  }
+
+  public void setParserThreads(int parserThreads) {
+    this.parserThreads = Math.max(1, parserThreads);
+  }
+
+  public int getSenderThreads() {
+    return senderThreads;
+  }
+
+  /**
+   * the number of bundles that can be in flight at once (default 4)
+   */
+  public void setSenderThreads(int senderThreads) {
+    this.senderThreads = Math.max(1, senderThreads);
+  }
+
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  public void setMaxRetries(int maxRetries) {
+    this.maxRetries = Math.max(0, maxRetries);
+  }
+
+  public long getRetryDelay() {
+    return retryDelay;
+  }
+
+  /**
+   * the wait before the first retry, in milliseconds. It doubles for each retry after that, up to the maximum delay
+   */
+  public void setRetryDelay(long retryDelay) {
+    this.retryDelay = retryDelay;
+  }
+
+  public long getMaxRetryDelay() {
+    return maxRetryDelay;
+  }
+
+  public void setMaxRetryDelay(long maxRetryDelay) {
+    this.maxRetryDelay = maxRetryDelay;
+  }
+
+  public long getReportInterval() {
+    return reportInterval;
+  }
+
+  /**
+   * how often progress is reported (and the checkpoint saved), in milliseconds
+   */
+  public void setReportInterval(long reportInterval) {
+    this.reportInterval = Math.max(1, reportInterval);
+  }
+
+  public String getCheckpoint() {
+    return checkpoint;
+  }
+
+  public void setCheckpoint(String checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  public String getFailureLog() {
+    return failureLog;
+  }
+
+  /**
+   * a file to append the resources that failed to, as [source] [tab] [index] [tab] [reason]
+   */
+  public void setFailureLog(String failureLog) {
+    this.failureLog = failureLog;
+  }
+
+  /**
+   * Stop reading the sources. The resources already read are still uploaded, and the checkpoint saved, before upload() returns
+   */
+  public void stop() {
+    stop = true;
+  }
+
+  public UploadStatistics upload(String... sources) throws IOException {
+    return upload(Arrays.asList(sources));
+  }
+
+  /**
+   * Upload the resources in the sources (files or folders). Folders are read in name order, including sub-folders
+   */
+  public synchronized UploadStatistics upload(List<String> sources) throws IOException {
+    List<String> paths = new ArrayList<>();
+    for (String s : sources) {
+      if (!new File(s).exists())
+        throw new IOException("Unable to find "+s);
+      paths.add(new File(s).getAbsolutePath());
+    }
+    stop = false;
+    stats = new UploadStatistics();
+    doneAhead.clear();
+    skip = startFrom(paths);
+    done = skip;
+    stats.skipped = skip;
+    failures = failureLog == null ? null : new OutputStreamWriter(new FileOutputStream(failureLog, true), StandardCharsets.UTF_8);
+
+    BlockingQueue<Item> items = new ArrayBlockingQueue<>(Math.max(batchSize, 100) * 2);
+    BlockingQueue<List<Entry>> batches = new ArrayBlockingQueue<>(senderThreads * 2);
+    AtomicInteger parsing = new AtomicInteger(parserThreads);
+    ExecutorService executor = Executors.newFixedThreadPool(1 + parserThreads + senderThreads, r -> {
+      Thread t = new Thread(r, "bulk-upload");
+      t.setDaemon(true);
+      return t;
+    });
+    List<Future<Void>> tasks = new ArrayList<>();
+    try {
+      log("Upload "+describe(paths)+(skip > 0 ? ", starting after "+Long.toString(skip) : ""));
+      tasks.add(executor.submit(() -> { read(paths, items); return null; }));
+      for (int i = 0; i < parserThreads; i++)
+        tasks.add(executor.submit(() -> { parse(items, batches, parsing); return null; }));
+      for (int i = 0; i < senderThreads; i++)
+        tasks.add(executor.submit(() -> { post(batches); return null; }));
+      int i = 0;
+      while (i < tasks.size()) {
+        try {
+          tasks.get(i).get(reportInterval, TimeUnit.MILLISECONDS);
+          i++;
+        } catch (TimeoutException e) {
+          // if any stage has failed, the others may be waiting for it forever
+          for (Future<Void> t : tasks) {
+            if (t.isDone())
+              t.get();
+          }
+          report(paths, items, batches);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Upload interrupted");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      throw new FHIRException("Error uploading: "+cause.getMessage(), cause);
+    } finally {
+      executor.shutdownNow();
+      stats.millis = System.currentTimeMillis() - stats.start;
+      stats.stopped = stop;
+      saveCheckpoint(paths);
+      if (failures != null)
+        failures.close();
+    }
+    log("Upload finished: "+stats.toString()+(stats.stopped ? " (stopped)" : ""));
+    return stats;
+  }
+
+  private String describe(List<String> paths) {
+    return paths.size() == 1 ? paths.get(0) : Integer.toString(paths.size())+" sources";
+  }
+
+  private void report(List<String> paths, BlockingQueue<Item> items, BlockingQueue<List<Entry>> batches) throws IOException {
+    saveCheckpoint(paths);
+    log("  "+stats.toString()+", "+Integer.toString(items.size())+" resources and "+Integer.toString(batches.size())+" batches queued");
+  }
+
+  private void log(String msg) {
+    if (logger != null)
+      logger.logMessage(msg);
+    else
+      System.out.println(msg);
+  }
+
+  // --- stage 1: reading ----------------------------------------------------
+
+  private class Reader {
+    private BlockingQueue<Item> items;
+    private long seq;
+
+    private Reader(BlockingQueue<Item> items) {
+      this.items = items;
+    }
+
+    private void file(File f) throws IOException, InterruptedException {
+      if (f.isDirectory()) {
+        String[] names = f.list();
+        if (names != null) {
+          Arrays.sort(names);
+          for (String n : names) {
+            File c = new File(f, n);
+            if (c.isDirectory() || isResourceFile(n))
+              file(c);
+          }
+        }
+      } else {
+        try (InputStream stream = new FileInputStream(f)) {
+          stream(f.getPath(), f.getName(), stream);
+        }
+      }
+    }
+
+    private void stream(String source, String name, InputStream stream) throws IOException, InterruptedException {
+      if (name.endsWith(".zip"))
+        zip(source, stream);
+      else if (name.endsWith(".ndjson"))
+        ndjson(source, stream);
+      else
+        item(source, name.endsWith(".xml") ? FhirFormat.XML : name.endsWith(".json") ? FhirFormat.JSON : defaultFormat, stream);
+    }
+
+    private void zip(String source, InputStream stream) throws IOException, InterruptedException {
+      ZipInputStream zip = new ZipInputStream(stream);
+      ZipEntry entry;
+      while (!stop && (entry = zip.getNextEntry()) != null) {
+        if (!entry.isDirectory())
+          stream(source+"!"+entry.getName(), entry.getName(), new FilterInputStream(zip) {
+            @Override
+            public void close() {
+              // the zip is closed with the file
+            }
+          });
+      }
+    }
+
+    private void ndjson(String source, InputStream stream) throws IOException, InterruptedException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+      String line;
+      int i = 0;
+      while (!stop && (line = reader.readLine()) != null) {
+        i++;
+        if (!line.trim().isEmpty()) {
+          if (seq < skip)
+            seq++;
+          else
+            queue(source+":"+Integer.toString(i), line.getBytes(StandardCharsets.UTF_8), FhirFormat.JSON);
+        }
+      }
+    }
+
+    private void item(String source, FhirFormat format, InputStream stream) throws IOException, InterruptedException {
+      if (seq < skip)
+        seq++;
+      else
+        queue(source, TextFile.streamToBytes(stream), format);
+    }
+
+    private void queue(String source, byte[] content, FhirFormat format) throws InterruptedException {
+      if (!stop) {
+        items.put(new Item(seq, source, content, format));
+        seq++;
+        stats.read.incrementAndGet();
+      }
+    }
+  }
+
+  private boolean isResourceFile(String name) {
+    return name.endsWith(".json") || name.endsWith(".xml") || name.endsWith(".ndjson") || name.endsWith(".zip");
+  }
+
+  private void read(List<String> paths, BlockingQueue<Item> items) throws IOException, InterruptedException {
+    try {
+      Reader reader = new Reader(items);
+      for (String path : paths) {
+        if (!stop)
+          reader.file(new File(path));
+      }
+    } finally {
+      for (int i = 0; i < parserThreads; i++)
+        items.put(END);
+    }
+  }
+
+  // --- stage 2: parsing ----------------------------------------------------
+
+  private void parse(BlockingQueue<Item> items, BlockingQueue<List<Entry>> batches, AtomicInteger parsing) throws InterruptedException, IOException {
+    List<Entry> batch = new ArrayList<>(batchSize);
+    Item item;
+    while ((item = items.take()) != END) {
+      Resource r;
+      try {
+        r = item.format == FhirFormat.XML ? new XmlParser().parse(item.content) : new JsonParser().parse(item.content);
+      } catch (Exception e) {
+        fail(item.seq, item.source, "Error parsing: "+e.getMessage());
+        continue;
+      }
+      String msg;
+      try {
+        msg = checker == null ? null : checker.check(r);
+      } catch (Exception e) {
+        msg = "Error checking: "+e.getMessage();
+      }
+      if (msg != null) {
+        fail(item.seq, item.source, msg);
+        continue;
+      }
+      batch.add(new Entry(item, r));
+      if (batch.size() == batchSize) {
+        batches.put(batch);
+        batch = new ArrayList<>(batchSize);
+      }
+    }
+    if (!batch.isEmpty())
+      batches.put(batch);
+    if (parsing.decrementAndGet() == 0) {
+      for (int i = 0; i < senderThreads; i++)
+        batches.put(END_BATCH);
+    }
+  }
+
+  // --- stage 3: posting ----------------------------------------------------
+
+  private void post(BlockingQueue<List<Entry>> batches) throws InterruptedException, IOException {
+    List<Entry> batch;
+    while ((batch = batches.take()) != END_BATCH)
+      send(batch);
+  }
+
+  private void send(List<Entry> batch) throws InterruptedException, IOException {
+    List<Entry> pending = batch;
+    int attempt = 0;
+    while (!pending.isEmpty()) {
+      List<Entry> retry = new ArrayList<>();
+      try {
+        Bundle resp = sender.send(bundle(pending));
+        if (resp == null || resp.getEntry().size() != pending.size())
+          throw new FHIRException("The server returned "+(resp == null ? "nothing" : Integer.toString(resp.getEntry().size())+" entries")+" for a bundle of "+Integer.toString(pending.size()));
+        stats.batches.incrementAndGet();
+        for (int i = 0; i < pending.size(); i++) {
+          Entry e = pending.get(i);
+          String status = resp.getEntry().get(i).getResponse().getStatus();
+          if (status != null && status.startsWith("2")) {
+            stats.uploaded.incrementAndGet();
+            finished(e.seq);
+          } else {
+            e.error = "Status "+status;
+            if (isTransient(status))
+              retry.add(e);
+            else
+              fail(e.seq, e.source, e.error);
+          }
+        }
+      } catch (InterruptedException e) {
+        throw e;
+      } catch (Exception ex) {
+        for (Entry e : pending)
+          e.error = ex.getMessage() == null ? ex.getClass().getName() : ex.getMessage();
+        retry = pending;
+      }
+      if (!retry.isEmpty()) {
+        attempt++;
+        if (attempt > maxRetries) {
+          for (Entry e : retry)
+            fail(e.seq, e.source, e.error+" (after "+Integer.toString(maxRetries)+" retries)");
+          retry.clear();
+        } else {
+          stats.retried.addAndGet(retry.size());
+          Thread.sleep(Math.min(maxRetryDelay, retryDelay << Math.min(attempt - 1, 20)));
+        }
+      }
+      pending = retry;
+    }
+  }
+
+  private Bundle bundle(List<Entry> entries) {
+    Bundle bnd = new Bundle();
+    bnd.setType(bundleType);
+    bnd.setId(UUID.randomUUID().toString().toLowerCase());
+    for (Entry e : entries) {
+      BundleEntryComponent be = bnd.addEntry();
+      be.setResource(e.resource);
+      if (e.resource.hasId()) {
+        be.getRequest().setMethod(HTTPVerb.PUT);
+        be.getRequest().setUrl(e.resource.fhirType()+"/"+e.resource.getIdBase());
+      } else {
+        be.getRequest().setMethod(HTTPVerb.POST);
+        be.getRequest().setUrl(e.resource.fhirType());
+      }
+    }
+    return bnd;
+  }
+
+  private boolean isTransient(String status) {
+    return status == null || status.startsWith("5") || status.startsWith("408") || status.startsWith("429");
+  }
+
+  // --- progress ------------------------------------------------------------
+
+  private void fail(long seq, String source, String reason) throws IOException {
+    stats.failed.incrementAndGet();
+    if (failures != null) {
+      synchronized (failures) {
+        failures.write(source+"\t"+Long.toString(seq)+"\t"+reason.replace('\n', ' ').replace('\t', ' ')+"\r\n");
+        failures.flush();
+      }
+    }
+    finished(seq);
+  }
+
+  private void finished(long seq) {
+    synchronized (progress) {
+      if (seq == done) {
+        done++;
+        while (!doneAhead.isEmpty() && doneAhead.first() == done) {
+          doneAhead.pollFirst();
+          done++;
+        }
+      } else
+        doneAhead.add(seq);
+    }
+  }
+
+  private long startFrom(List<String> paths) throws IOException {
+    if (checkpoint == null || !new File(checkpoint).exists())
+      return 0;
+    IniFile ini = new IniFile(checkpoint);
+    String s = ini.getStringProperty(SECTION, "sources");
+    if (s == null || !s.equals(String.join(File.pathSeparator, paths)))
+      throw new FHIRException("The checkpoint "+checkpoint+" is for a different upload ("+s+")");
+    Long completed = ini.getLongProperty(SECTION, "completed");
+    return completed == null ? 0 : completed;
+  }
+
+  private void saveCheckpoint(List<String> paths) throws IOException {
+    if (checkpoint == null)
+      return;
+    long completed;
+    synchronized (progress) {
+      completed = done;
+    }
+    File tmp = new File(checkpoint+".tmp");
+    if (tmp.exists())
+      tmp.delete();
+    IniFile ini = new IniFile(tmp.getAbsolutePath());
+    ini.setStringProperty(SECTION, "sources", String.join(File.pathSeparator, paths), null);
+    ini.setLongProperty(SECTION, "completed", completed, "resources (in the order read) that are finished with");
+    ini.setLongProperty(SECTION, "uploaded", stats.getUploaded(), "in the last run");
+    ini.setLongProperty(SECTION, "failed", stats.getFailed(), "in the last run");
+    if (!ini.save())
+      throw new IOException("Unable to save the checkpoint "+checkpoint);
+    Files.move(tmp.toPath(), new File(checkpoint).toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+}
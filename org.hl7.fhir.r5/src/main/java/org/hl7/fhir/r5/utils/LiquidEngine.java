@@ -1,9 +1,14 @@
 package org.hl7.fhir.r5.utils;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /*-
  * #%L
@@ -46,58 +51,215 @@ public class LiquidEngine implements IEvaluationContext {
     public String fetchInclude(LiquidEngine engine, String name);
   }
   
+  /**
+   * how many compiled templates (and, separately, includes) are kept
+   */
+  public static final int DEFAULT_CACHE_SIZE = 1000;
+
   private IEvaluationContext externalHostServices;
+  private IWorkerContext context;
   private FHIRPathEngine engine;
+  // the FHIRPath engine keeps state while it evaluates (the trace log), so each evaluation borrows one of its own. 
+  // Idle engines are kept for the next evaluation, up to one per processor
+  private ConcurrentLinkedDeque<FHIRPathEngine> idleEngines = new ConcurrentLinkedDeque<>();
   private ILiquidEngineIcludeResolver includeResolver; 
+  // compiled templates, by name and source, and includes, by name. Compiled templates are never modified, so they can be shared between threads 
+  private DocumentCache documents = new DocumentCache();
+  private DocumentCache includes = new DocumentCache();
+
+  /**
+   * Least recently used goes first. Documents are compiled outside the lock, so two threads 
+   * may both compile the same one; the first one in is kept
+   */
+  private static class DocumentCache {
+    private int maxSize = DEFAULT_CACHE_SIZE;
+    private Map<String, LiquidDocument> map = new LinkedHashMap<String, LiquidDocument>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, LiquidDocument> eldest) {
+        return size() > maxSize;
+      }
+    };
+
+    private LiquidDocument get(String key, Function<String, LiquidDocument> compile) {
+      synchronized (map) {
+        LiquidDocument doc = map.get(key);
+        if (doc != null)
+          return doc;
+      }
+      LiquidDocument doc = compile.apply(key);
+      synchronized (map) {
+        LiquidDocument existing = map.putIfAbsent(key, doc);
+        return existing == null ? doc : existing;
+      }
+    }
+
+    private int size() {
+      synchronized (map) {
+        return map.size();
+      }
+    }
+
+    private void setMaxSize(int maxSize) {
+      synchronized (map) {
+        this.maxSize = maxSize;
+        while (map.size() > maxSize)
+          map.remove(map.keySet().iterator().next());
+      }
+    }
+
+    private void clear() {
+      synchronized (map) {
+        map.clear();
+      }
+    }
+  }
 
   private class LiquidEngineContext {
     private Object externalContext;
+    private FHIRPathEngine engine;
     private Map<String, Base> vars = new HashMap<>();
 
-    public LiquidEngineContext(Object externalContext) {
+    public LiquidEngineContext(Object externalContext, FHIRPathEngine engine) {
       super();
       this.externalContext = externalContext;
+      this.engine = engine;
     }
 
     public LiquidEngineContext(LiquidEngineContext existing) {
       super();
       externalContext = existing.externalContext;
+      engine = existing.engine;
       vars.putAll(existing.vars);
     }
   }
 
   public LiquidEngine(IWorkerContext context, IEvaluationContext hostServices) {
     super();
+    this.context = context;
     this.externalHostServices = hostServices;
-    engine = new FHIRPathEngine(context);
-    engine.setHostServices(this);
+    engine = makeEngine();
+    idleEngines.push(engine);
   }
   
+  private FHIRPathEngine makeEngine() {
+    FHIRPathEngine res = new FHIRPathEngine(context);
+    res.setHostServices(this);
+    return res;
+  }
+
+  private FHIRPathEngine borrowEngine() {
+    FHIRPathEngine res = idleEngines.poll();
+    return res == null ? makeEngine() : res;
+  }
+
+  private void returnEngine(FHIRPathEngine engine) {
+    if (idleEngines.size() < Runtime.getRuntime().availableProcessors())
+      idleEngines.push(engine);
+  }
+
   public ILiquidEngineIcludeResolver getIncludeResolver() {
     return includeResolver;
   }
 
   public void setIncludeResolver(ILiquidEngineIcludeResolver includeResolver) {
     this.includeResolver = includeResolver;
+    includes.clear();
   }
 
+  /**
+   * Parse and compile a template. Compiled templates are cached (by name and source), and can be 
+   * used by many threads at once
+   */
   public LiquidDocument parse(String source, String sourceName) throws FHIRException {
-    return new LiquidParser(source).parse(sourceName);
+    // the name is part of the key because it's in the error messages
+    return documents.get(sourceName+"\u0000"+source, k -> compile(source, sourceName));
+  }
+
+  private LiquidDocument compile(String source, String sourceName) throws FHIRException {
+    FHIRPathEngine fpe = borrowEngine();
+    try {
+      return new LiquidParser(source, fpe).parse(sourceName);
+    } finally {
+      returnEngine(fpe);
+    }
+  }
+
+  /**
+   * forget the compiled templates and includes (e.g. if the include resolver will return different content)
+   */
+  public void clearCache() {
+    documents.clear();
+    includes.clear();
+  }
+
+  /**
+   * @param size how many compiled templates to keep (and, separately, how many includes). The least recently used go first 
+   */
+  public void setCacheSize(int size) {
+    documents.setMaxSize(size);
+    includes.setMaxSize(size);
+  }
+
+  /**
+   * @return how many compiled templates are cached (not counting includes)
+   */
+  public int getCachedDocumentCount() {
+    return documents.size();
+  }
+
+  /**
+   * @return how many compiled includes are cached
+   */
+  public int getCachedIncludeCount() {
+    return includes.size();
   }
 
   public String evaluate(LiquidDocument document, Resource resource, Object appContext) throws FHIRException {
     StringBuilder b = new StringBuilder();
-    LiquidEngineContext ctxt = new LiquidEngineContext(appContext);
-    for (LiquidNode n : document.body) {
-      n.evaluate(b, resource, ctxt);
+    try {
+      evaluate(document, resource, appContext, b);
+    } catch (IOException e) {
+      throw new FHIRException(e.getMessage(), e); // can't happen - StringBuilder doesn't throw
     }
     return b.toString();
   }
 
+  public void evaluate(LiquidDocument document, Resource resource, Object appContext, Appendable output) throws FHIRException, IOException {
+    FHIRPathEngine fpe = borrowEngine();
+    try {
+      LiquidEngineContext ctxt = new LiquidEngineContext(appContext, fpe);
+      for (LiquidNode n : document.body) {
+        n.evaluate(output, resource, ctxt);
+      }
+    } finally {
+      returnEngine(fpe);
+    }
+  }
+
+  /**
+   * Render the one document for each of the resources, in parallel 
+   * 
+   * @return the output for each resource, in the same order as the resources
+   */
+  public List<String> evaluateAll(LiquidDocument document, List<? extends Resource> resources, Object appContext) throws FHIRException {
+    return resources.parallelStream().map(r -> evaluate(document, r, appContext)).collect(Collectors.toList());
+  }
+
+  private LiquidDocument fetchInclude(String page) throws FHIRException {
+    return includes.get(page, p -> {
+      String src = includeResolver == null ? null : includeResolver.fetchInclude(LiquidEngine.this, p);
+      if (src == null)
+        throw new FHIRException("Unable to find the include '"+p+"'");
+      return compile(src, p);
+    });
+  }
+
   private abstract class LiquidNode {
     protected void closeUp() {}
 
-    public abstract void evaluate(StringBuilder b, Resource resource, LiquidEngineContext ctxt) throws FHIRException;
+    public abstract void evaluate(Appendable b, Resource resource, LiquidEngineContext ctxt) throws FHIRException, IOException;
   }
 
   private class LiquidConstant extends LiquidNode {
@@ -115,7 +277,7 @@ public class LiquidEngine implements IEvaluationContext {
     }
 
     @Override
-    public void evaluate(StringBuilder b, Resource resource, LiquidEngineContext ctxt) {
+    public void evaluate(Appendable b, Resource resource, LiquidEngineContext ctxt) throws IOException {
       b.append(constant);
     }
   }
@@ -125,10 +287,8 @@ public class LiquidEngine implements IEvaluationContext {
     private ExpressionNode compiled;
 
     @Override
-    public void evaluate(StringBuilder b, Resource resource, LiquidEngineContext ctxt) throws FHIRException {
-      if (compiled == null)
-        compiled = engine.parse(statement);
-      b.append(engine.evaluateToString(ctxt, resource, resource, resource, compiled));
+    public void evaluate(Appendable b, Resource resource, LiquidEngineContext ctxt) throws FHIRException, IOException {
+      b.append(ctxt.engine.evaluateToString(ctxt, resource, resource, resource, compiled));
     }
   }
 
@@ -139,10 +299,8 @@ public class LiquidEngine implements IEvaluationContext {
     private List<LiquidNode> elseBody = new ArrayList<>();
 
     @Override
-    public void evaluate(StringBuilder b, Resource resource, LiquidEngineContext ctxt) throws FHIRException {
-      if (compiled == null)
-        compiled = engine.parse(condition);
-      boolean ok = engine.evaluateToBoolean(ctxt, resource, resource, resource, compiled); 
+    public void evaluate(Appendable b, Resource resource, LiquidEngineContext ctxt) throws FHIRException, IOException {
+      boolean ok = ctxt.engine.evaluateToBoolean(ctxt, resource, resource, resource, compiled); 
       List<LiquidNode> list = ok ? thenBody : elseBody;
       for (LiquidNode n : list) {
         n.evaluate(b, resource, ctxt);
@@ -156,10 +314,8 @@ public class LiquidEngine implements IEvaluationContext {
     private ExpressionNode compiled;
     private List<LiquidNode> body = new ArrayList<>();
     @Override
-    public void evaluate(StringBuilder b, Resource resource, LiquidEngineContext ctxt) throws FHIRException {
-      if (compiled == null)
-        compiled = engine.parse(condition);
-      List<Base> list = engine.evaluate(ctxt, resource, resource, resource, compiled);
+    public void evaluate(Appendable b, Resource resource, LiquidEngineContext ctxt) throws FHIRException, IOException {
+      List<Base> list = ctxt.engine.evaluate(ctxt, resource, resource, resource, compiled);
       LiquidEngineContext lctxt = new LiquidEngineContext(ctxt);
       for (Base o : list) {
         lctxt.vars.put(varName, o);
@@ -175,15 +331,13 @@ public class LiquidEngine implements IEvaluationContext {
     private Map<String, ExpressionNode> params = new HashMap<>();
 
     @Override
-    public void evaluate(StringBuilder b, Resource resource, LiquidEngineContext ctxt) throws FHIRException {
-      String src = includeResolver.fetchInclude(LiquidEngine.this, page);
-      LiquidParser parser = new LiquidParser(src);
-      LiquidDocument doc = parser.parse(page);
-      LiquidEngineContext nctxt =  new LiquidEngineContext(ctxt.externalContext);
+    public void evaluate(Appendable b, Resource resource, LiquidEngineContext ctxt) throws FHIRException, IOException {
+      LiquidDocument doc = fetchInclude(page);
+      LiquidEngineContext nctxt =  new LiquidEngineContext(ctxt.externalContext, ctxt.engine);
       Tuple incl = new Tuple();
       nctxt.vars.put("include", incl);
       for (String s : params.keySet()) {
-        incl.addProperty(s, engine.evaluate(ctxt, resource, resource, resource, params.get(s)));
+        incl.addProperty(s, ctxt.engine.evaluate(ctxt, resource, resource, resource, params.get(s)));
       }
       for (LiquidNode n : doc.body) {
         n.evaluate(b, resource, nctxt);
@@ -201,9 +355,11 @@ public class LiquidEngine implements IEvaluationContext {
     private String source;
     private int cursor;
     private String name;
+    private FHIRPathEngine engine;
 
-    public LiquidParser(String source) {
+    public LiquidParser(String source, FHIRPathEngine engine) {
       this.source = source;
+      this.engine = engine;
       cursor = 0;
     }
 
@@ -270,6 +426,7 @@ public class LiquidEngine implements IEvaluationContext {
     private LiquidNode parseIf(String cnt) throws FHIRException {
       LiquidIf res = new LiquidIf();
       res.condition = cnt.substring(3).trim();
+      res.compiled = engine.parse(res.condition);
       String term = parseList(res.thenBody, new String[] { "else", "endif"} );
       if ("else".equals(term))
         term = parseList(res.elseBody, new String[] { "endif"} );
@@ -320,6 +477,7 @@ public class LiquidEngine implements IEvaluationContext {
       if (!"in".equals(cnt.substring(j, i)))
         throw new FHIRException("Script "+name+": Script "+name+": Error reading loop: "+cnt);
       res.condition = cnt.substring(i).trim();
+      res.compiled = engine.parse(res.condition);
       parseList(res.body, new String[] { "endloop"} );
       return res;
     }
@@ -351,6 +509,7 @@ public class LiquidEngine implements IEvaluationContext {
       grab();
       LiquidStatement res = new LiquidStatement();
       res.statement = b.toString().trim();
+      res.compiled = engine.parse(res.statement);
       return res;
     }
 
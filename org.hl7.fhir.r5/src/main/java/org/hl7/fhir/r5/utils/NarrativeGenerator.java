@@ -305,6 +305,7 @@ public class NarrativeGenerator implements INarrativeGenerator {
   private ITypeParser parser; // when generating for an element model
   private ILiquidTemplateProvider templateProvider;
   private IEvaluationContext services;
+  private LiquidEngine liquidEngine; // keeps the compiled templates, so made once and reused 
   
   public boolean generate(Bundle b, boolean evenIfAlreadyHasNarrative, Set<String> outputTracker) throws EOperationOutcome, FHIRException, IOException {
     boolean res = false;
@@ -376,7 +377,9 @@ public class NarrativeGenerator implements INarrativeGenerator {
 
   private boolean generateByLiquid(ResourceContext rcontext, DomainResource r, String liquidTemplate, Set<String> outputTracker) {
 
-    LiquidEngine engine = new LiquidEngine(context, services);
+    if (liquidEngine == null)
+      liquidEngine = new LiquidEngine(context, services);
+    LiquidEngine engine = liquidEngine;
     XhtmlNode x;
     try {
       LiquidDocument doc = engine.parse(liquidTemplate, "template");
@@ -1022,6 +1025,7 @@ public class NarrativeGenerator implements INarrativeGenerator {
   public NarrativeGenerator setLiquidServices(ILiquidTemplateProvider templateProvider, IEvaluationContext services) {
     this.templateProvider = templateProvider;
     this.services = services;
+    liquidEngine = null;
     return this;
   }
 
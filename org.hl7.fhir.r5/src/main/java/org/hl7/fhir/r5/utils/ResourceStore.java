@@ -0,0 +1,1283 @@
+package org.hl7.fhir.r5.utils;
+
+/*-
+ * #%L
+ * org.hl7.fhir.r5
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.exceptions.PathEngineException;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.context.BaseWorkerContext;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.ObjectConverter;
+import org.hl7.fhir.r5.model.Address;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.BaseDateTimeType;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r5.model.Bundle.BundleType;
+import org.hl7.fhir.r5.model.Bundle.SearchEntryMode;
+import org.hl7.fhir.r5.model.CodeType;
+import org.hl7.fhir.r5.model.CodeableConcept;
+import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.ContactPoint;
+import org.hl7.fhir.r5.model.DateTimeType;
+import org.hl7.fhir.r5.model.DomainResource;
+import org.hl7.fhir.r5.model.Enumeration;
+import org.hl7.fhir.r5.model.Enumerations.SearchParamType;
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.r5.model.HumanName;
+import org.hl7.fhir.r5.model.Identifier;
+import org.hl7.fhir.r5.model.MetadataResource;
+import org.hl7.fhir.r5.model.Period;
+import org.hl7.fhir.r5.model.Reference;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.ResourceFactory;
+import org.hl7.fhir.r5.model.SearchParameter;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.model.Timing;
+import org.hl7.fhir.r5.model.TypeDetails;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.utils.FHIRPathEngine.IEvaluationContext;
+import org.hl7.fhir.r5.utils.IResourceValidator.IValidatorResourceFetcher;
+import org.hl7.fhir.r5.utils.IResourceValidator.ReferenceValidationPolicy;
+import org.hl7.fhir.r5.utils.StructureMapUtilities.ITransformerServices;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.utilities.graphql.Argument;
+import org.hl7.fhir.utilities.graphql.IGraphQLStorageServices;
+import org.hl7.fhir.utilities.graphql.Value;
+
+/**
+ * An in-memory store of resources, for evaluating test data, examples and the like locally.
+ *
+ * Resources are held by type and id, and indexed by the search parameters the worker context knows
+ * about (plus any added with addSearchParameter). The values are extracted with the search parameter's
+ * FHIRPath expression, which is compiled once. Token, reference, uri, string and date parameters
+ * are indexed; the other types can't be searched on.
+ *
+ * Any number of threads can read and search at once; updates are applied one at a time, and the
+ * indexes are maintained as resources are added, replaced and removed.
+ *
+ * The nested classes plug the store into the FHIRPath engine (resolve()), the GraphQL engine, the
+ * mapping engine (performSearch) and the validator (fetching referenced resources)
+ */
+public class ResourceStore {
+
+  private static final Set<String> IGNORED_PARAMS = new HashSet<>(Arrays.asList("_count", "_format", "_summary", "_elements", "_total"));
+  private static final String[] DATE_PREFIXES = { "eq", "ne", "gt", "lt", "ge", "le", "sa", "eb", "ap" };
+  private static final int FILTER_LIMIT = 1000;
+
+  /**
+   * a value extracted from a resource for one of the search parameters
+   */
+  private static class IndexValue {
+    private ParamIndex param;
+    private String key; // token, reference and uri: as matched. string: normalised
+    private String raw; // string: as found
+    private long low; // date: the range [low, high)
+    private long high;
+  }
+
+  private static class Entry {
+    private Resource resource;
+    private long seq;
+    private List<IndexValue> values = new ArrayList<>();
+  }
+
+  /**
+   * the index for one search parameter on one resource type. The sets are of resource ids
+   */
+  private static class ParamIndex {
+    private String code;
+    private SearchParamType type;
+    private ExpressionNode expression;
+    private Map<String, Set<String>> exact = new HashMap<>();
+    private TreeMap<String, Set<String>> strings = new TreeMap<>();
+    private TreeMap<Long, Set<String>> lows = new TreeMap<>();
+    private TreeMap<Long, Set<String>> highs = new TreeMap<>();
+  }
+
+  private static class TypeIndex {
+    private String type;
+    private Map<String, Entry> entries = new LinkedHashMap<>();
+    private boolean domain;
+    private Map<String, ParamIndex> params = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * a value to search for, worked out once: the key to look up, or the date range
+   */
+  private static class SearchValue {
+    private String value;
+    private String key;
+    private String prefix;
+    private long low;
+    private long high;
+  }
+
+  private static class Criterion {
+    private String name;
+    private String modifier;
+    private List<String> values = new ArrayList<>(); // any of them
+    private ParamIndex param; // null for _id, when there's no search parameter for it
+    private boolean keyed;
+    private List<SearchValue> prepared = new ArrayList<>();
+
+    private Criterion(String name, Collection<String> values) {
+      if (name.contains(":")) {
+        this.modifier = name.substring(name.indexOf(":")+1);
+        this.name = name.substring(0, name.indexOf(":"));
+      } else
+        this.name = name;
+      this.values.addAll(values);
+    }
+  }
+
+  private IWorkerContext context;
+  private FHIRPathEngine engine;
+  private List<SearchParameter> searchParameters = new ArrayList<>();
+  private Map<String, ExpressionNode> expressions = new HashMap<>();
+  private Map<String, String> unsupported = new HashMap<>(); // code -> why
+  private Map<String, TypeIndex> types = new ConcurrentHashMap<>();
+  private Map<String, Resource> canonicals = new HashMap<>(); // url, and url|version -> resource
+  private Map<String, List<MetadataResource>> versions = new HashMap<>(); // url -> the resources with that url, in the order they were added
+  private ReadWriteLock lock = new ReentrantReadWriteLock();
+  private long seq;
+  private int size;
+
+  /**
+   * @param context if this is a BaseWorkerContext, the search parameters it holds are indexed
+   */
+  public ResourceStore(IWorkerContext context) {
+    this.context = context;
+    this.engine = new FHIRPathEngine(context);
+    this.engine.setHostServices(new IndexingServices());
+    if (context instanceof BaseWorkerContext)
+      searchParameters.addAll(((BaseWorkerContext) context).allSearchParameters());
+  }
+
+  public IWorkerContext getContext() {
+    return context;
+  }
+
+  /**
+   * Index another search parameter (e.g. one defined by an IG). Resources already in the store are indexed too
+   */
+  public void addSearchParameter(SearchParameter sp) {
+    lock.writeLock().lock();
+    try {
+      searchParameters.add(sp);
+      for (TypeIndex ti : types.values()) {
+        if (appliesTo(sp, ti)) {
+          ParamIndex pi = makeParam(sp, ti.type);
+          if (pi != null) {
+            ti.params.put(pi.code, pi);
+            for (Entry e : ti.entries.values()) {
+              List<IndexValue> values = new ArrayList<>();
+              extract(pi, e.resource, values);
+              for (IndexValue v : values)
+                index(v, e.resource.getIdBase());
+              e.values.addAll(values);
+            }
+          }
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // -- Updates -------------------------------------------------------------
+
+  /**
+   * Add a resource to the store, or replace the one with the same type and id
+   */
+  public void put(Resource resource) {
+    if (!resource.hasIdElement() || Utilities.noString(resource.getIdBase()))
+      throw new FHIRException("Resources must have an id to be stored ("+resource.fhirType()+")");
+    TypeIndex ti = typeIndex(resource.fhirType());
+    Entry e = new Entry();
+    e.resource = resource;
+    // the values are worked out before taking the lock, so readers aren't held up by the FHIRPath
+    Set<ParamIndex> done = new HashSet<>(ti.params.values());
+    for (ParamIndex pi : done)
+      extract(pi, resource, e.values);
+    String id = resource.getIdBase();
+    lock.writeLock().lock();
+    try {
+      for (ParamIndex pi : ti.params.values()) {
+        // added since
+        if (!done.contains(pi))
+          extract(pi, resource, e.values);
+      }
+      Entry existing = ti.entries.get(id);
+      if (existing != null) {
+        unindex(ti, existing);
+        e.seq = existing.seq;
+      } else {
+        e.seq = ++seq;
+        size++;
+      }
+      ti.entries.put(id, e);
+      for (IndexValue v : e.values)
+        index(v, id);
+      if (resource instanceof MetadataResource && ((MetadataResource) resource).hasUrl()) {
+        MetadataResource mr = (MetadataResource) resource;
+        versions.computeIfAbsent(mr.getUrl(), k -> new ArrayList<>()).add(mr);
+        updateCanonicals(mr.getUrl(), mr.getVersion());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Add the resources in the bundle (but not the bundle itself)
+   */
+  public void putAll(Bundle bundle) {
+    for (BundleEntryComponent be : bundle.getEntry()) {
+      if (be.hasResource())
+        put(be.getResource());
+    }
+  }
+
+  public boolean remove(String type, String id) {
+    TypeIndex ti = types.get(type);
+    if (ti == null)
+      return false;
+    lock.writeLock().lock();
+    try {
+      Entry e = ti.entries.remove(id);
+      if (e == null)
+        return false;
+      unindex(ti, e);
+      size--;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      types.clear();
+      canonicals.clear();
+      versions.clear();
+      size = 0;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void index(IndexValue v, String id) {
+    ParamIndex pi = v.param;
+    switch (pi.type) {
+    case DATE:
+      pi.lows.computeIfAbsent(v.low, k -> new HashSet<>()).add(id);
+      pi.highs.computeIfAbsent(v.high, k -> new HashSet<>()).add(id);
+      break;
+    case STRING:
+      pi.strings.computeIfAbsent(v.key, k -> new HashSet<>()).add(id);
+      break;
+    default:
+      pi.exact.computeIfAbsent(v.key, k -> new HashSet<>()).add(id);
+    }
+  }
+
+  private void unindex(TypeIndex ti, Entry e) {
+    String id = e.resource.getIdBase();
+    for (IndexValue v : e.values) {
+      ParamIndex pi = v.param;
+      switch (pi.type) {
+      case DATE:
+        drop(pi.lows, v.low, id);
+        drop(pi.highs, v.high, id);
+        break;
+      case STRING:
+        drop(pi.strings, v.key, id);
+        break;
+      default:
+        drop(pi.exact, v.key, id);
+      }
+    }
+    if (e.resource instanceof MetadataResource && ((MetadataResource) e.resource).hasUrl()) {
+      MetadataResource mr = (MetadataResource) e.resource;
+      List<MetadataResource> list = versions.get(mr.getUrl());
+      if (list != null) {
+        list.remove(mr);
+        if (list.isEmpty())
+          versions.remove(mr.getUrl());
+      }
+      updateCanonicals(mr.getUrl(), mr.getVersion());
+    }
+  }
+
+  /**
+   * the url on its own refers to the latest version in the store, and url|version to the last one added with that
+   * version. Called whenever a resource with the url is added or removed, so older versions come back into view
+   */
+  private void updateCanonicals(String url, String version) {
+    List<MetadataResource> list = versions.get(url);
+    MetadataResource latest = null;
+    MetadataResource match = null;
+    if (list != null) {
+      for (MetadataResource mr : list) {
+        if (latest == null || compareVersions(mr.getVersion(), latest.getVersion()) >= 0)
+          latest = mr;
+        if (version != null && version.equals(mr.getVersion()))
+          match = mr;
+      }
+    }
+    if (latest == null)
+      canonicals.remove(url);
+    else
+      canonicals.put(url, latest);
+    if (version != null) {
+      if (match == null)
+        canonicals.remove(url+"|"+version);
+      else
+        canonicals.put(url+"|"+version, match);
+    }
+  }
+
+  /**
+   * as for the worker context: no version is earliest, then by major.minor
+   */
+  private static int compareVersions(String v1, String v2) {
+    if (v1 == null || v2 == null)
+      return v1 == null ? (v2 == null ? 0 : -1) : 1;
+    String mm1 = VersionUtilities.getMajMin(v1);
+    String mm2 = VersionUtilities.getMajMin(v2);
+    int c = mm1 == null || mm2 == null ? 0 : mm1.compareTo(mm2);
+    return c != 0 ? c : v1.compareTo(v2);
+  }
+
+  private <K> void drop(Map<K, Set<String>> map, K key, String id) {
+    Set<String> ids = map.get(key);
+    if (ids != null) {
+      ids.remove(id);
+      if (ids.isEmpty())
+        map.remove(key);
+    }
+  }
+
+  // -- Reading -------------------------------------------------------------
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public Resource get(String type, String id) {
+    TypeIndex ti = types.get(type);
+    if (ti == null)
+      return null;
+    lock.readLock().lock();
+    try {
+      Entry e = ti.entries.get(id);
+      return e == null ? null : e.resource;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return all the resources of the type, in the order they were first added
+   */
+  public List<Resource> list(String type) {
+    return search(type, new ArrayList<>());
+  }
+
+  /**
+   * @param url a reference ([type]/[id], or an absolute URL that ends with [type]/[id], with or without a version), or the canonical URL of a resource (with or without |[version])
+   * @return the resource, or null if it isn't in the store
+   */
+  public Resource resolve(String url) {
+    if (Utilities.noString(url))
+      return null;
+    lock.readLock().lock();
+    try {
+      Resource res = canonicals.get(url);
+      if (res != null)
+        return res;
+      if (url.contains("/_history/"))
+        url = url.substring(0, url.indexOf("/_history/"));
+      String[] parts = url.split("\\/");
+      if (parts.length < 2)
+        return null;
+      TypeIndex ti = types.get(parts[parts.length-2]);
+      if (ti == null)
+        return null;
+      Entry e = ti.entries.get(parts[parts.length-1]);
+      return e == null ? null : e.resource;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param url [type]?[params] - e.g. Patient?name=peter&birthdate=ge1970. The base URL, if there is one, is ignored
+   */
+  public List<Resource> search(String url) {
+    String type = url.contains("?") ? url.substring(0, url.indexOf("?")) : url;
+    if (type.contains("/"))
+      type = type.substring(type.lastIndexOf("/")+1);
+    return search(type, url.contains("?") ? url.substring(url.indexOf("?")+1) : "");
+  }
+
+  /**
+   * @param query search parameters as they appear in a URL - e.g. name=peter&birthdate=ge1970
+   */
+  public List<Resource> search(String type, String query) {
+    List<Criterion> criteria = new ArrayList<>();
+    for (String p : query.split("\\&")) {
+      if (!Utilities.noString(p)) {
+        String name = p.contains("=") ? p.substring(0, p.indexOf("=")) : p;
+        String value = p.contains("=") ? p.substring(p.indexOf("=")+1) : "";
+        criteria.add(new Criterion(decode(name), splitValues(decode(value))));
+      }
+    }
+    return search(type, criteria);
+  }
+
+  /**
+   * @param params name (with modifier, if there is one) -> values. Each value is one occurrence of the parameter (which may be a comma separated list of alternatives)
+   */
+  public List<Resource> search(String type, Map<String, List<String>> params) {
+    List<Criterion> criteria = new ArrayList<>();
+    for (Map.Entry<String, List<String>> p : params.entrySet()) {
+      for (String v : p.getValue())
+        criteria.add(new Criterion(p.getKey(), splitValues(v)));
+    }
+    return search(type, criteria);
+  }
+
+  private List<Resource> search(String type, List<Criterion> criteria) {
+    TypeIndex ti = types.get(type);
+    if (ti == null) {
+      // nothing of this type has been stored, so there's nothing to index
+      if (!context.getResourceNamesAsSet().contains(type))
+        throw new FHIRException("Unknown resource type '"+type+"'");
+      return new ArrayList<>();
+    }
+    lock.readLock().lock();
+    try {
+      List<Criterion> list = new ArrayList<>();
+      for (Criterion c : criteria) {
+        if (!IGNORED_PARAMS.contains(c.name)) {
+          prepare(ti, c);
+          list.add(c);
+        }
+      }
+      // direct look ups usually narrow things down the most, so they go first
+      Collections.sort(list, (c1, c2) -> Boolean.compare(!c1.keyed, !c2.keyed));
+      Set<String> ids = null;
+      for (Criterion c : list) {
+        if (ids != null && ids.size() < FILTER_LIMIT) {
+          // cheaper to check the candidates than to gather everything that matches
+          Iterator<String> it = ids.iterator();
+          while (it.hasNext())
+            if (!matches(ti.entries.get(it.next()), c))
+              it.remove();
+        } else {
+          Set<String> matches = new HashSet<>();
+          for (SearchValue v : c.prepared)
+            lookup(ti, c, v, matches);
+          if (ids == null)
+            ids = matches;
+          else
+            ids.retainAll(matches);
+        }
+        if (ids.isEmpty())
+          break;
+      }
+      List<Entry> entries = new ArrayList<>();
+      if (ids == null)
+        entries.addAll(ti.entries.values());
+      else {
+        for (String id : ids)
+          entries.add(ti.entries.get(id));
+        Collections.sort(entries, (e1, e2) -> Long.compare(e1.seq, e2.seq));
+      }
+      List<Resource> res = new ArrayList<>(entries.size());
+      for (Entry e : entries)
+        res.add(e.resource);
+      return res;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * check the parameter and modifier, and work out the key (or date range) for each of the values
+   */
+  private void prepare(TypeIndex ti, Criterion c) {
+    c.param = ti.params.get(c.name);
+    if (c.param == null && !c.name.equals("_id")) {
+      String why = unsupported.get(c.name);
+      throw new FHIRException("The search parameter '"+c.name+"' is not supported for "+ti.type+(why == null ? "" : " ("+why+")"));
+    }
+    SearchParamType type = c.param == null ? SearchParamType.TOKEN : c.param.type;
+    String modifier = c.modifier;
+    boolean ok = modifier == null
+        || (type == SearchParamType.TOKEN && modifier.equals("not"))
+        || (type == SearchParamType.STRING && Utilities.existsInList(modifier, "exact", "contains"))
+        || (type == SearchParamType.REFERENCE && context.getResourceNamesAsSet().contains(modifier));
+    if (!ok)
+      throw new FHIRException("The modifier ':"+modifier+"' is not supported for the search parameter '"+c.name+"'");
+    c.keyed = type == SearchParamType.URI || type == SearchParamType.REFERENCE || (type == SearchParamType.TOKEN && modifier == null);
+    for (String value : c.values) {
+      SearchValue v = new SearchValue();
+      v.value = value;
+      switch (type) {
+      case TOKEN:
+      case URI:
+        v.key = value;
+        break;
+      case REFERENCE:
+        v.key = normaliseReference(modifier != null && !value.contains("/") ? modifier+"/"+value : value);
+        break;
+      case STRING:
+        v.key = normalise(value);
+        break;
+      case DATE:
+        v.prefix = "eq";
+        for (String p : DATE_PREFIXES) {
+          if (value.startsWith(p)) {
+            v.prefix = p;
+            value = value.substring(2);
+            break;
+          }
+        }
+        long[] range = range(new DateTimeType(value));
+        v.low = range[0];
+        v.high = range[1];
+        break;
+      default:
+        throw new FHIRException("The search parameter '"+c.name+"' is a "+type.toCode()+" parameter, which is not supported");
+      }
+      c.prepared.add(v);
+    }
+  }
+
+  /**
+   * add the ids of all the resources that match the value, using the index
+   */
+  private void lookup(TypeIndex ti, Criterion c, SearchValue v, Set<String> matches) {
+    ParamIndex pi = c.param;
+    if (pi == null) {
+      if (ti.entries.containsKey(v.key))
+        matches.add(v.key);
+      return;
+    }
+    switch (pi.type) {
+    case TOKEN:
+      if ("not".equals(c.modifier)) {
+        Set<String> not = pi.exact.get(v.key);
+        for (String id : ti.entries.keySet())
+          if (not == null || !not.contains(id))
+            matches.add(id);
+      } else
+        addAll(matches, pi.exact.get(v.key));
+      return;
+    case STRING:
+      if (c.modifier == null)
+        addAll(matches, pi.strings.subMap(v.key, v.key+Character.MAX_VALUE).values());
+      else if (c.modifier.equals("contains")) {
+        for (Map.Entry<String, Set<String>> s : pi.strings.entrySet())
+          if (s.getKey().contains(v.key))
+            matches.addAll(s.getValue());
+      } else {
+        Set<String> candidates = pi.strings.get(v.key);
+        if (candidates != null)
+          for (String id : candidates)
+            if (matches(ti.entries.get(id), pi, c.modifier, v))
+              matches.add(id);
+      }
+      return;
+    case DATE:
+      switch (v.prefix) {
+      case "gt": addAll(matches, pi.highs.tailMap(v.high, false).values()); break;
+      case "ge": addAll(matches, pi.highs.tailMap(v.low, false).values()); break;
+      case "lt": addAll(matches, pi.lows.headMap(v.low, false).values()); break;
+      case "le": addAll(matches, pi.lows.headMap(v.high, false).values()); break;
+      case "sa": addAll(matches, pi.lows.tailMap(v.high, true).values()); break;
+      case "eb": addAll(matches, pi.highs.headMap(v.low, true).values()); break;
+      case "ne":
+        for (Entry e : ti.entries.values())
+          if (matches(e, pi, null, v))
+            matches.add(e.resource.getIdBase());
+        break;
+      default:
+        // eq and ap: the candidates start within (eq) or before the end of (ap) the range
+        for (Set<String> s : (v.prefix.equals("ap") ? pi.lows.headMap(v.high, false) : pi.lows.subMap(v.low, true, v.high, false)).values())
+          for (String id : s)
+            if (matches(ti.entries.get(id), pi, null, v))
+              matches.add(id);
+      }
+      return;
+    default:
+      addAll(matches, pi.exact.get(v.key));
+    }
+  }
+
+  private boolean matches(Entry e, Criterion c) {
+    for (SearchValue v : c.prepared) {
+      if (c.param == null ? v.key.equals(e.resource.getIdBase()) : matches(e, c.param, c.modifier, v))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * whether the resource matches the value, from the values extracted from it (not the index)
+   */
+  private boolean matches(Entry e, ParamIndex pi, String modifier, SearchValue sv) {
+    if (pi.type == SearchParamType.DATE && sv.prefix.equals("ne")) {
+      for (IndexValue v : e.values)
+        if (v.param == pi && v.low >= sv.low && v.high <= sv.high)
+          return false;
+      return true;
+    }
+    boolean not = "not".equals(modifier);
+    for (IndexValue v : e.values) {
+      if (v.param == pi) {
+        boolean match;
+        switch (pi.type) {
+        case STRING:
+          match = modifier == null ? v.key.startsWith(sv.key) : modifier.equals("contains") ? v.key.contains(sv.key) : sv.value.equals(v.raw);
+          break;
+        case DATE:
+          match = dateMatches(sv.prefix, v.low, v.high, sv.low, sv.high);
+          break;
+        default:
+          match = sv.key.equals(v.key);
+        }
+        if (match)
+          return !not;
+      }
+    }
+    return not;
+  }
+
+  /**
+   * @return whether the range [vlow, vhigh) of a value matches the range [low, high) of the search value, with the prefix
+   */
+  private boolean dateMatches(String prefix, long vlow, long vhigh, long low, long high) {
+    switch (prefix) {
+    case "gt": return vhigh > high;
+    case "ge": return vhigh > low;
+    case "lt": return vlow < low;
+    case "le": return vlow < high;
+    case "sa": return vlow >= high;
+    case "eb": return vhigh <= low;
+    case "ap": return vlow < high && vhigh > low;
+    default: return vlow >= low && vhigh <= high;
+    }
+  }
+
+  private void addAll(Set<String> matches, Set<String> ids) {
+    if (ids != null)
+      matches.addAll(ids);
+  }
+
+  private void addAll(Set<String> matches, Collection<Set<String>> ids) {
+    for (Set<String> s : ids)
+      matches.addAll(s);
+  }
+
+  private List<String> splitValues(String value) {
+    List<String> res = new ArrayList<>();
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < value.length(); i++) {
+      char ch = value.charAt(i);
+      if (ch == '\\' && i < value.length()-1)
+        b.append(value.charAt(++i));
+      else if (ch == ',') {
+        res.add(b.toString());
+        b.setLength(0);
+      } else
+        b.append(ch);
+    }
+    res.add(b.toString());
+    return res;
+  }
+
+  private String decode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new Error(e);
+    }
+  }
+
+  // -- Indexing ------------------------------------------------------------
+
+  private TypeIndex typeIndex(String type) {
+    TypeIndex ti = types.get(type);
+    if (ti == null) {
+      lock.writeLock().lock();
+      try {
+        ti = types.get(type);
+        if (ti == null) {
+          if (!context.getResourceNamesAsSet().contains(type))
+            throw new FHIRException("Unknown resource type '"+type+"'");
+          ti = new TypeIndex();
+          ti.type = type;
+          ti.domain = ResourceFactory.createResource(type) instanceof DomainResource;
+          for (SearchParameter sp : searchParameters) {
+            if (appliesTo(sp, ti)) {
+              ParamIndex pi = makeParam(sp, type);
+              if (pi != null)
+                ti.params.put(pi.code, pi);
+            }
+          }
+          types.put(type, ti);
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+    return ti;
+  }
+
+  private boolean appliesTo(SearchParameter sp, TypeIndex ti) {
+    for (CodeType c : sp.getBase()) {
+      if (ti.type.equals(c.getValue()) || "Resource".equals(c.getValue()) || (ti.domain && "DomainResource".equals(c.getValue())))
+        return true;
+    }
+    return false;
+  }
+
+  private ParamIndex makeParam(SearchParameter sp, String type) {
+    if (!sp.hasCode() || !sp.hasType())
+      return null;
+    if (!Utilities.existsInList(sp.getType().toCode(), "token", "reference", "uri", "string", "date")) {
+      unsupported.put(sp.getCode(), sp.getType().toCode()+" parameters are not indexed");
+      return null;
+    }
+    if (!sp.hasExpression()) {
+      unsupported.put(sp.getCode(), "there is no expression");
+      return null;
+    }
+    ParamIndex pi = new ParamIndex();
+    pi.code = sp.getCode();
+    pi.type = sp.getType();
+    synchronized (engine) {
+      pi.expression = expressions.get(sp.getExpression());
+      if (pi.expression == null) {
+        try {
+          pi.expression = engine.parse(sp.getExpression());
+        } catch (Exception e) {
+          unsupported.put(sp.getCode(), "the expression '"+sp.getExpression()+"' could not be parsed: "+e.getMessage());
+          return null;
+        }
+        expressions.put(sp.getExpression(), pi.expression);
+      }
+    }
+    return pi;
+  }
+
+  private void extract(ParamIndex pi, Resource resource, List<IndexValue> values) {
+    List<Base> items;
+    try {
+      synchronized (engine) {
+        items = engine.evaluate(resource, pi.expression);
+      }
+    } catch (Exception e) {
+      // the expression can't be evaluated on this resource - e.g. it depends on something not known here
+      return;
+    }
+    for (Base b : items) {
+      switch (pi.type) {
+      case TOKEN:
+        if (b instanceof Coding)
+          token(pi, ((Coding) b).getSystem(), ((Coding) b).getCode(), values);
+        else if (b instanceof CodeableConcept) {
+          for (Coding c : ((CodeableConcept) b).getCoding())
+            token(pi, c.getSystem(), c.getCode(), values);
+        } else if (b instanceof Identifier)
+          token(pi, ((Identifier) b).getSystem(), ((Identifier) b).getValue(), values);
+        else if (b instanceof ContactPoint)
+          token(pi, null, ((ContactPoint) b).getValue(), values);
+        else if (b instanceof Enumeration)
+          token(pi, enumSystem((Enumeration<?>) b), b.primitiveValue(), values);
+        else if (b.isPrimitive())
+          token(pi, null, b.primitiveValue(), values);
+        break;
+      case REFERENCE:
+        if (b instanceof Reference) {
+          String ref = ((Reference) b).getReference();
+          if (ref != null && !ref.startsWith("#")) {
+            String n = normaliseReference(ref);
+            exact(pi, ref, values);
+            exact(pi, n, values);
+            if (n.contains("/"))
+              exact(pi, n.substring(n.lastIndexOf("/")+1), values);
+          }
+        } else if (b instanceof Resource)
+          exact(pi, b.fhirType()+"/"+((Resource) b).getIdBase(), values);
+        else if (b.isPrimitive() && b.primitiveValue() != null) {
+          exact(pi, b.primitiveValue(), values);
+          if (b.primitiveValue().contains("|"))
+            exact(pi, b.primitiveValue().substring(0, b.primitiveValue().indexOf("|")), values);
+        }
+        break;
+      case URI:
+        if (b.isPrimitive())
+          exact(pi, b.primitiveValue(), values);
+        break;
+      case STRING:
+        if (b instanceof HumanName) {
+          HumanName hn = (HumanName) b;
+          string(pi, hn.getFamily(), values);
+          for (StringType s : hn.getGiven())
+            string(pi, s.getValue(), values);
+          for (StringType s : hn.getPrefix())
+            string(pi, s.getValue(), values);
+          for (StringType s : hn.getSuffix())
+            string(pi, s.getValue(), values);
+          string(pi, hn.getText(), values);
+        } else if (b instanceof Address) {
+          Address a = (Address) b;
+          for (StringType s : a.getLine())
+            string(pi, s.getValue(), values);
+          string(pi, a.getCity(), values);
+          string(pi, a.getDistrict(), values);
+          string(pi, a.getState(), values);
+          string(pi, a.getPostalCode(), values);
+          string(pi, a.getCountry(), values);
+          string(pi, a.getText(), values);
+        } else if (b.isPrimitive())
+          string(pi, b.primitiveValue(), values);
+        break;
+      case DATE:
+        if (b instanceof BaseDateTimeType)
+          date(pi, range((BaseDateTimeType) b), values);
+        else if (b instanceof Period) {
+          Period p = (Period) b;
+          long[] start = range(p.getStartElement());
+          long[] end = range(p.getEndElement());
+          if (start != null || end != null)
+            date(pi, new long[] { start == null ? Long.MIN_VALUE : start[0], end == null ? Long.MAX_VALUE : end[1] }, values);
+        } else if (b instanceof Timing) {
+          for (DateTimeType dt : ((Timing) b).getEvent())
+            date(pi, range(dt), values);
+        }
+        break;
+      default:
+        break;
+      }
+    }
+  }
+
+  private String enumSystem(Enumeration<?> e) {
+    try {
+      return e.getSystem();
+    } catch (Exception ex) {
+      return null;
+    }
+  }
+
+  private void token(ParamIndex pi, String system, String code, List<IndexValue> values) {
+    if (code == null)
+      return;
+    exact(pi, code, values);
+    if (system == null)
+      exact(pi, "|"+code, values);
+    else {
+      exact(pi, system+"|"+code, values);
+      exact(pi, system+"|", values);
+    }
+  }
+
+  private void exact(ParamIndex pi, String key, List<IndexValue> values) {
+    for (IndexValue v : values)
+      if (v.param == pi && key.equals(v.key))
+        return;
+    IndexValue v = new IndexValue();
+    v.param = pi;
+    v.key = key;
+    values.add(v);
+  }
+
+  private void string(ParamIndex pi, String s, List<IndexValue> values) {
+    if (Utilities.noString(s))
+      return;
+    IndexValue v = new IndexValue();
+    v.param = pi;
+    v.key = normalise(s);
+    v.raw = s;
+    values.add(v);
+  }
+
+  private void date(ParamIndex pi, long[] range, List<IndexValue> values) {
+    if (range == null)
+      return;
+    IndexValue v = new IndexValue();
+    v.param = pi;
+    v.low = range[0];
+    v.high = range[1];
+    values.add(v);
+  }
+
+  /**
+   * @return the range covered by the date, to its precision: [low, high) in milliseconds
+   */
+  private static long[] range(BaseDateTimeType dt) {
+    if (!dt.hasValue())
+      return null;
+    Calendar c = dt.getValueAsCalendar();
+    long low = c.getTimeInMillis();
+    c.add(dt.getPrecision().getCalendarConstant(), 1);
+    return new long[] { low, c.getTimeInMillis() };
+  }
+
+  /**
+   * strings match case and accent insensitively
+   */
+  private static String normalise(String s) {
+    return Normalizer.normalize(s, Normalizer.Form.NFD).replaceAll("\\p{M}", "").toLowerCase();
+  }
+
+  /**
+   * [base]/[type]/[id]/_history/[version] -> [type]/[id]
+   */
+  private static String normaliseReference(String ref) {
+    if (ref.contains("/_history/"))
+      ref = ref.substring(0, ref.indexOf("/_history/"));
+    String[] parts = ref.split("\\/");
+    return parts.length > 2 ? parts[parts.length-2]+"/"+parts[parts.length-1] : ref;
+  }
+
+  /**
+   * resolve() while indexing (e.g. subject.where(resolve() is Patient)) only needs the type of the target, which
+   * comes from the reference. That way the indexes don't depend on the order resources are added
+   */
+  private class IndexingServices implements IEvaluationContext {
+
+    @Override
+    public Base resolveConstant(Object appContext, String name, boolean beforeContext) throws PathEngineException {
+      return null;
+    }
+
+    @Override
+    public TypeDetails resolveConstantType(Object appContext, String name) throws PathEngineException {
+      return null;
+    }
+
+    @Override
+    public boolean log(String argument, List<Base> focus) {
+      return false;
+    }
+
+    @Override
+    public FunctionDetails resolveFunction(String functionName) {
+      return null;
+    }
+
+    @Override
+    public TypeDetails checkFunction(Object appContext, String functionName, List<TypeDetails> parameters) throws PathEngineException {
+      return null;
+    }
+
+    @Override
+    public List<Base> executeFunction(Object appContext, String functionName, List<List<Base>> parameters) {
+      return null;
+    }
+
+    @Override
+    public Base resolveReference(Object appContext, String url) throws FHIRException {
+      String[] parts = normaliseReference(url).split("\\/");
+      if (parts.length != 2 || !context.getResourceNamesAsSet().contains(parts[0]))
+        return null;
+      Resource res = ResourceFactory.createResource(parts[0]);
+      res.setId(parts[1]);
+      return res;
+    }
+
+    @Override
+    public boolean conformsToProfile(Object appContext, Base item, String url) throws FHIRException {
+      return false;
+    }
+
+    @Override
+    public ValueSet resolveValueSet(Object appContext, String url) {
+      return null;
+    }
+  }
+
+  // -- Adapters ------------------------------------------------------------
+
+  /**
+   * resolve() in FHIRPath finds resources in the store. Everything else goes to the delegate, if there is one
+   */
+  public static class FHIRPathServices implements IEvaluationContext {
+    private ResourceStore store;
+    private IEvaluationContext delegate;
+
+    public FHIRPathServices(ResourceStore store, IEvaluationContext delegate) {
+      this.store = store;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Base resolveConstant(Object appContext, String name, boolean beforeContext) throws PathEngineException {
+      return delegate == null ? null : delegate.resolveConstant(appContext, name, beforeContext);
+    }
+
+    @Override
+    public TypeDetails resolveConstantType(Object appContext, String name) throws PathEngineException {
+      return delegate == null ? null : delegate.resolveConstantType(appContext, name);
+    }
+
+    @Override
+    public boolean log(String argument, List<Base> focus) {
+      return delegate == null ? false : delegate.log(argument, focus);
+    }
+
+    @Override
+    public FunctionDetails resolveFunction(String functionName) {
+      return delegate == null ? null : delegate.resolveFunction(functionName);
+    }
+
+    @Override
+    public TypeDetails checkFunction(Object appContext, String functionName, List<TypeDetails> parameters) throws PathEngineException {
+      return delegate == null ? null : delegate.checkFunction(appContext, functionName, parameters);
+    }
+
+    @Override
+    public List<Base> executeFunction(Object appContext, String functionName, List<List<Base>> parameters) {
+      return delegate == null ? null : delegate.executeFunction(appContext, functionName, parameters);
+    }
+
+    @Override
+    public Base resolveReference(Object appContext, String url) throws FHIRException {
+      Resource res = store.resolve(url);
+      if (res == null && delegate != null)
+        return delegate.resolveReference(appContext, url);
+      return res;
+    }
+
+    @Override
+    public boolean conformsToProfile(Object appContext, Base item, String url) throws FHIRException {
+      return delegate == null ? false : delegate.conformsToProfile(appContext, item, url);
+    }
+
+    @Override
+    public ValueSet resolveValueSet(Object appContext, String url) {
+      if (delegate != null)
+        return delegate.resolveValueSet(appContext, url);
+      return store.getContext().fetchResource(ValueSet.class, url);
+    }
+  }
+
+  /**
+   * Storage for the GraphQL engine. There's no paging - searches return everything that matches
+   */
+  public static class GraphQLServices implements IGraphQLStorageServices {
+    private ResourceStore store;
+
+    public GraphQLServices(ResourceStore store) {
+      this.store = store;
+    }
+
+    @Override
+    public ReferenceResolution lookup(Object appInfo, IBaseResource context, IBaseReference reference) throws FHIRException {
+      String ref = reference.getReferenceElement().getValue();
+      if (ref == null)
+        return null;
+      if (ref.startsWith("#")) {
+        if (context instanceof DomainResource) {
+          for (Resource r : ((DomainResource) context).getContained()) {
+            if (ref.substring(1).equals(r.getId()))
+              return new ReferenceResolution(context, r);
+          }
+        }
+        return null;
+      }
+      Resource res = store.resolve(ref);
+      return res == null ? null : new ReferenceResolution(res, res);
+    }
+
+    @Override
+    public IBaseResource lookup(Object appInfo, String type, String id) throws FHIRException {
+      return store.get(type, id);
+    }
+
+    @Override
+    public void listResources(Object appInfo, String type, List<Argument> searchParams, List<IBaseResource> matches) throws FHIRException {
+      matches.addAll(store.search(type, criteria(searchParams)));
+    }
+
+    @Override
+    public IBaseBundle search(Object appInfo, String type, List<Argument> searchParams) throws FHIRException {
+      List<Resource> list = store.search(type, criteria(searchParams));
+      Bundle bnd = new Bundle();
+      bnd.setType(BundleType.SEARCHSET);
+      bnd.setTotal(list.size());
+      for (Resource r : list) {
+        BundleEntryComponent be = bnd.addEntry();
+        be.setFullUrl(r.fhirType()+"/"+r.getIdBase());
+        be.setResource(r);
+        be.getSearch().setMode(SearchEntryMode.MATCH);
+      }
+      return bnd;
+    }
+
+    private List<Criterion> criteria(List<Argument> searchParams) {
+      List<Criterion> res = new ArrayList<>();
+      for (Argument a : searchParams) {
+        // fhirpath is applied by the engine, and the rest are for paging
+        if (!Utilities.existsInList(a.getName(), "fhirpath", "search-id", "search-offset")) {
+          List<String> values = new ArrayList<>();
+          for (Value v : a.getValues())
+            values.add(v.getValue());
+          res.add(new Criterion(a.getName(), values));
+        }
+      }
+      return res;
+    }
+  }
+
+  /**
+   * Searches and references in the mapping language are resolved from the store, and the resources a map
+   * creates are added to it. Everything else goes to the delegate, if there is one
+   */
+  public static class TransformerServices implements ITransformerServices {
+    private ResourceStore store;
+    private ITransformerServices delegate;
+
+    public TransformerServices(ResourceStore store, ITransformerServices delegate) {
+      this.store = store;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void log(String message) {
+      if (delegate != null)
+        delegate.log(message);
+    }
+
+    @Override
+    public Base createType(Object appInfo, String name) throws FHIRException {
+      if (delegate != null)
+        return delegate.createType(appInfo, name);
+      return ResourceFactory.createResourceOrType(name);
+    }
+
+    @Override
+    public Base createResource(Object appInfo, Base res, boolean atRootofTransform) {
+      if (res instanceof Resource && ((Resource) res).hasId())
+        store.put((Resource) res);
+      return delegate == null ? res : delegate.createResource(appInfo, res, atRootofTransform);
+    }
+
+    @Override
+    public Coding translate(Object appInfo, Coding source, String conceptMapUrl) throws FHIRException {
+      if (delegate == null)
+        throw new FHIRException("No translation services are available");
+      return delegate.translate(appInfo, source, conceptMapUrl);
+    }
+
+    @Override
+    public Base resolveReference(Object appContext, String url) throws FHIRException {
+      Resource res = store.resolve(url);
+      if (res == null && delegate != null)
+        return delegate.resolveReference(appContext, url);
+      return res;
+    }
+
+    @Override
+    public List<Base> performSearch(Object appContext, String url) throws FHIRException {
+      return new ArrayList<Base>(store.search(url));
+    }
+  }
+
+  /**
+   * Lets the validator check references to resources in the store
+   */
+  public static class ValidatorFetcher implements IValidatorResourceFetcher {
+    private ResourceStore store;
+    private ReferenceValidationPolicy policy = ReferenceValidationPolicy.CHECK_EXISTS_AND_TYPE;
+
+    public ValidatorFetcher(ResourceStore store) {
+      this.store = store;
+    }
+
+    public ReferenceValidationPolicy getPolicy() {
+      return policy;
+    }
+
+    /**
+     * @param policy how references are checked (default CHECK_EXISTS_AND_TYPE)
+     */
+    public void setPolicy(ReferenceValidationPolicy policy) {
+      this.policy = policy;
+    }
+
+    @Override
+    public Element fetch(Object appContext, String url) throws FHIRException, IOException {
+      Resource res = store.resolve(url);
+      return res == null ? null : new ObjectConverter(store.getContext()).convert(res);
+    }
+
+    @Override
+    public ReferenceValidationPolicy validationPolicy(Object appContext, String path, String url) {
+      return policy;
+    }
+
+    @Override
+    public boolean resolveURL(Object appContext, String path, String url) throws IOException, FHIRException {
+      return store.resolve(url) != null;
+    }
+  }
+
+}
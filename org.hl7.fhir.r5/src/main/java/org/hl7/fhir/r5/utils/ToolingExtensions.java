@@ -457,27 +457,11 @@ public class ToolingExtensions {
    * @return The extension, if on this element, else null
    */
   public static Extension getExtension(DomainResource resource, String name) {
-    if (name == null)
-      return null;
-    if (!resource.hasExtension())
-      return null;
-    for (Extension e : resource.getExtension()) {
-      if (name.equals(e.getUrl()))
-        return e;
-    }
-    return null;
+    return ExtensionHelper.getExtension(resource, name);
   }
 
   public static Extension getExtension(Element el, String name) {
-    if (name == null)
-      return null;
-    if (!el.hasExtension())
-      return null;
-    for (Extension e : el.getExtension()) {
-      if (name.equals(e.getUrl()))
-        return e;
-    }
-    return null;
+    return ExtensionHelper.findExtension(el, name);
   }
 
   public static void setStringExtension(DomainResource resource, String uri, String value) {
@@ -377,8 +377,9 @@ public class ClientUtils {
     OperationOutcome error = null;
     try {
       if (cnt != null) {
-        if(contentType.contains(ResourceFormat.RESOURCE_XML.getHeader()) || contentType.contains("text/xml+fhir")) {
-          Resource rf = getParser(format).parse(cnt);
+        boolean json = contentType.contains(ResourceFormat.RESOURCE_JSON.getHeader()) || contentType.contains("json+fhir");
+        if(json || contentType.contains(ResourceFormat.RESOURCE_XML.getHeader()) || contentType.contains("text/xml+fhir")) {
+          Resource rf = getParser(json ? ResourceFormat.RESOURCE_JSON.getHeader() : ResourceFormat.RESOURCE_XML.getHeader()).parse(cnt);
           if (rf instanceof Bundle)
             feed = (Bundle) rf;
           else if (rf instanceof OperationOutcome && hasError((OperationOutcome) rf)) {
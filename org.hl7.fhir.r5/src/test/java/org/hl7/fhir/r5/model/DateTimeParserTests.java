@@ -0,0 +1,211 @@
+package org.hl7.fhir.r5.model;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+
+/**
+ * Checks that DateTimeParser gets the same results as the Calendar based parse it replaces,
+ * and that the values it doesn't take are left to the Calendar
+ */
+public class DateTimeParserTests {
+
+  private static final String[] ZONES = { "UTC", "America/New_York", "Europe/Amsterdam", "Australia/Lord_Howe", "Asia/Kolkata", "Pacific/Apia" };
+
+  /**
+   * a dateTime that always uses the Calendar based parse
+   */
+  private static class CalendarDateTimeType extends DateTimeType {
+    @Override
+    protected boolean canDeferParse(String theValue) {
+      return false;
+    }
+
+    @Override
+    protected Date parse(String theValue) {
+      return parseWithCalendar(theValue);
+    }
+  }
+
+  private String summary(String v, boolean calendar) {
+    try {
+      DateTimeType dt = calendar ? new CalendarDateTimeType() : new DateTimeType();
+      dt.setValueAsString(v);
+      TimeZone tz = dt.getTimeZone();
+      return dt.getValue().getTime()+"|"+dt.getPrecision()+"|"+(tz == null ? null : tz.getID())+"|"+dt.isTimeZoneZulu()+"|"+dt.getNanos()+"|"+dt.getValueAsString();
+    } catch (RuntimeException e) {
+      return "error";
+    }
+  }
+
+  private void check(String v) {
+    Assert.assertEquals(v+" in "+TimeZone.getDefault().getID(), summary(v, true), summary(v, false));
+  }
+
+  private void inZone(String zone, Runnable test) {
+    TimeZone tz = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone(zone));
+    try {
+      test.run();
+    } finally {
+      TimeZone.setDefault(tz);
+    }
+  }
+
+  private boolean ambiguous(String v) {
+    return DateTimeParser.getTime(v, DateTimeParser.precision(v)) == DateTimeParser.AMBIGUOUS;
+  }
+
+  @Test
+  public void testDaylightSavings() {
+    inZone("America/New_York", () -> {
+      // in the gap when the clocks go forward, and in the hour that happens twice when they go back
+      for (String v : new String[] { "2019-03-10T02:30:00", "2019-11-03T01:30:00", "2019-11-03T01:30:00.5" }) {
+        Assert.assertTrue(v, ambiguous(v));
+        check(v);
+      }
+      // either side of them isn't
+      for (String v : new String[] { "2019-03-10T01:59:59", "2019-03-10T03:00:00", "2019-11-03T00:59:59", "2019-11-03T02:00:00" }) {
+        Assert.assertFalse(v, ambiguous(v));
+        check(v);
+      }
+      // the Calendar moves a time in the gap forward
+      Assert.assertEquals("2019-03-10T07:30:00Z", new DateTimeType("2019-03-10T02:30:00").getValue().toInstant().toString());
+    });
+    inZone("Australia/Lord_Howe", () -> {
+      // a half hour change
+      Assert.assertTrue(ambiguous("2019-10-06T02:15:00"));
+      check("2019-10-06T02:15:00");
+      check("2019-04-07T01:45:00");
+    });
+  }
+
+  @Test
+  public void testEarlyLocalTimes() {
+    inZone("Europe/Amsterdam", () -> {
+      // java.time uses local mean time before time zones were standardised, the Calendar doesn't always
+      for (String v : new String[] { "1900-06-01T12:00:00", "1850-01-01T00:00:00", "1850-01-01" }) {
+        Assert.assertTrue(v, ambiguous(v));
+        check(v);
+      }
+      Assert.assertFalse(ambiguous("1901-06-01T12:00:00"));
+      check("1901-06-01T12:00:00");
+      // with an offset, the time zone rules don't matter
+      Assert.assertFalse(ambiguous("1850-01-01T00:00:00Z"));
+      check("1850-01-01T00:00:00Z");
+      check("1850-01-01T00:00:00+05:00");
+    });
+    // the Calendar changes to the Julian calendar in 1582, so those are left to it
+    for (String v : new String[] { "1582", "1582-10-10", "1000-01-01T00:00:00Z", "1583-01-01T00:00:00Z" }) {
+      Assert.assertEquals(v.startsWith("1583"), DateTimeParser.precision(v) != null);
+      check(v);
+    }
+  }
+
+  @Test
+  public void testOffsets() {
+    for (String v : new String[] { "2019-10-19T10:00:00+18:00", "2019-10-19T10:00:00-18:00", "2019-10-19T10:00:00+05:45" })
+      Assert.assertNotNull(v, DateTimeParser.precision(v));
+    // java.time doesn't allow offsets over 18 hours
+    for (String v : new String[] { "2019-10-19T10:00:00+18:01", "2019-10-19T10:00:00+19:00", "2019-10-19T10:00:00-23:59" })
+      Assert.assertNull(v, DateTimeParser.precision(v));
+    for (String v : new String[] { "2019-10-19T10:00:00+18:00", "2019-10-19T10:00:00-18:00", "2019-10-19T10:00:00+05:45",
+        "2019-10-19T10:00:00+18:01", "2019-10-19T10:00:00+19:00", "2019-10-19T10:00:00-23:59" })
+      check(v);
+  }
+
+  @Test
+  public void testFractionalSeconds() {
+    for (String v : new String[] { "2019-10-19T10:00:00.1Z", "2019-10-19T10:00:00.12Z", "2019-10-19T10:00:00.123Z", "2019-10-19T10:00:00.1234Z",
+        "2019-10-19T10:00:00.123456789Z", "2019-10-19T10:00:00.000000001+05:30", "2019-10-19T10:00:00.999999999999-03:00" }) {
+      Assert.assertEquals(v, TemporalPrecisionEnum.MILLI, DateTimeParser.precision(v));
+      check(v);
+    }
+    DateTimeType dt = new DateTimeType("2019-10-19T10:00:00.123456789Z");
+    // the milliseconds are the first 3 digits, and the nanoseconds keep the rest
+    Assert.assertEquals(1571479200123L, dt.getValue().getTime());
+    Assert.assertEquals(123456789L, dt.getNanos().longValue());
+    Assert.assertEquals("2019-10-19T10:00:00.123456789Z", dt.getValueAsString());
+  }
+
+  /**
+   * values in all the forms, and local times either side of the daylight savings changes, compared with the
+   * Calendar in time zones with different rules. A smaller version of the comparison that was done when
+   * DateTimeParser was written
+   */
+  @Test
+  public void testRandom() {
+    Random random = new Random(20191019);
+    for (String zone : ZONES) {
+      inZone(zone, () -> {
+        List<ZoneOffsetTransition> transitions = transitions(ZoneId.of(zone).getRules());
+        for (int i = 0; i < 5000; i++) {
+          if (!transitions.isEmpty() && random.nextInt(5) == 0) {
+            ZoneOffsetTransition t = transitions.get(random.nextInt(transitions.size()));
+            check(local(t.getDateTimeBefore().plusMinutes(random.nextInt(180) - 60)));
+          } else
+            check(value(random));
+        }
+      });
+    }
+  }
+
+  private List<ZoneOffsetTransition> transitions(ZoneRules rules) {
+    List<ZoneOffsetTransition> res = new ArrayList<>();
+    ZoneOffsetTransition t = rules.nextTransition(LocalDateTime.of(1890, 1, 1, 0, 0).atZone(ZoneId.of("UTC")).toInstant());
+    while (t != null && t.getDateTimeBefore().getYear() < 2040) {
+      res.add(t);
+      t = rules.nextTransition(t.getInstant());
+    }
+    return res;
+  }
+
+  private String local(LocalDateTime ldt) {
+    return String.format("%04d-%02d-%02dT%02d:%02d:%02d", ldt.getYear(), ldt.getMonthValue(), ldt.getDayOfMonth(), ldt.getHour(), ldt.getMinute(), ldt.getSecond());
+  }
+
+  private String value(Random random) {
+    StringBuilder b = new StringBuilder();
+    int year = random.nextInt(10) == 0 ? 1500 + random.nextInt(400) : 1900 + random.nextInt(200);
+    b.append(String.format("%04d", year));
+    int precision = random.nextInt(5);
+    if (precision == 0)
+      return b.toString();
+    b.append(String.format("-%02d", 1 + random.nextInt(12)));
+    if (precision == 1)
+      return b.toString();
+    // sometimes a day that isn't in the month
+    b.append(String.format("-%02d", 1 + random.nextInt(random.nextInt(20) == 0 ? 31 : 28)));
+    if (precision == 2)
+      return b.toString();
+    b.append(String.format("T%02d:%02d:%02d", random.nextInt(24), random.nextInt(60), random.nextInt(60)));
+    if (precision == 4) {
+      b.append(".");
+      for (int i = 1 + random.nextInt(9); i > 0; i--)
+        b.append(random.nextInt(10));
+    }
+    switch (random.nextInt(4)) {
+    case 0:
+      break;
+    case 1:
+      b.append("Z");
+      break;
+    default:
+      b.append(random.nextBoolean() ? "+" : "-");
+      b.append(String.format("%02d:%02d", random.nextInt(random.nextInt(10) == 0 ? 24 : 15), random.nextInt(4) * 15));
+    }
+    return b.toString();
+  }
+
+}
@@ -0,0 +1,201 @@
+package org.hl7.fhir.r5.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExtensionIndexTests {
+
+  private static final String URL = "http://example.org/ext";
+
+  private Patient patient(int count) {
+    Patient p = new Patient();
+    for (int i = 0; i < count; i++)
+      p.addExtension(URL+(i % 5), new StringType("v"+i));
+    return p;
+  }
+
+  @Test
+  public void testLookups() {
+    for (int count : new int[] { 2, 20 }) {
+      Patient p = patient(count);
+      Assert.assertTrue(p.hasExtension(URL+"1"));
+      Assert.assertFalse(p.hasExtension(URL+"9"));
+      Assert.assertEquals("v0", p.getExtension().get(0).getValue().primitiveValue());
+      Assert.assertSame(p.getExtension().get(1), ToolingExtensions.getExtension(p, URL+"1"));
+      Assert.assertEquals(count / 5 + (count % 5 > 1 ? 1 : 0), p.getExtensionsByUrl(URL+"1").size());
+      Assert.assertNull(ToolingExtensions.getExtension(p, URL+"9"));
+    }
+    Patient p = patient(20);
+    Assert.assertEquals(4, ExtensionIndex.count(p.extensionIndex(), p.getExtension(), URL+"3"));
+    Assert.assertEquals(4, ExtensionIndex.count(p.getExtension(), URL+"3"));
+    Assert.assertEquals(ExtensionIndex.all(p.getExtension(), URL+"3"), ExtensionIndex.all(p.extensionIndex(), p.getExtension(), URL+"3"));
+    try {
+      p.getExtensionByUrl(URL+"3");
+      Assert.fail("should have failed");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // elements, as well as resources
+    ElementDefinition ed = new ElementDefinition();
+    for (int i = 0; i < 20; i++)
+      ed.addExtension(URL+i, new StringType("v"+i));
+    Assert.assertNotNull(ed.extensionIndex());
+    Assert.assertEquals("v7", ToolingExtensions.readStringExtension(ed, URL+"7"));
+    Assert.assertTrue(ToolingExtensions.hasExtension(ed, URL+"9"));
+    Assert.assertFalse(ToolingExtensions.hasExtension(ed, URL+"20"));
+  }
+
+  @Test
+  public void testThreshold() {
+    Assert.assertNull(patient(ExtensionIndex.INDEX_THRESHOLD-1).extensionIndex());
+    Assert.assertNull(new Patient().extensionIndex());
+    Assert.assertFalse(new Patient().hasExtension(URL+"1"));
+    Patient p = patient(ExtensionIndex.INDEX_THRESHOLD);
+    ExtensionIndex index = p.extensionIndex();
+    Assert.assertNotNull(index);
+    Assert.assertTrue(p.hasExtension(URL+"1"));
+    Assert.assertSame(index, p.extensionIndex());
+    p.getExtension().remove(0);
+    Assert.assertNull(p.extensionIndex());
+  }
+
+  @Test
+  public void testListChanges() {
+    Patient p = patient(20);
+    ExtensionIndex index = p.extensionIndex();
+    Assert.assertFalse(p.hasExtension(URL+"other"));
+    p.addExtension(URL+"other", new StringType("x"));
+    Assert.assertTrue(p.hasExtension(URL+"other"));
+    Assert.assertNotSame(index, p.extensionIndex());
+
+    p.getExtension().set(0, new Extension(URL+"set"));
+    Assert.assertTrue(p.hasExtension(URL+"set"));
+    Assert.assertEquals(3, p.getExtensionsByUrl(URL+"0").size());
+    p.getExtension().removeIf(e -> e.getUrl().equals(URL+"1"));
+    Assert.assertFalse(p.hasExtension(URL+"1"));
+
+    // swapping two extensions with the same url leaves the size and the urls the same
+    Extension a = ToolingExtensions.getExtension(p, URL+"2");
+    Extension b = p.getExtensionsByUrl(URL+"2").get(1);
+    int ia = p.getExtension().indexOf(a);
+    int ib = p.getExtension().indexOf(b);
+    p.getExtension().set(ia, b);
+    p.getExtension().set(ib, a);
+    Assert.assertSame(b, ToolingExtensions.getExtension(p, URL+"2"));
+
+    // a different list altogether
+    List<Extension> list = new ArrayList<>();
+    for (int j = 0; j < 10; j++)
+      list.add(new Extension(URL+"new"+j));
+    p.setExtension(list);
+    Assert.assertFalse(p.hasExtension(URL+"2"));
+    Assert.assertTrue(p.hasExtension(URL+"new9"));
+  }
+
+  @Test
+  public void testUrlChanges() {
+    Patient p = patient(20);
+    Extension ext = ToolingExtensions.getExtension(p, URL+"4");
+
+    ext.setUrl(URL+"renamed");
+    Assert.assertSame(ext, ToolingExtensions.getExtension(p, URL+"renamed"));
+    Assert.assertEquals(3, p.getExtensionsByUrl(URL+"4").size());
+
+    ext.setUrlElement(new UriType(URL+"element"));
+    Assert.assertSame(ext, ToolingExtensions.getExtension(p, URL+"element"));
+    Assert.assertFalse(p.hasExtension(URL+"renamed"));
+
+    // changes made to the url element directly
+    ext.getUrlElement().setValue(URL+"value");
+    Assert.assertSame(ext, ToolingExtensions.getExtension(p, URL+"value"));
+    Assert.assertFalse(p.hasExtension(URL+"element"));
+    ext.getUrlElement().setValueAsString(URL+"string");
+    Assert.assertSame(ext, ToolingExtensions.getExtension(p, URL+"string"));
+    Assert.assertFalse(p.hasExtension(URL+"value"));
+
+    ext.setUrlElement(null);
+    Assert.assertFalse(p.hasExtension(URL+"string"));
+    Assert.assertEquals(3, p.getExtensionsByUrl(URL+"4").size());
+  }
+
+  @Test
+  public void testOwnIndex() {
+    Patient p1 = patient(20);
+    Patient p2 = patient(20);
+    ExtensionIndex index1 = p1.extensionIndex();
+    ExtensionIndex index2 = p2.extensionIndex();
+    Assert.assertNotSame(index1, index2);
+
+    // changing one list, or its extensions, leaves the other index as it is
+    p1.getExtension().get(0).setUrl(URL+"changed");
+    p1.getExtension().remove(1);
+    Assert.assertTrue(p1.hasExtension(URL+"changed"));
+    Assert.assertNotSame(index1, p1.extensionIndex());
+    Assert.assertSame(index2, p2.extensionIndex());
+
+    // a copy gets its own list, and its own index
+    Patient copy = p2.copy();
+    Assert.assertTrue(copy.hasExtension(URL+"0"));
+    Assert.assertNotSame(index2, copy.extensionIndex());
+    copy.getExtension().get(0).setUrl(URL+"copy");
+    Assert.assertFalse(p2.hasExtension(URL+"copy"));
+    Assert.assertSame(index2, p2.extensionIndex());
+
+    // an extension that's in two lists
+    Extension shared = new Extension(URL+"shared");
+    p1.getExtension().add(shared);
+    p2.getExtension().add(shared);
+    Assert.assertTrue(p1.hasExtension(URL+"shared"));
+    Assert.assertTrue(p2.hasExtension(URL+"shared"));
+    shared.setUrl(URL+"moved");
+    Assert.assertTrue(p1.hasExtension(URL+"moved"));
+    Assert.assertTrue(p2.hasExtension(URL+"moved"));
+  }
+
+  @Test
+  public void testThreads() throws Exception {
+    // definitions are shared between threads that only read them
+    Patient p = patient(50);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(10, p.getExtensionsByUrl(URL+(i % 5)).size());
+            Assert.assertFalse(p.hasExtension(URL+"9"));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> f : futures)
+        f.get();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testElementModel() {
+    org.hl7.fhir.r5.elementmodel.Element e = new org.hl7.fhir.r5.elementmodel.Element("Patient");
+    for (int i = 0; i < 20; i++) {
+      org.hl7.fhir.r5.elementmodel.Element ext = new org.hl7.fhir.r5.elementmodel.Element("extension");
+      org.hl7.fhir.r5.elementmodel.Element url = new org.hl7.fhir.r5.elementmodel.Element("url");
+      url.setValue(URL+i);
+      ext.getChildren().add(url);
+      e.getChildren().add(ext);
+    }
+    Assert.assertTrue(e.hasExtension(URL+"7"));
+    Assert.assertFalse(e.hasExtension(URL+"20"));
+    Assert.assertSame(e.getChildren().get(3), e.getExtension(URL+"3"));
+  }
+
+}
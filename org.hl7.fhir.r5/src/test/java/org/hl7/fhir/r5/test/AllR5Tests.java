@@ -1,6 +1,8 @@
 package org.hl7.fhir.r5.test;
 
 import org.hl7.fhir.r5.model.BaseDateTimeTypeTest;
+import org.hl7.fhir.r5.model.DateTimeParserTests;
+import org.hl7.fhir.r5.model.ExtensionIndexTests;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
@@ -14,6 +16,7 @@ import org.junit.runners.Suite.SuiteClasses;
     ResourceRoundTripTests.class, 
     GraphQLEngineTests.class,
     LiquidEngineTests.class,
+    LiquidRenderingTests.class,
     FHIRPathTests.class,
     NarrativeGenerationTests.class,
     NarrativeGeneratorTests.class,
@@ -21,6 +24,13 @@ import org.junit.runners.Suite.SuiteClasses;
     BaseDateTimeTypeTest.class,
     OpenApiGeneratorTest.class,
     MetadataResourceManagerTester.class,
+    BulkUploaderTests.class,
+    BinaryParserTests.class,
+    ResourceStoreTests.class,
+    ElementIndexTests.class,
+    ExtensionIndexTests.class,
+    PrimitiveParseTests.class,
+    DateTimeParserTests.class,
     NpmPackageTests.class,
     SnapShotGenerationTests.class})
 
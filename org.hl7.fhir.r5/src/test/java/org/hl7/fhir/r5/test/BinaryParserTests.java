@@ -0,0 +1,121 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import org.hl7.fhir.exceptions.FHIRFormatError;
+import org.hl7.fhir.r5.formats.BinaryParser;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.formats.ParserFactory;
+import org.hl7.fhir.r5.formats.ParserType;
+import org.hl7.fhir.r5.model.Binary;
+import org.hl7.fhir.r5.model.BooleanType;
+import org.hl7.fhir.r5.model.CapabilityStatement;
+import org.hl7.fhir.r5.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r5.model.HumanName;
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.Narrative.NarrativeStatus;
+import org.hl7.fhir.r5.model.Observation;
+import org.hl7.fhir.r5.model.Organization;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.Quantity;
+import org.hl7.fhir.r5.model.Reference;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.Type;
+import org.hl7.fhir.utilities.xhtml.XhtmlParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BinaryParserTests {
+
+  private void checkRoundTrip(Resource res) throws IOException {
+    byte[] bin = new BinaryParser().composeBytes(res);
+    Resource rt = new BinaryParser().parse(bin);
+    Assert.assertEquals(new JsonParser().composeString(res), new JsonParser().composeString(rt));
+    Assert.assertTrue(bin.length < new JsonParser().composeBytes(res).length);
+  }
+
+  @Test
+  public void testPatient() throws IOException {
+    Patient p = new Patient();
+    p.setId("example");
+    p.getMeta().setVersionId("3");
+    p.getText().setStatus(NarrativeStatus.GENERATED);
+    p.getText().setDiv(new XhtmlParser().parse("<div xmlns=\"http://www.w3.org/1999/xhtml\"><p>Peter <b>Chalmers</b> &amp; co</p></div>", "div"));
+    Organization org = new Organization();
+    org.setId("org1");
+    org.setName("Acme");
+    p.addContained(org);
+    p.setManagingOrganization(new Reference("#org1"));
+    HumanName n = p.addName().setFamily("Chalmers");
+    n.addGivenElement().setValue("Peter").setId("g1").addExtension("http://example.org/ext", new IntegerType(-42));
+    n.addGiven("James");
+    p.getBirthDateElement().setValueAsString("1974-12-25");
+    p.getBirthDateElement().addExtension("http://hl7.org/fhir/StructureDefinition/patient-birthTime", new StringType("14:35:45"));
+    p.setDeceased(new BooleanType(false));
+    p.setMultipleBirth(new IntegerType(2));
+    p.addExtension("http://example.org/other", new Quantity().setValue(new BigDecimal("1.50")).setUnit("mg"));
+    checkRoundTrip(p);
+  }
+
+  @Test
+  public void testObservation() throws IOException {
+    Observation obs = new Observation();
+    obs.getCode().addCoding().setSystem("http://loinc.org").setCode("29463-7");
+    obs.setValue(new Quantity().setValue(new BigDecimal("185.00")).setUnit("lbs"));
+    obs.addComponent().setValue(new StringType(" leading and trailing spaces "));
+    checkRoundTrip(obs);
+  }
+
+  @Test
+  public void testBinary() throws IOException {
+    Binary b = new Binary();
+    b.setContentType("application/octet-stream");
+    b.setData(new byte[] { 0, 1, 2, (byte) 0xFF, 'x' });
+    checkRoundTrip(b);
+  }
+
+  @Test
+  public void testCanonicalResources() throws IOException {
+    // the metadata resources and the backbone types don't list all their inherited properties
+    CapabilityStatement cs = new CapabilityStatement();
+    cs.setId("cs");
+    cs.getText().setStatus(NarrativeStatus.EMPTY);
+    cs.getText().setDiv(new XhtmlParser().parse("<div xmlns=\"http://www.w3.org/1999/xhtml\">empty</div>", "div"));
+    cs.setUrl("http://example.org/cs").setStatus(PublicationStatus.ACTIVE).setCopyright(" markdown, with a leading space");
+    checkRoundTrip(cs);
+    StructureDefinition sd = new StructureDefinition();
+    sd.setId("sd");
+    sd.setUrl("http://example.org/sd");
+    sd.getSnapshot().addElement().setPath("Patient.name").setId("Patient.name").addExtension("http://example.org/ext", new BooleanType(true));
+    checkRoundTrip(sd);
+  }
+
+  @Test
+  public void testType() throws IOException {
+    Quantity q = new Quantity().setValue(new BigDecimal("0.001")).setCode("mg");
+    BinaryParser bp = new BinaryParser();
+    Type t = bp.parseType(bp.composeBytes(q, null), null);
+    Assert.assertTrue(t instanceof Quantity);
+    Assert.assertTrue(q.equalsDeep(t));
+  }
+
+  @Test
+  public void testNotBinary() throws IOException {
+    try {
+      new BinaryParser().parse(new JsonParser().composeBytes(new Patient()));
+      Assert.fail("should not parse");
+    } catch (FHIRFormatError e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testParserType() {
+    Assert.assertEquals(ParserType.BINARY, new BinaryParser().getType());
+    Assert.assertTrue(ParserFactory.parser(ParserType.BINARY) instanceof BinaryParser);
+  }
+
+}
@@ -0,0 +1,225 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.formats.XmlParser;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r5.model.Bundle.BundleType;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.utils.BulkUploader;
+import org.hl7.fhir.r5.utils.BulkUploader.IBatchSender;
+import org.hl7.fhir.r5.utils.BulkUploader.UploadStatistics;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class BulkUploaderTests {
+
+  /**
+   * an in-process server: accepts everything, except ids starting with 'bad' (400), and ids
+   * starting with 'busy' the first time they're seen (503)
+   */
+  private class MockServer implements IBatchSender {
+    private Set<String> stored = ConcurrentHashMap.newKeySet();
+    private Set<String> busy = ConcurrentHashMap.newKeySet();
+    private AtomicInteger bundles = new AtomicInteger();
+    private int failFirst;
+
+    @Override
+    public Bundle send(Bundle bundle) throws Exception {
+      if (bundles.incrementAndGet() <= failFirst)
+        throw new IOException("Connection refused");
+      Bundle resp = new Bundle();
+      resp.setType(BundleType.BATCHRESPONSE);
+      for (BundleEntryComponent be : bundle.getEntry()) {
+        String url = be.getRequest().getUrl();
+        String id = be.getResource().getIdBase();
+        if (id.startsWith("bad"))
+          resp.addEntry().getResponse().setStatus("400 Bad Request");
+        else if (id.startsWith("busy") && busy.add(id))
+          resp.addEntry().getResponse().setStatus("503 Service Unavailable");
+        else {
+          stored.add(url);
+          resp.addEntry().getResponse().setStatus("200 OK");
+        }
+      }
+      return resp;
+    }
+  }
+
+  private String folder(String name) throws IOException {
+    String dir = Utilities.path("[tmp]", "bulk-upload", name);
+    Utilities.createDirectory(dir);
+    Utilities.clearDirectory(dir);
+    return dir;
+  }
+
+  private Patient patient(String id) {
+    Patient p = new Patient();
+    p.setId(id);
+    p.addName().setFamily("Family "+id);
+    return p;
+  }
+
+  private void ndjson(String filename, String prefix, int count) throws IOException {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      b.append(new JsonParser().composeString(patient(prefix+i)));
+      b.append("\n");
+    }
+    TextFile.stringToFile(b.toString(), filename);
+  }
+
+  private BulkUploader uploader(IBatchSender sender) {
+    BulkUploader uploader = new BulkUploader(sender);
+    uploader.setBatchSize(7);
+    uploader.setParserThreads(2);
+    uploader.setSenderThreads(3);
+    uploader.setRetryDelay(1);
+    uploader.setReportInterval(100);
+    return uploader;
+  }
+
+  @Test
+  public void testFolder() throws IOException {
+    String dir = folder("folder");
+    ndjson(Utilities.path(dir, "a.ndjson"), "a", 100);
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(Utilities.path(dir, "b.zip")))) {
+      for (int i = 0; i < 20; i++) {
+        zip.putNextEntry(new ZipEntry("p"+i+".json"));
+        zip.write(new JsonParser().composeBytes(patient("b"+i)));
+      }
+      zip.putNextEntry(new ZipEntry("x.xml"));
+      new XmlParser().setOutputStyle(OutputStyle.PRETTY).compose(zip, patient("x"));
+      zip.putNextEntry(new ZipEntry("broken.json"));
+      zip.write("{ \"resourceType\" : ".getBytes());
+    }
+    TextFile.stringToFile("{\"resourceType\" : \"Patient\", \"id\" : \"bad1\"}", Utilities.path(dir, "c.json"));
+    TextFile.stringToFile("not a resource", Utilities.path(dir, "readme.txt"));
+
+    MockServer server = new MockServer();
+    BulkUploader uploader = uploader(server);
+    uploader.setFailureLog(Utilities.path(dir, "failures.txt"));
+    UploadStatistics stats = uploader.upload(dir);
+    Assert.assertEquals(123, stats.getRead());
+    Assert.assertEquals(121, stats.getUploaded());
+    Assert.assertEquals(2, stats.getFailed());
+    Assert.assertEquals(121, server.stored.size());
+    Assert.assertTrue(server.stored.contains("Patient/a99"));
+    Assert.assertTrue(server.stored.contains("Patient/x"));
+    String failures = TextFile.fileToString(Utilities.path(dir, "failures.txt"));
+    Assert.assertTrue(failures.contains("broken.json"));
+    Assert.assertTrue(failures.contains("400"));
+  }
+
+  @Test
+  public void testRetry() throws IOException {
+    String dir = folder("retry");
+    ndjson(Utilities.path(dir, "busy.ndjson"), "busy", 50);
+    MockServer server = new MockServer();
+    server.failFirst = 2;
+    UploadStatistics stats = uploader(server).upload(dir);
+    Assert.assertEquals(50, stats.getUploaded());
+    Assert.assertEquals(0, stats.getFailed());
+    Assert.assertTrue(stats.getRetried() >= 50);
+  }
+
+  @Test
+  public void testGiveUp() throws IOException {
+    String dir = folder("give-up");
+    ndjson(Utilities.path(dir, "a.ndjson"), "a", 10);
+    BulkUploader uploader = uploader(b -> { throw new IOException("Connection refused"); });
+    uploader.setMaxRetries(2);
+    UploadStatistics stats = uploader.upload(dir);
+    Assert.assertEquals(0, stats.getUploaded());
+    Assert.assertEquals(10, stats.getFailed());
+    Assert.assertEquals(20, stats.getRetried());
+  }
+
+  @Test
+  public void testResume() throws IOException {
+    String dir = folder("resume");
+    String src = Utilities.path(dir, "a.ndjson");
+    String checkpoint = Utilities.path(dir, "upload.ini");
+    ndjson(src, "a", 1000);
+
+    MockServer server = new MockServer();
+    BulkUploader[] first = new BulkUploader[1];
+    first[0] = uploader(b -> {
+      Bundle resp = server.send(b);
+      if (server.bundles.get() == 20)
+        first[0].stop();
+      return resp;
+    });
+    first[0].setCheckpoint(checkpoint);
+    UploadStatistics stats = first[0].upload(src);
+    Assert.assertTrue(stats.isStopped());
+    Assert.assertTrue(stats.getRead() < 1000);
+    Assert.assertEquals(stats.getRead(), stats.getUploaded());
+    long done = stats.getRead();
+
+    BulkUploader second = uploader(server);
+    second.setCheckpoint(checkpoint);
+    stats = second.upload(src);
+    Assert.assertFalse(stats.isStopped());
+    Assert.assertEquals(done, stats.getSkipped());
+    Assert.assertEquals(1000 - done, stats.getUploaded());
+    Assert.assertEquals(1000, server.stored.size());
+  }
+
+  @Test
+  public void testHttp() throws IOException {
+    String dir = folder("http");
+    ndjson(Utilities.path(dir, "a.ndjson"), "a", 40);
+    Set<String> stored = ConcurrentHashMap.newKeySet();
+    HttpServer http = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    http.createContext("/fhir", exchange -> {
+      byte[] resp;
+      int status = 200;
+      if ("POST".equals(exchange.getRequestMethod())) {
+        Bundle bnd = (Bundle) new JsonParser().parse(exchange.getRequestBody());
+        Bundle rb = new Bundle();
+        rb.setType(BundleType.BATCHRESPONSE);
+        for (BundleEntryComponent be : bnd.getEntry()) {
+          stored.add(be.getRequest().getUrl());
+          rb.addEntry().getResponse().setStatus("201 Created");
+        }
+        resp = new JsonParser().composeBytes(rb);
+      } else {
+        status = 404;
+        resp = "{\"resourceType\" : \"OperationOutcome\"}".getBytes();
+      }
+      exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+      exchange.sendResponseHeaders(status, resp.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(resp);
+      }
+    });
+    http.start();
+    try {
+      BulkUploader uploader = new BulkUploader("http://localhost:"+http.getAddress().getPort()+"/fhir");
+      uploader.setBatchSize(10);
+      UploadStatistics stats = uploader.upload(dir);
+      Assert.assertEquals(40, stats.getUploaded());
+      Assert.assertEquals(4, stats.getBatches());
+      Assert.assertEquals(40, stored.size());
+    } finally {
+      http.stop(0);
+    }
+  }
+
+}
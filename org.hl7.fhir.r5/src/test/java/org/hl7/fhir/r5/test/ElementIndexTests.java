@@ -0,0 +1,76 @@
+package org.hl7.fhir.r5.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ElementIndexTests {
+
+  private Element bundle(int entries) {
+    Element bnd = new Element("Bundle");
+    bnd.getChildren().add(new Element("type"));
+    for (int i = 0; i < entries; i++) {
+      Element entry = new Element("entry");
+      entry.setIndex(i);
+      bnd.getChildren().add(entry);
+    }
+    return bnd;
+  }
+
+  @Test
+  public void testLookups() {
+    for (int count : new int[] { 2, 50 }) {
+      Element bnd = bundle(count);
+      Assert.assertEquals("type", bnd.getNamedChild("type").getName());
+      Assert.assertNull(bnd.getNamedChild("total"));
+      Assert.assertFalse(bnd.hasChildren("total"));
+      Assert.assertTrue(bnd.hasChildren("entry"));
+      List<Element> entries = bnd.getChildren("entry");
+      Assert.assertEquals(count, entries.size());
+      for (int i = 0; i < count; i++)
+        Assert.assertEquals(i, entries.get(i).getIndex());
+      List<Element> list = new ArrayList<>();
+      bnd.getNamedChildren("entry", list);
+      Assert.assertEquals(entries, list);
+      Assert.assertEquals(entries, bnd.getChildrenByName("entry"));
+      try {
+        bnd.getNamedChild("entry");
+        Assert.fail("should have failed");
+      } catch (Error e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testChanges() {
+    Element bnd = bundle(50);
+    Assert.assertNull(bnd.getNamedChild("total"));
+    bnd.getChildren().add(new Element("total"));
+    Assert.assertNotNull(bnd.getNamedChild("total"));
+    bnd.getChildren().set(1, new Element("link"));
+    Assert.assertEquals(49, bnd.getChildren("entry").size());
+    Assert.assertEquals(1, bnd.getChildren("link").size());
+    bnd.getChildren().remove(0);
+    Assert.assertNull(bnd.getNamedChild("type"));
+    bnd.getChildren().removeIf(e -> e.getName().equals("entry"));
+    Assert.assertFalse(bnd.hasChildren("entry"));
+    Assert.assertTrue(bnd.hasChild("link"));
+  }
+
+  @Test
+  public void testNames() {
+    Element e1 = new Element(new String("fullUrl"));
+    Element e2 = new Element(new StringBuilder("full").append("Url").toString());
+    Assert.assertSame(e1.getName(), e2.getName());
+    Assert.assertFalse(e1.hasComments());
+    Assert.assertNull(e1.getXhtml());
+    Assert.assertNull(e1.getExplicitType());
+    Assert.assertFalse(e1.hasChildren());
+    Assert.assertTrue(e1.isEmpty());
+  }
+
+}
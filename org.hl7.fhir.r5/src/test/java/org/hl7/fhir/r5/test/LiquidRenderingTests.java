@@ -0,0 +1,168 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.utils.LiquidEngine;
+import org.hl7.fhir.r5.utils.LiquidEngine.LiquidDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * How LiquidEngine caches and shares compiled templates. LiquidEngineTests covers what they render
+ */
+public class LiquidRenderingTests {
+
+  private static final String TEMPLATE = "<p>{{ Patient.id }}:{% loop n in Patient.name %} {% include name.html given=%n.given.first() %}{% endloop %}{% if Patient.active %} (active){% endif %}</p>";
+  private static final String INCLUDE = "[{{ %include.given }}]";
+
+  private LiquidEngine engine;
+  private AtomicInteger fetches = new AtomicInteger();
+
+  @Before
+  public void setUp() throws IOException {
+    engine = new LiquidEngine(new SimpleWorkerContext(), null);
+    engine.setIncludeResolver((e, name) -> {
+      fetches.incrementAndGet();
+      return "name.html".equals(name) ? INCLUDE : null;
+    });
+  }
+
+  private Patient patient(int i) {
+    Patient p = new Patient();
+    p.setId("p"+i);
+    p.setActive(i % 2 == 0);
+    for (int j = 0; j <= i % 3; j++)
+      p.addName().addGiven("g"+i+"-"+j);
+    return p;
+  }
+
+  private String expected(int i) {
+    StringBuilder b = new StringBuilder();
+    b.append("<p>p"+i+":");
+    for (int j = 0; j <= i % 3; j++)
+      b.append(" [g"+i+"-"+j+"]");
+    if (i % 2 == 0)
+      b.append(" (active)");
+    b.append("</p>");
+    return b.toString();
+  }
+
+  @Test
+  public void testAppendable() throws IOException {
+    LiquidDocument doc = engine.parse(TEMPLATE, "test");
+    for (int i = 0; i < 6; i++) {
+      StringWriter w = new StringWriter();
+      w.append("before ");
+      engine.evaluate(doc, patient(i), null, w);
+      Assert.assertEquals("before "+expected(i), w.toString());
+      Assert.assertEquals(expected(i), engine.evaluate(doc, patient(i), null));
+    }
+  }
+
+  @Test
+  public void testDocumentCache() {
+    LiquidDocument doc = engine.parse(TEMPLATE, "test");
+    Assert.assertSame(doc, engine.parse(TEMPLATE, "test"));
+    Assert.assertNotSame(doc, engine.parse(TEMPLATE, "other"));
+    Assert.assertNotSame(doc, engine.parse(TEMPLATE+" ", "test"));
+    Assert.assertEquals(3, engine.getCachedDocumentCount());
+
+    // the name of the template is in the errors, so one source under two names isn't the same document
+    for (String name : new String[] {"one", "two"}) {
+      try {
+        engine.parse("{% if %}{% endloop %}", name);
+        Assert.fail("should have failed");
+      } catch (FHIRException e) {
+        Assert.assertTrue(e.getMessage(), e.getMessage().contains("Script "+name+":"));
+      }
+    }
+
+    engine.clearCache();
+    Assert.assertEquals(0, engine.getCachedDocumentCount());
+    Assert.assertNotSame(doc, engine.parse(TEMPLATE, "test"));
+  }
+
+  @Test
+  public void testCacheSize() {
+    engine.setCacheSize(3);
+    List<LiquidDocument> docs = new ArrayList<>();
+    for (int i = 0; i < 10; i++)
+      docs.add(engine.parse("<p>"+i+"</p>", "test"));
+    Assert.assertEquals(3, engine.getCachedDocumentCount());
+    // the least recently used went first
+    Assert.assertSame(docs.get(9), engine.parse("<p>9</p>", "test"));
+    Assert.assertNotSame(docs.get(0), engine.parse("<p>0</p>", "test"));
+    Assert.assertEquals(3, engine.getCachedDocumentCount());
+    engine.setCacheSize(1);
+    Assert.assertEquals(1, engine.getCachedDocumentCount());
+  }
+
+  @Test
+  public void testIncludeCache() throws IOException {
+    LiquidDocument doc = engine.parse(TEMPLATE, "test");
+    // patient 2 has 3 names, so the include is used 3 times, but fetched (and compiled) once
+    Assert.assertEquals(expected(2), engine.evaluate(doc, patient(2), null));
+    Assert.assertEquals(expected(5), engine.evaluate(doc, patient(5), null));
+    Assert.assertEquals(1, fetches.get());
+    Assert.assertEquals(1, engine.getCachedIncludeCount());
+
+    // a new resolver may have different content
+    engine.setIncludeResolver((e, name) -> {
+      fetches.incrementAndGet();
+      return "name.html".equals(name) ? "({{ %include.given }})" : null;
+    });
+    Assert.assertEquals("<p>p1: (g1-0) (g1-1)</p>", engine.evaluate(doc, patient(1), null));
+    Assert.assertEquals(2, fetches.get());
+
+    try {
+      engine.evaluate(engine.parse("{% include missing.html given=Patient.id %}", "test"), patient(1), null);
+      Assert.fail("should have failed");
+    } catch (FHIRException e) {
+      Assert.assertEquals("Unable to find the include 'missing.html'", e.getMessage());
+    }
+    Assert.assertEquals(1, engine.getCachedIncludeCount());
+  }
+
+  @Test
+  public void testEvaluateAll() {
+    LiquidDocument doc = engine.parse(TEMPLATE, "test");
+    List<Patient> patients = new ArrayList<>();
+    for (int i = 0; i < 200; i++)
+      patients.add(patient(i));
+    List<String> res = engine.evaluateAll(doc, patients, null);
+    Assert.assertEquals(200, res.size());
+    for (int i = 0; i < 200; i++)
+      Assert.assertEquals(expected(i), res.get(i));
+    Assert.assertEquals(1, fetches.get());
+  }
+
+  @Test
+  public void testConcurrentUse() throws Exception {
+    // parsing, fetching includes and rendering, all at once on one engine
+    ExecutorService ex = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 400; i++) {
+        final int n = i;
+        results.add(ex.submit(() -> engine.evaluate(engine.parse(TEMPLATE, "test"), patient(n), null)));
+      }
+      for (int i = 0; i < 400; i++)
+        Assert.assertEquals(expected(i), results.get(i).get());
+    } finally {
+      ex.shutdown();
+    }
+    Assert.assertEquals(1, engine.getCachedDocumentCount());
+    Assert.assertEquals(1, engine.getCachedIncludeCount());
+  }
+}
@@ -371,4 +371,41 @@ public class MetadataResourceManagerTester {
     Assert.assertNull(mrm.get("http://url/ValueSet/234", "4.1"));
   }
 
+  @Test
+  public void testSingleWithVersionsMixedMinor() {
+    MetadataResourceManager<ValueSet> mrm = new MetadataResourceManager<>(true);
+    ValueSet vs1 = new ValueSet();
+    vs1.setId("2345");
+    vs1.setUrl("http://url/ValueSet/234");
+    vs1.setVersion("4.0.1");
+    vs1.setName("1");
+    ValueSet vs2 = new ValueSet();
+    vs2.setId("2346");
+    vs2.setUrl("http://url/ValueSet/234");
+    vs2.setVersion("4.1.0");
+    vs2.setName("2");
+    ValueSet vs3 = new ValueSet();
+    vs3.setId("2347");
+    vs3.setUrl("http://url/ValueSet/234");
+    vs3.setVersion("4.0.2");
+    vs3.setName("3");
+
+    mrm.see(vs1);
+    mrm.see(vs2);
+    mrm.see(vs3);
+
+    Assert.assertEquals(mrm.size(), 3);
+    Assert.assertEquals(mrm.get("http://url/ValueSet/234").getName(), "2");
+    Assert.assertEquals(mrm.get("http://url/ValueSet/234", "4.0.1").getName(), "1");
+    Assert.assertEquals(mrm.get("http://url/ValueSet/234", "4.0.3").getName(), "3");
+    Assert.assertEquals(mrm.get("http://url/ValueSet/234", "4.0").getName(), "3");
+    Assert.assertEquals(mrm.get("http://url/ValueSet/234", "4.1").getName(), "2");
+
+    mrm.drop("2347"); // vs3
+    Assert.assertEquals(mrm.size(), 2);
+    Assert.assertEquals(mrm.get("http://url/ValueSet/234", "4.0").getName(), "1");
+    Assert.assertEquals(mrm.get("http://url/ValueSet/234", "4.1").getName(), "2");
+    Assert.assertEquals(mrm.getList().size(), 2);
+  }
+
 }
@@ -0,0 +1,198 @@
+package org.hl7.fhir.r5.test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.formats.XmlParser;
+import org.hl7.fhir.r5.model.DateTimeType;
+import org.hl7.fhir.r5.model.DecimalType;
+import org.hl7.fhir.r5.model.InstantType;
+import org.hl7.fhir.r5.model.Observation;
+import org.hl7.fhir.r5.model.Quantity;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.parser.DataFormatException;
+
+public class PrimitiveParseTests {
+
+  private static class CountingDateTimeType extends DateTimeType {
+    private final AtomicInteger parses = new AtomicInteger();
+
+    @Override
+    protected Date parse(String theValue) {
+      parses.incrementAndGet();
+      return super.parse(theValue);
+    }
+  }
+
+  private static class CountingDecimalType extends DecimalType {
+    private final AtomicInteger parses = new AtomicInteger();
+
+    @Override
+    protected BigDecimal parse(String theValue) {
+      parses.incrementAndGet();
+      return super.parse(theValue);
+    }
+  }
+
+  @Test
+  public void testDateTimes() {
+    DateTimeType dt = new DateTimeType("2020-02-29T12:30:15.1234+05:30");
+    Assert.assertEquals(TemporalPrecisionEnum.MILLI, dt.getPrecision());
+    Assert.assertEquals("2020-02-29T12:30:15.1234+05:30", dt.getValueAsString());
+    Assert.assertEquals(1582959615123L, dt.getValue().getTime());
+    Assert.assertEquals(123400000L, dt.getNanos().longValue());
+
+    InstantType i = new InstantType("2019-06-01T10:00:00Z");
+    i.setTimeZone(TimeZone.getTimeZone("GMT+10:00"));
+    Assert.assertEquals("2019-06-01T20:00:00+10:00", i.getValueAsString());
+
+    // early dates go through the Calendar
+    Assert.assertEquals("1066-10-14", new DateTimeType("1066-10-14").getValueAsString());
+    Assert.assertEquals(TemporalPrecisionEnum.DAY, new DateTimeType("1066-10-14").getPrecision());
+  }
+
+  @Test
+  public void testDecimals() {
+    DecimalType d = new DecimalType("1.50");
+    Assert.assertEquals("1.50", d.getValueAsString());
+    Assert.assertEquals(new BigDecimal("1.50"), d.getValue());
+    Assert.assertEquals(new BigDecimal("1E+3"), new DecimalType("1e3").getValue());
+    Assert.assertFalse(new DecimalType((String) null).hasValue());
+  }
+
+  @Test
+  public void testErrors() {
+    for (String v : new String[] { "2019-13", "2019-02-30", "2019-01-01T10:00Z", "abc" }) {
+      try {
+        new DateTimeType(v);
+        Assert.fail("should have failed: "+v);
+      } catch (DataFormatException | IllegalArgumentException e) {
+        // expected
+      }
+    }
+    try {
+      new DecimalType("1.2.3");
+      Assert.fail("should have failed");
+    } catch (NumberFormatException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDeferred() throws Exception {
+    CountingDateTimeType dt = new CountingDateTimeType();
+    dt.setValueAsString("2019-10-19T10:00:00.1234+10:00");
+    CountingDecimalType d = new CountingDecimalType();
+    d.setValueAsString("1.50");
+    Assert.assertEquals(0, dt.parses.get());
+    Assert.assertEquals(0, d.parses.get());
+
+    // reading the value as it was set, and writing it out as XML, don't need the parse
+    Assert.assertEquals("2019-10-19T10:00:00.1234+10:00", dt.getValueAsString());
+    Assert.assertEquals(TemporalPrecisionEnum.MILLI, dt.getPrecision());
+    Assert.assertTrue(dt.hasValue());
+    Assert.assertEquals("1.50", d.primitiveValue());
+    Observation obs = new Observation();
+    obs.setEffective(dt);
+    obs.setValue(new Quantity().setValueElement(d));
+    String xml = new XmlParser().composeString(obs);
+    Assert.assertTrue(xml.contains("value=\"2019-10-19T10:00:00.1234+10:00\""));
+    Assert.assertTrue(xml.contains("value=\"1.50\""));
+    Assert.assertEquals(0, dt.parses.get());
+    Assert.assertEquals(0, d.parses.get());
+    // JSON writes decimals as numbers, so that's a parse. Date times are still written as they are
+    new JsonParser().composeString(obs);
+    Assert.assertEquals(0, dt.parses.get());
+    Assert.assertEquals(1, d.parses.get());
+
+    // the first use parses the value, once
+    Assert.assertEquals(1571443200123L, dt.getValue().getTime());
+    Assert.assertEquals("GMT+10:00", dt.getTimeZone().getID());
+    Assert.assertEquals(123400000L, dt.getNanos().longValue());
+    Assert.assertFalse(dt.isTimeZoneZulu());
+    Assert.assertEquals(1, dt.parses.get());
+    Assert.assertEquals(new BigDecimal("1.50"), d.getValue());
+    Assert.assertEquals(1, d.parses.get());
+
+    // a new value is deferred again
+    dt.setValueAsString("2019-10-19T10:00:00Z");
+    Assert.assertEquals(1, dt.parses.get());
+    Assert.assertTrue(dt.isTimeZoneZulu());
+    Assert.assertNull(dt.getNanos());
+    Assert.assertEquals(2, dt.parses.get());
+
+    // values in other forms are parsed when they're set
+    dt.setValueAsString("1066-10-14");
+    Assert.assertEquals(3, dt.parses.get());
+    d.setValueAsString("1e999999999");
+    Assert.assertEquals(2, d.parses.get());
+  }
+
+  @Test
+  public void testConcurrentParse() throws Exception {
+    Random random = new Random(20191019);
+    int threads = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      for (int i = 0; i < 500; i++) {
+        String offset = random.nextBoolean() ? "Z" : String.format("%s%02d:%02d", random.nextBoolean() ? "+" : "-", random.nextInt(15), 15 * random.nextInt(4));
+        String v = String.format("%04d-%02d-%02dT%02d:%02d:%02d.%d%s", 1900 + random.nextInt(200), 1 + random.nextInt(12), 1 + random.nextInt(28), 
+            random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000000), offset);
+        DateTimeType expected = new DateTimeType(v);
+        String summary = summary(expected);
+
+        CountingDateTimeType dt = new CountingDateTimeType();
+        dt.setValueAsString(v);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+          // each thread asks for the parts of the value in a different order
+          int first = t % 4;
+          results.add(pool.submit(() -> {
+            start.await();
+            return first == 0 ? summary(dt) : first == 1 ? zoneFirst(dt) : first == 2 ? nanosFirst(dt) : zuluFirst(dt);
+          }));
+        }
+        start.countDown();
+        for (Future<String> f : results)
+          Assert.assertEquals(v, summary, f.get());
+        Assert.assertEquals(v, 1, dt.parses.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private String summary(DateTimeType dt) {
+    return dt.getValue().getTime()+"|"+dt.getTimeZone().getID()+"|"+dt.getNanos()+"|"+dt.isTimeZoneZulu();
+  }
+
+  private String zoneFirst(DateTimeType dt) {
+    String zone = dt.getTimeZone().getID();
+    return dt.getValue().getTime()+"|"+zone+"|"+dt.getNanos()+"|"+dt.isTimeZoneZulu();
+  }
+
+  private String nanosFirst(DateTimeType dt) {
+    Long nanos = dt.getNanos();
+    return dt.getValue().getTime()+"|"+dt.getTimeZone().getID()+"|"+nanos+"|"+dt.isTimeZoneZulu();
+  }
+
+  private String zuluFirst(DateTimeType dt) {
+    boolean zulu = dt.isTimeZoneZulu();
+    return dt.getValue().getTime()+"|"+dt.getTimeZone().getID()+"|"+dt.getNanos()+"|"+zulu;
+  }
+
+}
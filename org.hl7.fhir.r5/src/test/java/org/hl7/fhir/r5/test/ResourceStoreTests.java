@@ -0,0 +1,327 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.DateTimeType;
+import org.hl7.fhir.r5.model.DateType;
+import org.hl7.fhir.r5.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r5.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r5.model.Observation;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.Period;
+import org.hl7.fhir.r5.model.Reference;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.utils.FHIRPathEngine;
+import org.hl7.fhir.r5.utils.ResourceStore;
+import org.hl7.fhir.r5.utils.ResourceStore.FHIRPathServices;
+import org.hl7.fhir.r5.utils.ResourceStore.GraphQLServices;
+import org.hl7.fhir.r5.utils.ResourceStore.TransformerServices;
+import org.hl7.fhir.r5.utils.ResourceStore.ValidatorFetcher;
+import org.hl7.fhir.utilities.graphql.Argument;
+import org.hl7.fhir.utilities.graphql.StringValue;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResourceStoreTests {
+
+  private static IWorkerContext definitions;
+
+  /**
+   * just the structure definitions and search parameters the tests use (see resourcestore/definitions.json),
+   * so the tests don't need the core package. Patient and its types have enough of a snapshot to convert a patient to elements
+   */
+  private static synchronized IWorkerContext definitions() throws IOException {
+    if (definitions == null) {
+      SimpleWorkerContext context = new SimpleWorkerContext();
+      try (InputStream stream = ResourceStoreTests.class.getResourceAsStream("/resourcestore/definitions.json")) {
+        Bundle bnd = (Bundle) new JsonParser().parse(stream);
+        for (Bundle.BundleEntryComponent be : bnd.getEntry())
+          context.cacheResource(be.getResource());
+      }
+      definitions = context;
+    }
+    return definitions;
+  }
+
+  private Patient patient(String id, String family, String given, String birthDate, AdministrativeGender gender) {
+    Patient p = new Patient();
+    p.setId(id);
+    p.addName().setFamily(family).addGiven(given);
+    p.setBirthDateElement(new DateType(birthDate));
+    p.setGender(gender);
+    p.addIdentifier().setSystem("http://example.org/mrn").setValue("mrn-"+id);
+    return p;
+  }
+
+  private Observation observation(String id, String subject, String code, String when) {
+    Observation obs = new Observation();
+    obs.setId(id);
+    obs.setSubject(new Reference(subject));
+    obs.getCode().addCoding().setSystem("http://loinc.org").setCode(code);
+    obs.setEffective(new DateTimeType(when));
+    return obs;
+  }
+
+  private ValueSet valueSet(String id, String version) {
+    ValueSet vs = new ValueSet();
+    vs.setId(id);
+    vs.setUrl("http://example.org/ValueSet/vs");
+    vs.setVersion(version);
+    vs.setStatus(PublicationStatus.ACTIVE);
+    return vs;
+  }
+
+  private ResourceStore store() throws IOException {
+    return store(definitions());
+  }
+
+  private ResourceStore store(IWorkerContext context) {
+    ResourceStore store = new ResourceStore(context);
+    store.put(patient("p1", "Chalmers", "Peter", "1974-12-25", AdministrativeGender.MALE));
+    store.put(patient("p2", "Chalmers", "Renée", "1982-03-01", AdministrativeGender.FEMALE));
+    store.put(patient("p3", "Windsor", "Jim", "2001-07", AdministrativeGender.MALE));
+    store.put(observation("o1", "Patient/p1", "29463-7", "2019-01-01T10:00:00Z"));
+    store.put(observation("o2", "http://example.org/fhir/Patient/p1/_history/2", "8302-2", "2019-02-01"));
+    store.put(observation("o3", "Patient/p2", "29463-7", "2018"));
+    ValueSet vs = new ValueSet();
+    vs.setId("vs1");
+    vs.setUrl("http://example.org/ValueSet/vs1");
+    vs.setVersion("1.0");
+    vs.setStatus(PublicationStatus.ACTIVE);
+    store.put(vs);
+    return store;
+  }
+
+  private String ids(List<? extends IBaseResource> list) {
+    StringBuilder b = new StringBuilder();
+    for (IBaseResource r : list) {
+      if (b.length() > 0)
+        b.append(",");
+      b.append(((Resource) r).getIdBase());
+    }
+    return b.toString();
+  }
+
+  @Test
+  public void testReadAndResolve() throws IOException {
+    ResourceStore store = store();
+    Assert.assertEquals(7, store.size());
+    Assert.assertEquals("p2", store.get("Patient", "p2").getIdBase());
+    Assert.assertNull(store.get("Patient", "p9"));
+    Assert.assertEquals("p1", store.resolve("Patient/p1").getIdBase());
+    Assert.assertEquals("p1", store.resolve("http://example.org/fhir/Patient/p1/_history/1").getIdBase());
+    Assert.assertEquals("vs1", store.resolve("http://example.org/ValueSet/vs1").getIdBase());
+    Assert.assertEquals("vs1", store.resolve("http://example.org/ValueSet/vs1|1.0").getIdBase());
+    Assert.assertNull(store.resolve("http://example.org/ValueSet/vs2"));
+  }
+
+  @Test
+  public void testTokens() throws IOException {
+    ResourceStore store = store();
+    Assert.assertEquals("p1,p3", ids(store.search("Patient?gender=male")));
+    Assert.assertEquals("p1,p2,p3", ids(store.search("Patient?gender=male,female")));
+    Assert.assertEquals("p2", ids(store.search("Patient?gender:not=male")));
+    Assert.assertEquals("p2", ids(store.search("Patient?identifier=http://example.org/mrn|mrn-p2")));
+    Assert.assertEquals("p1,p2,p3", ids(store.search("Patient?identifier=http://example.org/mrn|")));
+    Assert.assertEquals("o1,o3", ids(store.search("Observation?code=http://loinc.org|29463-7")));
+    Assert.assertEquals("o2", ids(store.search("Observation?code=8302-2")));
+    Assert.assertEquals("p3", ids(store.search("Patient?_id=p3")));
+  }
+
+  @Test
+  public void testStrings() throws IOException {
+    ResourceStore store = store();
+    Assert.assertEquals("p1,p2", ids(store.search("Patient?family=chal")));
+    Assert.assertEquals("p2", ids(store.search("Patient?name=renee")));
+    Assert.assertEquals("", ids(store.search("Patient?name:exact=Renee")));
+    Assert.assertEquals("p2", ids(store.search("Patient?name:exact=Ren%C3%A9e")));
+    Assert.assertEquals("p3", ids(store.search("Patient?name:contains=ndso")));
+    Assert.assertEquals("p1", ids(store.search("Patient?family=chalmers&gender=male")));
+  }
+
+  @Test
+  public void testReferences() throws IOException {
+    ResourceStore store = store();
+    Assert.assertEquals("o1,o2", ids(store.search("Observation?subject=Patient/p1")));
+    Assert.assertEquals("o1,o2", ids(store.search("Observation?patient=p1")));
+    Assert.assertEquals("o3", ids(store.search("Observation?subject:Patient=p2")));
+    Assert.assertEquals("o1,o2", ids(store.search("Observation?subject=http://other.org/fhir/Patient/p1")));
+  }
+
+  @Test
+  public void testDates() throws IOException {
+    ResourceStore store = store();
+    Assert.assertEquals("p2,p3", ids(store.search("Patient?birthdate=gt1980")));
+    Assert.assertEquals("p1", ids(store.search("Patient?birthdate=lt1980-01-01")));
+    Assert.assertEquals("p3", ids(store.search("Patient?birthdate=2001")));
+    Assert.assertEquals("p3", ids(store.search("Patient?birthdate=ge2001-07-15")));
+    Assert.assertEquals("", ids(store.search("Patient?birthdate=2001-07-15")));
+    Assert.assertEquals("o1,o2", ids(store.search("Observation?date=2019")));
+    Assert.assertEquals("o3", ids(store.search("Observation?date=eb2019")));
+    Assert.assertEquals("o1,o3", ids(store.search("Observation?date=ap2018-06,ap2019-01")));
+
+    Observation obs = observation("o4", "Patient/p3", "1234-5", "2019");
+    obs.setEffective(new Period().setStartElement(new DateTimeType("2019-06-01")));
+    store.put(obs);
+    Assert.assertEquals("o4", ids(store.search("Observation?date=gt2030")));
+  }
+
+  @Test
+  public void testUpdates() throws IOException {
+    ResourceStore store = store();
+    store.put(patient("p1", "Smith", "Peter", "1974-12-25", AdministrativeGender.MALE));
+    Assert.assertEquals("p2", ids(store.search("Patient?family=chalmers")));
+    Assert.assertEquals("p1,p3", ids(store.search("Patient?gender=male")));
+    Assert.assertTrue(store.remove("Patient", "p3"));
+    Assert.assertFalse(store.remove("Patient", "p3"));
+    Assert.assertEquals("p1", ids(store.search("Patient?gender=male")));
+    Assert.assertEquals(6, store.size());
+  }
+
+  @Test
+  public void testVersions() throws IOException {
+    ResourceStore store = new ResourceStore(definitions());
+    store.put(valueSet("v1", "1.0.0"));
+    store.put(valueSet("v3", "3.0.0"));
+    store.put(valueSet("v2", "2.0.0"));
+    Assert.assertEquals("v3", store.resolve("http://example.org/ValueSet/vs").getIdBase());
+    Assert.assertEquals("v2", store.resolve("http://example.org/ValueSet/vs|2.0.0").getIdBase());
+
+    // removing the latest brings the next one back
+    Assert.assertTrue(store.remove("ValueSet", "v3"));
+    Assert.assertEquals("v2", store.resolve("http://example.org/ValueSet/vs").getIdBase());
+    Assert.assertNull(store.resolve("http://example.org/ValueSet/vs|3.0.0"));
+    Assert.assertTrue(store.remove("ValueSet", "v2"));
+    Assert.assertEquals("v1", store.resolve("http://example.org/ValueSet/vs").getIdBase());
+    Assert.assertEquals("v1", store.resolve("http://example.org/ValueSet/vs|1.0.0").getIdBase());
+
+    // replacing a resource with a different version
+    store.put(valueSet("v1", "1.1.0"));
+    Assert.assertNull(store.resolve("http://example.org/ValueSet/vs|1.0.0"));
+    Assert.assertEquals("v1", store.resolve("http://example.org/ValueSet/vs|1.1.0").getIdBase());
+
+    // two resources with the same version: the last one added, until it goes
+    store.put(valueSet("v1b", "1.1.0"));
+    Assert.assertEquals("v1b", store.resolve("http://example.org/ValueSet/vs|1.1.0").getIdBase());
+    Assert.assertEquals("v1b", store.resolve("http://example.org/ValueSet/vs").getIdBase());
+    store.remove("ValueSet", "v1b");
+    Assert.assertEquals("v1", store.resolve("http://example.org/ValueSet/vs|1.1.0").getIdBase());
+    Assert.assertEquals("v1", store.resolve("http://example.org/ValueSet/vs").getIdBase());
+
+    // no version is earlier than any version
+    store.put(valueSet("v0", null));
+    Assert.assertEquals("v1", store.resolve("http://example.org/ValueSet/vs").getIdBase());
+    store.remove("ValueSet", "v1");
+    Assert.assertEquals("v0", store.resolve("http://example.org/ValueSet/vs").getIdBase());
+    store.remove("ValueSet", "v0");
+    Assert.assertNull(store.resolve("http://example.org/ValueSet/vs"));
+    Assert.assertEquals(0, store.size());
+  }
+
+  @Test
+  public void testEmptyTypes() throws IOException {
+    ResourceStore store = new ResourceStore(definitions());
+    Assert.assertEquals(0, store.search("Patient?family=smith").size());
+    Assert.assertEquals(0, store.list("Observation").size());
+    try {
+      store.search("NotAResource?family=smith");
+      Assert.fail("should have failed");
+    } catch (FHIRException e) {
+      Assert.assertTrue(e.getMessage().contains("NotAResource"));
+    }
+    // searching didn't set up an index, so the first resource is indexed as usual
+    store.put(patient("p1", "Smith", "Jo", "1990", AdministrativeGender.FEMALE));
+    Assert.assertEquals("p1", ids(store.search("Patient?family=smith")));
+  }
+
+  @Test
+  public void testUnsupported() throws IOException {
+    ResourceStore store = store();
+    try {
+      store.search("Patient?not-a-param=1");
+      Assert.fail("should have failed");
+    } catch (FHIRException e) {
+      Assert.assertTrue(e.getMessage().contains("not-a-param"));
+    }
+  }
+
+  @Test
+  public void testAdapters() throws Exception {
+    ResourceStore store = store();
+    FHIRPathEngine fpe = new FHIRPathEngine(store.getContext());
+    fpe.setHostServices(new FHIRPathServices(store, null));
+    List<Base> res = fpe.evaluate(store.get("Observation", "o1"), "Observation.subject.resolve().name.given");
+    Assert.assertEquals(1, res.size());
+    Assert.assertEquals("Peter", res.get(0).primitiveValue());
+
+    GraphQLServices gql = new GraphQLServices(store);
+    List<Argument> args = new ArrayList<>();
+    args.add(new Argument("subject", new StringValue("Patient/p1")));
+    List<IBaseResource> matches = new ArrayList<>();
+    gql.listResources(null, "Observation", args, matches);
+    Assert.assertEquals("o1,o2", ids(matches));
+    Bundle bnd = (Bundle) gql.search(null, "Observation", args);
+    Assert.assertEquals(2, bnd.getTotal());
+    Assert.assertEquals("p1", ((Resource) gql.lookup(null, store.get("Observation", "o1"), new Reference("Patient/p1")).getTarget()).getIdBase());
+
+    TransformerServices tx = new TransformerServices(store, null);
+    Assert.assertEquals(2, tx.performSearch(null, "Patient?family=chalmers").size());
+    tx.createResource(null, patient("p9", "Nine", "Nina", "1999", AdministrativeGender.FEMALE), true);
+    Assert.assertNotNull(store.get("Patient", "p9"));
+
+    ValidatorFetcher fetcher = new ValidatorFetcher(store);
+    Assert.assertTrue(fetcher.resolveURL(null, "Observation.subject", "Patient/p9"));
+    Assert.assertFalse(fetcher.resolveURL(null, "Observation.subject", "Patient/p10"));
+  }
+
+  @Test
+  public void testFetcher() throws Exception {
+    ResourceStore store = store();
+    ValidatorFetcher fetcher = new ValidatorFetcher(store);
+    Element e = fetcher.fetch(null, "Patient/p2");
+    Assert.assertEquals("Patient", e.fhirType());
+    Assert.assertEquals("Chalmers", e.getNamedChild("name").getNamedChildValue("family"));
+    Assert.assertEquals("mrn-p2", e.getNamedChild("identifier").getNamedChildValue("value"));
+    Assert.assertNull(fetcher.fetch(null, "Patient/p10"));
+  }
+
+  @Test
+  public void testConcurrency() throws Exception {
+    ResourceStore store = store();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        int thread = t;
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 100; i++) {
+            store.put(patient("t"+thread+"-"+i, "Family"+thread, "Given", "1990", AdministrativeGender.OTHER));
+            Assert.assertEquals(i+1, store.search("Patient?family=family"+thread).size());
+          }
+          return null;
+        }));
+      }
+      for (Future<?> f : futures)
+        f.get();
+    } finally {
+      executor.shutdown();
+    }
+    Assert.assertEquals(400, store.search("Patient?gender=other").size());
+  }
+
+}
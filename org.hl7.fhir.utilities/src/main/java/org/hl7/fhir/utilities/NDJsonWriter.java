@@ -9,9 +9,9 @@ package org.hl7.fhir.utilities;
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *      http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -21,49 +21,87 @@ package org.hl7.fhir.utilities;
  */
 
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonSyntaxException;
 
+/**
+ * Writes a set of json resources as a zip of ndjson files, one per resource type.
+ *
+ * Files are parsed (and the resources in them written back out by Gson) in parallel,
+ * but resources are added in the order the files were given, so the output doesn't
+ * depend on the number of threads. Duplicates (same type and id) are dropped - the
+ * first one wins
+ */
 public class NDJsonWriter {
 
+  private static final byte[] EOL = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
   private class ResourceInfo {
-    private FileOutputStream stream;
+    private File file;
+    private OutputStream stream;
     private Set<String> ids = new HashSet<String>();
-    public OutputStreamWriter writer;
   }
-  
-  private static com.google.gson.JsonParser  parser = new com.google.gson.JsonParser();
+
+  private static class JsonResource {
+    private String type;
+    private String id;
+    private byte[] json;
+
+    private JsonResource(String type, String id, byte[] json) {
+      this.type = type;
+      this.id = id;
+      this.json = json;
+    }
+  }
+
   private Gson gson = new GsonBuilder().create();
   private Map<String, ResourceInfo> outputs = new HashMap<String, ResourceInfo>();
   private String filename;
   private String scratch;
-  
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private ExecutorService executor;
+
   public NDJsonWriter(String filename, String scratch) {
     this.filename = filename;
     this.scratch = scratch;
     outputs.clear();
   }
 
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
   public void addFilesFiltered(String actualDir, String ext, String[] noExt) throws IOException {
     File f = new CSFile(actualDir);
 
+    List<String> paths = new ArrayList<String>();
     String files[] = f.list();
     for (int i = 0; i < files.length; i++) {
       if ( new CSFile(actualDir + files[i]).isFile() && ((ext == null || files[i].endsWith(ext)))) {
@@ -72,67 +110,118 @@ public class NDJsonWriter {
           ok = ok && !files[i].endsWith(n);
         }
         if (ok) {
-          addFile(Utilities.path(actualDir, files[i]));
+          paths.add(Utilities.path(actualDir, files[i]));
         }
       }
     }
+    addFiles(paths);
+  }
+
+  /**
+   * parse the files in parallel, but consume the results in order, with a bounded
+   * number of files in flight
+   */
+  private void addFiles(List<String> paths) throws IOException {
+    Deque<Future<List<JsonResource>>> inFlight = new ArrayDeque<Future<List<JsonResource>>>();
+    int next = 0;
+    while (next < paths.size() || !inFlight.isEmpty()) {
+      while (next < paths.size() && inFlight.size() < threads * 4) {
+        final String path = paths.get(next++);
+        inFlight.add(executor().submit(() -> parseFile(path)));
+      }
+      for (JsonResource r : waitFor(inFlight.poll())) {
+        addResource(r);
+      }
+    }
+  }
+
+  private List<JsonResource> waitFor(Future<List<JsonResource>> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
   }
 
-  private void addFile(String path) throws JsonSyntaxException, FileNotFoundException, IOException {
-    JsonObject js = parser.parse(TextFile.fileToString(path)).getAsJsonObject();
-    if (js.has("resourceType")) {
-      addResource(js);  
+  private List<JsonResource> parseFile(String path) throws IOException {
+    List<JsonResource> res = new ArrayList<JsonResource>();
+    JsonElement js;
+    try {
+      js = new com.google.gson.JsonParser().parse(TextFile.fileToString(path));
+    } catch (RuntimeException e) {
+      throw new IOException("Error parsing json in "+path+": "+e.getMessage(), e);
     }
+    if (js.isJsonObject() && js.getAsJsonObject().has("resourceType"))
+      listResources(js.getAsJsonObject(), res);
+    return res;
   }
 
-  private void addResource(JsonObject js) throws IOException {
-    String rn = js.get("resourceType").getAsString();    
+  private void listResources(JsonObject js, List<JsonResource> res) {
+    String rn = js.get("resourceType").getAsString();
     if (rn.equals("Bundle")) {
       if (js.has("entry")) {
         for (JsonElement item : js.getAsJsonArray("entry")) {
-          if (item instanceof JsonObject && ((JsonObject) item).has("resource")) {
-            JsonObject r = (JsonObject) ((JsonObject) item).get("resource");
-            rn = r.get("resourceType").getAsString();
-            addResource(r);  
-          }
-        }
-      }
-    } else {
-      if (!js.has("id"))
-        return;
-
-      String id = js.get("id").getAsString();
-      String json = gson.toJson(js);
-      
-      if (outputs.containsKey(rn)) { 
-        ResourceInfo ri = outputs.get(rn);
-        if (!ri.ids.contains(id)) {
-          ri.ids.add(id);
-          ri.writer.append("\r\n");      
-          ri.writer.append(json);
+          if (item instanceof JsonObject && ((JsonObject) item).has("resource"))
+            listResources((JsonObject) ((JsonObject) item).get("resource"), res);
         }
-      } else {
-        ResourceInfo ri = new ResourceInfo();
-        outputs.put(rn, ri);
-        ri.ids.add(id);
-        ri.stream = new FileOutputStream(Utilities.path(scratch, rn+".ndjson"));
-        ri.writer = new OutputStreamWriter(ri.stream, "UTF-8");
-        ri.writer.append(json);      
       }
+    } else if (js.has("id"))
+      res.add(new JsonResource(rn, js.get("id").getAsString(), gson.toJson(js).getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private void addResource(JsonResource r) throws IOException {
+    ResourceInfo ri = outputs.get(r.type);
+    if (ri == null) {
+      ri = new ResourceInfo();
+      ri.file = new File(Utilities.path(scratch, r.type+".ndjson"));
+      ri.stream = new BufferedOutputStream(new FileOutputStream(ri.file), 65536);
+      outputs.put(r.type, ri);
+    }
+    if (ri.ids.add(r.id)) {
+      if (ri.ids.size() > 1)
+        ri.stream.write(EOL);
+      ri.stream.write(r.json);
+    }
+  }
+
+  private ExecutorService executor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(threads, r -> {
+        Thread t = new Thread(r, "ndjson-writer");
+        t.setDaemon(true);
+        return t;
+      });
     }
+    return executor;
   }
 
   public void close() throws IOException {
-    ZipGenerator zip = new ZipGenerator(filename);
-    for (String rn : sorted(outputs.keySet())) {
-      ResourceInfo ri = outputs.get(rn);
-      ri.writer.flush();
-      ri.writer.close();
-      ri.stream.close();
-      
-      zip.addStream(rn+".ndjson", new FileInputStream(Utilities.path(scratch, rn+".ndjson")), false);
+    try {
+      for (ResourceInfo ri : outputs.values())
+        ri.stream.close();
+      ZipGenerator zip = new ZipGenerator(filename);
+      try {
+        for (String rn : sorted(outputs.keySet()))
+          zip.addStream(rn+".ndjson", new FileInputStream(outputs.get(rn).file), false);
+      } finally {
+        zip.close();
+      }
+    } finally {
+      for (ResourceInfo ri : outputs.values()) {
+        try {
+          ri.stream.close();
+        } catch (IOException e) {
+          // nothing - the scratch file is being deleted
+        }
+        ri.file.delete();
+      }
+      if (executor != null)
+        executor.shutdown();
     }
-    zip.close();
   }
 
   private List<String> sorted(Set<String> keys) {
@@ -22,6 +22,7 @@ package org.hl7.fhir.utilities;
 
 import net.sf.saxon.TransformerFactoryImpl;
 
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -55,6 +56,16 @@ public class XsltUtilities {
     return out.toByteArray();
   }
 
+  /**
+   * Compile the transform once. The Templates are thread safe - use newTransformer() for each transform
+   */
+  public static Templates saxonCompile(Map<String, byte[]> files, byte[] xslt) throws TransformerException {
+    TransformerFactory f = new net.sf.saxon.TransformerFactoryImpl();
+    f.setAttribute("http://saxon.sf.net/feature/version-warning", Boolean.FALSE);
+    f.setURIResolver(new ZipURIResolver(files));
+    return f.newTemplates(new StreamSource(new ByteArrayInputStream(xslt)));
+  }
+
   public static byte[] transform(Map<String, byte[]> files, byte[] source, byte[] xslt) throws TransformerException {
     TransformerFactory f = TransformerFactory.newInstance();
     f.setAttribute("http://saxon.sf.net/feature/version-warning", Boolean.FALSE);
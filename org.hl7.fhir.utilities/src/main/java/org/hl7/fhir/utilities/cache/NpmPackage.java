@@ -27,6 +27,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -34,6 +35,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -189,7 +191,7 @@ public class NpmPackage {
 
     File dir = new File(path);
     for (File f : dir.listFiles()) {
-      if (!Utilities.existsInList(f.getName(), ".git", ".svn") && !Utilities.existsInList(f.getName(), exemptions)) {
+      if (!Utilities.existsInList(f.getName(), ".git", ".svn", PackageCacheManager.DERIVED_FOLDER) && !Utilities.existsInList(f.getName(), exemptions)) {
         if (f.isDirectory()) {
           String d = f.getName();
           if (!d.equals("package")) {
@@ -316,6 +318,86 @@ public class NpmPackage {
     checkIndexed(desc);
   }
 
+  /**
+   * Unpack a package straight to disk in the package cache layout (everything under [dir]/package), 
+   * building the .index.json for each folder along the way (unless the package has one already). 
+   * 
+   * Nothing is held in memory except the json file currently being indexed
+   * 
+   * @return the total size of the files written
+   */
+  public static int extractToFolder(InputStream tgz, File dir, String desc, boolean progress) throws IOException {
+    String root = dir.getCanonicalPath();
+    Map<String, NpmPackageIndexBuilder> indexers = new HashMap<>();
+    Set<String> indexed = new HashSet<>();
+    byte[] buffer = new byte[BUFFER_SIZE * 64];
+    int size = 0;
+    int i = 0;
+    int c = 12;
+    GzipCompressorInputStream gzipIn = new GzipCompressorInputStream(tgz);
+    try (TarArchiveInputStream tarIn = new TarArchiveInputStream(gzipIn)) {
+      TarArchiveEntry entry;
+      while ((entry = (TarArchiveEntry) tarIn.getNextEntry()) != null) {
+        i++;
+        String n = entry.getName();
+        String d;
+        if (entry.isDirectory()) {
+          d = n.substring(0, n.length()-1);
+        } else {
+          d = n.contains("/") ? n.substring(0, n.lastIndexOf("/")) : "$root";
+        }
+        if (d.startsWith("package/")) {
+          d = d.substring(8);
+        }
+        File folder = d.equals("package") ? new File(dir, "package") : new File(new File(dir, "package"), d);
+        if (!folder.getCanonicalPath().startsWith(root+File.separator)) {
+          throw new IOException("Error reading "+(desc == null ? "" : desc+"#")+n+": the path is outside the package");
+        }
+        folder.mkdirs();
+        if (!indexers.containsKey(d)) {
+          NpmPackageIndexBuilder indexer = new NpmPackageIndexBuilder();
+          indexer.start();
+          indexers.put(d, indexer);
+        }
+        if (!entry.isDirectory()) {
+          String fn = n.substring(n.lastIndexOf("/")+1);
+          boolean index = fn.endsWith(".json") && !Utilities.existsInList(fn, "package.json", ".index.json");
+          ByteArrayOutputStream json = index ? new ByteArrayOutputStream() : null;
+          try (OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(folder, fn)), buffer.length)) {
+            int count;
+            while ((count = tarIn.read(buffer, 0, buffer.length)) != -1) {
+              out.write(buffer, 0, count);
+              if (json != null)
+                json.write(buffer, 0, count);
+              size = size + count;
+            }
+          }
+          if (fn.equals(".index.json")) {
+            indexed.add(d);
+          } else if (index) {
+            indexers.get(d).seeFile(fn, json.toByteArray());
+          }
+        }
+        if (progress && i % 50 == 0) {
+          c++;
+          System.out.print(".");
+          if (c == 120) {
+            System.out.println("");
+            System.out.print("  ");
+            c = 2;
+          }
+        }
+      }
+    }
+    for (Entry<String, NpmPackageIndexBuilder> e : indexers.entrySet()) {
+      if (!indexed.contains(e.getKey())) {
+        File folder = e.getKey().equals("package") ? new File(dir, "package") : new File(new File(dir, "package"), e.getKey());
+        TextFile.stringToFile(e.getValue().build(), new File(folder, ".index.json"), false);
+      }
+    }
+    return size;
+  }
+
   public void loadFile(String n, byte[] data) throws IOException {
     String dir = n.contains("/") ? n.substring(0, n.lastIndexOf("/")) : "$root";
     if (dir.startsWith("package/")) {
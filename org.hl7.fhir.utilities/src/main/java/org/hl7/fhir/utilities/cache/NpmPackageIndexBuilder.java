@@ -3,6 +3,7 @@ package org.hl7.fhir.utilities.cache;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -14,6 +15,7 @@ import org.hl7.fhir.utilities.json.JsonTrackingParser;
 
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 /**
@@ -62,6 +64,15 @@ public class NpmPackageIndexBuilder {
   }
   
   public String build() {
+    // files may be seen in any order (e.g. as they come out of a tar stream), so sort by name
+    List<JsonObject> list = new ArrayList<>();
+    for (JsonElement e : files)
+      list.add((JsonObject) e);
+    Collections.sort(list, (o1, o2) -> o1.get("filename").getAsString().compareTo(o2.get("filename").getAsString()));
+    JsonArray sorted = new JsonArray();
+    for (JsonObject o : list)
+      sorted.add(o);
+    index.add("files", sorted);
     String res = new GsonBuilder().setPrettyPrinting().create().toJson(index);
     index = null;
     files = null;
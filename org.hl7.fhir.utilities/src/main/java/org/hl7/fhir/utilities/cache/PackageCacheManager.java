@@ -25,11 +25,19 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -43,6 +51,10 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
@@ -56,6 +68,7 @@ import org.hl7.fhir.utilities.cache.NpmPackage.NpmPackageFolder;
 import org.hl7.fhir.utilities.cache.PackageCacheManager.BuildRecord;
 import org.hl7.fhir.utilities.cache.PackageCacheManager.BuildRecordSorter;
 import org.hl7.fhir.utilities.json.JSONUtil;
+import org.hl7.fhir.utilities.json.JsonTrackingParser;
 
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
@@ -168,45 +181,142 @@ public class PackageCacheManager {
   private static final String CACHE_VERSION = "3"; // second version - see wiki page
   private static final int ANALYSIS_VERSION = 2;
 
+  // a manager can be used from more than one thread (e.g. PackageDependencyResolver), so this state is either 
+  // concurrent, or only touched in synchronized methods
   private String cacheFolder;
   private boolean buildLoaded;
   private JsonArray buildInfo;
   private boolean progress = true;
-  private List<NpmPackage> temporaryPackages = new ArrayList<NpmPackage>();
-  private Map<String, String> ciList = new HashMap<String, String>();
+  private List<NpmPackage> temporaryPackages = new CopyOnWriteArrayList<NpmPackage>();
+  private Map<String, String> ciList = new ConcurrentHashMap<String, String>();
   private List<String> allUrls;
-  private Map<String, VersionHistory> historyCache = new HashMap<>();
+  private Map<String, VersionHistory> historyCache = new ConcurrentHashMap<>();
   
   public PackageCacheManager(boolean userMode, int toolsVersion) throws IOException {
-    if (userMode)
-      cacheFolder = Utilities.path(System.getProperty("user.home"), ".fhir", "packages");
-    else
-      cacheFolder = Utilities.path("var", "lib", ".fhir", "packages");
+    this(userMode ? userDir() : Utilities.path("var", "lib", ".fhir", "packages"), toolsVersion);
+  }
+
+  /**
+   * use a cache in a folder of your choosing (e.g. a scratch folder for testing)
+   */
+  public PackageCacheManager(String folder, int toolsVersion) throws IOException {
+    cacheFolder = folder;
     if (!(new File(cacheFolder).exists()))
       Utilities.createDirectory(cacheFolder);
-    if (!(new File(Utilities.path(cacheFolder, "packages.ini")).exists()))
-      TextFile.stringToFile("[cache]\r\nversion="+CACHE_VERSION+"\r\n\r\n[urls]\r\n\r\n[local]\r\n\r\n", Utilities.path(cacheFolder, "packages.ini"), false);  
-    IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
-    boolean save = false;
-    String v = ini.getStringProperty("cache", "version");    
-    if (!CACHE_VERSION.equals(v)) {
-      clearCache();
-      ini.setStringProperty("cache", "version", CACHE_VERSION, null);
-      save = true;
-    }
-    save = initUrlMaps(ini, save);
-    if (save) {
-      if (!CACHE_VERSION.equals(ini.getStringProperty("cache", "version"))) {
-        throw new Error("what?");
+    withLock(INI_LOCK, () -> {
+      if (!(new File(Utilities.path(cacheFolder, "packages.ini")).exists()))
+        TextFile.stringToFile("[cache]\r\nversion="+CACHE_VERSION+"\r\n\r\n[urls]\r\n\r\n[local]\r\n\r\n", Utilities.path(cacheFolder, "packages.ini"), false);  
+      IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
+      boolean save = false;
+      String v = ini.getStringProperty("cache", "version");    
+      if (!CACHE_VERSION.equals(v)) {
+        clearCache();
+        ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
+        ini.setStringProperty("cache", "version", CACHE_VERSION, null);
+        save = true;
       }
-      ini.save();
-    }
+      save = initUrlMaps(ini, save);
+      if (save) {
+        if (!CACHE_VERSION.equals(ini.getStringProperty("cache", "version"))) {
+          throw new Error("what?");
+        }
+        saveIni(ini);
+      }
+      return null;
+    });
+    clearStaleInstalls();
   }
 
   public static String userDir() throws IOException {
     return Utilities.path(System.getProperty("user.home"), ".fhir", "packages");
   }
 
+  // ========================= Locking ============================================================================
+  //
+  // The cache is shared between processes (e.g. parallel CI jobs), so changes to packages.ini and installs of a 
+  // package are done holding a file lock (in [cache]/.locks). File locks are held per JVM, so there's an in-process 
+  // lock as well, which also makes the locks re-entrant for a thread.
+  //
+  // A package's lock file is deleted when the holder is done with it, so .locks doesn't keep one for every package
+  // ever installed. Before deleting it, the holder writes a byte into it: anyone who opened the same file while 
+  // waiting will find it isn't empty once they get the lock, and start again with a fresh file
+
+  private static final String INI_LOCK = "packages.ini";
+  private static final Map<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+  private interface CacheAction<T> {
+    T run() throws IOException;
+  }
+
+  private <T> T withLock(String name, CacheAction<T> action) throws IOException {
+    File lf = new File(Utilities.path(cacheFolder, ".locks", name+".lock"));
+    ReentrantLock lock = LOCKS.computeIfAbsent(lf.getAbsolutePath(), k -> new ReentrantLock());
+    lock.lock();
+    try {
+      if (lock.getHoldCount() > 1)
+        return action.run();
+      while (true) {
+        lf.getParentFile().mkdirs();
+        try (RandomAccessFile raf = new RandomAccessFile(lf, "rw"); FileLock fl = raf.getChannel().lock()) {
+          if (raf.length() > 0)
+            continue; // the last holder deleted it while we were waiting 
+          try {
+            return action.run();
+          } finally {
+            if (!INI_LOCK.equals(name)) {
+              raf.write(1);
+              if (!lf.delete())
+                raf.setLength(0); // (windows - can't delete an open file, so leave it for next time)
+            }
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * IniFile.save() rewrites the file in place, so a crash (or a concurrent reader) can see a partial file. 
+   * Write it alongside, and move it over the top
+   */
+  private void saveIni(IniFile ini) throws IOException {
+    File target = new File(Utilities.path(cacheFolder, "packages.ini"));
+    File tmp = new File(Utilities.path(cacheFolder, ".locks", "packages.ini."+UUID.randomUUID().toString()+".tmp"));
+    tmp.getParentFile().mkdirs();
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      ini.save(out);
+    }
+    moveAtomically(tmp, target);
+  }
+
+  private void moveAtomically(File source, File target) throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * installs are unpacked into [cache]/.tmp, and moved into place when they're complete. Anything
+   * left there for a day is from a process that died part way through
+   */
+  private void clearStaleInstalls() {
+    File[] files = new File(cacheFolder, ".tmp").listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.lastModified() < System.currentTimeMillis() - 24 * 60 * 60 * 1000L) {
+          try {
+            FileUtils.forceDelete(f);
+          } catch (IOException e) {
+            // another process may be doing the same thing - not important
+          }
+        }
+      }
+    }
+  }
+
   // ========================= Utilities ============================================================================
   
   private List<String> sorted(String[] keys) {
@@ -267,15 +377,20 @@ public class PackageCacheManager {
   // ========================= Full Cache Management ============================================================================
 
   private void clearCache() throws IOException {
-    for (File f : new File(cacheFolder).listFiles()) {
-      if (f.isDirectory())
-        FileUtils.deleteDirectory(f);
-      else if (!f.getName().equals("packages.ini"))
-        FileUtils.forceDelete(f);
-    }    
-    IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
-    ini.removeSection("packages");
-    ini.save();
+    withLock(INI_LOCK, () -> {
+      for (File f : new File(cacheFolder).listFiles()) {
+        if (f.getName().equals(".locks"))
+          continue; // other processes may be holding these 
+        if (f.isDirectory())
+          FileUtils.deleteDirectory(f);
+        else if (!f.getName().equals("packages.ini"))
+          FileUtils.forceDelete(f);
+      }    
+      IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
+      ini.removeSection("packages");
+      saveIni(ini);
+      return null;
+    });
   }
 
 //  private void checkDeleteVersion(String id, String ver, int minVer) {
@@ -382,19 +497,19 @@ public class PackageCacheManager {
     if (url == null)
       return;
     
-    if (!(new File(Utilities.path(cacheFolder, "packages.ini")).exists()))
+    withLock(INI_LOCK, () -> {
+      if (!(new File(Utilities.path(cacheFolder, "packages.ini")).exists()))
         throw new Error("File "+Utilities.path(cacheFolder, "packages.ini")+" not found #1");
-    IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
-    ini.setStringProperty("urls", id, url, null);
-    if (!CACHE_VERSION.equals(ini.getStringProperty("cache", "version"))) {
-      throw new Error("File "+Utilities.path(cacheFolder, "packages.ini")+" cache version mismatch: expected '"+CACHE_VERSION+"', found '"+ini.getStringProperty("cache", "version")+"'");
-    }
-    if (!(new File(Utilities.path(cacheFolder, "packages.ini")).exists()))
-      throw new Error("File "+Utilities.path(cacheFolder, "packages.ini")+" not found #2");
-
-    ini.save();
-    if (!(new File(Utilities.path(cacheFolder, "packages.ini")).exists()))
-      throw new Error("File "+Utilities.path(cacheFolder, "packages.ini")+" not found #3");
+      IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
+      if (url.equals(ini.getStringProperty("urls", id)))
+        return null;
+      ini.setStringProperty("urls", id, url, null);
+      if (!CACHE_VERSION.equals(ini.getStringProperty("cache", "version"))) {
+        throw new Error("File "+Utilities.path(cacheFolder, "packages.ini")+" cache version mismatch: expected '"+CACHE_VERSION+"', found '"+ini.getStringProperty("cache", "version")+"'");
+      }
+      saveIni(ini);
+      return null;
+    });
   }
 
   public String getPackageUrl(String id) throws IOException {
@@ -414,7 +529,7 @@ public class PackageCacheManager {
     return null;
   }
   
-  public void loadFromBuildServer() throws IOException, ParseException {
+  public synchronized void loadFromBuildServer() throws IOException, ParseException {
     buildLoaded = true; // whether it succeeds or not
     URL url = new URL("https://build.fhir.org/ig/qas.json?nocache=" + System.currentTimeMillis());
     HttpURLConnection connection = (HttpURLConnection) url.openConnection();
@@ -447,12 +562,14 @@ public class PackageCacheManager {
     return sdf.parse(s);
   }
 
-  public boolean isBuildLoaded() {
+  public synchronized boolean isBuildLoaded() {
     return buildLoaded;
   }
 
 
-  public String buildPath(String url) {
+  public synchronized String buildPath(String url) {
+    if (buildInfo == null)
+      return null;
     for (JsonElement e : buildInfo) {
       JsonObject j = (JsonObject) e;
       if (j.has("url") && (url.equals(j.get("url").getAsString()) || j.get("url").getAsString().startsWith(url+"/ImplementationGuide"))) {
@@ -462,7 +579,7 @@ public class PackageCacheManager {
     return null;
   }
  
-  public boolean checkBuildLoaded() throws IOException, ParseException {
+  public synchronized boolean checkBuildLoaded() throws IOException, ParseException {
     if (isBuildLoaded())
       return true;
     loadFromBuildServer();
@@ -473,7 +590,7 @@ public class PackageCacheManager {
     return ciList;
   }
 
-  public List<String> getUrls() throws IOException {
+  public synchronized List<String> getUrls() throws IOException {
     if (allUrls == null)
     {
       IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
@@ -503,12 +620,65 @@ public class PackageCacheManager {
   // ========================= Package API ============================================================================
 
   public void removePackage(String id, String ver) throws IOException  {
-    String f = Utilities.path(cacheFolder, id+"#"+ver);
-    Utilities.clearDirectory(f);    
-    IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
-    ini.removeProperty("packages", id+"#"+ver);
-    ini.save();
-    new File(f).delete();
+    withLock(id+"#"+ver, () -> {
+      // move it out of the way first, so no one sees a half deleted package
+      File f = new File(Utilities.path(cacheFolder, id+"#"+ver));
+      File tmp = new File(Utilities.path(cacheFolder, ".tmp", UUID.randomUUID().toString()));
+      if (f.exists()) {
+        tmp.getParentFile().mkdirs();
+        moveAtomically(f, tmp);
+      }
+      withLock(INI_LOCK, () -> {
+        IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
+        ini.removeProperty("packages", id+"#"+ver);
+        ini.removeProperty("package-sizes", id+"#"+ver);
+        saveIni(ini);
+        return null;
+      });
+      if (tmp.exists())
+        FileUtils.deleteDirectory(tmp);
+      return null;
+    });
+  }
+
+  // ========================= Derived content ========================================================================
+  //
+  // Tools can keep content they derive from a package (e.g. its resources converted to another FHIR version) in
+  // [package]/.derived, so it goes away when the package is removed or replaced. It's written alongside and moved
+  // into place, so readers in other processes see all of it or none of it. Checking that the content is still
+  // current (e.g. was produced by the same version of the tool) is up to the tool
+
+  public static final String DERIVED_FOLDER = ".derived";
+
+  /**
+   * @return the derived content, or null if there isn't any
+   */
+  public byte[] loadDerived(String id, String version, String name) throws IOException {
+    File f = new File(Utilities.path(cacheFolder, id+"#"+version, DERIVED_FOLDER, name));
+    try {
+      return f.exists() ? TextFile.fileToBytes(f) : null;
+    } catch (FileNotFoundException e) {
+      return null; // the package was removed while we were looking
+    }
+  }
+
+  /**
+   * @return false if the package isn't in the cache (so there's nowhere to keep it)
+   */
+  public boolean saveDerived(String id, String version, String name, byte[] content) throws IOException {
+    String pid = id+"#"+version;
+    return withLock(pid, () -> {
+      File packRoot = new File(Utilities.path(cacheFolder, pid));
+      if (!new File(Utilities.path(packRoot.getAbsolutePath(), "package", "package.json")).exists())
+        return false;
+      File tmp = new File(Utilities.path(cacheFolder, ".tmp", UUID.randomUUID().toString()+".derived"));
+      tmp.getParentFile().mkdirs();
+      TextFile.bytesToFile(content, tmp.getAbsolutePath());
+      File target = new File(Utilities.path(packRoot.getAbsolutePath(), DERIVED_FOLDER, name));
+      target.getParentFile().mkdirs();
+      moveAtomically(tmp, target);
+      return true;
+    });
   }
 
   /**
@@ -556,6 +726,10 @@ public class PackageCacheManager {
 
   /**
    * Add an already fetched package to the cache
+   * 
+   * The package is streamed into a scratch folder in the cache, and then moved into place 
+   * in a single rename (holding the lock for the package), so other processes either see 
+   * the whole package or none of it
    */
   public NpmPackage addPackageToCache(String id, String version, InputStream tgz, String sourceDesc) throws IOException {
     if (progress ) {
@@ -563,76 +737,79 @@ public class PackageCacheManager {
       System.out.print("  Fetching:");
     }
     
-    NpmPackage npm = NpmPackage.fromPackage(tgz, sourceDesc, true);
-    
-    recordMap(npm.canonical(), npm.name());
-    
-    if (progress ) {
-      System.out.println();
-      System.out.print("  Installing: ");
-    }
-    if (npm.name() == null || id == null || !id.equals(npm.name())) {
-      if (!id.equals("hl7.fhir.r5.core")) {// temporary work around
-        throw new IOException("Attempt to import a mis-identified package. Expected "+id+", got "+npm.name());
+    File tmp = new File(Utilities.path(cacheFolder, ".tmp", UUID.randomUUID().toString()));
+    Utilities.createDirectory(tmp.getAbsolutePath());
+    File old = null;
+    try {
+      int size = NpmPackage.extractToFolder(tgz, tmp, sourceDesc, progress);
+      File pj = new File(Utilities.path(tmp.getAbsolutePath(), "package", "package.json"));
+      JsonObject npm;
+      try {
+        npm = JsonTrackingParser.parseJson(pj);
+      } catch (Exception e) {
+        throw new IOException("Error parsing "+(sourceDesc == null ? "" : sourceDesc+"#")+"package/package.json: "+e.getMessage(), e);
       }
-    }
-    if (version == null)
-      version = npm.version();
-    
-    String packRoot = Utilities.path(cacheFolder, id+"#"+version);
-    Utilities.createDirectory(packRoot);
-    Utilities.clearDirectory(packRoot);
+      String name = JSONUtil.str(npm, "name");
       
-    int i = 0;
-    int c = 0;
-    int size = 0;
-    for (Entry<String, NpmPackageFolder> e : npm.getFolders().entrySet()) {
-      String dir = e.getKey().equals("package") ? Utilities.path(packRoot, "package") : Utilities.path(packRoot, "package",  e.getKey());;
-      if (!(new File(dir).exists()))
-        Utilities.createDirectory(dir);
-      for (Entry<String, byte[]> fe : e.getValue().getContent().entrySet()) {
-        String fn = Utilities.path(dir, fe.getKey());
-        byte[] cnt = fe.getValue();
-        TextFile.bytesToFile(cnt, fn);
-        size = size + cnt.length;
-        i++;
-        if (progress && i % 50 == 0) {
-          c++;
-          System.out.print(".");
-          if (c == 120) {
-            System.out.println("");
-            System.out.print("  ");
-            c = 2;
-          }
-        }    
+      recordMap(JSONUtil.str(npm, "canonical"), name);
+
+      if (progress ) {
+        System.out.println();
+        System.out.print("  Installing: ");
       }
-    }
- 
-    
-    IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
-    ini.setTimeStampFormat("yyyyMMddhhmmss");
-    ini.setTimestampProperty("packages", id+"#"+version, Timestamp.from(Instant.now()), null);
-    ini.setIntegerProperty("package-sizes", id+"#"+version, size, null);
-    ini.save();
-    if (progress)
-      System.out.println(" done.");
-
-    NpmPackage pck = loadPackageInfo(packRoot);
-    if (!id.equals(JSONUtil.str(npm.getNpm(), "name")) || !version.equals(JSONUtil.str(npm.getNpm(), "version"))) {
-      if (!id.equals(JSONUtil.str(npm.getNpm(), "name"))) {
-        npm.getNpm().addProperty("original-name", JSONUtil.str(npm.getNpm(), "name"));
-        npm.getNpm().remove("name");
-        npm.getNpm().addProperty("name", id);
+      if (name == null || id == null || !id.equals(name)) {
+        if (!id.equals("hl7.fhir.r5.core")) {// temporary work around
+          throw new IOException("Attempt to import a mis-identified package. Expected "+id+", got "+name);
+        }
       }
-      if (!version.equals(JSONUtil.str(npm.getNpm(), "version"))) {
-        npm.getNpm().addProperty("original-version", JSONUtil.str(npm.getNpm(), "version"));
-        npm.getNpm().remove("version");
-        npm.getNpm().addProperty("version", version);
+      if (version == null)
+        version = JSONUtil.str(npm, "version");
+
+      if (!id.equals(JSONUtil.str(npm, "name")) || !version.equals(JSONUtil.str(npm, "version"))) {
+        if (!id.equals(JSONUtil.str(npm, "name"))) {
+          npm.addProperty("original-name", JSONUtil.str(npm, "name"));
+          npm.remove("name");
+          npm.addProperty("name", id);
+        }
+        if (!version.equals(JSONUtil.str(npm, "version"))) {
+          npm.addProperty("original-version", JSONUtil.str(npm, "version"));
+          npm.remove("version");
+          npm.addProperty("version", version);
+        }
+        TextFile.stringToFile(new GsonBuilder().setPrettyPrinting().create().toJson(npm), pj, false);
       }
-      TextFile.stringToFile(new GsonBuilder().setPrettyPrinting().create().toJson(npm.getNpm()), Utilities.path(cacheFolder, id+"#"+version, "package", "package.json"), false);
-    }
 
-    return pck;
+      final String pid = id+"#"+version;
+      final boolean rolling = "current".equals(version) || "dev".equals(version);
+      File packRoot = new File(Utilities.path(cacheFolder, pid));
+      old = withLock(pid, () -> {
+        File displaced = null;
+        if (packRoot.exists()) {
+          if (!rolling && new File(Utilities.path(packRoot.getAbsolutePath(), "package", "package.json")).exists())
+            return null; // another process installed it while we were fetching it
+          displaced = new File(Utilities.path(cacheFolder, ".tmp", UUID.randomUUID().toString()));
+          moveAtomically(packRoot, displaced);
+        }
+        moveAtomically(tmp, packRoot);
+        withLock(INI_LOCK, () -> {
+          IniFile ini = new IniFile(Utilities.path(cacheFolder, "packages.ini"));
+          ini.setTimeStampFormat("yyyyMMddhhmmss");
+          ini.setTimestampProperty("packages", pid, Timestamp.from(Instant.now()), null);
+          ini.setIntegerProperty("package-sizes", pid, size, null);
+          saveIni(ini);
+          return null;
+        });
+        return displaced;
+      });
+      if (progress)
+        System.out.println(" done.");
+      return loadPackageInfo(packRoot.getAbsolutePath());
+    } finally {
+      if (tmp.exists())
+        FileUtils.deleteDirectory(tmp);
+      if (old != null && old.exists())
+        FileUtils.deleteDirectory(old);
+    }
   }
 
   public NpmPackage loadPackage(String id) throws FHIRException, IOException {
@@ -640,6 +817,13 @@ public class PackageCacheManager {
   }
   
   public NpmPackage loadPackage(String id, String v) throws FHIRException, IOException {
+    if (v == null || "current".equals(v) || "dev".equals(v))
+      return loadPackageInner(id, v);
+    // hold the lock for the package while fetching it, so concurrent processes only fetch it once
+    return withLock(id+"#"+v, () -> loadPackageInner(id, v));
+  }
+  
+  private NpmPackage loadPackageInner(String id, String v) throws FHIRException, IOException {
     NpmPackage p = loadPackageFromCacheOnly(id, v);
     if (p != null) {
       if ("current".equals(v)) {
@@ -0,0 +1,360 @@
+package org.hl7.fhir.utilities.cache;
+
+/*-
+ * #%L
+ * org.hl7.fhir.utilities
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.JSONUtil;
+import org.hl7.fhir.utilities.json.JsonTrackingParser;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Works out the full set of packages a package depends on, and makes sure they're all
+ * in the package cache.
+ *
+ * Each package is installed on a worker thread as soon as it's discovered - from the cache
+ * if it's already there, then from any of the mirrors (a folder of .tgz files, or a single
+ * .tgz, for offline use), and then from the network through the package cache manager. The
+ * dependencies of a package are queued as soon as its manifest is available, so fetches
+ * overlap instead of happening one after the other.
+ *
+ * The packages are returned in dependency order (dependencies before the packages that
+ * depend on them), with the source and time taken for each
+ */
+public class PackageDependencyResolver {
+
+  public enum PackageSource {
+    CACHE, MIRROR, NETWORK;
+
+    public String toDisplay() {
+      switch (this) {
+      case CACHE: return "cache";
+      case MIRROR: return "mirror";
+      case NETWORK: return "network";
+      }
+      return "?";
+    }
+  }
+
+  public static class ResolvedPackage {
+    private String id;
+    private String version;
+    private PackageSource source;
+    private long millis;
+    private NpmPackage npm;
+    private List<String> dependencies = new ArrayList<>();
+    private Exception error;
+
+    private ResolvedPackage(String id, String version) {
+      this.id = id;
+      this.version = version;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getVersion() {
+      return version;
+    }
+
+    public PackageSource getSource() {
+      return source;
+    }
+
+    /**
+     * @return how long it took to get the package into the cache and read the manifest
+     */
+    public long getMillis() {
+      return millis;
+    }
+
+    public NpmPackage getNpm() {
+      return npm;
+    }
+
+    /**
+     * @return the dependencies that were followed (id#version), in the order the manifest lists them
+     */
+    public List<String> getDependencies() {
+      return dependencies;
+    }
+
+    @Override
+    public String toString() {
+      return id+"#"+version+" from "+(source == null ? "?" : source.toDisplay())+" ("+millis+"ms)";
+    }
+  }
+
+  private PackageCacheManager pcm;
+  private List<String> mirrors = new ArrayList<>();
+  private Map<String, File> mirrorIndex; // id#version -> tgz
+  private int threads = 4;
+  private Predicate<String> skip;
+  private boolean buildChecked;
+
+  public PackageDependencyResolver(PackageCacheManager pcm) {
+    this.pcm = pcm;
+  }
+
+  /**
+   * @param path a folder containing packages (as [id]#[version].tgz, [id]-[version].tgz, [id]#[version]/package.tgz or any other name) or a single .tgz
+   */
+  public void addMirror(String path) {
+    mirrors.add(path);
+    mirrorIndex = null;
+  }
+
+  public List<String> getMirrors() {
+    return mirrors;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * @param skip packages (id#version) that should not be installed - e.g. because they're already loaded. The dependencies of a skipped package are not followed
+   */
+  public void setSkip(Predicate<String> skip) {
+    this.skip = skip;
+  }
+
+  /**
+   * Resolve and install all the dependencies of the package (but not the package itself)
+   *
+   * @return the dependencies, in dependency order
+   */
+  public List<ResolvedPackage> resolve(NpmPackage root) throws IOException {
+    Map<String, ResolvedPackage> nodes = new ConcurrentHashMap<>();
+    List<String> rootDeps = follow(root.dependencies());
+    if (!rootDeps.isEmpty()) {
+      AtomicInteger pending = new AtomicInteger();
+      CompletableFuture<Void> done = new CompletableFuture<>();
+      ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, rootDeps.size() * 2)), r -> {
+        Thread t = new Thread(r, "package-resolver");
+        t.setDaemon(true);
+        return t;
+      });
+      try {
+        for (String s : rootDeps)
+          submit(s, nodes, pending, done, executor);
+        done.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted resolving the dependencies of "+root.name()+"#"+root.version());
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause().getMessage(), e.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+
+    List<ResolvedPackage> res = new ArrayList<>();
+    Set<String> visited = new HashSet<>();
+    for (String s : rootDeps)
+      order(s, nodes, visited, res);
+    for (ResolvedPackage p : res) {
+      if (p.error != null) {
+        if (p.error instanceof IOException)
+          throw (IOException) p.error;
+        if (p.error instanceof FHIRException)
+          throw (FHIRException) p.error;
+        throw new FHIRException("Error loading package "+p.id+"#"+p.version+": "+p.error.getMessage(), p.error);
+      }
+    }
+    return res;
+  }
+
+  private List<String> follow(List<String> dependencies) {
+    List<String> res = new ArrayList<>();
+    for (String s : dependencies) {
+      if (skip == null || !skip.test(s))
+        res.add(s);
+    }
+    return res;
+  }
+
+  private void submit(String pid, Map<String, ResolvedPackage> nodes, AtomicInteger pending, CompletableFuture<Void> done, ExecutorService executor) {
+    String id = pid.contains("#") ? pid.substring(0, pid.indexOf("#")) : pid;
+    String version = pid.contains("#") ? pid.substring(pid.indexOf("#")+1) : null;
+    ResolvedPackage node = new ResolvedPackage(id, version);
+    if (nodes.putIfAbsent(pid, node) != null)
+      return;
+    pending.incrementAndGet();
+    executor.execute(() -> {
+      try {
+        install(node);
+        // queue the children before this one counts as finished, so pending can't reach 0 early
+        for (String s : node.dependencies)
+          submit(s, nodes, pending, done, executor);
+      } catch (Throwable e) {
+        node.error = e instanceof Exception ? (Exception) e : new FHIRException(e.getMessage(), e);
+      } finally {
+        if (pending.decrementAndGet() == 0)
+          done.complete(null);
+      }
+    });
+  }
+
+  private void install(ResolvedPackage node) throws IOException {
+    long start = System.currentTimeMillis();
+    NpmPackage npm = pcm.loadPackageFromCacheOnly(node.id, node.version);
+    if (npm != null) {
+      node.source = PackageSource.CACHE;
+    } else {
+      File tgz = findInMirror(node.id, node.version);
+      if (tgz != null) {
+        try (InputStream stream = new FileInputStream(tgz)) {
+          npm = pcm.addPackageToCache(node.id, node.version, stream, tgz.getAbsolutePath());
+        }
+        node.source = PackageSource.MIRROR;
+      } else {
+        checkBuildLoaded();
+        npm = pcm.loadPackage(node.id, node.version);
+        node.source = PackageSource.NETWORK;
+      }
+    }
+    if (npm == null)
+      throw new FHIRException("Unable to resolve the package '"+node.id+"#"+node.version+"'");
+    if (node.version == null)
+      node.version = npm.version();
+    node.npm = npm;
+    node.dependencies.addAll(follow(npm.dependencies()));
+    node.millis = System.currentTimeMillis() - start;
+  }
+
+  private synchronized void checkBuildLoaded() {
+    // only try (and report failing to reach) the build server once
+    if (!buildChecked) {
+      buildChecked = true;
+      try {
+        pcm.checkBuildLoaded();
+      } catch (Exception e) {
+        System.out.println("Unable to connect to build.fhir.org to check on packages");
+      }
+    }
+  }
+
+  private void order(String pid, Map<String, ResolvedPackage> nodes, Set<String> visited, List<ResolvedPackage> res) {
+    if (!visited.add(pid))
+      return;
+    ResolvedPackage node = nodes.get(pid);
+    if (node == null)
+      return;
+    for (String s : node.dependencies)
+      order(s, nodes, visited, res);
+    res.add(node);
+  }
+
+  private synchronized File findInMirror(String id, String version) throws IOException {
+    if (mirrors.isEmpty() || version == null)
+      return null;
+    if (mirrorIndex == null) {
+      mirrorIndex = new HashMap<>();
+      for (String m : mirrors)
+        indexMirror(new File(m));
+    }
+    File f = mirrorIndex.get(id+"#"+version);
+    if (f == null && "dev".equals(version))
+      f = mirrorIndex.get(id+"#current");
+    return f;
+  }
+
+  private void indexMirror(File f) throws IOException {
+    if (f.isDirectory()) {
+      String[] names = f.list();
+      if (names == null)
+        return;
+      List<String> list = new ArrayList<>();
+      Collections.addAll(list, names);
+      Collections.sort(list);
+      for (String n : list) {
+        File c = new File(f, n);
+        if (c.isDirectory()) {
+          File t = new File(c, "package.tgz");
+          if (n.contains("#") && t.exists())
+            indexTgz(t, n);
+        } else if (n.endsWith(".tgz"))
+          indexTgz(c, n.substring(0, n.length()-4));
+      }
+    } else if (f.exists() && f.getName().endsWith(".tgz"))
+      indexTgz(f, null);
+    else
+      System.out.println("Package mirror "+f.getAbsolutePath()+" not found");
+  }
+
+  private void indexTgz(File tgz, String name) throws IOException {
+    String pid = name != null && name.contains("#") ? name : readPackageId(tgz);
+    if (pid != null && !mirrorIndex.containsKey(pid))
+      mirrorIndex.put(pid, tgz);
+  }
+
+  /**
+   * Names like [id]-[version].tgz are ambiguous (ids contain '-' too), so read the manifest
+   */
+  private String readPackageId(File tgz) {
+    try (TarArchiveInputStream tar = new TarArchiveInputStream(new GzipCompressorInputStream(new FileInputStream(tgz)))) {
+      TarArchiveEntry entry;
+      while ((entry = tar.getNextTarEntry()) != null) {
+        if (entry.getName().equals("package/package.json")) {
+          JsonObject npm = JsonTrackingParser.parseJson(TextFile.streamToBytes(tar));
+          String id = JSONUtil.str(npm, "name");
+          String version = JSONUtil.str(npm, "version");
+          return Utilities.noString(id) || Utilities.noString(version) ? null : id+"#"+version;
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Unable to read package mirror "+tgz.getAbsolutePath()+": "+e.getMessage());
+    }
+    return null;
+  }
+
+}
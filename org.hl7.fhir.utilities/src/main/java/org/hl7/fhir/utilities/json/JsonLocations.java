@@ -0,0 +1,163 @@
+package org.hl7.fhir.utilities.json;
+
+/*-
+ * #%L
+ * org.hl7.fhir.utilities
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.Arrays;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Source locations for the nodes produced by the JsonTrackingParser.
+ *
+ * Locations are appended in parse order - the element in one array, and line/col 
+ * packed into a single long in a parallel array - so there's no per-node object 
+ * beyond the json element itself. The identity index used for lookup is built 
+ * in a single pass the first time a location is asked for
+ */
+public class JsonLocations {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private Object[] keys;
+  private long[] locations;
+  private int size;
+  private Object[] slotKeys; // the index: open addressing, by identity
+  private long[] slotLocations;
+  private int indexed;
+
+  public JsonLocations() {
+    this(INITIAL_CAPACITY);
+  }
+
+  public JsonLocations(int expected) {
+    int capacity = Math.max(expected, 16);
+    keys = new Object[capacity];
+    locations = new long[capacity];
+  }
+
+  public static long pack(int line, int col) {
+    return ((long) line << 32) | (col & 0xFFFFFFFFL);
+  }
+
+  public static int line(long location) {
+    return (int) (location >>> 32);
+  }
+
+  public static int col(long location) {
+    return (int) location;
+  }
+
+  public void ensureCapacity(int capacity) {
+    if (keys.length < capacity) {
+      keys = Arrays.copyOf(keys, capacity);
+      locations = Arrays.copyOf(locations, capacity);
+    }
+  }
+
+  public void put(JsonElement e, int line, int col) {
+    put(e, pack(line, col));
+  }
+
+  /**
+   * The parser sometimes records an element more than once - the last location recorded wins
+   */
+  public void put(JsonElement e, long location) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      locations = Arrays.copyOf(locations, size * 2);
+    }
+    keys[size] = e;
+    locations[size] = location;
+    size++;
+  }
+
+  public boolean has(JsonElement e) {
+    return find(e) >= 0;
+  }
+
+  /**
+   * @return the packed location for the element, or -1 if it's not known (see line() and col())
+   */
+  public long get(JsonElement e) {
+    int i = find(e);
+    return i < 0 ? -1 : slotLocations[i];
+  }
+
+  public int getLine(JsonElement e) {
+    long l = get(e);
+    return l == -1 ? -1 : line(l);
+  }
+
+  public int getCol(JsonElement e) {
+    long l = get(e);
+    return l == -1 ? -1 : col(l);
+  }
+
+  /**
+   * @return the number of locations recorded (including any repeats for the same element)
+   */
+  public int size() {
+    return size;
+  }
+
+  private int find(JsonElement e) {
+    if (e == null)
+      return -1;
+    if (indexed != size)
+      reindex();
+    int mask = slotKeys.length - 1;
+    int i = mix(System.identityHashCode(e)) & mask;
+    while (slotKeys[i] != null) {
+      if (slotKeys[i] == e)
+        return i;
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  private void reindex() {
+    int capacity = 16;
+    while (capacity < size * 2)
+      capacity = capacity << 1;
+    if (slotKeys == null || slotKeys.length != capacity) {
+      slotKeys = new Object[capacity];
+      slotLocations = new long[capacity];
+      indexed = 0;
+    }
+    int mask = capacity - 1;
+    for (int j = indexed; j < size; j++) {
+      int i = mix(System.identityHashCode(keys[j])) & mask;
+      while (slotKeys[i] != null && slotKeys[i] != keys[j])
+        i = (i + 1) & mask;
+      slotKeys[i] = keys[j];
+      slotLocations[i] = locations[j];
+    }
+    indexed = size;
+  }
+
+  private static int mix(int h) {
+    h ^= (h >>> 16);
+    h *= 0x85EBCA6B;
+    return h ^ (h >>> 13);
+  }
+
+}
@@ -23,14 +23,20 @@ import java.io.File;
  */
 
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Stack;
 
-import org.hl7.fhir.utilities.TextFile;
-import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.CSFile;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -47,7 +53,7 @@ import com.google.gson.JsonPrimitive;
  */
 public class JsonTrackingParser {
 
-	public class PresentedBigDecimal extends BigDecimal {
+	public static class PresentedBigDecimal extends BigDecimal {
 
 	  public String presentation;
 	  
@@ -67,7 +73,7 @@ public class JsonTrackingParser {
 		Open, Close, String, Number, Colon, Comma, OpenArray, CloseArray, Eof, Null, Boolean;
 	}
 	
-	public class LocationData {
+	public static class LocationData {
 		private int line;
 		private int col;
 		
@@ -111,111 +117,136 @@ public class JsonTrackingParser {
 		}
 	}
 	
+	/**
+	 * Works directly off the char array - no substrings or string concatenation 
+	 * while scanning, and at most one char of look ahead (after a number)
+	 */
 	private class Lexer {
-		private String source;
+	  private static final int MAX_SHARED_LENGTH = 32;
+	  
+		private char[] source;
+		private int length;
 		private int cursor;
-		private String peek;
+		private int pushed = -1;
 		private String value;
 		private TokenType type;
 		private Stack<State> states = new Stack<State>();
-		private LocationData lastLocationBWS;
-		private LocationData lastLocationAWS;
-		private LocationData location;
+		private int line = 1;
+		private int col = 1;
 		private StringBuilder b = new StringBuilder();
+		// property names (and codes) repeat a lot, so short strings are shared
+		private String[] shared = new String[1024];
 		
-    public Lexer(String source) throws IOException {
+    public Lexer(char[] source, int length) throws IOException {
     	this.source = source;
+    	this.length = length;
     	cursor = -1;
-    	location = new LocationData(1, 1);  
     	start();
     }
     
     private boolean more() {
-    	return peek != null || cursor < source.length(); 
+    	return pushed >= 0 || cursor < length; 
     }
     
-    private String getNext(int length) throws IOException {
-    	String result = "";
-      if (peek != null) {
-      	if (peek.length() > length) {
-      		result = peek.substring(0, length);
-      		peek = peek.substring(length);
-      	} else {
-      		result = peek;
-      		peek = null;
-      	}
-      }
-      if (result.length() < length) {
-      	int len = length - result.length(); 
-      	if (cursor > source.length() - len) 
-      		throw error("Attempt to read past end of source");
-      	result = result + source.substring(cursor+1, cursor+len+1);
-      	cursor = cursor + len;
+    private long location() {
+      return JsonLocations.pack(line, col);
+    }
+    
+    private void advance(char ch) {
+      if (ch == '\n') {
+        line++;
+        col = 1;
+      } else {
+        col++;
       }
-       for (char ch : result.toCharArray())
-        if (ch == '\n')
-          location.newLine();
-        else
-          location.col++;
-      return result;
     }
     
     private char getNextChar() throws IOException {
-      if (peek != null) {
-      	char ch = peek.charAt(0);
-      	peek = peek.length() == 1 ? null : peek.substring(1);
+      if (pushed >= 0) {
+      	char ch = (char) pushed;
+      	pushed = -1;
       	return ch;
       } else {
         cursor++;
-        if (cursor >= source.length())
+        if (cursor >= length)
           return (char) 0;
-        char ch = source.charAt(cursor);
-        if (ch == '\n') {
-          location.newLine();
-        } else {
-          location.col++;
-        }
+        char ch = source[cursor];
+        advance(ch);
         return ch;
       }
     }
     
     private void push(char ch){
-    	peek = peek == null ? String.valueOf(ch) : String.valueOf(ch)+peek;
+    	pushed = ch;
     }
     
-    private void parseWord(String word, char ch, TokenType type) throws IOException {
+    private void parseWord(String word, TokenType type) throws IOException {
       this.type = type;
-      value = ""+ch+getNext(word.length()-1);
-      if (!value.equals(word))
+      int len = word.length() - 1;
+      if (cursor + len >= length) 
+        throw error("Attempt to read past end of source");
+      boolean ok = true;
+      for (int i = 1; i <= len; i++) {
+        char ch = source[++cursor];
+        advance(ch);
+        ok = ok && ch == word.charAt(i);
+      }
+      if (!ok) {
+        value = new String(source, cursor - len, len + 1);
       	throw error("Syntax error in json reading special word "+word);
+      }
+      value = word;
+    }
+    
+    private char readHex() throws IOException {
+      if (cursor + 4 >= length) 
+        throw error("Attempt to read past end of source");
+      int v = 0;
+      for (int i = 0; i < 4; i++) {
+        char ch = source[++cursor];
+        advance(ch);
+        int d = Character.digit(ch, 16);
+        if (d < 0)
+          throw error("illegal character in unicode escape: "+ch);
+        v = (v << 4) + d;
+      }
+      return (char) v;
+    }
+    
+    private String makeString(int start, int len, int hash) {
+      if (len > MAX_SHARED_LENGTH)
+        return new String(source, start, len);
+      int i = (hash ^ (hash >>> 16)) & (shared.length - 1);
+      String s = shared[i];
+      if (s != null && s.length() == len) {
+        boolean same = true;
+        for (int j = 0; same && j < len; j++)
+          same = s.charAt(j) == source[start+j];
+        if (same)
+          return s;
+      }
+      s = new String(source, start, len);
+      shared[i] = s;
+      return s;
     }
     
     private IOException error(String msg) {
-      return new IOException("Error parsing JSON source: "+msg+" at Line "+Integer.toString(location.line)+" (path=["+path()+"])");
+      return new IOException("Error parsing JSON source: "+msg+" at Line "+Integer.toString(line)+" (path=["+path()+"])");
     }
     
     private String path() {
       if (states.empty())
         return value;
       else {
-      	String result = "";
+      	StringBuilder result = new StringBuilder();
         for (State s : states) 
-          result = result + '/'+ s.getName();
-        result = result + value;
-        return result;
+          result.append('/').append(s.getName());
+        result.append(value);
+        return result.toString();
       }
     }
 
     public void start() throws IOException {
-//      char ch = getNextChar();
-//      if (ch = '\.uEF')
-//      begin
-//        // skip BOM
-//        getNextChar();
-//        getNextChar();
-//      end
-//      else
-//        push(ch);
       next();
     }
     
@@ -227,22 +258,11 @@ public class JsonTrackingParser {
     	return value;
     }
 
-
-    public LocationData getLastLocationBWS() {
-    	return lastLocationBWS;
-    }
-
-    public LocationData getLastLocationAWS() {
-    	return lastLocationAWS;
-    }
-
     public void next() throws IOException {
-    	lastLocationBWS = location.copy();
     	char ch;
     	do {
     		ch = getNextChar();
-    	} while (more() && Utilities.charInSet(ch, ' ', '\r', '\n', '\t'));
-    	lastLocationAWS = location.copy();
+    	} while (more() && (ch == ' ' || ch == '\r' || ch == '\n' || ch == '\t'));
 
     	if (!more()) {
     		type = TokenType.Eof;
@@ -256,30 +276,7 @@ public class JsonTrackingParser {
     			break;
     		case '"' :
     			type = TokenType.String;
-    			b.setLength(0);
-    			do {
-    				ch = getNextChar();
-    				if (ch == '\\') {
-    					ch = getNextChar();
-    					switch (ch) {
-              case '"': b.append('"'); break;
-              case '\'': b.append('\''); break;
-    					case '\\': b.append('\\'); break;
-    					case '/': b.append('/'); break;
-    					case 'n': b.append('\n'); break;
-    					case 'r': b.append('\r'); break;
-    					case 't': b.append('\t'); break;
-    					case 'u': b.append((char) Integer.parseInt(getNext(4), 16)); break;
-    					default :
-    						throw error("unknown escape sequence: \\"+ch);
-    					}
-    					ch = ' ';
-    				} else if (ch != '"')
-    					b.append(ch);
-    			} while (more() && (ch != '"'));
-    			if (!more())
-    				throw error("premature termination of json stream during a string");
-    			value = b.toString();
+    			readString();
     			break;
     		case ':' : 
     			type = TokenType.Colon;
@@ -294,23 +291,21 @@ public class JsonTrackingParser {
     			type = TokenType.CloseArray;
     			break;
     		case 't' : 
-    			parseWord("true", ch, TokenType.Boolean);
+    			parseWord("true", TokenType.Boolean);
     			break;
     		case 'f' : 
-    			parseWord("false", ch, TokenType.Boolean);
+    			parseWord("false", TokenType.Boolean);
     			break;
     		case 'n' : 
-    			parseWord("null", ch, TokenType.Null);
+    			parseWord("null", TokenType.Null);
     			break;
     		default:
     			if ((ch >= '0' && ch <= '9') || ch == '-') {
     				type = TokenType.Number;
-    				b.setLength(0);
-    				while (more() && ((ch >= '0' && ch <= '9') || ch == '-' || ch == '.') || ch == '+' || ch == 'e' || ch == 'E') {
-    					b.append(ch);
+    				int start = cursor;
+    				while (more() && ((ch >= '0' && ch <= '9') || ch == '-' || ch == '.') || ch == '+' || ch == 'e' || ch == 'E') 
     					ch = getNextChar();
-    				}
-    				value = b.toString();
+    				value = new String(source, start, Math.min(cursor, length) - start);
     				push(ch);
     			} else
     				throw error("Unexpected char '"+ch+"' in json stream");
@@ -318,6 +313,56 @@ public class JsonTrackingParser {
     	}
     }
 
+    private void readString() throws IOException {
+      // fast path: no escapes, so the value is a straight copy of the source
+      int start = cursor + 1;
+      int hash = 0;
+      int i = start;
+      while (i < length) {
+        char ch = source[i];
+        if (ch == '"' || ch == '\\')
+          break;
+        advance(ch);
+        hash = 31 * hash + ch;
+        i++;
+      }
+      cursor = i;
+      if (i >= length)
+        throw error("premature termination of json stream during a string");
+      if (source[i] == '"') {
+        advance('"');
+        value = makeString(start, i - start, hash);
+        return;
+      }
+      b.setLength(0);
+      b.append(source, start, i - start);
+      cursor = i - 1;
+      char ch;
+      do {
+        ch = getNextChar();
+        if (ch == '\\') {
+          ch = getNextChar();
+          switch (ch) {
+          case '"': b.append('"'); break;
+          case '\'': b.append('\''); break;
+          case '\\': b.append('\\'); break;
+          case '/': b.append('/'); break;
+          case 'n': b.append('\n'); break;
+          case 'r': b.append('\r'); break;
+          case 't': b.append('\t'); break;
+          case 'u': b.append(readHex()); break;
+          default :
+            throw error("unknown escape sequence: \\"+ch);
+          }
+          ch = ' ';
+        } else if (ch != '"')
+          b.append(ch);
+      } while (more() && (ch != '"'));
+      if (!more())
+        throw error("premature termination of json stream during a string");
+      value = b.toString();
+    }
+    
     public String consume(TokenType type) throws IOException {
       if (this.type != type)
         throw error("JSON syntax error - found "+type.toString()+" expecting "+type.toString());
@@ -332,6 +377,8 @@ public class JsonTrackingParser {
 	  Object, String, Number, Boolean, Array, End, Eof, Null;
 	}
 	private Map<JsonElement, LocationData> map;
+	private JsonLocations locations;
+	private boolean tracking;
   private Lexer lexer;
   private ItemType itemType = ItemType.Object;
   private String itemName;
@@ -343,23 +390,23 @@ public class JsonTrackingParser {
   }
   
   public static JsonObject parseJson(InputStream stream) throws IOException {
-    return parse(TextFile.streamToString(stream), null);
+    return parse(readChars(stream), null, null, false);
   }
   
   public static JsonObject parseJson(byte[] stream) throws IOException {
-    return parse(TextFile.bytesToString(stream), null);
+    return parse(readChars(stream), null, null, false);
   }
   
   public static JsonObject parseJson(byte[] stream, boolean allowDuplicates) throws IOException {
-    return parse(TextFile.bytesToString(stream), null, allowDuplicates);
+    return parse(readChars(stream), null, null, allowDuplicates);
   }
   
   public static JsonObject parseJson(File source) throws IOException {
-    return parse(TextFile.fileToString(source), null);
+    return parse(readChars(new FileInputStream(source)), null, null, false);
   }
   
   public static JsonObject parseJsonFile(String source) throws IOException {
-    return parse(TextFile.fileToString(source), null);
+    return parse(readChars(new FileInputStream(new CSFile(source))), null, null, false);
   }
   
   public static JsonObject parse(String source, Map<JsonElement, LocationData> map) throws IOException {
@@ -367,16 +414,88 @@ public class JsonTrackingParser {
   }
     
   public static JsonObject parse(String source, Map<JsonElement, LocationData> map, boolean allowDuplicates) throws IOException {
-		JsonTrackingParser self = new JsonTrackingParser();
-		self.map = map;
-		self.setErrorOnDuplicates(!allowDuplicates);
-    return self.parse(Utilities.stripBOM(source));
+    return parse(CharBuffer.wrap(stripBOM(source.toCharArray())), map, null, allowDuplicates);
 	}
 
-	private JsonObject parse(String source) throws IOException {
-		lexer = new Lexer(source);
+  /**
+   * parse, recording the location of each json element in the (compact) locations table
+   */
+  public static JsonObject parseWithLocations(String source, JsonLocations locations) throws IOException {
+    return parse(CharBuffer.wrap(stripBOM(source.toCharArray())), null, locations, false);
+  }
+  
+  public static JsonObject parseWithLocations(InputStream stream, JsonLocations locations) throws IOException {
+    return parse(readChars(stream), null, locations, false);
+  }
+  
+  private static JsonObject parse(CharBuffer source, Map<JsonElement, LocationData> map, JsonLocations locations, boolean allowDuplicates) throws IOException {
+    JsonTrackingParser self = new JsonTrackingParser();
+    self.map = map;
+    self.locations = locations;
+    if (locations != null)
+      locations.ensureCapacity(locations.size() + source.limit() / 16);
+    self.tracking = map != null || locations != null;
+    self.setErrorOnDuplicates(!allowDuplicates);
+    return self.parse(source.array(), source.limit());
+  }
+
+  private static CharBuffer readChars(byte[] bytes) {
+    CharBuffer cb = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(bytes));
+    if (!cb.hasArray() || cb.arrayOffset() != 0)
+      cb = CharBuffer.wrap(cb.toString().toCharArray());
+    cb.limit(stripBOM(cb.array(), cb.limit()));
+    return cb;
+  }
+  
+  private static CharBuffer readChars(InputStream stream) throws IOException {
+    Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8);
+    try {
+      char[] buffer = new char[8192];
+      int length = 0;
+      int n;
+      while ((n = reader.read(buffer, length, buffer.length - length)) > -1) {
+        length = length + n;
+        if (length == buffer.length)
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+      CharBuffer cb = CharBuffer.wrap(buffer);
+      cb.limit(stripBOM(buffer, length));
+      return cb;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static char[] stripBOM(char[] source) {
+    int length = stripBOM(source, source.length);
+    return length == source.length ? source : Arrays.copyOf(source, length);
+  }
+  
+  /**
+   * removes any BOMs (in place, like Utilities.stripBOM, anywhere in the source)
+   * 
+   * @return the new length
+   */
+  private static int stripBOM(char[] source, int length) {
+    int j = 0;
+    for (int i = 0; i < length; i++) {
+      if (source[i] != '\uFEFF')
+        source[j++] = source[i];
+    }
+    return j;
+  }
+
+  private void record(JsonElement e, long location) {
+    if (locations != null)
+      locations.put(e, location);
+    if (map != null)
+      map.put(e, new LocationData(JsonLocations.line(location), JsonLocations.col(location)));
+  }
+  
+	private JsonObject parse(char[] source, int length) throws IOException {
+		lexer = new Lexer(source, length);
 		JsonObject result = new JsonObject();
-		LocationData loc = lexer.location.copy();
+		long loc = lexer.location();
     if (lexer.getType() == TokenType.Open) {
       lexer.next();
       lexer.states.push(new State("", false));
@@ -386,28 +505,28 @@ public class JsonTrackingParser {
 
     parseProperty();
     readObject(result, true);
-    if (map != null)
-		  map.put(result, loc);
+    if (tracking)
+		  record(result, loc);
     return result;
 	}
 
 	private void readObject(JsonObject obj, boolean root) throws IOException {
-	  if (map != null)
-      map.put(obj, lexer.location.copy());
+	  if (tracking)
+      record(obj, lexer.location());
 
 		while (!(itemType == ItemType.End) || (root && (itemType == ItemType.Eof))) {
 			switch (itemType) {
 			case Object:
 				JsonObject child = new JsonObject(); //(obj.path+'.'+ItemName);
-				LocationData loc = lexer.location.copy();
+				long loc = lexer.location();
 	      if (!obj.has(itemName))
 	        obj.add(itemName, child);
 	      else if (errorOnDuplicates)
 	        throw lexer.error("Duplicated property name: "+itemName);
 				next();
 				readObject(child, false);
-				if (map != null)
-		      map.put(obj, loc);
+				if (tracking)
+		      record(obj, loc);
 				break;
 			case Boolean :
 				JsonPrimitive v = new JsonPrimitive(Boolean.valueOf(itemValue));
@@ -415,8 +534,8 @@ public class JsonTrackingParser {
   				obj.add(itemName, v);
         else if (errorOnDuplicates)
           throw lexer.error("Duplicated property name: "+itemName);
-				if (map != null)
-		      map.put(v, lexer.location.copy());
+				if (tracking)
+		      record(v, lexer.location());
 				break;
 			case String:
 				v = new JsonPrimitive(itemValue);
@@ -424,8 +543,8 @@ public class JsonTrackingParser {
   				obj.add(itemName, v);
         else if (errorOnDuplicates)
           throw lexer.error("Duplicated property name: "+itemName);
-				if (map != null)
-		      map.put(v, lexer.location.copy());
+				if (tracking)
+		      record(v, lexer.location());
 				break;
 			case Number:
 				v = new JsonPrimitive(new PresentedBigDecimal(itemValue));
@@ -433,8 +552,8 @@ public class JsonTrackingParser {
   				obj.add(itemName, v);
         else if (errorOnDuplicates)
           throw lexer.error("Duplicated property name: "+itemName);
-				if (map != null)
-		      map.put(v, lexer.location.copy());
+				if (tracking)
+		      record(v, lexer.location());
 				break;
 			case Null:
 				JsonNull n = new JsonNull();
@@ -442,12 +561,12 @@ public class JsonTrackingParser {
   				obj.add(itemName, n);
         else if (errorOnDuplicates)
           throw lexer.error("Duplicated property name: "+itemName);
-				if (map != null)
-		      map.put(n, lexer.location.copy());
+				if (tracking)
+		      record(n, lexer.location());
 				break;
 			case Array:
 				JsonArray arr = new JsonArray(); // (obj.path+'.'+ItemName);
-				loc = lexer.location.copy();
+				loc = lexer.location();
         if (!obj.has(itemName))
   				obj.add(itemName, arr);
         else if (errorOnDuplicates)
@@ -455,8 +574,8 @@ public class JsonTrackingParser {
 				next();
 				if (!readArray(arr, false))
 				  next(true);
-				if (map != null)
-		      map.put(arr, loc);
+				if (tracking)
+		      record(arr, loc);
 				break;
 			case Eof : 
 				throw lexer.error("Unexpected End of File");
@@ -475,39 +594,39 @@ public class JsonTrackingParser {
 	    switch (itemType) {
 	    case Object:
 	    	JsonObject obj  = new JsonObject(); // (arr.path+'['+inttostr(i)+']');
-				LocationData loc = lexer.location.copy();
+				long loc = lexer.location();
 	    	arr.add(obj);
 	      next();
 	      readObject(obj, false);
-	      if (map != null)
-	        map.put(obj, loc);
+	      if (tracking)
+	        record(obj, loc);
 	      break;
 	    case String:
 	    	JsonPrimitive v = new JsonPrimitive(itemValue);
 				arr.add(v);
-				if (map != null)
-		      map.put(v, lexer.location.copy());
+				if (tracking)
+		      record(v, lexer.location());
 				break;
 	    case Number:
 	    	v = new JsonPrimitive(new BigDecimal(itemValue));
 				arr.add(v);
-				if (map != null)
-		      map.put(v, lexer.location.copy());
+				if (tracking)
+		      record(v, lexer.location());
 				break;
 	    case Null :
 	    	JsonNull n = new JsonNull();
 				arr.add(n);
-				if (map != null)
-		      map.put(n, lexer.location.copy());
+				if (tracking)
+		      record(n, lexer.location());
 				break;
 	    case Array:
         JsonArray child = new JsonArray(); // (arr.path+'['+inttostr(i)+']');
-				loc = lexer.location.copy();
+				loc = lexer.location();
 				arr.add(child);
         next();
 	      readArray(child, false);
-	      if (map != null)
-	        map.put(arr, loc);
+	      if (tracking)
+	        record(arr, loc);
         break;
 	    case Eof : 
 	    	throw lexer.error("Unexpected End of File");
@@ -114,7 +114,9 @@ public class XhtmlComposer {
   }
 
   private void writeNode(String indent, XhtmlNode node, boolean noPrettyOverride) throws IOException  {
-    if (node.getNodeType() == NodeType.Comment)
+    if (xml && node.hasSource())
+      dst.append(node.getSource()); // never parsed, so it's unchanged 
+    else if (node.getNodeType() == NodeType.Comment)
       writeComment(indent, node, noPrettyOverride);
     else if (node.getNodeType() == NodeType.DocType)
       writeDocType(node);
@@ -196,6 +198,8 @@ public class XhtmlComposer {
   }
   
   private String attributes(XhtmlNode node) {
+    if (!node.hasAttributes())
+      return "";
     StringBuilder s = new StringBuilder();
     for (String n : node.getAttributes().keySet())
       s.append(" " + n + "=\"" + escapeHtml(node.getAttributes().get(n)) + "\"");
@@ -207,7 +211,7 @@ public class XhtmlComposer {
       indent = "";
 
     // html self closing tags: http://xahlee.info/js/html5_non-closing_tag.html 
-    if (node.getChildNodes().size() == 0 && (xml || Utilities.existsInList(node.getName(), "area", "base", "br", "col", "command", "embed", "hr", "img", "input", "keygen", "link", "menuitem", "meta", "param", "source", "track", "wbr")))
+    if (!node.hasChildren() && (xml || Utilities.existsInList(node.getName(), "area", "base", "br", "col", "command", "embed", "hr", "img", "input", "keygen", "link", "menuitem", "meta", "param", "source", "track", "wbr")))
       dst.append(indent + "<" + node.getName() + attributes(node) + "/>" + (pretty && !noPrettyOverride ? "\r\n" : ""));
     else {
     boolean act = node.allChildrenAreText();
@@ -253,17 +257,21 @@ public class XhtmlComposer {
   }
 
   private void composeElement(IXMLWriter xml, XhtmlNode node, boolean noPrettyOverride) throws IOException  {
-    for (String n : node.getAttributes().keySet()) {
-      if (n.equals("xmlns")) 
-      	xml.setDefaultNamespace(node.getAttributes().get(n));
-      else if (n.startsWith("xmlns:")) 
-      	xml.namespace(n.substring(6), node.getAttributes().get(n));
-      else
-      xml.attribute(n, node.getAttributes().get(n));
+    if (node.hasAttributes()) {
+      for (String n : node.getAttributes().keySet()) {
+        if (n.equals("xmlns")) 
+          xml.setDefaultNamespace(node.getAttributes().get(n));
+        else if (n.startsWith("xmlns:")) 
+          xml.namespace(n.substring(6), node.getAttributes().get(n));
+        else
+          xml.attribute(n, node.getAttributes().get(n));
+      }
     }
     xml.enter(XHTML_NS, node.getName());
-    for (XhtmlNode n : node.getChildNodes())
-      compose(xml, n, noPrettyOverride || node.isNoPretty());
+    if (node.hasChildren()) {
+      for (XhtmlNode n : node.getChildNodes())
+        compose(xml, n, noPrettyOverride || node.isNoPretty());
+    }
     xml.exit(XHTML_NS, node.getName());
   }
 
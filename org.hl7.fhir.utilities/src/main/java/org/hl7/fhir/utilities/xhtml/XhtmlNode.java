@@ -55,6 +55,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseXhtml;
 import org.hl7.fhir.utilities.Utilities;
 
@@ -94,10 +95,11 @@ public class XhtmlNode implements IBaseXhtml {
   private Location location;
   private NodeType nodeType;
   private String name;
-  private Map<String, String> attributes = new HashMap<String, String>();
-  private List<XhtmlNode> childNodes = new ArrayList<XhtmlNode>();
+  private Map<String, String> attributes; // allocated when first used - most nodes are text, with neither attributes nor children
+  private List<XhtmlNode> childNodes;
   private String content;
   private boolean notPretty;
+  private volatile String source; // see lazy()
 
   public XhtmlNode() {
     super();
@@ -115,11 +117,76 @@ public class XhtmlNode implements IBaseXhtml {
     this.nodeType = nodeType;
   }
 
+  /**
+   * A div that holds the xhtml source, and only parses it when the content is first 
+   * looked at. Until then, the composers write the source out exactly as it was read 
+   * 
+   * @param source the xhtml for a div element
+   */
+  public static XhtmlNode lazy(String source) {
+    XhtmlNode res = new XhtmlNode(NodeType.Element, "div");
+    res.source = source;
+    return res;
+  }
+
+  /**
+   * @return true if the source has not been parsed yet (and so the node is unchanged)
+   */
+  public boolean hasSource() {
+    return source != null;
+  }
+
+  /**
+   * @return the xhtml source, if the node hasn't been parsed yet
+   */
+  public String getSource() {
+    return source;
+  }
+
+  private void parseSource() {
+    if (source != null) {
+      synchronized (this) {
+        if (source != null) {
+          try {
+            XhtmlNode div = new XhtmlParser().parse(source, "div").getChildNodes().get(0);
+            attributes = div.attributes;
+            childNodes = div.childNodes;
+            content = div.content;
+            name = div.name;
+            nodeType = div.nodeType;
+            location = div.location;
+          } catch (IOException e) {
+            throw new FHIRException("Error parsing XHTML: "+e.getMessage(), e);
+          }
+          source = null;
+        }
+      }
+    }
+  }
+
+  private List<XhtmlNode> children() {
+    parseSource();
+    if (childNodes == null)
+      childNodes = new ArrayList<XhtmlNode>();
+    return childNodes;
+  }
+
+  public boolean hasChildren() {
+    parseSource();
+    return childNodes != null && !childNodes.isEmpty();
+  }
+
+  public boolean hasAttributes() {
+    parseSource();
+    return attributes != null && !attributes.isEmpty();
+  }
+
   public NodeType getNodeType() {
     return nodeType;
   }
 
   public void setNodeType(NodeType nodeType) {
+    parseSource();
     this.nodeType = nodeType;
   }
 
@@ -129,25 +196,31 @@ public class XhtmlNode implements IBaseXhtml {
 
   public XhtmlNode setName(String name) {
     assert name.contains(":") == false : "Name should not contain any : but was " + name;
+    parseSource();
     this.name = name;
     return this;
   }
 
   public Map<String, String> getAttributes() {
+    parseSource();
+    if (attributes == null)
+      attributes = new HashMap<String, String>();
     return attributes;
   }
 
   public List<XhtmlNode> getChildNodes() {
-    return childNodes;
+    return children();
   }
 
   public String getContent() {
+    parseSource();
     return content;
   }
 
   public XhtmlNode setContent(String content) {
     if (!(nodeType != NodeType.Text || nodeType != NodeType.Comment)) 
       throw new Error("Wrong node type");
+    parseSource();
     this.content = content;
     return this;
   }
@@ -159,7 +232,7 @@ public class XhtmlNode implements IBaseXhtml {
       throw new Error("Wrong node type. is "+nodeType.toString());
     XhtmlNode node = new XhtmlNode(NodeType.Element);
     node.setName(name);
-    childNodes.add(node);
+    children().add(node);
     return node;
   }
 
@@ -170,7 +243,7 @@ public class XhtmlNode implements IBaseXhtml {
       throw new Error("Wrong node type. is "+nodeType.toString());
     XhtmlNode node = new XhtmlNode(NodeType.Element);
     node.setName(name);
-    childNodes.add(index, node);
+    children().add(index, node);
     return node;
   }
 
@@ -180,7 +253,7 @@ public class XhtmlNode implements IBaseXhtml {
       throw new Error("Wrong node type");
     XhtmlNode node = new XhtmlNode(NodeType.Comment);
     node.setContent(content);
-    childNodes.add(node);
+    children().add(node);
     return node;
   }
 
@@ -190,7 +263,7 @@ public class XhtmlNode implements IBaseXhtml {
       throw new Error("Wrong node type");
     XhtmlNode node = new XhtmlNode(NodeType.DocType);
     node.setContent(content);
-    childNodes.add(node);
+    children().add(node);
     return node;
   }
 
@@ -200,7 +273,7 @@ public class XhtmlNode implements IBaseXhtml {
       throw new Error("Wrong node type");
     XhtmlNode node = new XhtmlNode(NodeType.Instruction);
     node.setContent(content);
-    childNodes.add(node);
+    children().add(node);
     return node;
   }
 
@@ -214,7 +287,7 @@ public class XhtmlNode implements IBaseXhtml {
     if (content != null) {
       XhtmlNode node = new XhtmlNode(NodeType.Text);
       node.setContent(content);
-      childNodes.add(node);
+      children().add(node);
       return node;
     } else 
       return null;
@@ -229,12 +302,14 @@ public class XhtmlNode implements IBaseXhtml {
 
     XhtmlNode node = new XhtmlNode(NodeType.Text);
     node.setContent(content);
-    childNodes.add(index, node);
+    children().add(index, node);
     return node;
   }
 
   public boolean allChildrenAreText()
   {
+    if (!hasChildren())
+      return true;
     boolean res = true;
     for (XhtmlNode n : childNodes)
       res = res && n.getNodeType() == NodeType.Text;
@@ -242,6 +317,8 @@ public class XhtmlNode implements IBaseXhtml {
   }
 
   public XhtmlNode getElement(String name) {
+    if (!hasChildren())
+      return null;
     for (XhtmlNode n : childNodes)
       if (n.getNodeType() == NodeType.Element && name.equals(n.getName())) 
         return n;
@@ -249,6 +326,8 @@ public class XhtmlNode implements IBaseXhtml {
   }
 
   public XhtmlNode getFirstElement() {
+    if (!hasChildren())
+      return null;
     for (XhtmlNode n : childNodes)
       if (n.getNodeType() == NodeType.Element) 
         return n;
@@ -256,7 +335,7 @@ public class XhtmlNode implements IBaseXhtml {
   }
 
   public String allText() {
-    if (childNodes == null || childNodes.isEmpty())
+    if (!hasChildren())
       return getContent();
     
     StringBuilder b = new StringBuilder();
@@ -275,16 +354,16 @@ public class XhtmlNode implements IBaseXhtml {
       throw new Error("name is null");
     if (value == null)
       throw new Error("value is null");
-    attributes.put(name, value);
+    getAttributes().put(name, value);
     return this;
   }
 
   public boolean hasAttribute(String name) {
-    return getAttributes().containsKey(name);
+    return hasAttributes() && attributes.containsKey(name);
   }
 
   public String getAttribute(String name) {
-    return getAttributes().get(name);
+    return hasAttributes() ? attributes.get(name) : null;
   }
 
   public XhtmlNode setAttribute(String name, String value) {
@@ -293,43 +372,84 @@ public class XhtmlNode implements IBaseXhtml {
   }
 
   public XhtmlNode copy() {
+    String src = source;
+    if (src != null)
+      return lazy(src);
     XhtmlNode dst = new XhtmlNode(nodeType);
     dst.name = name;
-    for (String n : attributes.keySet()) {
-      dst.attributes.put(n, attributes.get(n));
+    if (attributes != null && !attributes.isEmpty()) {
+      dst.attributes = new HashMap<String, String>();
+      for (String n : attributes.keySet())
+        dst.attributes.put(n, attributes.get(n));
+    }
+    if (childNodes != null && !childNodes.isEmpty()) {
+      dst.childNodes = new ArrayList<XhtmlNode>(childNodes.size());
+      for (XhtmlNode n : childNodes)
+        dst.childNodes.add(n.copy());
     }
-    for (XhtmlNode n : childNodes)
-      dst.childNodes.add(n.copy());
     dst.content = content;
     return dst;
   }
 
   @Override
   public boolean isEmpty() {
-    return (childNodes == null || childNodes.isEmpty()) && content == null;
+    String src = source;
+    if (src != null && !isEmptyDiv(src))
+      return false;
+    return !hasChildren() && content == null;
+  }
+
+  /**
+   * a quick look at the unparsed source: anything other than whitespace between the 
+   * start and end tags means there's content, without having to parse it
+   */
+  private static boolean isEmptyDiv(String src) {
+    int start = src.indexOf('>');
+    if (start <= 0 || src.charAt(start-1) == '/')
+      return true;
+    int end = src.lastIndexOf('<');
+    for (int i = start+1; i < end; i++) {
+      if (!Character.isWhitespace(src.charAt(i)))
+        return false;
+    }
+    return true;
   }
 
   public boolean equalsDeep(XhtmlNode other) {
     if (other == null) {
       return false;
     }
+    String src = source;
+    if (src != null && src.equals(other.source))
+      return true;
+    parseSource();
+    other.parseSource();
 
     if (!(nodeType == other.nodeType) || !compare(name, other.name) || !compare(content, other.content))
       return false;
-    if (attributes.size() != other.attributes.size())
+    if (attributeCount() != other.attributeCount())
       return false;
-    for (String an : attributes.keySet())
-      if (!attributes.get(an).equals(other.attributes.get(an)))
-        return false;
-    if (childNodes.size() != other.childNodes.size())
+    if (attributes != null)
+      for (String an : attributes.keySet())
+        if (!compare(attributes.get(an), other.attributes.get(an)))
+          return false;
+    if (childCount() != other.childCount())
       return false;
-    for (int i = 0; i < childNodes.size(); i++) {
+    for (int i = 0; i < childCount(); i++) {
       if (!compareDeep(childNodes.get(i), other.childNodes.get(i)))
         return false;
     }
     return true;
   }
 
+  private int attributeCount() {
+    return attributes == null ? 0 : attributes.size();
+  }
+
+  private int childCount() {
+    return childNodes == null ? 0 : childNodes.size();
+  }
+
   private boolean compare(String s1, String s2) {
     if (s1 == null && s2 == null)
       return true;
@@ -347,6 +467,8 @@ public class XhtmlNode implements IBaseXhtml {
   }
 
   public String getNsDecl() {
+    if (!hasAttributes())
+      return null;
     for (String an : attributes.keySet()) {
       if (an.equals("xmlns")) {
         return attributes.get(an);
@@ -361,6 +483,9 @@ public class XhtmlNode implements IBaseXhtml {
     if (isEmpty()) {
       return null;
     }
+    String src = source;
+    if (src != null)
+      return XhtmlDt.preprocessXhtmlNamespaceDeclaration(src);
     try {
       String retVal = new XhtmlComposer(XhtmlComposer.XML).compose(this);
       retVal = XhtmlDt.preprocessXhtmlNamespaceDeclaration(retVal);
@@ -373,6 +498,7 @@ public class XhtmlNode implements IBaseXhtml {
 
   @Override
   public void setValueAsString(String theValue) throws IllegalArgumentException {
+    this.source = null;
     this.attributes = null;
     this.childNodes = null;
     this.content = null;
@@ -409,6 +535,8 @@ public class XhtmlNode implements IBaseXhtml {
   }
 
   public XhtmlNode getElementByIndex(int i) {
+    if (!hasChildren())
+      return null;
     int c = 0;
     for (XhtmlNode n : childNodes)
       if (n.getNodeType() == NodeType.Element) {
@@ -472,6 +600,7 @@ public class XhtmlNode implements IBaseXhtml {
 
 
   public Location getLocation() {
+    parseSource();
     return location;
   }
 
@@ -588,6 +717,8 @@ public class XhtmlNode implements IBaseXhtml {
 
   @Override
   public String toString() {
+    if (source != null)
+      return source;
     switch (nodeType) {
     case Document: 
     case Element:
@@ -610,6 +741,8 @@ public class XhtmlNode implements IBaseXhtml {
 
 
   public XhtmlNode getNextElement(XhtmlNode c) {
+    if (!hasChildren())
+      return null;
     boolean f = false;
     for (XhtmlNode n : childNodes) {
       if (n == c)
@@ -7,6 +7,9 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @SuiteClasses({ 
   JsonParserTests.class,
+  NDJsonWriterTests.class,
+  PackageCacheManagerTests.class,
+  PackageDependencyResolverTests.class,
   XhtmlNodeTest.class,
     XLSXmlNormaliserTests.class})
 
@@ -2,16 +2,87 @@ package org.hl7.fhir.utilities.tests;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
+import org.hl7.fhir.utilities.json.JsonLocations;
 import org.hl7.fhir.utilities.json.JsonTrackingParser;
+import org.hl7.fhir.utilities.json.JsonTrackingParser.LocationData;
 import org.junit.Test;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
 public class JsonParserTests {
 
+  private static final String SOURCE = "{\r\n  \"resourceType\": \"Patient\",\r\n  \"name\": [{\r\n    \"given\": [\"J\\u00e9r\\u00f4me\", \"A\\\"B\"]\r\n  }],\r\n  \"multipleBirthInteger\": 2,\r\n  \"active\": true\r\n}";
+
   @Test
   public void test() throws IOException {
     JsonTrackingParser.parseJson("{\r\n  \"index-version\": 1,\r\n  \"files\": []\r\n}");
   }
-  
+
+  @Test
+  public void testValues() throws IOException {
+    JsonObject json = JsonTrackingParser.parseJson(SOURCE.getBytes(StandardCharsets.UTF_8));
+    assertEquals("Patient", json.get("resourceType").getAsString());
+    assertEquals("Jérôme", json.getAsJsonArray("name").get(0).getAsJsonObject().getAsJsonArray("given").get(0).getAsString());
+    assertEquals("A\"B", json.getAsJsonArray("name").get(0).getAsJsonObject().getAsJsonArray("given").get(1).getAsString());
+    assertEquals("2", ((JsonTrackingParser.PresentedBigDecimal) json.get("multipleBirthInteger").getAsNumber()).getPresentation());
+    assertTrue(json.get("active").getAsBoolean());
+  }
+
+  @Test
+  public void testLocations() throws IOException {
+    Map<JsonElement, LocationData> map = new IdentityHashMap<JsonElement, LocationData>();
+    JsonObject json = JsonTrackingParser.parse(SOURCE, map);
+    JsonLocations locations = new JsonLocations();
+    JsonObject json2 = JsonTrackingParser.parseWithLocations(new ByteArrayInputStream(SOURCE.getBytes(StandardCharsets.UTF_8)), locations);
+    assertEquals(map.size(), countElements(json));
+    checkLocations(json, json2, map, locations);
+    assertEquals(6, locations.getLine(json2.get("multipleBirthInteger")));
+    assertEquals(-1, locations.getLine(new JsonObject()));
+  }
+
+  @Test
+  public void testErrors() {
+    try {
+      JsonTrackingParser.parseJson("{\r\n  \"active\": tru }");
+      fail("should have failed");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("at Line 2"));
+    }
+    try {
+      JsonTrackingParser.parseJson("{\"a\": \"b");
+      fail("should have failed");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("premature termination"));
+    }
+  }
+
+  private int countElements(JsonElement e) {
+    int res = 1;
+    if (e.isJsonObject())
+      for (Map.Entry<String, JsonElement> p : e.getAsJsonObject().entrySet())
+        res = res + countElements(p.getValue());
+    else if (e.isJsonArray())
+      for (JsonElement i : e.getAsJsonArray())
+        res = res + countElements(i);
+    return res;
+  }
+
+  private void checkLocations(JsonElement e1, JsonElement e2, Map<JsonElement, LocationData> map, JsonLocations locations) {
+    assertEquals(map.get(e1).getLine(), locations.getLine(e2));
+    assertEquals(map.get(e1).getCol(), locations.getCol(e2));
+    if (e1.isJsonObject())
+      for (Map.Entry<String, JsonElement> p : e1.getAsJsonObject().entrySet())
+        checkLocations(p.getValue(), e2.getAsJsonObject().get(p.getKey()), map, locations);
+    else if (e1.isJsonArray())
+      for (int i = 0; i < e1.getAsJsonArray().size(); i++)
+        checkLocations(e1.getAsJsonArray().get(i), e2.getAsJsonArray().get(i), map, locations);
+  }
+
 }
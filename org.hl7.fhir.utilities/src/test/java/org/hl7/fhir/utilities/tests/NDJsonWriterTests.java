@@ -0,0 +1,196 @@
+package org.hl7.fhir.utilities.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.hl7.fhir.utilities.NDJsonWriter;
+import org.hl7.fhir.utilities.TextFile;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class NDJsonWriterTests {
+
+  private static final String[] NO_EXT = new String[] {".schema.json", "package.json"};
+
+  private File folder() throws IOException {
+    return Files.createTempDirectory("ndjson").toFile();
+  }
+
+  private void file(File dir, String name, String content) throws IOException {
+    TextFile.bytesToFile(content.getBytes(StandardCharsets.UTF_8), new File(dir, name).getAbsolutePath());
+  }
+
+  /**
+   * What NDJsonWriter wrote when it parsed the resources with Gson
+   */
+  private Map<String, String> expected(File dir) throws IOException {
+    Gson gson = new GsonBuilder().create();
+    Map<String, List<String>> lines = new TreeMap<String, List<String>>();
+    Map<String, Set<String>> ids = new HashMap<String, Set<String>>();
+    for (String name : dir.list()) {
+      if (name.endsWith(".json") && !name.endsWith(".schema.json") && !name.endsWith("package.json")) {
+        // (this used to fail on anything but an object)
+        JsonElement js = new JsonParser().parse(TextFile.fileToString(new File(dir, name)));
+        if (js.isJsonObject() && js.getAsJsonObject().has("resourceType"))
+          expected(gson, js.getAsJsonObject(), lines, ids);
+      }
+    }
+    Map<String, String> res = new TreeMap<String, String>();
+    for (String rn : lines.keySet())
+      res.put(rn+".ndjson", String.join("\r\n", lines.get(rn)));
+    return res;
+  }
+
+  private void expected(Gson gson, JsonObject js, Map<String, List<String>> lines, Map<String, Set<String>> ids) {
+    String rn = js.get("resourceType").getAsString();
+    if (rn.equals("Bundle")) {
+      if (js.has("entry"))
+        for (JsonElement item : js.getAsJsonArray("entry"))
+          if (item instanceof JsonObject && ((JsonObject) item).has("resource"))
+            expected(gson, (JsonObject) ((JsonObject) item).get("resource"), lines, ids);
+    } else if (js.has("id")) {
+      if (!ids.containsKey(rn)) {
+        ids.put(rn, new HashSet<String>());
+        lines.put(rn, new ArrayList<String>());
+      }
+      if (ids.get(rn).add(js.get("id").getAsString()))
+        lines.get(rn).add(gson.toJson(js));
+    }
+  }
+
+  private Map<String, String> write(File dir) throws IOException {
+    File scratch = folder();
+    File zip = new File(folder(), "out.zip");
+    NDJsonWriter writer = new NDJsonWriter(zip.getAbsolutePath(), scratch.getAbsolutePath());
+    writer.setThreads(3);
+    writer.addFilesFiltered(dir.getAbsolutePath()+File.separator, ".json", NO_EXT);
+    writer.close();
+    assertEquals("scratch files left behind", 0, scratch.list().length);
+
+    Map<String, String> res = new TreeMap<String, String>();
+    ZipFile zf = new ZipFile(zip);
+    try {
+      for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements(); ) {
+        ZipEntry ze = e.nextElement();
+        InputStream s = zf.getInputStream(ze);
+        try {
+          res.put(ze.getName(), read(s));
+        } finally {
+          s.close();
+        }
+      }
+    } finally {
+      zf.close();
+    }
+    // and the same, reading the local headers
+    ZipInputStream zi = new ZipInputStream(Files.newInputStream(zip.toPath()));
+    try {
+      int count = 0;
+      ZipEntry ze;
+      while ((ze = zi.getNextEntry()) != null) {
+        assertEquals(ze.getName(), res.get(ze.getName()), read(zi));
+        count++;
+      }
+      assertEquals(res.size(), count);
+    } finally {
+      zi.close();
+    }
+    return res;
+  }
+
+  private String read(InputStream s) throws IOException {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = s.read(buffer)) > -1)
+      b.write(buffer, 0, n);
+    return new String(b.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private File resources() throws IOException {
+    File dir = folder();
+    file(dir, "patient.json", "{\r\n  \"resourceType\": \"Patient\",\r\n  \"id\": \"p1\",\r\n  \"name\": [ {\r\n    \"family\": \"Châtelet\",\r\n    \"given\": [ \"A B\" ]\r\n  } ],\r\n  \"active\": true,\r\n  \"multipleBirthInteger\": 2\r\n}");
+    file(dir, "bundle.json", "{\"resourceType\": \"Bundle\", \"id\": \"b1\", \"entry\": [\r\n"
+        + "  {\"resource\": {\"resourceType\": \"Observation\", \"id\": \"o1\", \"valueQuantity\": {\"value\": 1.50}}},\r\n"
+        + "  {\"fullUrl\": \"urn:uuid:1\"},\r\n"
+        + "  {\"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\", \"gender\": \"other\"}},\r\n"
+        + "  {\"resource\": {\"resourceType\": \"Patient\", \"id\": \"p2\"}},\r\n"
+        + "  {\"resource\": {\"resourceType\": \"Bundle\", \"entry\": [{\"resource\": {\"resourceType\": \"Observation\", \"id\": \"o2\"}}]}}\r\n"
+        + "]}");
+    file(dir, "no-id.json", "{\"resourceType\": \"Patient\", \"active\": false}");
+    file(dir, "not-a-resource.json", "[1, 2]");
+    file(dir, "x.schema.json", "{\"resourceType\": \"Patient\", \"id\": \"schema\"}");
+    file(dir, "notes.txt", "{\"resourceType\": \"Patient\", \"id\": \"txt\"}");
+    return dir;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    File dir = resources();
+    Map<String, String> zip = write(dir);
+    assertEquals(expected(dir), zip);
+    assertEquals("{\"resourceType\":\"Observation\",\"id\":\"o1\",\"valueQuantity\":{\"value\":1.50}}\r\n{\"resourceType\":\"Observation\",\"id\":\"o2\"}", zip.get("Observation.ndjson"));
+    assertTrue(zip.get("Patient.ndjson").startsWith("{\"resourceType\":\"Patient\",\"id\":\"p1\",\"name\":[{\"family\":\"Châtelet\""));
+    assertEquals(2, zip.get("Patient.ndjson").split("\r\n").length);
+  }
+
+  @Test
+  public void testSameAsGson() throws IOException {
+    File dir = folder();
+    file(dir, "nulls.json", "{\"resourceType\": \"Patient\", \"id\": \"nulls\", \"gender\": null, \"x\": [1, null, 2]}");
+    file(dir, "html.json", "{\"resourceType\": \"Patient\", \"id\": \"html\", \"text\": {\"div\": \"<div xmlns='x'>a &amp; b = c</div>\"}}");
+    file(dir, "escapes.json", "{\"resourceType\": \"Patient\", \"id\": \"escapes\", \"a\": \"J\\u00e9r\\u00f4me\", \"b\": \"a\\/b\", \"c\": \"line\\nbreak\\t\\\"q\\\"\"}");
+    file(dir, "unicode.json", "{\"resourceType\": \"Patient\", \"id\": \"unicode\", \"a\": \"x\u2028y\u2029z\", \"b\": \"bo\uFEFFm\", \"c\": \"\uD83D\uDE00\"}");
+    file(dir, "numbers.json", "{\"resourceType\": \"Observation\", \"id\": \"numbers\", \"v\": [0, -0, -0.0, 10, 1.50, 1e5, -2E-3, 12345678901234567890]}");
+    file(dir, "number-id.json", "{\"resourceType\": \"Observation\", \"id\": 42}");
+    file(dir, "lenient.json", "{'resourceType': 'Observation', 'id': 'lenient', status: final}");
+    file(dir, "bom.json", "\uFEFF{\"resourceType\": \"Observation\", \"id\": \"bom\"}");
+    file(dir, "entry.json", "{\"resourceType\": \"Bundle\", \"entry\": [{\"resource\": {\"resourceType\": \"Observation\", \"id\": \"e1\", \"note\": \"1 < 2\", \"v\": null}}]}");
+    assertEquals(expected(dir), write(dir));
+  }
+
+  @Test
+  public void testDuplicateProperties() throws IOException {
+    // Gson keeps the last value
+    File dir = folder();
+    file(dir, "dup.json", "{\"resourceType\": \"Patient\", \"id\": \"dup\", \"gender\": \"male\", \"gender\": \"female\"}");
+    assertEquals("{\"resourceType\":\"Patient\",\"id\":\"dup\",\"gender\":\"female\"}", write(dir).get("Patient.ndjson"));
+  }
+
+  @Test
+  public void testManyIds() throws IOException {
+    // every distinct id is kept, and only exact duplicates are dropped
+    File dir = folder();
+    StringBuilder b = new StringBuilder("{\"resourceType\": \"Bundle\", \"entry\": [");
+    for (int i = 0; i < 20000; i++)
+      b.append("{\"resource\": {\"resourceType\": \"Basic\", \"id\": \"id"+i+"\"}},");
+    b.append("{\"resource\": {\"resourceType\": \"Basic\", \"id\": \"id0\"}}]}");
+    file(dir, "many.json", b.toString());
+    Map<String, String> zip = write(dir);
+    assertEquals(expected(dir), zip);
+    assertEquals(20000, zip.get("Basic.ndjson").split("\r\n").length);
+  }
+
+}
@@ -0,0 +1,202 @@
+package org.hl7.fhir.utilities.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.hl7.fhir.utilities.IniFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.cache.NpmPackage;
+import org.hl7.fhir.utilities.cache.PackageCacheManager;
+import org.junit.Test;
+
+public class PackageCacheManagerTests {
+
+  private static final String ID = "test.pkg";
+  private static final String VER = "1.0.0";
+
+  private File folder() throws IOException {
+    return Files.createTempDirectory("packages").toFile();
+  }
+
+  private byte[] tgz() throws IOException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(bs))) {
+      entry(tar, "package/package.json", "{\"name\" : \""+ID+"\", \"version\" : \""+VER+"\", \"canonical\" : \"http://example.org/fhir/test\"}");
+      for (int i = 0; i < 50; i++) {
+        StringBuilder b = new StringBuilder();
+        b.append("{\"resourceType\" : \"ValueSet\", \"id\" : \"vs"+i+"\", \"url\" : \"http://example.org/fhir/test/ValueSet/vs"+i+"\", \"description\" : \"");
+        for (int j = 0; j < 200; j++)
+          b.append(Integer.toHexString(i * 7919 + j * 104729));
+        b.append("\"}");
+        entry(tar, "package/ValueSet-vs"+i+".json", b.toString());
+      }
+    }
+    return bs.toByteArray();
+  }
+
+  private void entry(TarArchiveOutputStream tar, String name, String content) throws IOException {
+    byte[] b = content.getBytes(StandardCharsets.UTF_8);
+    TarArchiveEntry e = new TarArchiveEntry(name);
+    e.setSize(b.length);
+    tar.putArchiveEntry(e);
+    tar.write(b);
+    tar.closeArchiveEntry();
+  }
+
+  private void checkInstalled(File dir) throws IOException {
+    assertTrue(new File(Utilities.path(dir.getAbsolutePath(), ID+"#"+VER, "package", "package.json")).exists());
+    assertTrue(new File(Utilities.path(dir.getAbsolutePath(), ID+"#"+VER, "package", "ValueSet-vs49.json")).exists());
+    IniFile ini = new IniFile(Utilities.path(dir.getAbsolutePath(), "packages.ini"));
+    assertNotNull(ini.getStringProperty("packages", ID+"#"+VER));
+    checkClean(dir);
+  }
+
+  /**
+   * nothing left in scratch, and no lock files except the one for packages.ini
+   */
+  private void checkClean(File dir) throws IOException {
+    String[] tmp = new File(dir, ".tmp").list();
+    assertTrue(tmp == null || tmp.length == 0);
+    String[] locks = new File(dir, ".locks").list();
+    if (locks != null) {
+      for (String s : locks)
+        assertEquals("packages.ini.lock", s);
+    }
+  }
+
+  @Test
+  public void testInstall() throws IOException {
+    File dir = folder();
+    PackageCacheManager pcm = new PackageCacheManager(dir.getAbsolutePath(), 0);
+    NpmPackage npm = pcm.addPackageToCache(ID, VER, new ByteArrayInputStream(tgz()), "test");
+    assertEquals(ID, npm.name());
+    assertEquals(VER, npm.version());
+    checkInstalled(dir);
+    assertNotNull(pcm.loadPackageFromCacheOnly(ID, VER));
+
+    pcm.removePackage(ID, VER);
+    assertFalse(new File(dir, ID+"#"+VER).exists());
+    checkClean(dir);
+  }
+
+  @Test
+  public void testConcurrentInstalls() throws Exception {
+    File dir = folder();
+    byte[] tgz = tgz();
+    int count = 8;
+    ExecutorService ex = Executors.newFixedThreadPool(count);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<NpmPackage>> results = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        // each has its own manager, as each process would
+        PackageCacheManager pcm = new PackageCacheManager(dir.getAbsolutePath(), 0);
+        results.add(ex.submit(new Callable<NpmPackage>() {
+          @Override
+          public NpmPackage call() throws Exception {
+            start.await();
+            return pcm.addPackageToCache(ID, VER, new ByteArrayInputStream(tgz), "test");
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<NpmPackage> f : results) {
+        NpmPackage npm = f.get();
+        assertEquals(ID, npm.name());
+        assertEquals(VER, npm.version());
+      }
+    } finally {
+      ex.shutdown();
+    }
+    int n = 0;
+    for (String s : dir.list()) {
+      if (s.startsWith(ID+"#"))
+        n++;
+    }
+    assertEquals(1, n);
+    checkInstalled(dir);
+  }
+
+  @Test
+  public void testInterruptedInstall() throws IOException {
+    File dir = folder();
+    PackageCacheManager pcm = new PackageCacheManager(dir.getAbsolutePath(), 0);
+    byte[] tgz = tgz();
+    try {
+      pcm.addPackageToCache(ID, VER, new Interrupted(new ByteArrayInputStream(tgz), tgz.length / 2), "test");
+      fail("should have failed");
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+    assertFalse(new File(dir, ID+"#"+VER).exists());
+    IniFile ini = new IniFile(Utilities.path(dir.getAbsolutePath(), "packages.ini"));
+    assertNull(ini.getStringProperty("packages", ID+"#"+VER));
+    checkClean(dir);
+
+    // and it can still be installed afterwards
+    pcm.addPackageToCache(ID, VER, new ByteArrayInputStream(tgz), "test");
+    checkInstalled(dir);
+  }
+
+  @Test
+  public void testStaleInstallsCleared() throws IOException {
+    File dir = folder();
+    File stale = new File(Utilities.path(dir.getAbsolutePath(), ".tmp", "stale", "package"));
+    File recent = new File(Utilities.path(dir.getAbsolutePath(), ".tmp", "recent", "package"));
+    stale.mkdirs();
+    recent.mkdirs();
+    stale.getParentFile().setLastModified(System.currentTimeMillis() - 2 * 24 * 60 * 60 * 1000L);
+    
+    new PackageCacheManager(dir.getAbsolutePath(), 0);
+    assertFalse(stale.getParentFile().exists());
+    assertTrue(recent.getParentFile().exists()); // could be another process installing right now
+  }
+
+  /**
+   * a download that fails part way through
+   */
+  private class Interrupted extends FilterInputStream {
+    private int left;
+
+    protected Interrupted(InputStream in, int length) {
+      super(in);
+      left = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (left <= 0)
+        throw new IOException("connection reset");
+      left--;
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (left <= 0)
+        throw new IOException("connection reset");
+      int res = super.read(b, off, Math.min(len, left));
+      if (res > 0)
+        left -= res;
+      return res;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package org.hl7.fhir.utilities.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.cache.NpmPackage;
+import org.hl7.fhir.utilities.cache.PackageCacheManager;
+import org.hl7.fhir.utilities.cache.PackageDependencyResolver;
+import org.hl7.fhir.utilities.cache.PackageDependencyResolver.PackageSource;
+import org.hl7.fhir.utilities.cache.PackageDependencyResolver.ResolvedPackage;
+import org.junit.Test;
+
+/**
+ * All the packages come from a mirror folder, so nothing here goes to the network
+ */
+public class PackageDependencyResolverTests {
+
+  private File mirror;
+  private PackageCacheManager pcm;
+
+  private void setup() throws IOException {
+    mirror = Files.createTempDirectory("mirror").toFile();
+    pcm = new PackageCacheManager(Files.createTempDirectory("packages").toFile().getAbsolutePath(), 0);
+  }
+
+  /**
+   * @param deps id#version of each dependency
+   */
+  private byte[] tgz(String id, String version, String... deps) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append("{\"name\" : \""+id+"\", \"version\" : \""+version+"\", \"fhirVersions\" : [\"4.0.1\"], \"dependencies\" : {");
+    for (int i = 0; i < deps.length; i++) {
+      String[] p = deps[i].split("\\#");
+      b.append((i == 0 ? "" : ", ")+"\""+p[0]+"\" : \""+p[1]+"\"");
+    }
+    b.append("}}");
+    byte[] content = b.toString().getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(bs))) {
+      TarArchiveEntry e = new TarArchiveEntry("package/package.json");
+      e.setSize(content.length);
+      tar.putArchiveEntry(e);
+      tar.write(content);
+      tar.closeArchiveEntry();
+    }
+    return bs.toByteArray();
+  }
+
+  private void mirror(String id, String version, String... deps) throws IOException {
+    TextFile.bytesToFile(tgz(id, version, deps), new File(mirror, id+"#"+version+".tgz").getAbsolutePath());
+  }
+
+  private List<ResolvedPackage> resolve(int threads, String... deps) throws IOException {
+    PackageDependencyResolver resolver = new PackageDependencyResolver(pcm);
+    resolver.addMirror(mirror.getAbsolutePath());
+    resolver.setThreads(threads);
+    return resolver.resolve(NpmPackage.fromPackage(new ByteArrayInputStream(tgz("test.root", "1.0.0", deps))));
+  }
+
+  private String ids(List<ResolvedPackage> list) {
+    List<String> res = new ArrayList<>();
+    for (ResolvedPackage p : list)
+      res.add(p.getId()+"#"+p.getVersion());
+    return String.join(",", res);
+  }
+
+  @Test
+  public void testOrder() throws IOException {
+    setup();
+    mirror("test.a", "1.0.0", "test.c#1.0.0");
+    mirror("test.b", "1.0.0", "test.c#1.0.0", "test.d#1.0.0");
+    mirror("test.c", "1.0.0");
+    mirror("test.d", "1.0.0", "test.c#1.0.0");
+
+    // dependencies come before the packages that depend on them, in the order the manifests list them
+    List<ResolvedPackage> res = resolve(4, "test.a#1.0.0", "test.b#1.0.0");
+    assertEquals("test.c#1.0.0,test.a#1.0.0,test.d#1.0.0,test.b#1.0.0", ids(res));
+    for (ResolvedPackage p : res)
+      assertEquals(PackageSource.MIRROR, p.getSource());
+    assertEquals("[test.c#1.0.0, test.d#1.0.0]", res.get(3).getDependencies().toString());
+
+    // the second time, they're all in the cache
+    res = resolve(4, "test.a#1.0.0", "test.b#1.0.0");
+    assertEquals("test.c#1.0.0,test.a#1.0.0,test.d#1.0.0,test.b#1.0.0", ids(res));
+    for (ResolvedPackage p : res)
+      assertEquals(PackageSource.CACHE, p.getSource());
+  }
+
+  /**
+   * a wide graph, so the installs really do overlap
+   * 
+   * @return all the packages
+   */
+  private String[] mirrorWide() throws IOException {
+    List<String> all = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      List<String> deps = new ArrayList<>();
+      for (int j = i+1; j < 20; j += 3)
+        deps.add("test.p"+j+"#1.0.0");
+      mirror("test.p"+i, "1.0.0", deps.toArray(new String[deps.size()]));
+      all.add("test.p"+i+"#1.0.0");
+    }
+    return all.toArray(new String[all.size()]);
+  }
+
+  @Test
+  public void testOrderDoesNotDependOnThreads() throws IOException {
+    setup();
+    String parallel = ids(resolve(8, mirrorWide()));
+    setup();
+    String serial = ids(resolve(1, mirrorWide()));
+    assertEquals(serial, parallel);
+    assertEquals(20, parallel.split("\\,").length);
+  }
+
+  @Test(timeout = 30000)
+  public void testCycle() throws IOException {
+    setup();
+    mirror("test.a", "1.0.0", "test.b#1.0.0");
+    mirror("test.b", "1.0.0", "test.a#1.0.0");
+
+    // each is installed and listed once, and the cycle is broken where it was found
+    assertEquals("test.b#1.0.0,test.a#1.0.0", ids(resolve(4, "test.a#1.0.0")));
+  }
+
+  @Test
+  public void testVersionConflict() throws IOException {
+    setup();
+    mirror("test.a", "1.0.0");
+    mirror("test.a", "2.0.0");
+    mirror("test.b", "1.0.0", "test.a#2.0.0");
+
+    // versions aren't reconciled - both are installed, and listed ahead of the package that asked for them
+    List<ResolvedPackage> res = resolve(4, "test.a#1.0.0", "test.b#1.0.0");
+    assertEquals("test.a#1.0.0,test.a#2.0.0,test.b#1.0.0", ids(res));
+    assertTrue(pcm.hasPackage("test.a", "1.0.0"));
+    assertTrue(pcm.hasPackage("test.a", "2.0.0"));
+  }
+
+  @Test
+  public void testSkip() throws IOException {
+    setup();
+    mirror("test.a", "1.0.0", "test.c#1.0.0");
+    mirror("test.b", "1.0.0");
+
+    // the dependencies of a skipped package aren't followed
+    PackageDependencyResolver resolver = new PackageDependencyResolver(pcm);
+    resolver.addMirror(mirror.getAbsolutePath());
+    resolver.setSkip(s -> s.startsWith("test.a#"));
+    List<ResolvedPackage> res = resolver.resolve(NpmPackage.fromPackage(new ByteArrayInputStream(tgz("test.root", "1.0.0", "test.a#1.0.0", "test.b#1.0.0"))));
+    assertEquals("test.b#1.0.0", ids(res));
+  }
+}
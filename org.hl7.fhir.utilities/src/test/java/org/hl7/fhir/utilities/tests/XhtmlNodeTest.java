@@ -4,6 +4,8 @@ import org.junit.Test;
 
 import static org.junit.Assert.*;
 
+import org.hl7.fhir.utilities.xhtml.NodeType;
+import org.hl7.fhir.utilities.xhtml.XhtmlComposer;
 import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 
 public class XhtmlNodeTest {
@@ -26,5 +28,38 @@ public class XhtmlNodeTest {
 
   }
 
+  @Test
+  public void testLazy() throws Exception {
+    String src = "<div xmlns=\"http://www.w3.org/1999/xhtml\"><p class=\"x\">Some  <b>text</b></p></div>";
+    XhtmlNode node = XhtmlNode.lazy(src);
+    assertTrue(node.hasSource());
+    assertFalse(node.isEmpty());
+    assertEquals(src, new XhtmlComposer(XhtmlComposer.XML).compose(node));
+    assertTrue(node.hasSource());
+    assertTrue(node.equalsDeep(node.copy()));
+
+    XhtmlNode p = node.getElement("p");
+    assertFalse(node.hasSource());
+    assertEquals("x", p.getAttribute("class"));
+    assertEquals("Some  text", p.allText());
+    p.addText("!");
+    assertEquals("<div xmlns=\"http://www.w3.org/1999/xhtml\"><p class=\"x\">Some  <b>text</b>!</p></div>", new XhtmlComposer(XhtmlComposer.XML).compose(node));
+
+    assertTrue(XhtmlNode.lazy("<div xmlns=\"http://www.w3.org/1999/xhtml\"/>").isEmpty());
+  }
+
+  @Test
+  public void testCompactStorage() throws Exception {
+    XhtmlNode node = new XhtmlNode(NodeType.Element, "div");
+    assertFalse(node.hasChildren());
+    assertFalse(node.hasAttributes());
+    assertNull(node.getAttribute("class"));
+    assertFalse(node.hasChildren());
+    node.br();
+    node.tx("text");
+    assertTrue(node.hasChildren());
+    assertFalse(node.getChildNodes().get(0).hasChildren());
+    assertEquals("<div><br/>text</div>", new XhtmlComposer(XhtmlComposer.XML).compose(node));
+  }
 
 }
\ No newline at end of file
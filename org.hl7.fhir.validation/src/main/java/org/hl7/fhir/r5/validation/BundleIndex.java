@@ -0,0 +1,177 @@
+package org.hl7.fhir.r5.validation;
+
+/*-
+ * #%L
+ * org.hl7.fhir.validation
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+
+/**
+ * Lookup tables for the entries in a Bundle. 
+ * 
+ * The index is built once when validation of the bundle starts, so that resolving 
+ * references between the entries doesn't require a scan of the whole bundle for 
+ * every reference. Entries are indexed by fullUrl, and by [type]/[id] of their resource
+ * 
+ * Where more than one entry matches, lookups return the first in bundle order, 
+ * consistent with a linear scan of the entries
+ *
+ */
+public class BundleIndex {
+
+  public static final String USER_DATA_KEY = "validator.bundle.index";
+
+  private Element bundle;
+  private List<Element> entries = new ArrayList<>();
+  private Map<Element, Integer> positions = new IdentityHashMap<>();
+  private Map<String, List<Element>> byFullUrl = new HashMap<>();
+  private Map<String, Element> byTypeAndId = new HashMap<>();
+
+  private BundleIndex(Element bundle) {
+    this.bundle = bundle;
+    bundle.getNamedChildren("entry", entries);
+    for (int i = 0; i < entries.size(); i++) {
+      Element entry = entries.get(i);
+      positions.put(entry, i);
+      String fullUrl = entry.getChildValue("fullUrl");
+      if (fullUrl != null) {
+        List<Element> list = byFullUrl.get(fullUrl);
+        if (list == null) {
+          list = new ArrayList<>(1);
+          byFullUrl.put(fullUrl, list);
+        }
+        list.add(entry);
+      }
+      Element resource = getResource(entry);
+      if (resource != null) {
+        String id = resource.getChildValue("id");
+        if (id != null) {
+          String key = resource.fhirType()+"/"+id;
+          if (!byTypeAndId.containsKey(key))
+            byTypeAndId.put(key, entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Build the index for the bundle, and keep it with the bundle for the rest of the validation
+   */
+  public static BundleIndex build(Element bundle) {
+    BundleIndex res = new BundleIndex(bundle);
+    bundle.setUserData(USER_DATA_KEY, res);
+    return res;
+  }
+
+  /**
+   * get the index for the bundle, building it if no index exists yet
+   */
+  public static BundleIndex forBundle(Element bundle) {
+    BundleIndex res = (BundleIndex) bundle.getUserData(USER_DATA_KEY);
+    if (res == null || res.bundle != bundle)
+      res = build(bundle);
+    return res;
+  }
+
+  /**
+   * index the contained resources of a resource by id. Where ids are repeated, the first one wins
+   */
+  public static Map<String, Element> indexContained(Element container) {
+    List<Element> contained = new ArrayList<Element>();
+    container.getNamedChildren("contained", contained);
+    if (contained.isEmpty())
+      return Collections.emptyMap();
+    Map<String, Element> res = new HashMap<>();
+    for (Element we : contained) {
+      String id = we.getChildValue("id");
+      if (id != null && !res.containsKey(id))
+        res.put(id, we);
+    }
+    return res;
+  }
+
+  public Element getBundle() {
+    return bundle;
+  }
+
+  public List<Element> getEntries() {
+    return entries;
+  }
+
+  /**
+   * all the entries that have the given fullUrl, in bundle order
+   */
+  public List<Element> getEntriesByFullUrl(String fullUrl) {
+    List<Element> res = fullUrl == null ? null : byFullUrl.get(fullUrl);
+    return res == null ? Collections.<Element>emptyList() : res;
+  }
+
+  /**
+   * the first entry that has the given fullUrl
+   */
+  public Element getEntryByFullUrl(String fullUrl) {
+    List<Element> res = getEntriesByFullUrl(fullUrl);
+    return res.isEmpty() ? null : res.get(0);
+  }
+
+  /**
+   * the first entry that has a resource with the given type and id
+   */
+  public Element getEntryByTypeAndId(String type, String id) {
+    return byTypeAndId.get(type+"/"+id);
+  }
+
+  /**
+   * the first entry with a resource where the url is either the fullUrl, or [type]/[id] of the resource
+   */
+  public Element getResourceByUrl(String url) {
+    Element best = null;
+    for (Element entry : getEntriesByFullUrl(url)) {
+      if (getResource(entry) != null) {
+        best = entry;
+        break;
+      }
+    }
+    Element other = byTypeAndId.get(url);
+    if (other != null && (best == null || positions.get(other) < positions.get(best)))
+      best = other;
+    return best == null ? null : getResource(best);
+  }
+
+  // invalid bundles may have more than one resource in an entry; that's reported elsewhere, so don't blow up here
+  private static Element getResource(Element entry) {
+    List<Element> list = entry.getChildrenByName("resource");
+    return list.isEmpty() ? null : list.get(0);
+  }
+
+  /**
+   * the position of the entry in the bundle, or -1 if it's not an entry in this bundle
+   */
+  public int indexOf(Element entry) {
+    Integer res = positions.get(entry);
+    return res == null ? -1 : res;
+  }
+}
@@ -0,0 +1,179 @@
+package org.hl7.fhir.r5.validation;
+
+/*-
+ * #%L
+ * org.hl7.fhir.validation
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.formats.BinaryParser;
+import org.hl7.fhir.r5.model.Constants;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.cache.NpmPackage;
+import org.hl7.fhir.utilities.cache.PackageCacheManager;
+
+/**
+ * Keeps the R5 form of the resources in an R2/R3/R4 package in the package cache, so
+ * that the parse and version conversion only happen the first time the package is loaded.
+ *
+ * The converted resources are kept in the binary format (see BinaryParser) in a single
+ * file in the derived content folder of the package. The file records the package date
+ * and the version of the converters that produced it; if either doesn't match, it's
+ * ignored and rebuilt. Resources that fail to convert are kept in their original form,
+ * so the error is reported the same way on each load
+ */
+public class ConvertedPackageCache {
+
+  public interface IResourceConvertor {
+    Resource convert(String name, byte[] content) throws Exception;
+  }
+
+  /**
+   * file names of the converted resources end with this. Anything else is the original content
+   */
+  public static final String EXTENSION = ".r5b";
+
+  /**
+   * the name of the file in the derived content folder of the package
+   */
+  public static final String FILE_NAME = "r5-converted.bin";
+
+  private static final String MAGIC = "fhir-converted-package";
+  private static final int FORMAT = 1;
+
+  private PackageCacheManager pcm;
+  private String convertorVersion;
+  private String r5Version;
+
+  /**
+   * @param convertorVersion identifies the convertors (and R5 model) in use. Anything
+   *   cached by a different version is discarded
+   */
+  public ConvertedPackageCache(PackageCacheManager pcm, String convertorVersion) {
+    this(pcm, convertorVersion, Constants.VERSION);
+  }
+
+  /**
+   * @param r5Version the version of R5 the resources are converted to (normally Constants.VERSION)
+   */
+  public ConvertedPackageCache(PackageCacheManager pcm, String convertorVersion, String r5Version) {
+    this.pcm = pcm;
+    this.convertorVersion = convertorVersion;
+    this.r5Version = r5Version;
+  }
+
+  /**
+   * @return the identity of this build of the validator, or null if it's not known
+   *   (running from source), in which case there's no safe way to know whether the
+   *   cache is current
+   */
+  public static String defaultConvertorVersion() {
+    if (VersionUtil.getBuildNumber() == null || "(unknown)".equals(VersionUtil.getVersion()))
+      return null;
+    return VersionUtil.getVersion()+"#"+VersionUtil.getBuildNumber();
+  }
+
+  public static boolean needsConversion(NpmPackage pi) {
+    String v = pi.fhirVersion();
+    return v != null && (v.startsWith("1.0") || v.startsWith("1.4") || v.startsWith("3.0") || v.startsWith("4.0"));
+  }
+
+  /**
+   * @param source the resources in the package, by file name, as read from the package
+   * @return the resources, by file name, with the converted ones in binary form (named [file]EXTENSION)
+   */
+  public Map<String, byte[]> convert(NpmPackage pi, Map<String, byte[]> source, IResourceConvertor convertor) throws IOException {
+    String key = key(pi);
+    Map<String, byte[]> res = read(pcm.loadDerived(pi.name(), pi.version(), FILE_NAME), key);
+    if (res != null)
+      return res;
+
+    Map<String, byte[]> converted = Collections.synchronizedMap(new HashMap<>());
+    source.keySet().parallelStream().forEach(fn -> {
+      try {
+        Resource r = convertor.convert(fn, source.get(fn));
+        converted.put(fn+EXTENSION, new BinaryParser().composeBytes(r));
+      } catch (Exception e) {
+        converted.put(fn, source.get(fn));
+      }
+    });
+    res = new HashMap<>(converted);
+    pcm.saveDerived(pi.name(), pi.version(), FILE_NAME, write(res, key));
+    return res;
+  }
+
+  private String key(NpmPackage pi) {
+    return pi.name()+"#"+pi.version()+"|"+pi.date()+"|"+r5Version+"|"+convertorVersion;
+  }
+
+  private byte[] write(Map<String, byte[]> content, String key) throws IOException {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(b);
+    out.writeUTF(MAGIC);
+    out.writeInt(FORMAT);
+    out.writeUTF(key);
+    List<String> names = new ArrayList<>(content.keySet());
+    Collections.sort(names);
+    out.writeInt(names.size());
+    for (String fn : names) {
+      byte[] cnt = content.get(fn);
+      out.writeUTF(fn);
+      out.writeInt(cnt.length);
+      out.write(cnt);
+    }
+    out.close();
+    return b.toByteArray();
+  }
+
+  private Map<String, byte[]> read(byte[] content, String key) {
+    if (content == null)
+      return null;
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+      if (!MAGIC.equals(in.readUTF()) || in.readInt() != FORMAT || !key.equals(in.readUTF()))
+        return null;
+      int count = in.readInt();
+      Map<String, byte[]> res = new HashMap<>();
+      for (int i = 0; i < count; i++) {
+        String fn = in.readUTF();
+        byte[] cnt = new byte[in.readInt()];
+        in.readFully(cnt);
+        res.put(fn, cnt);
+      }
+      return res;
+    } catch (Exception e) {
+      // truncated or corrupt - treat it as missing, and it'll be replaced
+      return null;
+    }
+  }
+
+  public static boolean isConverted(String fn) {
+    return !Utilities.noString(fn) && fn.endsWith(EXTENSION);
+  }
+}
@@ -66,11 +66,20 @@ public class EnableWhenEvaluator {
     private static final long serialVersionUID = 1L;
     private Questionnaire q;
     private Element a;
+    private QuestionnaireIndex index;
+    // the answers in the response, by linkId, for each group that's been looked in. Shared by all the stacks for a response
+    private Map<Element, Map<String, List<Element>>> answers;
         
     public QStack(Questionnaire q, Element a) {
+      this(q, new QuestionnaireIndex(q), a);
+    }
+
+    public QStack(Questionnaire q, QuestionnaireIndex index, Element a) {
       super();
       this.q = q;
       this.a = a;
+      this.index = index;
+      this.answers = new IdentityHashMap<>();
     }
 
 
@@ -84,8 +93,14 @@ public class EnableWhenEvaluator {
     }
 
 
+    public QuestionnaireIndex getIndex() {
+      return index;
+    }
+
+
     public QStack push(QuestionnaireItemComponent q, Element a) {
-      QStack self = new QStack(this.q, this.a);
+      QStack self = new QStack(this.q, this.index, this.a);
+      self.answers = this.answers;
       self.addAll(this);
       self.add(new QuestionnaireAnswerPair(q, a));
       return self;
@@ -135,8 +150,11 @@ public class EnableWhenEvaluator {
    */
   public boolean isQuestionEnabled(ValidatorHostContext hostContext, QuestionnaireItemComponent qitem, QStack qstack, FHIRPathEngine engine) {
     if (hasExpressionExtension(qitem)) {
-      String expr = getExpression(qitem);
-      ExpressionNode node = engine.parse(expr);
+      ExpressionNode node = qstack.getIndex().getEnableWhenExpression(qitem);
+      if (node == null) {
+        node = engine.parse(getExpression(qitem));
+        qstack.getIndex().setEnableWhenExpression(qitem, node);
+      }
       return engine.evaluateToBoolean(hostContext, qstack.a, qstack.a, qstack.a, node);
     }
     
@@ -298,17 +316,17 @@ public class EnableWhenEvaluator {
       - work up from sourceA until you find the QR group that matches groupQ - this is groupA
       - any targetA in groupA are input for the enableWhen decision
    */
-  private List<Element> findQuestionAnswers(QStack qstack, QuestionnaireItemComponent sourceQ, QuestionnaireItemEnableWhenComponent ew) {
-    QuestionnaireItemComponent targetQ = qstack.getQ().getQuestion(ew.getQuestion());
+  protected List<Element> findQuestionAnswers(QStack qstack, QuestionnaireItemComponent sourceQ, QuestionnaireItemEnableWhenComponent ew) {
+    QuestionnaireItemComponent targetQ = qstack.getIndex().getQuestion(ew.getQuestion());
       if (targetQ != null) {
-      QuestionnaireItemComponent groupQ = qstack.getQ().getCommonGroup(sourceQ, targetQ);
+      QuestionnaireItemComponent groupQ = qstack.getIndex().getCommonGroup(sourceQ, targetQ);
       if (groupQ == null) { // root is Q itself
-        return findOnItem(qstack.getA(), ew.getQuestion());
+        return findOnItem(qstack, qstack.getA(), ew.getQuestion());
       } else {
         for (int i = qstack.size() - 1; i >= 0; i--) {
           if (qstack.get(i).getQ() == groupQ) {
             // group A
-            return findOnItem(qstack.get(i).getA(), ew.getQuestion());
+            return findOnItem(qstack, qstack.get(i).getA(), ew.getQuestion());
           }
         }
       }
@@ -316,27 +334,34 @@ public class EnableWhenEvaluator {
     return new ArrayList<>();
   }
 
-  private List<Element> findOnItem(Element focus, String question) {
-    List<Element> retVal = new ArrayList<>();
-    List<Element> items = focus.getChildren(ITEM_ELEMENT);
-    for (Element item : items) {
-      if (hasLinkId(item, question)) {
-        List<Element> answers = extractAnswer(item);
-        retVal.addAll(answers);
-      }
-      retVal.addAll(findOnItem(item, question));
+  /**
+   * the answers to the question anywhere in the focus. The answers in a group are indexed by linkId 
+   * the first time the group is looked in, so each condition is a lookup, not a walk of the group
+   */
+  private List<Element> findOnItem(QStack qstack, Element focus, String question) {
+    Map<String, List<Element>> index = qstack.answers.get(focus);
+    if (index == null) {
+      index = new HashMap<>();
+      indexAnswers(focus, index);
+      qstack.answers.put(focus, index);
     }
+    List<Element> res = index.get(question);
+    return res == null ? new ArrayList<>() : res;
+  }
 
-    // In case the question with the enableWhen is a direct child of the question with
-    // the answer that it depends on. There is an example of this in the
+  private void indexAnswers(Element focus, Map<String, List<Element>> index) {
+    // the focus itself is included in case the question with the enableWhen is a direct child of the 
+    // question with the answer that it depends on. There is an example of this in the
     // "BO_ConsDrop" question in this test case:
     // https://github.com/jamesagnew/hapi-fhir/blob/master/hapi-fhir-validation/src/test/resources/dstu3/fmc03-questionnaire.json
-    if (hasLinkId(focus, question)) {
+    Element linkId = focus.getNamedChild(LINKID_ELEMENT);
+    if (linkId != null && linkId.getValue() != null) {
       List<Element> answers = extractAnswer(focus);
-      retVal.addAll(answers);
+      if (!answers.isEmpty())
+        index.computeIfAbsent(linkId.getValue(), k -> new ArrayList<>()).addAll(answers);
     }
-
-    return retVal;
+    for (Element item : focus.getChildren(ITEM_ELEMENT))
+      indexAnswers(item, index);
   }
 
 
@@ -376,12 +401,4 @@ public class EnableWhenEvaluator {
     }
     return true;
   }
-
-  private boolean hasLinkId(Element item, String linkId) {
-    Element linkIdChild = item.getNamedChild(LINKID_ELEMENT);
-    if (linkIdChild != null && linkIdChild.getValue().equals(linkId)){
-      return true;
-    }
-    return false;
-  }
 }
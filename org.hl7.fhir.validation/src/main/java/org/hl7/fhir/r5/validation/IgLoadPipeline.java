@@ -0,0 +1,199 @@
+package org.hl7.fhir.r5.validation;
+
+/*-
+ * #%L
+ * org.hl7.fhir.validation
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.model.Resource;
+
+/**
+ * Loads the files of an IG in three stages: files are submitted as they are read,
+ * parsing and version conversion run on a pool of worker threads, and the resources
+ * are registered on the submitting thread, strictly in submission order.
+ *
+ * Registration only ever happens on one thread, and in a fixed order, so the
+ * context ends up the same as if the files had been loaded one at a time. Completed
+ * resources at the head of the queue are registered while files are still being
+ * submitted, so registration overlaps the parsing of later files
+ */
+public class IgLoadPipeline {
+
+  public interface IResourceLoader {
+    /**
+     * parse (and convert) a file. Return null if the file should be skipped. Anything thrown stops
+     * the load, and is reported against the file name
+     */
+    Resource load(String name, byte[] content, LoadTimings timings) throws Exception;
+  }
+
+  public interface IResourceRegistrar {
+    void register(String name, Resource resource) throws Exception;
+  }
+
+  /**
+   * cumulative time spent in each stage. parse and convert are summed across the worker
+   * threads, so they can add up to more than the wall time
+   */
+  public static class LoadTimings {
+    private long read;
+    private AtomicLong parse = new AtomicLong();
+    private AtomicLong convert = new AtomicLong();
+    private long register;
+    private long wall;
+    private int threads;
+    private AtomicInteger files = new AtomicInteger();
+    private AtomicInteger skipped = new AtomicInteger();
+
+    public void addParse(long nanos) {
+      parse.addAndGet(nanos);
+    }
+
+    public void addConvert(long nanos) {
+      convert.addAndGet(nanos);
+    }
+
+    public void setRead(long nanos) {
+      read = nanos;
+    }
+
+    public long getRead() {
+      return read / 1000000;
+    }
+
+    public long getParse() {
+      return parse.get() / 1000000;
+    }
+
+    public long getConvert() {
+      return convert.get() / 1000000;
+    }
+
+    public long getRegister() {
+      return register / 1000000;
+    }
+
+    public long getWall() {
+      return wall / 1000000;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    public int getFiles() {
+      return files.get();
+    }
+
+    public int getSkipped() {
+      return skipped.get();
+    }
+
+    public String summary() {
+      return Integer.toString(getFiles()-getSkipped())+" resources from "+getFiles()+" files in "+getWall()+"ms (read "+getRead()+"ms, parse "+getParse()+"ms, convert "+getConvert()+"ms on "+threads+" threads, register "+getRegister()+"ms)";
+    }
+  }
+
+  private class Item {
+    private String name;
+    private Future<Resource> resource;
+  }
+
+  private IResourceLoader loader;
+  private IResourceRegistrar registrar;
+  private ExecutorService executor;
+  private Deque<Item> pending = new ArrayDeque<>();
+  private LoadTimings timings = new LoadTimings();
+  private long start;
+
+  public IgLoadPipeline(int threads, IResourceLoader loader, IResourceRegistrar registrar) {
+    this.loader = loader;
+    this.registrar = registrar;
+    timings.threads = Math.max(1, threads);
+    executor = Executors.newFixedThreadPool(timings.threads, r -> {
+      Thread t = new Thread(r, "IG Loader");
+      t.setDaemon(true);
+      return t;
+    });
+    start = System.nanoTime();
+  }
+
+  public LoadTimings getTimings() {
+    return timings;
+  }
+
+  /**
+   * queue a file for parsing, and register any resources that are ready
+   */
+  public void submit(String name, byte[] content) throws Exception {
+    timings.files.incrementAndGet();
+    Item item = new Item();
+    item.name = name;
+    item.resource = executor.submit(() -> loader.load(name, content, timings));
+    pending.add(item);
+    while (!pending.isEmpty() && pending.peek().resource.isDone())
+      register(pending.remove());
+  }
+
+  /**
+   * wait for the remaining files, and register them. The pipeline can't be used after this
+   */
+  public LoadTimings finish() throws Exception {
+    try {
+      while (!pending.isEmpty())
+        register(pending.remove());
+    } finally {
+      executor.shutdownNow();
+      timings.wall = System.nanoTime() - start + timings.read;
+    }
+    return timings;
+  }
+
+  private void register(Item item) throws Exception {
+    Resource r;
+    try {
+      r = item.resource.get();
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      throw new FHIRException("Error loading "+item.name+": "+e.getCause().getMessage(), e.getCause());
+    }
+    if (r == null)
+      timings.skipped.incrementAndGet();
+    else {
+      long t = System.nanoTime();
+      try {
+        registrar.register(item.name, r);
+      } catch (Exception e) {
+        executor.shutdownNow();
+        throw e;
+      }
+      timings.register += System.nanoTime() - t;
+    }
+  }
+
+}
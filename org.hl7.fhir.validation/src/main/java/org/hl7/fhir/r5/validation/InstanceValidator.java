@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -101,6 +102,7 @@ import org.hl7.fhir.r5.model.ImplementationGuide.ImplementationGuideGlobalCompon
 import org.hl7.fhir.r5.model.InstantType;
 import org.hl7.fhir.r5.model.IntegerType;
 import org.hl7.fhir.r5.model.Period;
+import org.hl7.fhir.r5.model.PrimitiveType;
 import org.hl7.fhir.r5.model.Quantity;
 import org.hl7.fhir.r5.model.Questionnaire;
 import org.hl7.fhir.r5.model.Questionnaire.QuestionnaireItemAnswerOptionComponent;
@@ -290,18 +292,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       if (bnd == null)
         return null;
       if (bnd.fhirType().equals("Bundle")) {
-        for (Element be : bnd.getChildrenByName("entry")) {
-          Element res = be.getNamedChild("resource");
-          if (res != null) { 
-            String fullUrl = be.getChildValue("fullUrl");
-            String rt = res.fhirType();
-            String id = res.getChildValue("id");
-            if (url.equals(fullUrl))
-              return res;
-            if (url.equals(rt+"/"+id))
-              return res;
-          }
-        }
+        return BundleIndex.forBundle(bnd).getResourceByUrl(url);
       }
       return null;
     }
@@ -342,6 +333,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
   private IWorkerContext context;
+  private ValidatorCache cache;
   private FHIRPathEngine fpe;
 
   // configuration items
@@ -372,6 +364,10 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   private boolean noBindingMsgSuppressed;
   private boolean debug;
   private HashMap<Element, ResourceProfiles> resourceProfilesMap;
+  // contained resources by id, for each resource that has had a contained reference resolved. Only kept for the duration of a validation
+  private Map<Element, Map<String, Element>> containedIndexes;
+  // the values read from elements to match them to slices (see SliceDiscriminatorIndex). Only kept for the duration of a validation
+  private Map<Element, Map<String, Set<String>>> sliceValues;
   private IValidatorResourceFetcher fetcher;
   long time = 0;
   private ValidationProfileSet providedProfiles;
@@ -501,11 +497,11 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
           return false;
         }
           
-        if (containingProfile.hasUserData("container"))
-          containingProfile = (StructureDefinition) containingProfile.getUserData("container");
+        if (cache.getContainer(containingProfile) != null)
+          containingProfile = cache.getContainer(containingProfile);
         sd = (StructureDefinition) containingProfile.getContained(profile);
         if (sd != null)
-          sd.setUserData("container", containingProfile);
+          cache.setContainer(sd, containingProfile);
       } else {
         if (providedProfiles != null)
           sd = providedProfiles.fetch(effectiveProfile);
@@ -565,6 +561,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   public InstanceValidator(IWorkerContext theContext, IEvaluationContext hostServices) {
     super();
     this.context = theContext;
+    this.cache = ValidatorCache.forContext(theContext);
     this.externalHostServices = hostServices;
     fpe = new FHIRPathEngine(context);
     fpe.setHostServices(new ValidatorHostServices());
@@ -845,6 +842,8 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     boolean isRoot = false;
     if (resourceProfilesMap == null) {
       resourceProfilesMap = new HashMap<Element, ResourceProfiles>();
+      containedIndexes = new IdentityHashMap<Element, Map<String, Element>>();
+      sliceValues = new IdentityHashMap<Element, Map<String, Set<String>>>();
       isRoot = true;
     }
     try {
@@ -857,6 +856,11 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       }
     } catch (IOException e) {
       throw new FHIRException(e);
+    } finally {
+      if (isRoot) {
+        containedIndexes = null;
+        sliceValues = null;
+      }
     }
     overall = System.nanoTime() - t;
   }
@@ -1828,7 +1832,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       } else if (rule(errors, IssueType.VALUE, focus.line(), focus.col(), path, extensions.size() == fixed.getExtension().size(),
           "Extensions count mismatch: expected " + Integer.toString(fixed.getExtension().size()) + " but found " + Integer.toString(extensions.size()))) {
         for (Extension e : fixed.getExtension()) {
-          Element ex = getExtensionByUrl(extensions, e.getUrl());
+          Element ex = focus.getExtension(e.getUrl());
           if (rule(errors, IssueType.VALUE, focus.line(), focus.col(), path, ex != null, "Extension count mismatch: unable to find extension: " + e.getUrl())) {
             checkFixedValue(errors, path, ex.getNamedChild("extension").getNamedChild("value"), e.getValue(), fixedSource, "extension.value", ex.getNamedChild("extension"));
           }
@@ -2494,13 +2498,13 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
   private Element getContainedById(Element container, String id) {
-    List<Element> contained = new ArrayList<Element>();
-    container.getNamedChildren("contained", contained);
-    for (Element we : contained) {
-      if (id.equals(we.getNamedChildValue("id")))
-        return we;
+    Map<String, Element> index = containedIndexes == null ? null : containedIndexes.get(container);
+    if (index == null) {
+      index = BundleIndex.indexContained(container);
+      if (containedIndexes != null)
+        containedIndexes.put(container, index);
     }
-    return null;
+    return index.get(id);
   }
 
   public IWorkerContext getContext() {
@@ -2561,14 +2565,6 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
 
-  private Element getExtensionByUrl(List<Element> extensions, String urlSimple) {
-    for (Element e : extensions) {
-      if (urlSimple.equals(e.getNamedChildValue("url")))
-        return e;
-    }
-    return null;
-  }
-
   public List<String> getExtensionDomains() {
     return extensionDomains;
   }
@@ -2625,25 +2621,21 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       targetUrl = base + id;
     }
 
-    List<Element> entries = new ArrayList<Element>();
-    bundle.getNamedChildren("entry", entries);
     Element match = null;
-    for (Element we : entries) {
-      if (targetUrl.equals(we.getChildValue("fullUrl"))) {
-        Element r = we.getNamedChild("resource");
-        if (version.isEmpty()) {
-          rule(errors, IssueType.FORBIDDEN, -1, -1, path, match==null, "Multiple matches in bundle for reference " + ref);
-          match = r;
-        } else {
-          try {
-            if (version.equals(r.getChildren("meta").get(0).getChildValue("versionId"))) {
-              rule(errors, IssueType.FORBIDDEN, -1, -1, path, match==null, "Multiple matches in bundle for reference " + ref);
-              match = r;
-            }
-          } catch (Exception e) {
-            warning(errors, IssueType.REQUIRED, -1, -1, path, r.getChildren("meta").size()==1 && r.getChildren("meta").get(0).getChildValue("versionId")!=null, "Entries matching fullURL " + targetUrl + " should declare meta/versionId because there are version-specific references");
-            // If one of these things is null
+    for (Element we : BundleIndex.forBundle(bundle).getEntriesByFullUrl(targetUrl)) {
+      Element r = we.getNamedChild("resource");
+      if (version.isEmpty()) {
+        rule(errors, IssueType.FORBIDDEN, -1, -1, path, match==null, "Multiple matches in bundle for reference " + ref);
+        match = r;
+      } else {
+        try {
+          if (version.equals(r.getChildren("meta").get(0).getChildValue("versionId"))) {
+            rule(errors, IssueType.FORBIDDEN, -1, -1, path, match==null, "Multiple matches in bundle for reference " + ref);
+            match = r;
           }
+        } catch (Exception e) {
+          warning(errors, IssueType.REQUIRED, -1, -1, path, r.getChildren("meta").size()==1 && r.getChildren("meta").get(0).getChildValue("versionId")!=null, "Entries matching fullURL " + targetUrl + " should declare meta/versionId because there are version-specific references");
+          // If one of these things is null
         }
       }
     }
@@ -2906,15 +2898,10 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       return ref;
   }
 
-  private Element resolveInBundle(List<Element> entries, String ref, String fullUrl, String type, String id) {
+  private Element resolveInBundle(BundleIndex bundleIndex, String ref, String fullUrl, String type, String id) {
     if (Utilities.isAbsoluteUrl(ref)) {
       // if the reference is absolute, then you resolve by fullUrl. No other thinking is required.
-      for (Element entry : entries) {
-        String fu = entry.getNamedChildValue("fullUrl");
-        if (ref.equals(fu))
-          return entry;
-      }
-      return null;
+      return bundleIndex.getEntryByFullUrl(ref);
     } else {
       // split into base, type, and id
       String u = null;
@@ -2926,18 +2913,10 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       if (parts.length >= 2) {
         String t = parts[0];
         String i = parts[1];
-        for (Element entry : entries) {
-          String fu = entry.getNamedChildValue("fullUrl");
-          if (u != null && fu.equals(u))
-            return entry;
-          if (u == null) {
-            Element resource = entry.getNamedChild("resource");
-            String et = resource.getType();
-            String eid = resource.getNamedChildValue("id");
-            if (t.equals(et) && i.equals(eid))
-              return entry;
-          }
-        }
+        if (u != null)
+          return bundleIndex.getEntryByFullUrl(u);
+        else
+          return bundleIndex.getEntryByTypeAndId(t, i);
       }
       return null;
     }
@@ -3036,7 +3015,15 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (!slicer.getSlicing().hasDiscriminator())
       return false; // cannot validate in this case
 
-    ExpressionNode n = (ExpressionNode) ed.getUserData("slice.expression.cache");
+    // simple discriminators are matched by value, without running FHIRPath
+    SliceDiscriminatorIndex index = cache.getSliceIndex(slicer);
+    if (!index.isKnown(ed))
+      index.setKey(ed, buildSliceKey(path, slicer, ed, profile));
+    SliceDiscriminatorIndex.SliceKey key = index.getKey(ed);
+    if (key != null)
+      return index.matches(element, key, sliceValues == null ? new IdentityHashMap<Element, Map<String, Set<String>>>() : sliceValues);
+
+    ExpressionNode n = cache.getSliceExpression(ed);
     if (n == null) {
       long t = System.nanoTime();
       // GG: this approach is flawed because it treats discriminators individually rather than collectively
@@ -3116,12 +3103,89 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         throw new FHIRException("Problem processing expression "+expression +" in profile " + profile.getUrl() + " path " + path + ": " + e.getMessage());
       }
       fpeTime = fpeTime + (System.nanoTime() - t);
-      ed.setUserData("slice.expression.cache", n);
+      cache.setSliceExpression(ed, n);
     }
 
     return evaluateSlicingExpression(hostContext, element, path, profile, n);
   }
 
+  /**
+   * work out the discriminator values for the slice, if all the discriminators are simple 
+   * enough to be matched by value. Anything else returns null, and is left to FHIRPath 
+   * (which is also where any errors in the slicing definitions get reported) 
+   */
+  private SliceDiscriminatorIndex.SliceKey buildSliceKey(String path, ElementDefinition slicer, ElementDefinition ed, StructureDefinition profile) {
+    SliceDiscriminatorIndex.SliceKey key = new SliceDiscriminatorIndex.SliceKey();
+    try {
+      for (ElementDefinitionSlicingDiscriminatorComponent s : slicer.getSlicing().getDiscriminator()) {
+        String discriminator = s.getPath();
+        if (s.getType() != DiscriminatorType.VALUE && s.getType() != DiscriminatorType.PATTERN && s.getType() != DiscriminatorType.TYPE)
+          return null;
+        List<ElementDefinition> criteriaElements = getCriteriaForDiscriminator(path, ed, discriminator, profile, false);
+        boolean found = false;
+        for (ElementDefinition criteriaElement : criteriaElements) {
+          if (s.getType() == DiscriminatorType.TYPE) {
+            String type = null;
+            if (!criteriaElement.getPath().contains("[") && discriminator.contains("[")) {
+              discriminator = discriminator.substring(0, discriminator.indexOf('['));
+              type = tail(criteriaElement.getPath()).substring(tail(discriminator).length());
+            } else if (criteriaElement.getType().size() == 1) {
+              if (discriminator.contains("["))
+                discriminator = discriminator.substring(0, discriminator.indexOf('['));
+              type = criteriaElement.getType().get(0).getWorkingCode();
+            }
+            if (Utilities.noString(type) || !SliceDiscriminatorIndex.isSimplePath(discriminator))
+              return null;
+            key.add(discriminator, SliceDiscriminatorIndex.KeyKind.TYPE, type.toLowerCase());
+            found = true;
+          } else if (criteriaElement.hasFixed() || criteriaElement.hasPattern()) {
+            Type value = criteriaElement.hasFixed() ? criteriaElement.getFixed() : criteriaElement.getPattern();
+            if (!SliceDiscriminatorIndex.isSimplePath(discriminator))
+              return null;
+            if (criteriaElement.hasFixed() && (value instanceof UriType || value instanceof StringType) && ((PrimitiveType<?>) value).hasValue()) {
+              if (!isSingleValuedPath(discriminator, ed, profile))
+                return null;
+              key.add(discriminator, SliceDiscriminatorIndex.KeyKind.VALUE, ((PrimitiveType<?>) value).asStringValue());
+            } else if (value instanceof CodeableConcept && isSimpleCodeableConcept((CodeableConcept) value)) {
+              Coding c = ((CodeableConcept) value).getCodingFirstRep();
+              key.add(discriminator, SliceDiscriminatorIndex.KeyKind.CODING, c.getSystem()+"|"+c.getCode());
+            } else
+              return null;
+            found = true;
+          } else if (criteriaElement.hasBinding() && criteriaElement.getBinding().hasStrength() && criteriaElement.getBinding().getStrength().equals(BindingStrength.REQUIRED) && criteriaElement.getBinding().hasValueSet()) {
+            return null;
+          }
+          if (found)
+            break;
+        }
+      }
+    } catch (FHIRException e) {
+      return null;
+    }
+    return key;
+  }
+
+  /**
+   * true if every step of the path has a max cardinality of 1, so there's never more than one value to compare with the fixed value
+   */
+  private boolean isSingleValuedPath(String discriminator, ElementDefinition ed, StructureDefinition profile) throws FHIRException {
+    String prefix = null;
+    for (String name : discriminator.split("\\.")) {
+      prefix = prefix == null ? name : prefix+"."+name;
+      ElementDefinition step = fpe.evaluateDefinition(fpe.parse(prefix), profile, ed);
+      if (step == null || !"1".equals(step.getMax()))
+        return false;
+    }
+    return true;
+  }
+
+  private boolean isSimpleCodeableConcept(CodeableConcept cc) {
+    if (cc.hasText() || cc.hasExtension() || cc.getCoding().size() != 1)
+      return false;
+    Coding c = cc.getCodingFirstRep();
+    return c.hasSystem() && c.hasCode() && !c.hasVersion() && !c.hasDisplay() && !c.hasExtension() && !c.hasId() && !cc.hasId();
+  }
+
   public boolean evaluateSlicingExpression(ValidatorHostContext hostContext, Element element, String path, StructureDefinition profile, ExpressionNode n)  throws FHIRException {
     String msg;
     boolean ok;
@@ -3257,6 +3321,8 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   // the instance validator had no issues against the base resource profile
   private void start(ValidatorHostContext hostContext, List<ValidationMessage> errors, Element resource, Element element, StructureDefinition defn, NodeStack stack) throws FHIRException, FHIRException, IOException {
     checkLang(resource, stack);
+    if (element.getType().equals("Bundle"))
+      BundleIndex.build(element);
     
     // profile is valid, and matches the resource name
     ResourceProfiles resourceProfiles = getResourceProfiles(element, stack);
@@ -3456,7 +3522,9 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       sdTime = sdTime + (System.nanoTime() - t);
       if (warning(errors, IssueType.REQUIRED, q.line(), q.col(), stack.getLiteralPath(), qsrc != null, "The questionnaire \""+questionnaire+"\" could not be resolved, so no validation can be performed against the base questionnaire")) {
         boolean inProgress = "in-progress".equals(element.getNamedChildValue("status"));
-        validateQuestionannaireResponseItems(hostContext, qsrc, qsrc.getItem(), errors, element, stack, inProgress, element, new QStack(qsrc, element));
+        // contained questionnaires are loaded afresh each time, so there's no point keeping their index
+        QuestionnaireIndex qindex = questionnaire.startsWith("#") ? new QuestionnaireIndex(qsrc) : cache.getQuestionnaireIndex(qsrc);
+        validateQuestionannaireResponseItems(hostContext, qsrc, qsrc.getItem(), errors, element, stack, inProgress, element, new QStack(qsrc, qindex, element));
       }
     }
   }
@@ -3630,12 +3698,13 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
     }
   }
 
-  private int getLinkIdIndex(List<QuestionnaireItemComponent> qItems, String linkId) {
+  private Map<String, Integer> getLinkIdIndexes(List<QuestionnaireItemComponent> qItems) {
+    Map<String, Integer> res = new HashMap<>();
     for (int i = 0; i < qItems.size(); i++) {
-      if (linkId.equals(qItems.get(i).getLinkId()))
-        return i;
+      if (qItems.get(i).hasLinkId())
+        res.putIfAbsent(qItems.get(i).getLinkId(), i);
     }
-    return -1;
+    return res;
   }
   
   private void validateQuestionannaireResponseItems(ValidatorHostContext hostContext, Questionnaire qsrc, List<QuestionnaireItemComponent> qItems, List<ValidationMessage> errors, Element element, NodeStack stack, boolean inProgress, Element questionnaireResponseRoot, QStack qstack) {
@@ -3643,13 +3712,14 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
     element.getNamedChildren("item", items);
     // now, sort into stacks
     Map<String, List<Element>> map = new HashMap<String, List<Element>>();
+    Map<String, Integer> indexes = getLinkIdIndexes(qItems);
     int lastIndex = -1;
     for (Element item : items) {
       String linkId = item.getNamedChildValue("linkId");
       if (rule(errors, IssueType.REQUIRED, item.line(), item.col(), stack.getLiteralPath(), !Utilities.noString(linkId), "No LinkId, so can't be validated")) {
-        int index = getLinkIdIndex(qItems, linkId);
+        int index = indexes.getOrDefault(linkId, -1);
         if (index == -1) {
-          QuestionnaireItemComponent qItem = findQuestionnaireItem(qsrc, linkId);
+          QuestionnaireItemComponent qItem = qstack.getIndex().getQuestion(linkId);
           if (qItem != null) {
             rule(errors, IssueType.STRUCTURE, item.line(), item.col(), stack.getLiteralPath(), index > -1, misplacedItemError(qItem));
             NodeStack ns = stack.push(item, -1, null, null);
@@ -3743,21 +3813,6 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
     return null;
   }
 
-  private QuestionnaireItemComponent findQuestionnaireItem(Questionnaire qSrc, String linkId) {
-    return findItem(qSrc.getItem(), linkId);
-  }
-
-  private QuestionnaireItemComponent findItem(List<QuestionnaireItemComponent> list, String linkId) {
-    for (QuestionnaireItemComponent item : list) {
-      if (linkId.equals(item.getLinkId()))
-        return item;
-      QuestionnaireItemComponent result = findItem(item.getItem(), linkId);
-      if (result != null)
-        return result;
-    }
-    return null;
-  }
-
   /*	private void validateAnswerCode(List<ValidationMessage> errors, Element value, NodeStack stack, List<Coding> optionList) {
 	  String system = value.getNamedChildValue("system");
 	  String code = value.getNamedChildValue("code");
@@ -4008,8 +4063,8 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
   }
 
   private void validateBundle(List<ValidationMessage> errors, Element bundle, NodeStack stack) {
-    List<Element> entries = new ArrayList<Element>();
-    bundle.getNamedChildren("entry", entries);
+    BundleIndex bundleIndex = BundleIndex.forBundle(bundle);
+    List<Element> entries = bundleIndex.getEntries();
     String type = bundle.getNamedChildValue("type");
     type = StringUtils.defaultString(type);
 
@@ -4027,20 +4082,20 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
         Element resource = firstEntry.getNamedChild("resource");
         String id = resource.getNamedChildValue("id");
         if (rule(errors, IssueType.INVALID, firstEntry.line(), firstEntry.col(), stack.addToLiteralPath("entry", ":0"), resource != null, "No resource on first entry")) {
-          validateDocument(errors, entries, resource, firstStack.push(resource, -1, null, null), fullUrl, id);
+          validateDocument(errors, bundleIndex, resource, firstStack.push(resource, -1, null, null), fullUrl, id);
         }
-        checkAllInterlinked(errors, entries, stack, bundle, true);
+        checkAllInterlinked(errors, bundleIndex, stack, bundle, true);
       }
       if (type.equals("message")) {
         Element resource = firstEntry.getNamedChild("resource");
         String id = resource.getNamedChildValue("id");
         if (rule(errors, IssueType.INVALID, firstEntry.line(), firstEntry.col(), stack.addToLiteralPath("entry", ":0"), resource != null, "No resource on first entry")) {
-          validateMessage(errors, entries, resource, firstStack.push(resource, -1, null, null), fullUrl, id);
+          validateMessage(errors, bundleIndex, resource, firstStack.push(resource, -1, null, null), fullUrl, id);
         }
-        checkAllInterlinked(errors, entries, stack, bundle, VersionUtilities.isR5Ver(context.getVersion()));
+        checkAllInterlinked(errors, bundleIndex, stack, bundle, VersionUtilities.isR5Ver(context.getVersion()));
       }
       // We do not yet have rules requiring that the id and fullUrl match when dealing with messaging Bundles
-      //      validateResourceIds(errors, entries, stack);
+      //      validateResourceIds(errors, bundleIndex, stack);
     }
     for (Element entry : entries) {
       String fullUrl = entry.getNamedChildValue("fullUrl");
@@ -4124,20 +4179,23 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
 
   }
 
-  private void checkAllInterlinked(List<ValidationMessage> errors, List<Element> entries, NodeStack stack, Element bundle, boolean isError) {
+  private void checkAllInterlinked(List<ValidationMessage> errors, BundleIndex bundleIndex, NodeStack stack, Element bundle, boolean isError) {
     List<EntrySummary> entryList = new ArrayList<>();
-    for (Element entry: entries) {
+    Map<Element, EntrySummary> entryMap = new IdentityHashMap<>();
+    for (Element entry: bundleIndex.getEntries()) {
       Element r = entry.getNamedChild("resource");
       if (r != null) {
-        entryList.add(new EntrySummary(entry, r));
+        EntrySummary es = new EntrySummary(entry, r);
+        entryList.add(es);
+        entryMap.put(entry, es);
       }
     }
     for (EntrySummary e : entryList) {
       Set<String> references = findReferences(e.entry);
       for (String ref : references) {
-        Element tgt = resolveInBundle(entries, ref, e.entry.getChildValue("fullUrl"), e.resource.fhirType(), e.resource.getIdBase());
+        Element tgt = resolveInBundle(bundleIndex, ref, e.entry.getChildValue("fullUrl"), e.resource.fhirType(), e.resource.getIdBase());
         if (tgt != null) {
-          EntrySummary t = entryForTarget(entryList, tgt);
+          EntrySummary t = entryMap.get(tgt);
           if (t != null) {
             e.targets.add(t);
           }
@@ -4178,15 +4236,6 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
     }
   }
 
-  private EntrySummary entryForTarget(List<EntrySummary> entryList, Element tgt) {
-    for (EntrySummary e : entryList) {
-      if (e.entry == tgt) {
-        return e;
-      }
-    }
-    return null;
-  }
-
   private void visitLinked(Set<EntrySummary> visited, EntrySummary t) {
     if (!visited.contains(t)) {
       visited.add(t);
@@ -4240,7 +4289,7 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
     }
   }
 
-  private void validateBundleReference(List<ValidationMessage> errors, List<Element> entries, Element ref, String name, NodeStack stack, String fullUrl, String type, String id) {
+  private void validateBundleReference(List<ValidationMessage> errors, BundleIndex bundleIndex, Element ref, String name, NodeStack stack, String fullUrl, String type, String id) {
     String reference = null;
     try {
       reference = ref.getNamedChildValue("reference");
@@ -4249,7 +4298,7 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
     }
 
     if (ref != null && !Utilities.noString(reference)) {
-      Element target = resolveInBundle(entries, reference, fullUrl, type, id);
+      Element target = resolveInBundle(bundleIndex, reference, fullUrl, type, id);
       rule(errors, IssueType.INVALID, ref.line(), ref.col(), stack.addToLiteralPath("reference"), target != null, "Can't find '"+reference+"' in the bundle (" + name + ")");
     }
   }
@@ -4271,47 +4320,47 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
       validateResource(hc, errors, resource, element, profile, null, idstatus, stack, false);
   }
 
-  private void validateDocument(List<ValidationMessage> errors, List<Element> entries, Element composition, NodeStack stack, String fullUrl, String id) {
+  private void validateDocument(List<ValidationMessage> errors, BundleIndex bundleIndex, Element composition, NodeStack stack, String fullUrl, String id) {
     // first entry must be a composition
     if (rule(errors, IssueType.INVALID, composition.line(), composition.col(), stack.getLiteralPath(), composition.getType().equals("Composition"),
         "The first entry in a document must be a composition")) {
       
       // the composition subject etc references must resolve in the bundle
-      validateDocumentReference(errors, entries, composition, stack, fullUrl, id, false, "subject", "Composition");
-      validateDocumentReference(errors, entries, composition, stack, fullUrl, id, true, "author", "Composition");
-      validateDocumentReference(errors, entries, composition, stack, fullUrl, id, false, "encounter", "Composition");
-      validateDocumentReference(errors, entries, composition, stack, fullUrl, id, false, "custodian", "Composition");
-      validateDocumentSubReference(errors, entries, composition, stack, fullUrl, id, "Composition", "attester", false, "party");
-      validateDocumentSubReference(errors, entries, composition, stack, fullUrl, id, "Composition", "event", true, "detail");
+      validateDocumentReference(errors, bundleIndex, composition, stack, fullUrl, id, false, "subject", "Composition");
+      validateDocumentReference(errors, bundleIndex, composition, stack, fullUrl, id, true, "author", "Composition");
+      validateDocumentReference(errors, bundleIndex, composition, stack, fullUrl, id, false, "encounter", "Composition");
+      validateDocumentReference(errors, bundleIndex, composition, stack, fullUrl, id, false, "custodian", "Composition");
+      validateDocumentSubReference(errors, bundleIndex, composition, stack, fullUrl, id, "Composition", "attester", false, "party");
+      validateDocumentSubReference(errors, bundleIndex, composition, stack, fullUrl, id, "Composition", "event", true, "detail");
       
-      validateSections(errors, entries, composition, stack, fullUrl, id);
+      validateSections(errors, bundleIndex, composition, stack, fullUrl, id);
     }
   }
 
-  public void validateDocumentSubReference(List<ValidationMessage> errors, List<Element> entries, Element composition, NodeStack stack, String fullUrl, String id, String title, String parent, boolean repeats, String propName) {
+  public void validateDocumentSubReference(List<ValidationMessage> errors, BundleIndex bundleIndex, Element composition, NodeStack stack, String fullUrl, String id, String title, String parent, boolean repeats, String propName) {
     List<Element> list = new ArrayList<>();
     composition.getNamedChildren(parent, list);
     int i = 1;
     for (Element elem : list) {
-      validateDocumentReference(errors, entries, elem, stack.push(elem, i, null, null), fullUrl, id, repeats, propName, title+"."+parent);
+      validateDocumentReference(errors, bundleIndex, elem, stack.push(elem, i, null, null), fullUrl, id, repeats, propName, title+"."+parent);
       i++;
     }    
   }
 
-  public void validateDocumentReference(List<ValidationMessage> errors, List<Element> entries, Element composition, NodeStack stack, String fullUrl, String id, boolean repeats, String propName, String title) {
+  public void validateDocumentReference(List<ValidationMessage> errors, BundleIndex bundleIndex, Element composition, NodeStack stack, String fullUrl, String id, boolean repeats, String propName, String title) {
     if (repeats) {
       List<Element> list = new ArrayList<>();
       composition.getNamedChildren(propName, list);
       int i = 1;
       for (Element elem : list) {
-        validateBundleReference(errors, entries, elem, title+"."+propName, stack.push(elem, i, null, null), fullUrl, "Composition", id);
+        validateBundleReference(errors, bundleIndex, elem, title+"."+propName, stack.push(elem, i, null, null), fullUrl, "Composition", id);
         i++;
       }
       
     } else {
       Element elem = composition.getNamedChild(propName);
       if (elem != null) {
-        validateBundleReference(errors, entries, elem, title+"."+propName, stack.push(elem, -1, null, null), fullUrl, "Composition", id);
+        validateBundleReference(errors, bundleIndex, elem, title+"."+propName, stack.push(elem, -1, null, null), fullUrl, "Composition", id);
       }
     }
   }
@@ -4622,18 +4671,18 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
   }
 
   public void checkMustSupport(StructureDefinition profile, ElementInfo ei) {
-    String usesMustSupport = profile.getUserString("usesMustSupport");
+    Boolean usesMustSupport = cache.getUsesMustSupport(profile);
     if (usesMustSupport == null) {
-      usesMustSupport = "N";
+      usesMustSupport = false;
       for (ElementDefinition pe: profile.getSnapshot().getElement()) {
         if (pe.getMustSupport()) {
-          usesMustSupport = "Y";
+          usesMustSupport = true;
           break;
         }
       }
-      profile.setUserData("usesMustSupport", usesMustSupport);
+      cache.setUsesMustSupport(profile, usesMustSupport);
     }
-    if (usesMustSupport.equals("Y")) {
+    if (usesMustSupport) {
       String elementSupported = ei.element.getUserString("elementSupported");
       if (elementSupported==null || ei.definition.getMustSupport())
         if (ei.definition.getMustSupport())
@@ -4905,7 +4954,7 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
   }
 
   public void checkInvariant(ValidatorHostContext hostContext, List<ValidationMessage> errors, String path, StructureDefinition profile, Element resource, Element element, ElementDefinitionConstraintComponent inv) throws FHIRException {
-    ExpressionNode n = (ExpressionNode) inv.getUserData("validator.expression.cache");
+    ExpressionNode n = cache.getInvariantExpression(inv);
     if (n == null) {
       long t = System.nanoTime();
       try {
@@ -4914,7 +4963,7 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
         throw new FHIRException("Problem processing expression "+inv.getExpression() +" in profile " + profile.getUrl() + " path " + path + ": " + e.getMessage());
       }
       fpeTime = fpeTime + (System.nanoTime() - t);
-      inv.setUserData("validator.expression.cache", n);
+      cache.setInvariantExpression(inv, n);
     }
 
     String msg;
@@ -4947,14 +4996,14 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
     }
   }
 
-  private void validateMessage(List<ValidationMessage> errors, List<Element> entries, Element messageHeader, NodeStack stack, String fullUrl, String id) {
+  private void validateMessage(List<ValidationMessage> errors, BundleIndex bundleIndex, Element messageHeader, NodeStack stack, String fullUrl, String id) {
     // first entry must be a messageheader
     if (rule(errors, IssueType.INVALID, messageHeader.line(), messageHeader.col(), stack.getLiteralPath(), messageHeader.getType().equals("MessageHeader"),
         "The first entry in a message must be a MessageHeader")) {
       // the composition subject and section references must resolve in the bundle
       List<Element> elements = messageHeader.getChildren("data");
       for (Element elem: elements)
-        validateBundleReference(errors, entries, elem, "MessageHeader Data", stack.push(elem, -1, null, null), fullUrl, "MessageHeader", id);
+        validateBundleReference(errors, bundleIndex, elem, "MessageHeader Data", stack.push(elem, -1, null, null), fullUrl, "MessageHeader", id);
     }
   }
 
@@ -5055,7 +5104,7 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
       return resource;
   }
 
-  private void validateSections(List<ValidationMessage> errors, List<Element> entries, Element focus, NodeStack stack, String fullUrl, String id) {
+  private void validateSections(List<ValidationMessage> errors, BundleIndex bundleIndex, Element focus, NodeStack stack, String fullUrl, String id) {
     List<Element> sections = new ArrayList<Element>();
     focus.getNamedChildren("section", sections);
     int i = 1;
@@ -5063,18 +5112,18 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
       NodeStack localStack = stack.push(section, i, null, null);
 
       // technically R4+, but there won't be matches from before that 
-      validateDocumentReference(errors, entries, section, stack, fullUrl, id, false, "author", "Section");
-      validateDocumentReference(errors, entries, section, stack, fullUrl, id, false, "focus", "Section");
+      validateDocumentReference(errors, bundleIndex, section, stack, fullUrl, id, false, "author", "Section");
+      validateDocumentReference(errors, bundleIndex, section, stack, fullUrl, id, false, "focus", "Section");
       
       List<Element> sectionEntries = new ArrayList<Element>();
       section.getNamedChildren("entry", sectionEntries);
       int j = 1;
       for (Element sectionEntry : sectionEntries) {
         NodeStack localStack2 = localStack.push(sectionEntry, j, null, null);
-        validateBundleReference(errors, entries, sectionEntry, "Section Entry", localStack2, fullUrl, "Composition", id);
+        validateBundleReference(errors, bundleIndex, sectionEntry, "Section Entry", localStack2, fullUrl, "Composition", id);
         j++;
       }
-      validateSections(errors, entries, section, localStack, fullUrl, id);
+      validateSections(errors, bundleIndex, section, localStack, fullUrl, id);
       i++;
     }
   }
@@ -5345,10 +5394,10 @@ private boolean isAnswerRequirementFulfilled(QuestionnaireItemComponent qItem, L
           for (ElementDefinitionConstraintComponent inv : ed.getConstraint()) {
             if (inv.hasExpression()) {
               try {
-                ExpressionNode n = (ExpressionNode) inv.getUserData("validator.expression.cache");
+                ExpressionNode n = cache.getInvariantExpression(inv);
                 if (n == null) {
                   n = fpe.parse(fixExpr(inv.getExpression()));
-                  inv.setUserData("validator.expression.cache", n);
+                  cache.setInvariantExpression(inv, n);
                 }
                 fpe.check(null, sd.getKind() == StructureDefinitionKind.RESOURCE ?  sd.getType() : "DomainResource", ed.getPath(), n);
               } catch (Exception e) {
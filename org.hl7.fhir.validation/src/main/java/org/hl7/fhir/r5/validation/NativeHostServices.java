@@ -23,6 +23,11 @@ package org.hl7.fhir.r5.validation;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hl7.fhir.convertors.VersionConvertorAdvisor40;
 import org.hl7.fhir.convertors.VersionConvertorAdvisor50;
@@ -44,7 +49,9 @@ import org.hl7.fhir.exceptions.FHIRException;
  *  - server wants to convert from R4 to something else, it calls convertResource  
  *  - server wants to convert to R4 from something else, it calls unConvertResource  
  *  
- * threading: todo: this class should be thread safe
+ * threading: validateResource can be called from any number of threads. Each call borrows 
+ * an InstanceValidator from a pool (see setPoolSize) - they all share the one worker context - 
+ * and the options are applied to the borrowed validator, so requests don't see each other's settings
  *  
  * note: this is a solution that uses lots of RAM...  
  */
@@ -130,17 +137,129 @@ public class NativeHostServices {
 
   }
 
+  /**
+   * The options for a single validation request - see validateResource
+   */
+  public static class ValidationOptions {
+    private IdStatus resourceIdRule = IdStatus.OPTIONAL;
+    private boolean anyExtensionsAllowed = true;
+    private BestPracticeWarningLevel bpWarnings = BestPracticeWarningLevel.Ignore;
+    private CheckDisplayOption displayOption = CheckDisplayOption.Ignore;
+
+    public static ValidationOptions parse(String options) throws Exception {
+      ValidationOptions res = new ValidationOptions();
+      if (options == null)
+        return res;
+      for (String s : options.split(" ")) {
+        if ("id-optional".equalsIgnoreCase(s))
+          res.resourceIdRule = IdStatus.OPTIONAL;
+        else if ("id-required".equalsIgnoreCase(s))
+          res.resourceIdRule = IdStatus.REQUIRED;
+        else if ("id-prohibited".equalsIgnoreCase(s))
+          res.resourceIdRule = IdStatus.PROHIBITED;
+        else if ("any-extensions".equalsIgnoreCase(s))
+          res.anyExtensionsAllowed = true; // This is already the default
+        else if ("strict-extensions".equalsIgnoreCase(s))
+          res.anyExtensionsAllowed = false;
+        else if ("bp-ignore".equalsIgnoreCase(s))
+          res.bpWarnings = BestPracticeWarningLevel.Ignore;
+        else if ("bp-hint".equalsIgnoreCase(s))
+          res.bpWarnings = BestPracticeWarningLevel.Hint;
+        else if ("bp-warning".equalsIgnoreCase(s))
+          res.bpWarnings = BestPracticeWarningLevel.Warning;
+        else if ("bp-error".equalsIgnoreCase(s))
+          res.bpWarnings = BestPracticeWarningLevel.Error;
+        else if ("display-ignore".equalsIgnoreCase(s))
+          res.displayOption = CheckDisplayOption.Ignore;
+        else if ("display-check".equalsIgnoreCase(s))
+          res.displayOption = CheckDisplayOption.Check;
+        else if ("display-case-space".equalsIgnoreCase(s))
+          res.displayOption = CheckDisplayOption.CheckCaseAndSpace;
+        else if ("display-case".equalsIgnoreCase(s))
+          res.displayOption = CheckDisplayOption.CheckCase;
+        else if ("display-space".equalsIgnoreCase(s))
+          res.displayOption = CheckDisplayOption.CheckSpace;
+        else if (!Utilities.noString(s))
+          throw new Exception("Unknown option "+s);
+      }
+      return res;
+    }
+
+    public IdStatus getResourceIdRule() {
+      return resourceIdRule;
+    }
+
+    public boolean isAnyExtensionsAllowed() {
+      return anyExtensionsAllowed;
+    }
+
+    public BestPracticeWarningLevel getBpWarnings() {
+      return bpWarnings;
+    }
+
+    public CheckDisplayOption getDisplayOption() {
+      return displayOption;
+    }
+
+    /**
+     * set all the options on the validator, so nothing is left over from the last request it was used for
+     */
+    public void apply(InstanceValidator validator) {
+      validator.setResourceIdRule(resourceIdRule);
+      validator.setAnyExtensionsAllowed(anyExtensionsAllowed);
+      validator.setBestPracticeWarningLevel(bpWarnings);
+      validator.setCheckDisplay(displayOption);
+    }
+  }
+
   private ValidationEngine validator;
-  private int validationCount = 0;
-  private int resourceCount = 0;
-  private int convertCount = 0;
-  private int unConvertCount = 0;
-  private int exceptionCount = 0;
+  private AtomicInteger validationCount = new AtomicInteger();
+  private AtomicInteger resourceCount = new AtomicInteger();
+  private AtomicInteger convertCount = new AtomicInteger();
+  private AtomicInteger unConvertCount = new AtomicInteger();
+  private AtomicInteger exceptionCount = new AtomicInteger();
   private String lastException = null;  
   private Object lock = new Object();
 
+  // the validator pool - each init() starts a new one
+  private volatile int poolSize = Runtime.getRuntime().availableProcessors();
+  private volatile ValidatorPool pool;
+  private int generation;
+  private AtomicInteger active = new AtomicInteger();
+  private AtomicInteger waiting = new AtomicInteger();
+  private AtomicLong validationNanos = new AtomicLong();
+  private AtomicLong waitNanos = new AtomicLong();
+  private AtomicLong maxNanos = new AtomicLong();
+  private long started;
+
   private VersionConvertorAdvisor50 conv_10_50_advisor = new NH_10_50_Advisor();
 
+  /**
+   * The validators made from the engine loaded by one call to init(). Validators that are still in use 
+   * when init() is called again belong to an older generation, and are dropped when they're released
+   */
+  private static class ValidatorPool {
+    private final int generation;
+    private final ValidationEngine engine;
+    private final BlockingQueue<InstanceValidator> idle = new LinkedBlockingQueue<InstanceValidator>();
+    private final AtomicInteger created = new AtomicInteger();
+
+    private ValidatorPool(int generation, ValidationEngine engine) {
+      this.generation = generation;
+      this.engine = engine;
+    }
+  }
+
+  private static class PooledValidator {
+    private final ValidatorPool pool;
+    private final InstanceValidator validator;
+
+    private PooledValidator(ValidatorPool pool, InstanceValidator validator) {
+      this.pool = pool;
+      this.validator = validator;
+    }
+  }
+
   /**
    * Create an instance of the service
    */
@@ -155,8 +274,33 @@ public class NativeHostServices {
    * @throws Exception
    */
   public void init(String pack) throws Exception {
-    validator = new ValidationEngine(pack);
-    validator.getContext().setAllowLoadingDuplicates(true);
+    ValidationEngine engine = new ValidationEngine(pack);
+    engine.getContext().setAllowLoadingDuplicates(true);
+    init(engine);
+  }
+
+  /**
+   * Initialize the service with an engine that's already loaded. Validations that are running 
+   * when this is called finish with the engine they started with
+   */
+  public void init(ValidationEngine engine) {
+    synchronized (lock) {
+      validator = engine;
+      pool = new ValidatorPool(++generation, engine);
+    }
+    started = System.currentTimeMillis();
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  /**
+   * The most validations that will run at once (default: the number of processors). Any other 
+   * requests wait for a validator to be free. Set this before validating anything
+   */
+  public void setPoolSize(int poolSize) {
+    this.poolSize = Math.max(1, poolSize);
   }
 
   /** 
@@ -186,12 +330,27 @@ public class NativeHostServices {
    */
   public String status() {
     JsonObject json = new JsonObject();
-    json.addProperty("custom-resource-count", resourceCount);
+    json.addProperty("custom-resource-count", resourceCount.get());
     validator.getContext().reportStatus(json);
-    json.addProperty("validation-count", validationCount);
-    json.addProperty("convert-count", convertCount);
-    json.addProperty("unconvert-count", unConvertCount);
-    json.addProperty("exception-count", exceptionCount);
+    int count = validationCount.get();
+    json.addProperty("validation-count", count);
+    json.addProperty("validation-pool-size", poolSize);
+    json.addProperty("validation-pool-created", pool.created.get());
+    json.addProperty("validation-pool-generation", pool.generation);
+    json.addProperty("validation-pool-idle", pool.idle.size());
+    json.addProperty("validation-active", active.get());
+    json.addProperty("validation-queue", waiting.get());
+    if (count > 0) {
+      json.addProperty("validation-avg-ms", validationNanos.get() / count / 1000000);
+      json.addProperty("validation-avg-wait-ms", waitNanos.get() / count / 1000000);
+    }
+    json.addProperty("validation-max-ms", maxNanos.get() / 1000000);
+    long uptime = System.currentTimeMillis() - started;
+    if (uptime > 0)
+      json.addProperty("validation-per-min", (long) count * 60000 / uptime);
+    json.addProperty("convert-count", convertCount.get());
+    json.addProperty("unconvert-count", unConvertCount.get());
+    json.addProperty("exception-count", exceptionCount.get());
     synchronized (lock) {
       json.addProperty("last-exception", lastException);      
     }
@@ -231,9 +390,9 @@ public class NativeHostServices {
         throw new Exception("Unsupported format "+fmt.name());
       }
       validator.seeResource(r);
-      resourceCount++;
+      resourceCount.incrementAndGet();
     } catch (Exception e) {
-      exceptionCount++;
+      exceptionCount.incrementAndGet();
 
       synchronized (lock) {
         lastException = e.getMessage();
@@ -253,9 +412,9 @@ public class NativeHostServices {
   public void dropResource(String type, String id) throws Exception  {
     try {
       validator.dropResource(type, id);
-      resourceCount--;
+      resourceCount.decrementAndGet();
     } catch (Exception e) {
-      exceptionCount++;
+      exceptionCount.incrementAndGet();
       synchronized (lock) {
         lastException = e.getMessage();
       }
@@ -289,51 +448,28 @@ public class NativeHostServices {
    * @throws Exception
    */
   public byte[] validateResource(String location, byte[] source, String cntType, String options) throws Exception {
+    long start = System.nanoTime();
     try {
-      IdStatus resourceIdRule = IdStatus.OPTIONAL;
-      boolean anyExtensionsAllowed = true;
-      BestPracticeWarningLevel bpWarnings = BestPracticeWarningLevel.Ignore;
-      CheckDisplayOption displayOption = CheckDisplayOption.Ignore;
-      for (String s : options.split(" ")) {
-        if ("id-optional".equalsIgnoreCase(s))
-          resourceIdRule = IdStatus.OPTIONAL;
-        else if ("id-required".equalsIgnoreCase(s))
-          resourceIdRule = IdStatus.REQUIRED;
-        else if ("id-prohibited".equalsIgnoreCase(s))
-          resourceIdRule = IdStatus.PROHIBITED;
-        else if ("any-extensions".equalsIgnoreCase(s))
-          anyExtensionsAllowed = true; // This is already the default
-        else if ("strict-extensions".equalsIgnoreCase(s))
-          anyExtensionsAllowed = false;
-        else if ("bp-ignore".equalsIgnoreCase(s))
-          bpWarnings = BestPracticeWarningLevel.Ignore;
-        else if ("bp-hint".equalsIgnoreCase(s))
-          bpWarnings = BestPracticeWarningLevel.Hint;
-        else if ("bp-warning".equalsIgnoreCase(s))
-          bpWarnings = BestPracticeWarningLevel.Warning;
-        else if ("bp-error".equalsIgnoreCase(s))
-          bpWarnings = BestPracticeWarningLevel.Error;
-        else if ("display-ignore".equalsIgnoreCase(s))
-          displayOption = CheckDisplayOption.Ignore;
-        else if ("display-check".equalsIgnoreCase(s))
-          displayOption = CheckDisplayOption.Check;
-        else if ("display-case-space".equalsIgnoreCase(s))
-          displayOption = CheckDisplayOption.CheckCaseAndSpace;
-        else if ("display-case".equalsIgnoreCase(s))
-          displayOption = CheckDisplayOption.CheckCase;
-        else if ("display-space".equalsIgnoreCase(s))
-          displayOption = CheckDisplayOption.CheckSpace;
-        else if (!Utilities.noString(s))
-          throw new Exception("Unknown option "+s);
+      ValidationOptions opts = ValidationOptions.parse(options);
+      PooledValidator pv = acquire();
+      long ready = System.nanoTime();
+      OperationOutcome oo;
+      try {
+        opts.apply(pv.validator);
+        oo = pv.pool.engine.validate(pv.validator, location, source, FhirFormat.valueOf(cntType), null);
+      } finally {
+        release(pv);
       }
-
-      OperationOutcome oo = validator.validate(location, source, FhirFormat.valueOf(cntType), null, resourceIdRule, anyExtensionsAllowed, bpWarnings, displayOption);
       ByteArrayOutputStream bs = new ByteArrayOutputStream();
       new XmlParser().compose(bs, oo);
-      validationCount++;
+      validationCount.incrementAndGet();
+      long end = System.nanoTime();
+      validationNanos.addAndGet(end - start);
+      waitNanos.addAndGet(ready - start);
+      maxNanos.accumulateAndGet(end - start, Math::max);
       return bs.toByteArray();
     } catch (Exception e) {
-      exceptionCount++;
+      exceptionCount.incrementAndGet();
       synchronized (lock) {
         lastException = e.getMessage();
       }
@@ -341,6 +477,46 @@ public class NativeHostServices {
     }
   }
 
+  /**
+   * get a validator from the pool, creating it if the pool isn't full yet, or waiting for one to be released if it is
+   */
+  private PooledValidator acquire() throws InterruptedException {
+    while (true) {
+      ValidatorPool p = pool;
+      InstanceValidator res = p.idle.poll();
+      if (res == null) {
+        if (p.created.incrementAndGet() <= poolSize) {
+          try {
+            res = p.engine.getValidator();
+          } catch (RuntimeException e) {
+            p.created.decrementAndGet();
+            throw e;
+          }
+        } else {
+          p.created.decrementAndGet();
+          waiting.incrementAndGet();
+          try {
+            // don't wait forever - if init() is called, nothing will come back to this pool
+            res = p.idle.poll(100, TimeUnit.MILLISECONDS);
+          } finally {
+            waiting.decrementAndGet();
+          }
+          if (res == null)
+            continue;
+        }
+      }
+      active.incrementAndGet();
+      return new PooledValidator(p, res);
+    }
+  }
+
+  private void release(PooledValidator pv) {
+    active.decrementAndGet();
+    if (pv.pool.generation == pool.generation)
+      pv.pool.idle.offer(pv.validator);
+    // else it was made before the last init(), so it's dropped
+  }
+
   /**
    * Convert a resource to R4 from the specified version
    * 
@@ -358,7 +534,7 @@ public class NativeHostServices {
         org.hl7.fhir.dstu3.model.Resource res3 = p3.parse(r);
         Resource res4 = VersionConvertor_30_50.convertResource(res3, false);
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
-        convertCount++;
+        convertCount.incrementAndGet();
         return p4.composeBytes(res4);
       } else if (VersionUtilities.isR2Ver(version)) {
         org.hl7.fhir.dstu2.formats.ParserBase p2 = org.hl7.fhir.dstu2.formats.FormatUtilities.makeParser(fmt);
@@ -366,26 +542,26 @@ public class NativeHostServices {
         VersionConvertor_10_50 conv = new VersionConvertor_10_50(conv_10_50_advisor );
         Resource res4 = conv.convertResource(res2);
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
-        convertCount++;
+        convertCount.incrementAndGet();
         return p4.composeBytes(res4);
       } else if (VersionUtilities.isR2BVer(version)) {
         org.hl7.fhir.dstu2016may.formats.ParserBase p2 = org.hl7.fhir.dstu2016may.formats.FormatUtilities.makeParser(fmt);
         org.hl7.fhir.dstu2016may.model.Resource res2 = p2.parse(r);
         Resource res4 = VersionConvertor_14_50.convertResource(res2);
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
-        convertCount++;
+        convertCount.incrementAndGet();
         return p4.composeBytes(res4);
       } else if (VersionUtilities.isR4Ver(version)) {
         org.hl7.fhir.r4.formats.ParserBase p2 = org.hl7.fhir.r4.formats.FormatUtilities.makeParser(fmt);
         org.hl7.fhir.r4.model.Resource res2 = p2.parse(r);
         Resource res4 = VersionConvertor_40_50.convertResource(res2);
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
-        convertCount++;
+        convertCount.incrementAndGet();
         return p4.composeBytes(res4);
       } else
         throw new FHIRException("Unsupported version "+version);
     } catch (Exception e) {
-      exceptionCount++;
+      exceptionCount.incrementAndGet();
       synchronized (lock) {
         lastException = e.getMessage();
       }
@@ -410,7 +586,7 @@ public class NativeHostServices {
         org.hl7.fhir.r5.model.Resource res4 = p4.parse(r);
         org.hl7.fhir.dstu3.model.Resource res3 = VersionConvertor_30_50.convertResource(res4, false);
         org.hl7.fhir.dstu3.formats.ParserBase p3 = org.hl7.fhir.dstu3.formats.FormatUtilities.makeParser(fmt);
-        unConvertCount++;
+        unConvertCount.incrementAndGet();
         return p3.composeBytes(res3);
       } else if ("1.0".equals(version) || "1.0.2".equals(version) || "r2".equals(version)) {
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
@@ -418,19 +594,19 @@ public class NativeHostServices {
         VersionConvertor_10_50 conv = new VersionConvertor_10_50(conv_10_50_advisor );
         org.hl7.fhir.dstu2.model.Resource res2 = conv.convertResource(res4);
         org.hl7.fhir.dstu2.formats.ParserBase p2 = org.hl7.fhir.dstu2.formats.FormatUtilities.makeParser(fmt);
-        unConvertCount++;
+        unConvertCount.incrementAndGet();
         return p2.composeBytes(res2);
       } else if ("1.4".equals(version) || "1.4.0".equals(version)) {
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
         org.hl7.fhir.r5.model.Resource res4 = p4.parse(r);
         org.hl7.fhir.dstu2016may.model.Resource res2 = VersionConvertor_14_50.convertResource(res4);
         org.hl7.fhir.dstu2016may.formats.ParserBase p2 = org.hl7.fhir.dstu2016may.formats.FormatUtilities.makeParser(fmt);
-        unConvertCount++;
+        unConvertCount.incrementAndGet();
         return p2.composeBytes(res2);
       } else
         throw new FHIRException("Unsupported version "+version);
     } catch (Exception e) {
-      exceptionCount++;
+      exceptionCount.incrementAndGet();
       synchronized (lock) {
         lastException = e.getMessage();
       }
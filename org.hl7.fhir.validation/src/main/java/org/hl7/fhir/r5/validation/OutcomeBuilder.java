@@ -0,0 +1,286 @@
+package org.hl7.fhir.r5.validation;
+
+/*-
+ * #%L
+ * org.hl7.fhir.validation
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.exceptions.DefinitionException;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.FormatUtilities;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonCreator;
+import org.hl7.fhir.r5.formats.JsonCreatorDirect;
+import org.hl7.fhir.r5.model.Extension;
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.utils.FHIRPathEngine;
+import org.hl7.fhir.r5.utils.NarrativeGenerator;
+import org.hl7.fhir.r5.utils.OperationOutcomeUtilities;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.xml.XMLWriter;
+
+/**
+ * Turns the messages from a validation run into an OperationOutcome: duplicates removed
+ * (same message at the same location), sorted, and optionally with a narrative.
+ *
+ * The work is linear in the number of messages (plus the sort, which uses a key worked
+ * out once per message). For very large sets of messages, write() streams the issues
+ * straight out as JSON or XML without building the resource first
+ */
+public class OutcomeBuilder {
+
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(OutcomeBuilder.class);
+  private static final int MAX_CHECKED = 10000;
+
+  private IWorkerContext context;
+  private boolean narrative = true;
+  private boolean checkLocations = true;
+  private FHIRPathEngine fpe;
+  private Set<String> checkedLocations = new HashSet<>();
+
+  public OutcomeBuilder(IWorkerContext context) {
+    super();
+    this.context = context;
+  }
+
+  public boolean isNarrative() {
+    return narrative;
+  }
+
+  /**
+   * whether build() generates a narrative for the outcome (default true). This can cost more than the rest of building the outcome
+   */
+  public OutcomeBuilder setNarrative(boolean narrative) {
+    this.narrative = narrative;
+    return this;
+  }
+
+  public boolean isCheckLocations() {
+    return checkLocations;
+  }
+
+  /**
+   * whether to check that the location of each message is a valid FHIRPath expression (an internal check; problems are logged as warnings)
+   */
+  public OutcomeBuilder setCheckLocations(boolean checkLocations) {
+    this.checkLocations = checkLocations;
+    return this;
+  }
+
+  /**
+   * @return the messages with duplicates (same message and location) removed, sorted by severity, type, line and message
+   */
+  public List<ValidationMessage> filter(List<ValidationMessage> messages) {
+    Set<String> seen = new HashSet<>(messages.size() * 2);
+    List<SortEntry> list = new ArrayList<>(messages.size());
+    for (ValidationMessage vm : messages) {
+      // ValidationMessage.equals: a message is a duplicate if it has the same (non-null) message and location
+      if (vm.getMessage() == null || vm.getLocation() == null || seen.add(vm.getMessage()+"\u0001"+vm.getLocation()))
+        list.add(new SortEntry(vm));
+    }
+    Collections.sort(list);
+    List<ValidationMessage> res = new ArrayList<>(list.size());
+    for (SortEntry e : list)
+      res.add(e.message);
+    return res;
+  }
+
+  public OperationOutcome build(List<ValidationMessage> messages) throws DefinitionException {
+    OperationOutcome op = new OperationOutcome();
+    for (ValidationMessage vm : filter(messages)) {
+      checkLocation(vm);
+      op.getIssue().add(OperationOutcomeUtilities.convertToIssue(vm, op));
+    }
+    if (narrative)
+      new NarrativeGenerator("", "", context).generate(null, op);
+    return op;
+  }
+
+  /**
+   * Write the messages to the stream as an OperationOutcome, one issue at a time. There's no narrative
+   */
+  public void write(List<ValidationMessage> messages, OutputStream stream, FhirFormat format, OutputStyle style) throws IOException {
+    List<ValidationMessage> list = filter(messages);
+    if (format == FhirFormat.JSON)
+      writeJson(list, stream, style);
+    else if (format == FhirFormat.XML)
+      writeXml(list, stream, style);
+    else
+      throw new IOException("Unsupported format for an OperationOutcome: "+format);
+  }
+
+  private void writeJson(List<ValidationMessage> messages, OutputStream stream, OutputStyle style) throws IOException {
+    OutputStreamWriter osw = new OutputStreamWriter(stream, "UTF-8");
+    JsonCreator json = new JsonCreatorDirect(osw);
+    json.setIndent(style == OutputStyle.PRETTY ? "  " : "");
+    json.beginObject();
+    json.name("resourceType");
+    json.value("OperationOutcome");
+    if (!messages.isEmpty()) {
+      json.name("issue");
+      json.beginArray();
+      OperationOutcome op = new OperationOutcome();
+      for (ValidationMessage vm : messages) {
+        checkLocation(vm);
+        OperationOutcomeIssueComponent issue = OperationOutcomeUtilities.convertToIssue(vm, op);
+        json.beginObject();
+        if (issue.hasExtension()) {
+          json.name("extension");
+          json.beginArray();
+          for (Extension ext : issue.getExtension()) {
+            json.beginObject();
+            json.name("url");
+            json.value(ext.getUrl());
+            if (ext.getValue() instanceof IntegerType) {
+              json.name("valueInteger");
+              json.value(((IntegerType) ext.getValue()).getValue());
+            } else {
+              json.name("value"+Character.toUpperCase(ext.getValue().fhirType().charAt(0))+ext.getValue().fhirType().substring(1));
+              json.value(ext.getValue().primitiveValue());
+            }
+            json.endObject();
+          }
+          json.endArray();
+        }
+        json.name("severity");
+        json.value(issue.getSeverity().toCode());
+        json.name("code");
+        json.value(issue.getCode().toCode());
+        if (issue.getDetails().hasText()) {
+          json.name("details");
+          json.beginObject();
+          json.name("text");
+          json.value(issue.getDetails().getText());
+          json.endObject();
+        }
+        if (issue.hasExpression()) {
+          json.name("expression");
+          json.beginArray();
+          for (StringType s : issue.getExpression())
+            json.value(s.getValue());
+          json.endArray();
+        }
+        json.endObject();
+      }
+      json.endArray();
+    }
+    json.endObject();
+    json.finish();
+    osw.flush();
+  }
+
+  private void writeXml(List<ValidationMessage> messages, OutputStream stream, OutputStyle style) throws IOException {
+    XMLWriter xml = new XMLWriter(stream, "UTF-8");
+    xml.setPretty(style == OutputStyle.PRETTY);
+    xml.start();
+    xml.setDefaultNamespace(FormatUtilities.FHIR_NS);
+    xml.enter(FormatUtilities.FHIR_NS, "OperationOutcome");
+    OperationOutcome op = new OperationOutcome();
+    for (ValidationMessage vm : messages) {
+      checkLocation(vm);
+      OperationOutcomeIssueComponent issue = OperationOutcomeUtilities.convertToIssue(vm, op);
+      xml.enter(FormatUtilities.FHIR_NS, "issue");
+      for (Extension ext : issue.getExtension()) {
+        xml.attribute("url", ext.getUrl());
+        xml.enter(FormatUtilities.FHIR_NS, "extension");
+        primitive(xml, "value"+Character.toUpperCase(ext.getValue().fhirType().charAt(0))+ext.getValue().fhirType().substring(1), ext.getValue().primitiveValue());
+        xml.exit(FormatUtilities.FHIR_NS, "extension");
+      }
+      primitive(xml, "severity", issue.getSeverity().toCode());
+      primitive(xml, "code", issue.getCode().toCode());
+      if (issue.getDetails().hasText()) {
+        xml.enter(FormatUtilities.FHIR_NS, "details");
+        primitive(xml, "text", issue.getDetails().getText());
+        xml.exit(FormatUtilities.FHIR_NS, "details");
+      }
+      for (StringType s : issue.getExpression()) {
+        primitive(xml, "expression", s.getValue());
+      }
+      xml.exit(FormatUtilities.FHIR_NS, "issue");
+    }
+    xml.exit(FormatUtilities.FHIR_NS, "OperationOutcome");
+    xml.end();
+  }
+
+  private void primitive(XMLWriter xml, String name, String value) throws IOException {
+    xml.attribute("value", value);
+    xml.enter(FormatUtilities.FHIR_NS, name);
+    xml.exit(FormatUtilities.FHIR_NS, name);
+  }
+
+  /**
+   * one engine for all the messages, and each distinct location is only checked once
+   */
+  private void checkLocation(ValidationMessage vm) {
+    if (!checkLocations || vm.getLocation() == null)
+      return;
+    synchronized (checkedLocations) {
+      if (checkedLocations.size() > MAX_CHECKED)
+        checkedLocations.clear();
+      if (!checkedLocations.add(vm.getLocation()))
+        return;
+      if (fpe == null)
+        fpe = new FHIRPathEngine(context);
+    }
+    try {
+      fpe.parse(vm.getLocation());
+    } catch (Exception e) {
+      ourLog.warn("Internal error in location for message: '"+e.getMessage()+"', loc = '"+vm.getLocation()+"', err = '"+vm.getMessage()+"'");
+    }
+  }
+
+  /**
+   * the same order as ValidationMessage.compare, but the key is only worked out once per message
+   */
+  private static class SortEntry implements Comparable<SortEntry> {
+    private ValidationMessage message;
+    private String key;
+
+    private SortEntry(ValidationMessage message) {
+      this.message = message;
+      this.key = message.getLevel().getDisplay() + message.getType().getDisplay() + pad(message.getLine()) + message.getMessage();
+    }
+
+    private static String pad(int line) {
+      if (line < 0 || line > 999999)
+        return String.format("%06d", line);
+      String s = Integer.toString(line);
+      return "000000".substring(s.length()) + s;
+    }
+
+    @Override
+    public int compareTo(SortEntry other) {
+      return key.compareTo(other.key);
+    }
+  }
+
+}
@@ -0,0 +1,96 @@
+package org.hl7.fhir.r5.validation;
+
+/*-
+ * #%L
+ * org.hl7.fhir.validation
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.r5.model.Questionnaire;
+import org.hl7.fhir.r5.model.Questionnaire.QuestionnaireItemComponent;
+
+/**
+ * Lookup tables for a Questionnaire: the items by linkId, and the parent of each item,
+ * so that finding an item, or the group that two items have in common, doesn't mean
+ * walking the whole questionnaire. The parsed enableWhen expressions are kept here
+ * too.
+ *
+ * The index is built when it's created, and doesn't see later changes to the
+ * questionnaire - the validator treats questionnaires as definitions that don't change
+ *
+ */
+public class QuestionnaireIndex {
+
+  private final Map<String, QuestionnaireItemComponent> items = new HashMap<>();
+  private final Map<QuestionnaireItemComponent, QuestionnaireItemComponent> parents = new IdentityHashMap<>();
+  private final Map<QuestionnaireItemComponent, ExpressionNode> expressions = new ConcurrentHashMap<>();
+
+  public QuestionnaireIndex(Questionnaire q) {
+    index(q.getItem(), null);
+  }
+
+  private void index(List<QuestionnaireItemComponent> list, QuestionnaireItemComponent parent) {
+    for (QuestionnaireItemComponent item : list) {
+      // same as Questionnaire.getQuestion: if a linkId is repeated, the first one in document order wins
+      if (item.hasLinkId() && !items.containsKey(item.getLinkId()))
+        items.put(item.getLinkId(), item);
+      parents.put(item, parent);
+      if (item.hasItem())
+        index(item.getItem(), item);
+    }
+  }
+
+  /**
+   * @return the item with the linkId, wherever it is in the questionnaire, or null
+   */
+  public QuestionnaireItemComponent getQuestion(String linkId) {
+    return linkId == null ? null : items.get(linkId);
+  }
+
+  /**
+   * @return the innermost item that is, or contains, both q1 and q2, or null if that's the questionnaire itself
+   *   (same as Questionnaire.getCommonGroup)
+   */
+  public QuestionnaireItemComponent getCommonGroup(QuestionnaireItemComponent q1, QuestionnaireItemComponent q2) {
+    if (q1 == null || q2 == null)
+      return null;
+    Set<QuestionnaireItemComponent> ancestors = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (QuestionnaireItemComponent i = q1; i != null; i = parents.get(i))
+      ancestors.add(i);
+    for (QuestionnaireItemComponent i = q2; i != null; i = parents.get(i))
+      if (ancestors.contains(i))
+        return i;
+    return null;
+  }
+
+  public ExpressionNode getEnableWhenExpression(QuestionnaireItemComponent item) {
+    return expressions.get(item);
+  }
+
+  public void setEnableWhenExpression(QuestionnaireItemComponent item, ExpressionNode n) {
+    expressions.put(item, n);
+  }
+}
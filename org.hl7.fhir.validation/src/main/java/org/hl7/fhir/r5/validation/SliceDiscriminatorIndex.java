@@ -0,0 +1,193 @@
+package org.hl7.fhir.r5.validation;
+
+/*-
+ * #%L
+ * org.hl7.fhir.validation
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.ElementDefinition;
+
+/**
+ * Lookup tables for slicing on simple discriminators. 
+ * 
+ * For each slice, the discriminator values (fixed codes and URLs, CodeableConcept 
+ * patterns with a single system/code, and types) are worked out once. For each element, 
+ * the values found at the discriminator paths are worked out once per validation (the 
+ * caller keeps them), and then testing whether an element is in a slice is a set of 
+ * hash lookups, rather than a FHIRPath evaluation per element per slice. 
+ * 
+ * Slices whose discriminators can't be reduced to values (bindings, profiles, existence, 
+ * complex paths, fixed values on paths that can repeat) have no key, and are matched by 
+ * evaluating FHIRPath as before
+ *
+ */
+public class SliceDiscriminatorIndex {
+
+  public enum KeyKind {
+    VALUE, // the primitive value(s) at the path
+    CODING, // system|code of the codings in the CodeableConcept(s) at the path
+    TYPE; // the type of the single element at the path
+  }
+
+  /**
+   * the discriminator values for a slice. All of them must be present on an element for the element to be in the slice
+   */
+  public static class SliceKey {
+    private List<String> paths = new ArrayList<>();
+    private List<KeyKind> kinds = new ArrayList<>();
+    private List<String> values = new ArrayList<>();
+
+    public void add(String path, KeyKind kind, String value) {
+      paths.add(path);
+      kinds.add(kind);
+      values.add(value);
+    }
+
+    public boolean isEmpty() {
+      return paths.isEmpty();
+    }
+  }
+
+  private static final SliceKey NO_KEY = new SliceKey();
+
+  private Map<ElementDefinition, SliceKey> keys = new ConcurrentHashMap<>();
+
+  /**
+   * @return true if an attempt has been made to build a key for this slice (whether or not that worked) 
+   */
+  public boolean isKnown(ElementDefinition slice) {
+    return keys.containsKey(slice);
+  }
+
+  /**
+   * @return the key for the slice, or null if the slice has no key and must be matched using FHIRPath 
+   */
+  public SliceKey getKey(ElementDefinition slice) {
+    SliceKey res = keys.get(slice);
+    return res == NO_KEY ? null : res;
+  }
+
+  public void setKey(ElementDefinition slice, SliceKey key) {
+    keys.put(slice, key == null || key.isEmpty() ? NO_KEY : key);
+  }
+
+  /**
+   * whether the path can be followed directly without FHIRPath: a simple list of element names
+   */
+  public static boolean isSimplePath(String path) {
+    if (path == null || path.isEmpty())
+      return false;
+    for (String s : path.split("\\.")) {
+      if (s.isEmpty() || !Character.isLowerCase(s.charAt(0)))
+        return false;
+      for (char ch : s.toCharArray())
+        if (!Character.isLetterOrDigit(ch))
+          return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param values the values already read from elements, by element, kept by the caller for the duration of the validation
+   */
+  public boolean matches(Element element, SliceKey key, Map<Element, Map<String, Set<String>>> values) throws FHIRException {
+    for (int i = 0; i < key.paths.size(); i++) {
+      if (!getElementValues(element, key.paths.get(i), key.kinds.get(i), values).contains(key.values.get(i)))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * the values of the element for the path and kind. These are kept, since an element is tested against every slice 
+   */
+  private Set<String> getElementValues(Element element, String path, KeyKind kind, Map<Element, Map<String, Set<String>>> values) throws FHIRException {
+    Map<String, Set<String>> cache = values.get(element);
+    if (cache == null) {
+      cache = new HashMap<>();
+      values.put(element, cache);
+    }
+    String ck = kind.toString()+":"+path;
+    Set<String> res = cache.get(ck);
+    if (res == null) {
+      res = readElementValues(element, path, kind);
+      cache.put(ck, res);
+    }
+    return res;
+  }
+
+  private Set<String> readElementValues(Element element, String path, KeyKind kind) throws FHIRException {
+    List<Base> focus = new ArrayList<>();
+    focus.add(element);
+    for (String name : path.split("\\.")) 
+      focus = children(focus, name);
+    Set<String> res = new HashSet<>();
+    switch (kind) {
+    case VALUE:
+      for (Base b : focus)
+        if (b.hasPrimitiveValue())
+          res.add(b.primitiveValue());
+      break;
+    case CODING:
+      for (Base c : children(focus, "coding")) {
+        String system = singleValue(c, "system");
+        String code = singleValue(c, "code");
+        if (system != null && code != null)
+          res.add(system+"|"+code);
+      }
+      break;
+    case TYPE:
+      // matches the semantics of 'is': there must be exactly one element
+      if (focus.size() == 1)
+        res.add(focus.get(0).fhirType().toLowerCase());
+      break;
+    }
+    return res.isEmpty() ? Collections.<String>emptySet() : res;
+  }
+
+  private String singleValue(Base focus, String name) throws FHIRException {
+    Base[] list = focus.listChildrenByName(name, false);
+    if (list == null || list.length != 1 || list[0] == null || !list[0].hasPrimitiveValue())
+      return null;
+    return list[0].primitiveValue();
+  }
+
+  private List<Base> children(List<Base> focus, String name) throws FHIRException {
+    List<Base> res = new ArrayList<>();
+    for (Base b : focus) {
+      Base[] list = b.listChildrenByName(name, false);
+      if (list != null)
+        for (Base v : list)
+          if (v != null)
+            res.add(v);
+    }
+    return res;
+  }
+}
@@ -80,6 +80,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.stream.IntStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -104,12 +105,15 @@ import org.hl7.fhir.convertors.VersionConvertor_40_50;
 import org.hl7.fhir.exceptions.DefinitionException;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.exceptions.FHIRFormatError;
+import org.hl7.fhir.r5.conformance.ParallelSnapshotGenerator.SnapshotTiming;
 import org.hl7.fhir.r5.conformance.ProfileUtilities;
 import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.context.SimpleWorkerContext.IContextResourceLoader;
+import org.hl7.fhir.r5.context.SnapshotCache;
 import org.hl7.fhir.r5.elementmodel.Element;
 import org.hl7.fhir.r5.elementmodel.Manager;
 import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.BinaryParser;
 import org.hl7.fhir.r5.formats.FormatUtilities;
 import org.hl7.fhir.r5.formats.JsonParser;
 import org.hl7.fhir.r5.formats.RdfParser;
@@ -141,10 +145,10 @@ import org.hl7.fhir.r5.utils.IResourceValidator.IdStatus;
 import org.hl7.fhir.r5.utils.IResourceValidator.ReferenceValidationPolicy;
 import org.hl7.fhir.r5.utils.FHIRPathEngine;
 import org.hl7.fhir.r5.utils.NarrativeGenerator;
-import org.hl7.fhir.r5.utils.OperationOutcomeUtilities;
 import org.hl7.fhir.r5.utils.StructureMapUtilities;
 import org.hl7.fhir.r5.utils.StructureMapUtilities.ITransformerServices;
 import org.hl7.fhir.r5.validation.ValidationEngine.ScanOutputItem;
+import org.hl7.fhir.r5.validation.IgLoadPipeline.LoadTimings;
 import org.hl7.fhir.r5.utils.ToolingExtensions;
 import org.hl7.fhir.r5.utils.ValidationProfileSet;
 import org.hl7.fhir.utilities.IniFile;
@@ -153,6 +157,8 @@ import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.VersionUtilities;
 import org.hl7.fhir.utilities.cache.NpmPackage;
 import org.hl7.fhir.utilities.cache.PackageCacheManager;
+import org.hl7.fhir.utilities.cache.PackageDependencyResolver;
+import org.hl7.fhir.utilities.cache.PackageDependencyResolver.ResolvedPackage;
 import org.hl7.fhir.utilities.cache.ToolsVersion;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
@@ -306,7 +312,15 @@ public class ValidationEngine implements IValidatorResourceFetcher {
   private PackageCacheManager pcm;
   private PrintWriter mapLog;
   private boolean debug;
+  private int loadThreads = Runtime.getRuntime().availableProcessors();
+  private LoadTimings lastLoadTimings;
+  private String convertorVersion = ConvertedPackageCache.defaultConvertorVersion();
   private Set<String> loadedIgs = new HashSet<>();
+  private List<String> packageMirrors = new ArrayList<>();
+  private OutcomeBuilder outcomeBuilder;
+  private XmlValidator xmlValidator;
+  private boolean outcomeNarrative = true;
+  private boolean parallelSnapshots;
 
   private class AsteriskFilter implements FilenameFilter {
     String dir;
@@ -390,6 +404,14 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     loadDefinitions(src, false);
     pcm = new PackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
   }
+
+  /**
+   * Use definitions that have already been loaded (e.g. for testing)
+   */
+  public ValidationEngine(SimpleWorkerContext context) throws IOException {
+    this();
+    this.context = context;
+  }
   
   public String getLanguage() {
     return language;
@@ -404,6 +426,7 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     if (version == null)
       version = getVersionFromPack(source);
     context = SimpleWorkerContext.fromDefinitions(source, loaderForVersion());
+    outcomeBuilder = null;
     context.setAllowLoadingDuplicates(true); // because of Forge
     context.setExpansionProfile(makeExpProfile());
     NpmPackage npm = pcm.loadPackage("hl7.fhir.xver-extensions", "0.0.1");
@@ -622,23 +645,62 @@ public class ValidationEngine implements IValidatorResourceFetcher {
   public Map<String, byte[]> loadPackage(NpmPackage pi) throws Exception {
     loadedIgs.add(pi.name()+"#"+pi.version());
     Map<String, byte[]> res = new HashMap<String, byte[]>();
-    for (String s : pi.dependencies()) {
-      if (!loadedIgs.contains(s)) {
-        if (!VersionUtilities.isCorePackage(s)) {
-          System.out.println("+  .. load IG from "+s);
-          res.putAll(fetchByPackage(s));
-        }
-      }
+    if (pcm == null) {
+      log("Creating Package manager?");
+      pcm = new PackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
     }
-    
-    for (String s : pi.listResources("CodeSystem", "ConceptMap", "ImplementationGuide", "CapabilityStatement", "SearchParameter", "Conformance", "StructureMap", "ValueSet", "StructureDefinition")) {
-       res.put(s, TextFile.streamToBytes(pi.load("package", s)));
+    // the whole dependency graph is fetched concurrently, and then the packages are read in parallel
+    PackageDependencyResolver resolver = new PackageDependencyResolver(pcm);
+    for (String m : packageMirrors)
+      resolver.addMirror(m);
+    resolver.setSkip(s -> loadedIgs.contains(s) || VersionUtilities.isCorePackage(s));
+    List<ResolvedPackage> deps = resolver.resolve(pi);
+    List<Map<String, byte[]>> contents = new ArrayList<>(Collections.nCopies(deps.size(), null));
+    long[] times = new long[deps.size()];
+    IntStream.range(0, deps.size()).parallel().forEach(i -> {
+      long start = System.currentTimeMillis();
+      contents.set(i, readPackageResources(deps.get(i).getNpm()));
+      times[i] = System.currentTimeMillis() - start;
+    });
+    // merged in dependency order, so a package's own resources win over those it depends on
+    for (int i = 0; i < deps.size(); i++) {
+      ResolvedPackage dep = deps.get(i);
+      System.out.println("+  .. load IG from "+dep.getId()+"#"+dep.getVersion()+" ("+dep.getSource().toDisplay()+" "+dep.getMillis()+"ms, "+(contents.get(i).size()-1)+" resources read in "+times[i]+"ms)");
+      loadedIgs.add(dep.getId()+"#"+dep.getVersion());
+      res.putAll(contents.get(i));
+    }
+    res.putAll(readPackageResources(pi));
+    return res;
+  }
+
+  private Map<String, byte[]> readPackageResources(NpmPackage pi) {
+    Map<String, byte[]> res = new HashMap<String, byte[]>();
+    try {
+      for (String s : pi.listResources("CodeSystem", "ConceptMap", "ImplementationGuide", "CapabilityStatement", "SearchParameter", "Conformance", "StructureMap", "ValueSet", "StructureDefinition")) {
+        res.put(s, TextFile.streamToBytes(pi.load("package", s)));
+      }
+      // the R5 form of the resources is kept in the package cache, so they're only parsed and converted the first time
+      if (pcm != null && convertorVersion != null && ConvertedPackageCache.needsConversion(pi))
+        res = new ConvertedPackageCache(pcm, convertorVersion).convert(pi, res, (fn, content) -> loadResourceByVersion(pi.fhirVersion(), content, fn));
+    } catch (IOException e) {
+      throw new FHIRException("Error reading package "+pi.name()+"#"+pi.version()+": "+e.getMessage(), e);
     }
     String ini = "[FHIR]\r\nversion="+pi.fhirVersion()+"\r\n";
     res.put("version.info", ini.getBytes());
     return res;
   }
 
+  /**
+   * @param path a folder of package .tgz files (or a single .tgz) to install dependencies from before going to the network
+   */
+  public void addPackageMirror(String path) {
+    packageMirrors.add(path);
+  }
+
+  public List<String> getPackageMirrors() {
+    return packageMirrors;
+  }
+
   private Map<String, byte[]> readZip(InputStream stream) throws IOException {
     Map<String, byte[]> res = new HashMap<String, byte[]>();
     ZipInputStream zip = new ZipInputStream(stream);
@@ -712,6 +774,28 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     this.noInvariantChecks = value;
   }
 
+  public boolean isSnapshotCaching() {
+    return context.getSnapshotCache() != null;
+  }
+
+  /**
+   * Keep the generated snapshots in the package cache folder, and reuse them next time (see SnapshotCache)
+   */
+  public void setSnapshotCaching(boolean value) throws IOException {
+    context.setSnapshotCache(value ? new SnapshotCache(pcm.getFolder()) : null);
+  }
+
+  public boolean isParallelSnapshots() {
+    return parallelSnapshots;
+  }
+
+  /**
+   * Generate the missing snapshots in parallel in prepare() (see SimpleWorkerContext.generateSnapshots)
+   */
+  public void setParallelSnapshots(boolean parallelSnapshots) {
+    this.parallelSnapshots = parallelSnapshots;
+  }
+
   private FhirFormat checkIsResource(byte[] cnt, String filename) {
     System.out.println("   ..Detect format for "+filename);
     try {
@@ -784,48 +868,54 @@ public class ValidationEngine implements IValidatorResourceFetcher {
   }
   
   public void loadIg(String src, boolean recursive) throws IOException, FHIRException, Exception {
-    String canonical = null;
+    long start = System.nanoTime();
     Map<String, byte[]> source = loadIgSource(src, recursive, true);
     String version = Constants.VERSION;
     if (this.version != null)
       version = this.version;
     if (source.containsKey("version.info"))
       version = readInfoVersion(source.get("version.info"));
-    
-    for (Entry<String, byte[]> t : source.entrySet()) {
-      String fn = t.getKey();
-      if (!exemptFile(fn)) {
-        Resource r = loadFileWithErrorChecking(version, t, fn);
-        if (r != null) {
-          context.cacheResource(r);
-          if (r instanceof ImplementationGuide) {
-            canonical = ((ImplementationGuide) r).getUrl();
-            if (canonical.contains("/ImplementationGuide/")) {
-              Resource r2 = r.copy();
-              ((ImplementationGuide) r2).setUrl(canonical.substring(0, canonical.indexOf("/ImplementationGuide/")));
-              context.cacheResource(r2);
-            }
-          }
+    long read = System.nanoTime() - start;
+
+    // parsing and conversion are spread across the pool, but the resources are registered in file name order
+    String fversion = version;
+    String[] canonical = new String[1];
+    IgLoadPipeline pipeline = new IgLoadPipeline(loadThreads, (fn, content, timings) -> loadFileWithErrorChecking(fversion, content, fn, timings), (fn, r) -> {
+      context.cacheResource(r);
+      if (r instanceof ImplementationGuide) {
+        canonical[0] = ((ImplementationGuide) r).getUrl();
+        if (canonical[0].contains("/ImplementationGuide/")) {
+          Resource r2 = r.copy();
+          ((ImplementationGuide) r2).setUrl(canonical[0].substring(0, canonical[0].indexOf("/ImplementationGuide/")));
+          context.cacheResource(r2);
         }
       }
-		}
-    if (canonical != null)
-      grabNatives(source, canonical);
-	}
+    });
+    pipeline.getTimings().setRead(read);
+    List<String> names = new ArrayList<>(source.keySet());
+    Collections.sort(names);
+    for (String fn : names) {
+      if (!exemptFile(fn))
+        pipeline.submit(fn, source.get(fn));
+    }
+    lastLoadTimings = pipeline.finish();
+    if (canonical[0] != null)
+      grabNatives(source, canonical[0]);
+  }
 
   public Resource loadFileWithErrorChecking(String version, Entry<String, byte[]> t, String fn) {
-    if (debug)
-      System.out.print("* load file: "+fn);
+    return loadFileWithErrorChecking(version, t.getValue(), fn, null);
+  }
+
+  // called from the load pipeline workers, so each file's outcome is reported as a single line
+  private Resource loadFileWithErrorChecking(String version, byte[] content, String fn, LoadTimings timings) {
     Resource r = null;
     try { 
-      r = loadResourceByVersion(version, t.getValue(), fn);
+      r = loadResourceByVersion(version, content, fn, timings);
       if (debug)
-        System.out.println(" .. success");
+        System.out.println("* load file: "+fn+" .. success");
     } catch (Exception e) {
-      if (!debug) {
-        System.out.print("* load file: "+fn);
-      }
-      System.out.println(" - ignored due to error: "+(e.getMessage() == null ? " (null - NPE)" :  e.getMessage()));
+      System.out.println("* load file: "+fn+" - ignored due to error: "+(e.getMessage() == null ? " (null - NPE)" :  e.getMessage()));
       if (debug)
         e.printStackTrace();
     }
@@ -833,8 +923,28 @@ public class ValidationEngine implements IValidatorResourceFetcher {
   }
 
   public Resource loadResourceByVersion(String version, byte[] content, String fn) throws IOException, Exception {
+    return loadResourceByVersion(version, content, fn, null);
+  }
+
+  private long timeParse(LoadTimings timings, long start) {
+    long now = System.nanoTime();
+    if (timings != null)
+      timings.addParse(now - start);
+    return now;
+  }
+
+  private void timeConvert(LoadTimings timings, long start) {
+    if (timings != null)
+      timings.addConvert(System.nanoTime() - start);
+  }
+
+  private Resource loadResourceByVersion(String version, byte[] content, String fn, LoadTimings timings) throws IOException, Exception {
+    long start = System.nanoTime();
     Resource r;
-    if (version.startsWith("3.0")) {
+    if (ConvertedPackageCache.isConverted(fn)) {
+      r = new BinaryParser().parse(content);
+      timeParse(timings, start);
+    } else if (version.startsWith("3.0")) {
       org.hl7.fhir.dstu3.model.Resource res;
       if (fn.endsWith(".xml") && !fn.endsWith("template.xml"))
         res = new org.hl7.fhir.dstu3.formats.XmlParser().parse(new ByteArrayInputStream(content));
@@ -844,7 +954,9 @@ public class ValidationEngine implements IValidatorResourceFetcher {
         res = new org.hl7.fhir.dstu3.utils.StructureMapUtilities(null).parse(new String(content));
       else
         throw new Exception("Unsupported format for "+fn);
+      start = timeParse(timings, start);
       r = VersionConvertor_30_50.convertResource(res, false);
+      timeConvert(timings, start);
     } else if (version.startsWith("4.0")) {
       org.hl7.fhir.r4.model.Resource res;
       if (fn.endsWith(".xml") && !fn.endsWith("template.xml"))
@@ -855,7 +967,9 @@ public class ValidationEngine implements IValidatorResourceFetcher {
         res = new org.hl7.fhir.r4.utils.StructureMapUtilities(null).parse(new String(content), fn);
       else
         throw new Exception("Unsupported format for "+fn);
+      start = timeParse(timings, start);
       r = VersionConvertor_40_50.convertResource(res);
+      timeConvert(timings, start);
     } else if (version.startsWith("1.4")) {
       org.hl7.fhir.dstu2016may.model.Resource res;
       if (fn.endsWith(".xml") && !fn.endsWith("template.xml"))
@@ -864,7 +978,9 @@ public class ValidationEngine implements IValidatorResourceFetcher {
         res = new org.hl7.fhir.dstu2016may.formats.JsonParser().parse(new ByteArrayInputStream(content));
       else
         throw new Exception("Unsupported format for "+fn);
+      start = timeParse(timings, start);
       r = VersionConvertor_14_50.convertResource(res);
+      timeConvert(timings, start);
     } else if (version.startsWith("1.0")) {
       org.hl7.fhir.dstu2.model.Resource res;
       if (fn.endsWith(".xml") && !fn.endsWith("template.xml"))
@@ -873,8 +989,10 @@ public class ValidationEngine implements IValidatorResourceFetcher {
         res = new org.hl7.fhir.dstu2.formats.JsonParser().parse(new ByteArrayInputStream(content));
       else
         throw new Exception("Unsupported format for "+fn);
+      start = timeParse(timings, start);
       VersionConvertorAdvisor50 advisor = new org.hl7.fhir.convertors.IGR2ConvertorAdvisor5();
       r = new VersionConvertor_10_50(advisor ).convertResource(res);
+      timeConvert(timings, start);
     } else if (version.equals(Constants.VERSION)) {
       if (fn.endsWith(".xml") && !fn.endsWith("template.xml"))
         r = new XmlParser().parse(new ByteArrayInputStream(content));
@@ -886,6 +1004,7 @@ public class ValidationEngine implements IValidatorResourceFetcher {
         r = new org.hl7.fhir.r5.utils.StructureMapUtilities(null).parse(new String(content), fn);
       else
         throw new Exception("Unsupported format for "+fn);
+      timeParse(timings, start);
     } else
       throw new Exception("Unsupported version "+version);
     return r;
@@ -907,6 +1026,7 @@ public class ValidationEngine implements IValidatorResourceFetcher {
       if (e.getKey().endsWith(".zip"))
         binaries.put(prefix+"#"+e.getKey(), e.getValue());
     }
+    xmlValidator = null;
 	}
 
   public void setQuestionnaires(List<String> questionnaires) {
@@ -1113,14 +1233,8 @@ public class ValidationEngine implements IValidatorResourceFetcher {
 
   public OperationOutcome validate(String location, byte[] source, FhirFormat cntType, List<String> profiles) throws Exception {
     List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
-    if (doNative) {
-      if (cntType == FhirFormat.JSON)
-        validateJsonSchema(location, messages);
-      if (cntType == FhirFormat.XML)
-        validateXmlSchema(location, messages);
-      if (cntType == FhirFormat.TURTLE)
-        validateSHEX(location, messages);
-    }
+    if (doNative)
+      validateNative(location, source, cntType, messages);
     InstanceValidator validator = getValidator();
     validator.validate(null, messages, new ByteArrayInputStream(source), cntType, new ValidationProfileSet(profiles, true));
     return messagesToOutcome(messages);
@@ -1128,66 +1242,79 @@ public class ValidationEngine implements IValidatorResourceFetcher {
 
   public OperationOutcome validate(String location, byte[] source, FhirFormat cntType, List<String> profiles, IdStatus resourceIdRule, boolean anyExtensionsAllowed, BestPracticeWarningLevel bpWarnings, CheckDisplayOption displayOption) throws Exception {
     List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
-    if (doNative) {
-      if (cntType == FhirFormat.JSON)
-        validateJsonSchema(location, messages);
-      if (cntType == FhirFormat.XML)
-        validateXmlSchema(location, messages);
-      if (cntType == FhirFormat.TURTLE)
-        validateSHEX(location, messages);
-    }
+    if (doNative)
+      validateNative(location, source, cntType, messages);
     InstanceValidator validator = getValidator();
     validator.setResourceIdRule(resourceIdRule);
+    validator.setAnyExtensionsAllowed(anyExtensionsAllowed);
     validator.setBestPracticeWarningLevel(bpWarnings);
     validator.setCheckDisplay(displayOption);   
     validator.validate(null, messages, new ByteArrayInputStream(source), cntType, new ValidationProfileSet(profiles, true));
     return messagesToOutcome(messages);
   }
+
+  /**
+   * Validate using a validator the caller has already set up (from getValidator()). This is safe to call from multiple threads, 
+   * as long as each thread uses its own validator
+   */
+  public OperationOutcome validate(InstanceValidator validator, String location, byte[] source, FhirFormat cntType, List<String> profiles) throws Exception {
+    List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
+    if (doNative)
+      validateNative(location, source, cntType, messages);
+    validator.validate(null, messages, new ByteArrayInputStream(source), cntType, new ValidationProfileSet(profiles, true));
+    return messagesToOutcome(messages);
+  }
   
   
   private void validateSHEX(String location, List<ValidationMessage> messages) {
     messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.INFORMATIONAL, location, "SHEX Validation is not done yet", IssueSeverity.INFORMATION));
 	}
 
-  private void validateXmlSchema(String location, List<ValidationMessage> messages) throws FileNotFoundException, IOException, SAXException {
-    XmlValidator xml = new XmlValidator(messages, loadSchemas(), loadTransforms());
-    messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.INFORMATIONAL, location, "XML Schema Validation is not done yet", IssueSeverity.INFORMATION));
+  private void validateNative(String location, byte[] source, FhirFormat cntType, List<ValidationMessage> messages) throws IOException, SAXException {
+    if (cntType == FhirFormat.JSON)
+      validateJsonSchema(location, messages);
+    if (cntType == FhirFormat.XML)
+      validateXmlSchema(location, source, messages);
+    if (cntType == FhirFormat.TURTLE)
+      validateSHEX(location, messages);
+  }
+
+  private void validateXmlSchema(String location, byte[] source, List<ValidationMessage> messages) throws IOException, SAXException {
+    XmlValidator xml = getXmlValidator();
+    if (xml == null)
+      messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.INFORMATIONAL, location, "XML Schema Validation is not available (fhir-all-xsd.zip is not loaded)", IssueSeverity.INFORMATION));
+    else
+      xml.validate(location, source, messages);
 	}
 
-  private Map<String, byte[]> loadSchemas() throws IOException {
-    Map<String, byte[]> res = new HashMap<String, byte[]>();
-    for (Entry<String, byte[]> e : readZip(new ByteArrayInputStream(binaries.get("http://hl7.org/fhir#fhir-all-xsd.zip"))).entrySet()) {
-      if (e.getKey().equals("fhir-single.xsd"))
-        res.put(e.getKey(), e.getValue());
-      if (e.getKey().equals("fhir-invariants.sch"))
-        res.put(e.getKey(), e.getValue());
-    }
-    return res;
-  }
-  
-  private Map<String, byte[]> loadTransforms() throws IOException {
-    Map<String, byte[]> res = new HashMap<String, byte[]>();
-    for (Entry<String, byte[]> e : readZip(new ByteArrayInputStream(binaries.get("http://hl7.org/fhir#fhir-all-xsd.zip"))).entrySet()) {
-      if (e.getKey().endsWith(".xsl"))
-        res.put(e.getKey(), e.getValue());
+  /**
+   * The schemas and schematrons are compiled once, and shared by all the validation runs (until the natives change)
+   */
+  private synchronized XmlValidator getXmlValidator() throws IOException, SAXException {
+    if (xmlValidator == null && binaries.containsKey("http://hl7.org/fhir#fhir-all-xsd.zip")) {
+      Map<String, byte[]> schemas = new HashMap<String, byte[]>();
+      Map<String, byte[]> transforms = new HashMap<String, byte[]>();
+      for (Entry<String, byte[]> e : readZip(new ByteArrayInputStream(binaries.get("http://hl7.org/fhir#fhir-all-xsd.zip"))).entrySet()) {
+        if (e.getKey().endsWith(".xsd") || e.getKey().equals("fhir-invariants.sch"))
+          schemas.put(e.getKey(), e.getValue());
+        if (e.getKey().endsWith(".xsl"))
+          transforms.put(e.getKey(), e.getValue());
+      }
+      xmlValidator = new XmlValidator(schemas, transforms, "fhir-single.xsd");
     }
-    return res;
+    return xmlValidator;
   }
 
   private void validateJsonSchema(String location, List<ValidationMessage> messages) {
     messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.INFORMATIONAL, location, "JSON Schema Validation is not done yet", IssueSeverity.INFORMATION));   
 	}
 
-  private List<ValidationMessage> filterMessages(List<ValidationMessage> messages) {
-    List<ValidationMessage> filteredValidation = new ArrayList<ValidationMessage>();
-    for (ValidationMessage e : messages) {
-      if (!filteredValidation.contains(e))
-        filteredValidation.add(e);
-    }
-    filteredValidation.sort(null);
-    return filteredValidation;
+  private synchronized OutcomeBuilder outcomeBuilder() {
+    if (outcomeBuilder == null)
+      outcomeBuilder = new OutcomeBuilder(context).setNarrative(outcomeNarrative);
+    return outcomeBuilder;
   }
-  
+
   private OperationOutcome exceptionToOutcome(Exception ex) throws DefinitionException {
     OperationOutcome op = new OperationOutcome();
     op.addIssue().setCode(org.hl7.fhir.r5.model.OperationOutcome.IssueType.EXCEPTION).setSeverity(org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity.FATAL).getDetails().setText(ex.getMessage());
@@ -1196,19 +1323,33 @@ public class ValidationEngine implements IValidatorResourceFetcher {
   }
   
   private OperationOutcome messagesToOutcome(List<ValidationMessage> messages) throws DefinitionException {
-    OperationOutcome op = new OperationOutcome();
-    for (ValidationMessage vm : filterMessages(messages)) {
-      FHIRPathEngine fpe = new FHIRPathEngine(context);
-      try {
-        fpe.parse(vm.getLocation());
-      } catch (Exception e) {
-        System.out.println("Internal error in location for message: '"+e.getMessage()+"', loc = '"+vm.getLocation()+"', err = '"+vm.getMessage()+"'");
-      }
-      op.getIssue().add(OperationOutcomeUtilities.convertToIssue(vm, op));
-    }
-    new NarrativeGenerator("", "", context).generate(null, op);
-    return op;
+    return outcomeBuilder().build(messages);
 	}
+
+  /**
+   * Validate the content, and stream the outcome straight to dest, one issue at a time (no narrative)
+   */
+  public void validate(String location, byte[] source, FhirFormat cntType, List<String> profiles, OutputStream dest, FhirFormat outputFormat, OutputStyle style) throws Exception {
+    List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
+    if (doNative)
+      validateNative(location, source, cntType, messages);
+    InstanceValidator validator = getValidator();
+    validator.validate(null, messages, new ByteArrayInputStream(source), cntType, new ValidationProfileSet(profiles, true));
+    outcomeBuilder().write(messages, dest, outputFormat, style);
+  }
+
+  public boolean isOutcomeNarrative() {
+    return outcomeNarrative;
+  }
+
+  /**
+   * Whether to generate a narrative for the OperationOutcomes returned from validation (default true)
+   */
+  public void setOutcomeNarrative(boolean outcomeNarrative) {
+    this.outcomeNarrative = outcomeNarrative;
+    if (outcomeBuilder != null)
+      outcomeBuilder.setNarrative(outcomeNarrative);
+  }
   
   public static String issueSummary (OperationOutcomeIssueComponent issue) {
     String source = ToolingExtensions.readStringExtension(issue, ToolingExtensions.EXT_ISSUE_SOURCE);
@@ -1325,6 +1466,16 @@ public class ValidationEngine implements IValidatorResourceFetcher {
   }
 
   public void prepare() {
+    if (parallelSnapshots) {
+      for (SnapshotTiming t : context.generateSnapshots(context.listStructures())) {
+        if (!t.isOk()) {
+          System.out.println("Process Note: Unable to generate snapshot for "+t.getProfile().present()+": "+t.getError().getMessage());
+          if (debug) {
+            t.getError().printStackTrace();
+          }
+        }
+      }
+    }
     for (StructureDefinition sd : context.allStructures()) {
       try {
         makeSnapshot(sd);
@@ -1356,6 +1507,36 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     this.debug = debug;
   }
 
+  public int getLoadThreads() {
+    return loadThreads;
+  }
+
+  /**
+   * @param loadThreads the number of threads used to parse and convert the files of an IG. 1 loads them one at a time
+   */
+  public void setLoadThreads(int loadThreads) {
+    this.loadThreads = loadThreads;
+  }
+
+  public String getConvertorVersion() {
+    return convertorVersion;
+  }
+
+  /**
+   * @param convertorVersion identifies the convertors for the converted packages kept in the package cache. 
+   *   Defaults to the validator build; null turns off the cache
+   */
+  public void setConvertorVersion(String convertorVersion) {
+    this.convertorVersion = convertorVersion;
+  }
+
+  /**
+   * @return how long each stage of the most recent loadIg took
+   */
+  public LoadTimings getLastLoadTimings() {
+    return lastLoadTimings;
+  }
+
   public void genScanOutput(String folder, List<ScanOutputItem> items) throws IOException {
     String f = Utilities.path(folder, "comparison.zip");
     download("http://fhir.org/archive/comparison.zip", f);
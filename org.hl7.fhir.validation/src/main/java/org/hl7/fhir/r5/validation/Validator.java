@@ -178,6 +178,13 @@ public class Validator {
       System.out.println("     a built implementation guide or a local folder that contains a");
       System.out.println("     set of conformance resources.");
       System.out.println("     No default value. This parameter can appear any number of times");
+      System.out.println("-package-mirror [folder|file]: a folder of package .tgz files (or a single .tgz)");
+      System.out.println("     to install IG dependencies from before fetching them from the web.");
+      System.out.println("     For offline use. This parameter can appear any number of times");
+      System.out.println("-parallel-snapshots: generate the missing snapshots for the loaded profiles");
+      System.out.println("     in parallel, where the profiles don't depend on each other");
+      System.out.println("-snapshot-cache: keep the generated snapshots in the package cache, and reuse");
+      System.out.println("     them next time");
       System.out.println("-tx [url]: the [base] url of a FHIR terminology service");
       System.out.println("     Default value is http://tx.fhir.org. This parameter can appear once");
       System.out.println("     To run without terminology value, specific n/a as the URL");
@@ -394,6 +401,8 @@ public class Validator {
       List<String> questionnaires = new ArrayList<String>();
       String txServer = "http://tx.fhir.org";
       boolean doNative = false;
+      boolean parallelSnapshots = false;
+      boolean snapshotCache = false;
       boolean anyExtensionsAllowed = true;
       boolean hintAboutNonMustSupport = false;
       boolean recursive = false;
@@ -401,6 +410,7 @@ public class Validator {
       EngineMode mode = EngineMode.VALIDATION;
       String output = null;
       List<String> sources= new ArrayList<String>();
+      List<String> mirrors = new ArrayList<String>();
       Map<String, String> locations = new HashMap<String, String>();
       String sv = "current";
       String txLog = null;
@@ -442,6 +452,10 @@ public class Validator {
             questionnaires.add(args[++i]);
         } else if (args[i].equals("-native")) {
           doNative = true;          
+        } else if (args[i].equals("-parallel-snapshots")) {
+          parallelSnapshots = true;
+        } else if (args[i].equals("-snapshot-cache")) {
+          snapshotCache = true;
         } else if (args[i].equals("-debug")) {
           doDebug = true;
         } else if (args[i].equals("-sct")) {
@@ -524,6 +538,11 @@ public class Validator {
             else
               igs.add(s);
           }
+        } else if (args[i].equals("-package-mirror")) {
+          if (i+1 == args.length)
+            throw new Error("Specified -package-mirror without indicating folder or file");
+          else
+            mirrors.add(args[++i]);
         } else if (args[i].equals("-map")) {
           if (map == null) {
             if (i+1 == args.length)
@@ -559,15 +578,20 @@ public class Validator {
       System.out.println("  .. connect to tx server @ "+txServer);
       ValidationEngine validator = new ValidationEngine(definitions, txServer, txLog, FhirPublication.fromCode(sv));
       validator.setDebug(doDebug);
+      validator.setSnapshotCaching(snapshotCache);
       System.out.println("    (v"+validator.getContext().getVersion()+")");
       if (sv != null)
         validator.setVersion(sv);
+      for (String m : mirrors)
+        validator.addPackageMirror(m);
       for (String src : igs) {
         System.out.println("+  .. load IG from "+src);
         validator.loadIg(src, recursive);
+        System.out.println("   .. "+validator.getLastLoadTimings().summary());
       }
       validator.setQuestionnaires(questionnaires);
       validator.setNative(doNative);
+      validator.setParallelSnapshots(parallelSnapshots);
       validator.setHintAboutNonMustSupport(hintAboutNonMustSupport);
       validator.setAnyExtensionsAllowed(anyExtensionsAllowed);
       validator.setLanguage(lang);
@@ -0,0 +1,118 @@
+package org.hl7.fhir.r5.validation;
+
+/*-
+ * #%L
+ * org.hl7.fhir.validation
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Map;
+
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.ElementDefinitionConstraintComponent;
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.r5.model.Questionnaire;
+import org.hl7.fhir.r5.model.StructureDefinition;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Things that the validator works out from the definitions held in a worker context, 
+ * and wants to keep for the next time it sees the same definition: parsed invariants, 
+ * slicing expressions and indexes, and so forth.
+ * 
+ * These used to be stored in the user data of the definitions themselves, but the 
+ * definitions are shared by every validator using the context, and user data is not 
+ * thread safe. Instead, there's one of these per context, and it can be shared by 
+ * any number of validators running at the same time. 
+ * 
+ * The maps are keyed by the identity of the definitions, and hold them weakly, so 
+ * that nothing is kept for definitions that are no longer in use - profiles that are 
+ * only used for a single request, or resources that are replaced in the context
+ *
+ */
+public class ValidatorCache {
+
+  private static final Map<IWorkerContext, ValidatorCache> CACHES = weakKeys();
+
+  /**
+   * get the cache for the context. The cache lives as long as the context does 
+   */
+  public static ValidatorCache forContext(IWorkerContext context) {
+    return CACHES.computeIfAbsent(context, k -> new ValidatorCache());
+  }
+
+  // weak keys in a MapMaker map are compared by identity
+  private static <K, V> Map<K, V> weakKeys() {
+    return new MapMaker().weakKeys().makeMap();
+  }
+
+  private final Map<ElementDefinitionConstraintComponent, ExpressionNode> invariantExpressions = weakKeys();
+  private final Map<ElementDefinition, ExpressionNode> sliceExpressions = weakKeys();
+  private final Map<ElementDefinition, SliceDiscriminatorIndex> sliceIndexes = weakKeys();
+  // the container holds the contained profile, so it must be held weakly too, or the entry would never go
+  private final Map<StructureDefinition, StructureDefinition> containers = new MapMaker().weakKeys().weakValues().makeMap();
+  private final Map<StructureDefinition, Boolean> usesMustSupport = weakKeys();
+  private final Map<Questionnaire, QuestionnaireIndex> questionnaires = weakKeys();
+
+  public ExpressionNode getInvariantExpression(ElementDefinitionConstraintComponent inv) {
+    return invariantExpressions.get(inv);
+  }
+
+  public void setInvariantExpression(ElementDefinitionConstraintComponent inv, ExpressionNode n) {
+    invariantExpressions.put(inv, n);
+  }
+
+  public ExpressionNode getSliceExpression(ElementDefinition slice) {
+    return sliceExpressions.get(slice);
+  }
+
+  public void setSliceExpression(ElementDefinition slice, ExpressionNode n) {
+    sliceExpressions.put(slice, n);
+  }
+
+  public SliceDiscriminatorIndex getSliceIndex(ElementDefinition slicer) {
+    return sliceIndexes.computeIfAbsent(slicer, k -> new SliceDiscriminatorIndex());
+  }
+
+  /**
+   * @return the profile that contains a contained profile, if it's been seen
+   */
+  public StructureDefinition getContainer(StructureDefinition sd) {
+    return containers.get(sd);
+  }
+
+  public void setContainer(StructureDefinition sd, StructureDefinition container) {
+    containers.put(sd, container);
+  }
+
+  public Boolean getUsesMustSupport(StructureDefinition profile) {
+    return usesMustSupport.get(profile);
+  }
+
+  public void setUsesMustSupport(StructureDefinition profile, boolean value) {
+    usesMustSupport.put(profile, value);
+  }
+
+  /**
+   * only for questionnaires that come from the context - a contained questionnaire is a new object each time it's loaded
+   */
+  public QuestionnaireIndex getQuestionnaireIndex(Questionnaire q) {
+    return questionnaires.computeIfAbsent(q, k -> new QuestionnaireIndex(k));
+  }
+}
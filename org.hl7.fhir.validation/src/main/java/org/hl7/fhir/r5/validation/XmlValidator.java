@@ -30,17 +30,22 @@ import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
 import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 import org.w3c.dom.ls.LSInput;
 import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.Attributes;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
@@ -48,16 +53,34 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Native XML validation - by schema, and by schematron.
+ *
+ * The schema is compiled when the validator is created, and each schematron is compiled
+ * (through iso_svrl_for_xslt2.xsl) to a Saxon Templates the first time it's used. Both are
+ * thread safe, so one XmlValidator can be shared by all the threads validating content
+ * against the same schema set; the methods that take a list of messages stream the
+ * content through the compiled schema and transforms without building a DOM
+ *
+ * @author Grahame Grieve
+ *
+ */
 public class XmlValidator {
 
+  private static final String SVRL_NS = "http://purl.oclc.org/dsdl/svrl";
+
   private Schema schema;
   private Map<String, byte[]> schemas;
   private Map<String, byte[]> transforms;
+  private String[] roots;
+  private Map<String, Templates> schematrons = new ConcurrentHashMap<String, Templates>();
   private List<ValidationMessage> errors;
   private Logger logger;
 
@@ -69,28 +92,50 @@ public class XmlValidator {
   }
 
   public XmlValidator(List<ValidationMessage> validationErrors, String srcDir, String xsltDir, String[] schemaNames) throws FileNotFoundException, IOException, SAXException {
+    this.errors = validationErrors;
     loadTransforms(xsltDir);
     loadSchemas(srcDir, schemaNames);
     load();
   }
 
+  /**
+   * @param schemas all the schemas (.xsd) and schematrons (.sch) that might be needed
+   * @param roots the schemas to compile - the others are only used to resolve imports and includes. If there's none, all the .xsd files are compiled
+   */
+  public XmlValidator(Map<String, byte[]> schemas, Map<String, byte[]> transforms, String... roots) throws SAXException {
+    this.schemas = schemas;
+    this.transforms = transforms;
+    this.roots = roots;
+    load();
+  }
+
+  public Logger getLogger() {
+    return logger;
+  }
+
+  public void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
   private void load() throws SAXException {
-    int c = 0;
-    for (String s : schemas.keySet())
-      if (s.endsWith(".xsd"))
-        c++;
-    StreamSource[] sources = new StreamSource[c];
-    int i = 0;
+    List<StreamSource> sources = new ArrayList<StreamSource>();
     for (String s : schemas.keySet()) {
-      if (s.endsWith(".xsd")) {
-        sources[i] = new StreamSource(new ByteArrayInputStream(schemas.get(s)), s);
-        i++;
-      }
+      if (s.endsWith(".xsd") && isRoot(s))
+        sources.add(new StreamSource(new ByteArrayInputStream(schemas.get(s)), s));
     }
     SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
     schemaFactory.setErrorHandler(new MyErrorHandler(errors, null));
     schemaFactory.setResourceResolver(new MyResourceResolver());
-    schema = schemaFactory.newSchema(sources);
+    schema = schemaFactory.newSchema(sources.toArray(new StreamSource[sources.size()]));
+  }
+
+  private boolean isRoot(String name) {
+    if (roots == null || roots.length == 0)
+      return true;
+    for (String s : roots)
+      if (s.equals(name))
+        return true;
+    return false;
   }
 
   private void loadTransforms(String xsltDir) throws FileNotFoundException, IOException {
@@ -116,6 +161,81 @@ public class XmlValidator {
     this.schemas = res;
   }
 
+  /**
+   * Check the content against the schema, and then (if it's well formed) against all the schematrons
+   *
+   * @return the number of errors found
+   */
+  public int validate(String name, byte[] source, List<ValidationMessage> messages) {
+    int start = messages.size();
+    int c = checkBySchema(name, new ByteArrayInputStream(source), messages);
+    for (int i = start; i < messages.size(); i++)
+      if (messages.get(i).getLevel() == IssueSeverity.FATAL)
+        return c; // not well formed - no point running the schematrons
+    for (String s : schemas.keySet()) {
+      if (s.endsWith(".sch"))
+        c = c + checkBySchematron(name, new ByteArrayInputStream(source), s, messages);
+    }
+    return c;
+  }
+
+  /**
+   * Stream the content through the compiled schema
+   *
+   * @return the number of errors found
+   */
+  public int checkBySchema(String name, InputStream stream, List<ValidationMessage> messages) {
+    javax.xml.validation.Validator validator = schema.newValidator();
+    MyErrorHandler err = new MyErrorHandler(messages, name);
+    validator.setErrorHandler(err);
+    validator.setResourceResolver(new MyResourceResolver());
+    try {
+      validator.validate(new StreamSource(stream, name));
+    } catch (SAXException e) {
+      // a fatal error - already reported to the error handler
+      return err.getErrors().size() + 1;
+    } catch (IOException e) {
+      messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.EXCEPTION, -1, -1, name, e.getMessage(), IssueSeverity.FATAL));
+      return err.getErrors().size() + 1;
+    }
+    return err.getErrors().size();
+  }
+
+  /**
+   * Run the content through the compiled schematron, and collect the failed asserts from the SVRL as it's produced
+   *
+   * @return the number of errors found
+   */
+  public int checkBySchematron(String name, InputStream stream, String sch, List<ValidationMessage> messages) {
+    SvrlHandler svrl = new SvrlHandler(messages, name);
+    try {
+      Transformer t = getSchematron(sch).newTransformer();
+      t.setURIResolver(new ZipURIResolver(transforms));
+      t.transform(new StreamSource(stream, name), new SAXResult(svrl));
+    } catch (Throwable e) {
+      messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.STRUCTURE, -1, -1, name + ":" + sch, e.getMessage(), IssueSeverity.ERROR));
+      return svrl.count + 1;
+    }
+    return svrl.count;
+  }
+
+  private Templates getSchematron(String sch) throws TransformerException {
+    Templates res = schematrons.get(sch);
+    if (res == null) {
+      synchronized (schematrons) {
+        res = schematrons.get(sch);
+        if (res == null) {
+          if (!schemas.containsKey(sch))
+            throw new TransformerException("Unknown schematron "+sch);
+          byte[] xslt = XsltUtilities.saxonTransform(transforms, schemas.get(sch), transforms.get("iso_svrl_for_xslt2.xsl"));
+          res = XsltUtilities.saxonCompile(transforms, xslt);
+          schematrons.put(sch, res);
+        }
+      }
+    }
+    return res;
+  }
+
   public Element checkBySchema(String fileToCheck, boolean wantThrow) throws FileNotFoundException, SAXException, IOException, ParserConfigurationException, FHIRException {
     DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
     factory.setNamespaceAware(true);
@@ -132,36 +252,63 @@ public class XmlValidator {
   }
 
   public void checkBySchematron(String filename, String sch, boolean wantThrow) throws IOException, ParserConfigurationException, SAXException, FileNotFoundException, FHIRException {
-    DocumentBuilderFactory factory;
-    DocumentBuilder builder;
-    Document doc;
-    byte[] out = null;
-    try {
-      out = XsltUtilities.saxonTransform(transforms, schemas.get(sch), transforms.get("iso_svrl_for_xslt2.xsl"));
-      out = XsltUtilities.saxonTransform(transforms, TextFile.fileToBytes(filename), out);
-    } catch (Throwable e) {
-      errors.add(new ValidationMessage(Source.InstanceValidator, IssueType.STRUCTURE, -1, -1, filename + ":" + sch, e.getMessage(), IssueSeverity.ERROR));
-      if (wantThrow)
-        throw new FHIRException("Error validating " + filename + " with schematrons", e);
+    List<ValidationMessage> list = new ArrayList<ValidationMessage>();
+    int c;
+    try (InputStream stream = new CSFileInputStream(new CSFile(filename))) {
+      c = checkBySchematron(filename, stream, sch, list);
     }
-
-    factory = DocumentBuilderFactory.newInstance();
-    factory.setNamespaceAware(true);
-    builder = factory.newDocumentBuilder();
-    doc = builder.parse(new ByteArrayInputStream(out));
-    NodeList nl = doc.getDocumentElement().getElementsByTagNameNS("http://purl.oclc.org/dsdl/svrl", "failed-assert");
-    if (nl.getLength() > 0) {
-      logger.log("Schematron Validation Failed for " + filename, LogMessageType.Error);
-      for (int i = 0; i < nl.getLength(); i++) {
-        Element e = (Element) nl.item(i);
-        logger.log("  @" + e.getAttribute("location") + ": " + e.getTextContent(), LogMessageType.Error);
-        errors.add(new ValidationMessage(Source.InstanceValidator, IssueType.STRUCTURE, -1, -1, filename + ":" + e.getAttribute("location"), e.getTextContent(), IssueSeverity.ERROR));
+    errors.addAll(list);
+    if (c > 0) {
+      if (logger != null) {
+        logger.log("Schematron Validation Failed for " + filename, LogMessageType.Error);
+        for (ValidationMessage vm : list)
+          logger.log("  @" + vm.getLocation() + ": " + vm.getMessage(), LogMessageType.Error);
       }
       if (wantThrow)
         throw new FHIRException("Schematron Validation Failed for " + filename);
     }
   }
 
+  /**
+   * picks the failed asserts out of the SVRL output
+   */
+  private class SvrlHandler extends DefaultHandler {
+
+    private List<ValidationMessage> list;
+    private String path;
+    private int count;
+    private String location;
+    private StringBuilder text;
+
+    public SvrlHandler(List<ValidationMessage> list, String path) {
+      this.list = list;
+      this.path = path;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+      if (text == null && SVRL_NS.equals(uri) && "failed-assert".equals(localName)) {
+        location = attributes.getValue("location");
+        text = new StringBuilder();
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+      if (text != null)
+        text.append(ch, start, length);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+      if (text != null && SVRL_NS.equals(uri) && "failed-assert".equals(localName)) {
+        list.add(new ValidationMessage(Source.InstanceValidator, IssueType.STRUCTURE, -1, -1, path + ":" + location, text.toString(), IssueSeverity.ERROR));
+        count++;
+        text = null;
+      }
+    }
+  }
+
   public class MyErrorHandler implements ErrorHandler {
 
     private List<String> errors = new ArrayList<String>();
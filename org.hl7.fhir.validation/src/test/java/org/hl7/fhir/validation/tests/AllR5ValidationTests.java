@@ -10,6 +10,18 @@ import org.junit.runners.Suite.SuiteClasses;
   ValidationEngineTests.class,
   JsonSchemaTests.class,
   NativeHostServiceTester.class,
+  BundleIndexTests.class,
+  SliceDiscriminatorIndexTests.class,
+  ValidatorCacheTests.class,
+  ParallelSnapshotTests.class,
+  SnapshotCacheTests.class,
+  OutcomeBuilderTests.class,
+  XmlValidatorTests.class,
+  NativeHostServicesTests.class,
+  IgLoadPipelineTests.class,
+  ConvertedPackageCacheTests.class,
+  QuestionnaireIndexTests.class,
+  EnableWhenEvaluatorTests.class,
   // CDAValidationTestCase.class,
   ProfileComparisonTests.class})
 public class AllR5ValidationTests {
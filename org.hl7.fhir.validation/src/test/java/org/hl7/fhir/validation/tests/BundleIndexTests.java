@@ -0,0 +1,116 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.validation.BundleIndex;
+import org.hl7.fhir.r5.validation.InstanceValidator;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BundleIndexTests {
+
+  private static final String P1 = "urn:uuid:11111111-1111-1111-1111-111111111111";
+  private static final String O1 = "urn:uuid:22222222-2222-2222-2222-222222222222";
+  private static final String O2 = "urn:uuid:33333333-3333-3333-3333-333333333333";
+
+  private String patient(String fullUrl, String id, String version) {
+    return "{\"fullUrl\":\""+fullUrl+"\",\"resource\":{\"resourceType\":\"Patient\""+(id == null ? "" : ",\"id\":\""+id+"\"")
+        +(version == null ? "" : ",\"meta\":{\"versionId\":\""+version+"\"}")+",\"active\":true}}";
+  }
+
+  private String observation(String fullUrl, String subject) {
+    return "{\"fullUrl\":\""+fullUrl+"\",\"resource\":{\"resourceType\":\"Observation\",\"status\":\"final\",\"code\":{\"text\":\"test\"},\"subject\":{\"reference\":\""+subject+"\"}}}";
+  }
+
+  private String bundle(String... entries) {
+    StringBuilder b = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[");
+    for (int i = 0; i < entries.length; i++)
+      b.append(i == 0 ? "" : ",").append(entries[i]);
+    return b.append("]}").toString();
+  }
+
+  private Element parse(String json) throws IOException, FHIRException {
+    return Manager.parse(TestUtilities.context(), new ByteArrayInputStream(json.getBytes("UTF-8")), FhirFormat.JSON);
+  }
+
+  private List<ValidationMessage> validate(Element e) throws IOException, FHIRException {
+    List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
+    InstanceValidator validator = new InstanceValidator(TestUtilities.context(), null);
+    validator.setAnyExtensionsAllowed(true);
+    validator.validate(null, messages, e);
+    return messages;
+  }
+
+  private int count(List<ValidationMessage> messages, String text) {
+    int res = 0;
+    for (ValidationMessage vm : messages)
+      if (vm.getMessage().contains(text))
+        res++;
+    return res;
+  }
+
+  @Test
+  public void testLookups() throws Exception {
+    Element bnd = parse(bundle(
+        patient("http://example.org/fhir/Patient/a", "a", null),
+        patient("http://example.org/fhir/Patient/b", "b", null),
+        patient("http://example.org/fhir/Patient/a", "a", null),
+        patient("http://example.org/fhir/Patient/c", "b", null)));
+    BundleIndex ndx = BundleIndex.build(bnd);
+    List<Element> entries = bnd.getChildrenByName("entry");
+
+    Assert.assertEquals(4, ndx.getEntries().size());
+    Assert.assertEquals(2, ndx.getEntriesByFullUrl("http://example.org/fhir/Patient/a").size());
+    Assert.assertSame(entries.get(0), ndx.getEntriesByFullUrl("http://example.org/fhir/Patient/a").get(0));
+    Assert.assertSame(entries.get(2), ndx.getEntriesByFullUrl("http://example.org/fhir/Patient/a").get(1));
+    Assert.assertSame(entries.get(0), ndx.getEntryByFullUrl("http://example.org/fhir/Patient/a"));
+    Assert.assertTrue(ndx.getEntriesByFullUrl("http://example.org/fhir/Patient/x").isEmpty());
+    // the first entry with the type and id wins
+    Assert.assertSame(entries.get(1), ndx.getEntryByTypeAndId("Patient", "b"));
+    Assert.assertSame(entries.get(1).getNamedChild("resource"), ndx.getResourceByUrl("Patient/b"));
+    Assert.assertSame(entries.get(3).getNamedChild("resource"), ndx.getResourceByUrl("http://example.org/fhir/Patient/c"));
+    Assert.assertNull(ndx.getResourceByUrl("Patient/x"));
+    Assert.assertEquals(2, ndx.indexOf(entries.get(2)));
+    Assert.assertSame(ndx, BundleIndex.forBundle(bnd));
+  }
+
+  @Test
+  public void testVersionedReferences() throws Exception {
+    String id = P1.substring(9);
+    List<ValidationMessage> messages = validate(parse(bundle(
+        patient(P1, null, "1"),
+        patient(P1, null, "2"),
+        observation(O1, "Patient/"+id+"/_history/2"),
+        observation(O2, "Patient/"+id))));
+    // the versioned reference matches one of the entries with the fullUrl, the other matches both
+    Assert.assertEquals(0, count(messages, "Multiple matches in bundle for reference Patient/"+id+"/_history/2"));
+    Assert.assertEquals(1, count(messages, "Multiple matches in bundle for reference Patient/"+id));
+    Assert.assertEquals(0, count(messages, "Unable to resolve resource"));
+  }
+
+  @Test
+  public void testContained() throws Exception {
+    Element obs = parse("{\"resourceType\":\"Observation\",\"contained\":[{\"resourceType\":\"Patient\",\"id\":\"p1\"},{\"resourceType\":\"Patient\",\"id\":\"p2\"}],"
+        +"\"status\":\"final\",\"code\":{\"text\":\"test\"},\"subject\":{\"reference\":\"#p2\"},\"performer\":[{\"reference\":\"#p1\"},{\"reference\":\"#p3\"}]}");
+    List<ValidationMessage> messages = validate(obs);
+    Assert.assertEquals(0, count(messages, "Unable to resolve resource '#p1'"));
+    Assert.assertEquals(0, count(messages, "Unable to resolve resource '#p2'"));
+    Assert.assertEquals(1, count(messages, "Unable to resolve resource '#p3'"));
+
+    // the index doesn't outlive the validation, so a change to the resource is seen the next time
+    obs.getChildrenByName("contained").get(0).getNamedChild("id").setValue("p3");
+    messages = validate(obs);
+    Assert.assertEquals(1, count(messages, "Unable to resolve resource '#p1'"));
+    Assert.assertEquals(0, count(messages, "Unable to resolve resource '#p3'"));
+  }
+
+}
@@ -0,0 +1,183 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.convertors.VersionConvertor_40_50;
+import org.hl7.fhir.r5.formats.BinaryParser;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.validation.ConvertedPackageCache;
+import org.hl7.fhir.r5.validation.ConvertedPackageCache.IResourceConvertor;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.cache.NpmPackage;
+import org.hl7.fhir.utilities.cache.PackageCacheManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConvertedPackageCacheTests {
+
+  private static final String ID = "test.converted";
+  private static final String BROKEN = "ValueSet-broken.json";
+
+  private File dir;
+  private PackageCacheManager pcm;
+  private AtomicInteger conversions = new AtomicInteger();
+
+  private IResourceConvertor convertor = (fn, content) -> {
+    conversions.incrementAndGet();
+    return VersionConvertor_40_50.convertResource(new org.hl7.fhir.r4.formats.JsonParser().parse(content));
+  };
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("converted").toFile();
+    pcm = new PackageCacheManager(dir.getAbsolutePath(), 0);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private Map<String, byte[]> source() {
+    Map<String, byte[]> res = new HashMap<>();
+    for (int i = 0; i < 20; i++)
+      res.put("ValueSet-vs"+i+".json", ("{\"resourceType\" : \"ValueSet\", \"id\" : \"vs"+i+"\", \"url\" : \"http://example.org/fhir/ValueSet/vs"+i+"\", "+
+          "\"status\" : \"active\", \"compose\" : {\"include\" : [{\"system\" : \"http://example.org/codes\", \"concept\" : [{\"code\" : \"c"+i+"\"}]}]}}").getBytes(StandardCharsets.UTF_8));
+    res.put(BROKEN, "{\"resourceType\" : \"ValueSet\", \"id\" : ".getBytes(StandardCharsets.UTF_8));
+    return res;
+  }
+
+  private NpmPackage install(String version, String date) throws IOException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(bs))) {
+      byte[] b = ("{\"name\" : \""+ID+"\", \"version\" : \""+version+"\", \"date\" : \""+date+"\", \"dependencies\" : {\"hl7.fhir.r4.core\" : \"4.0.1\"}}").getBytes(StandardCharsets.UTF_8);
+      TarArchiveEntry e = new TarArchiveEntry("package/package.json");
+      e.setSize(b.length);
+      tar.putArchiveEntry(e);
+      tar.write(b);
+      tar.closeArchiveEntry();
+    }
+    return pcm.addPackageToCache(ID, version, new ByteArrayInputStream(bs.toByteArray()), "test");
+  }
+
+  private File cacheFile(String version) throws IOException {
+    return new File(Utilities.path(dir.getAbsolutePath(), ID+"#"+version, PackageCacheManager.DERIVED_FOLDER, ConvertedPackageCache.FILE_NAME));
+  }
+
+  /**
+   * @return the number of files converted to get the result
+   */
+  private int convert(ConvertedPackageCache cache, NpmPackage pi, Map<String, byte[]> expected) throws Exception {
+    conversions.set(0);
+    Map<String, byte[]> res = cache.convert(pi, source(), convertor);
+    Assert.assertEquals(expected.keySet(), res.keySet());
+    for (String fn : expected.keySet())
+      Assert.assertTrue(fn, Arrays.equals(expected.get(fn), res.get(fn)));
+    return conversions.get();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    NpmPackage pi = install("1.0.0", "20200101000000");
+    Assert.assertTrue(ConvertedPackageCache.needsConversion(pi));
+    Map<String, byte[]> first = new ConvertedPackageCache(pcm, "1").convert(pi, source(), convertor);
+    Assert.assertEquals(21, conversions.get());
+    Assert.assertTrue(cacheFile("1.0.0").exists());
+
+    // the converted resources are the same as converting directly, and the one that failed is kept as it was
+    Map<String, byte[]> src = source();
+    Assert.assertEquals(21, first.size());
+    Assert.assertArrayEquals(src.get(BROKEN), first.get(BROKEN));
+    for (int i = 0; i < 20; i++) {
+      String fn = "ValueSet-vs"+i+".json";
+      Assert.assertTrue(ConvertedPackageCache.isConverted(fn+ConvertedPackageCache.EXTENSION));
+      Resource r = new BinaryParser().parse(first.get(fn+ConvertedPackageCache.EXTENSION));
+      Assert.assertEquals(new JsonParser().composeString(convertor.convert(fn, src.get(fn))), new JsonParser().composeString(r));
+    }
+    Assert.assertFalse(ConvertedPackageCache.isConverted(BROKEN));
+
+    // later loads, in this process or another, come from the cache
+    Assert.assertEquals(0, convert(new ConvertedPackageCache(pcm, "1"), pi, first));
+    PackageCacheManager other = new PackageCacheManager(dir.getAbsolutePath(), 0);
+    Assert.assertEquals(0, convert(new ConvertedPackageCache(other, "1"), other.loadPackageFromCacheOnly(ID, "1.0.0"), first));
+
+    // the cache goes with the package
+    pcm.removePackage(ID, "1.0.0");
+    Assert.assertFalse(cacheFile("1.0.0").exists());
+  }
+
+  @Test
+  public void testConvertorVersion() throws Exception {
+    NpmPackage pi = install("1.0.0", "20200101000000");
+    Map<String, byte[]> first = new ConvertedPackageCache(pcm, "1").convert(pi, source(), convertor);
+    Assert.assertEquals(21, convert(new ConvertedPackageCache(pcm, "2"), pi, first));
+    Assert.assertEquals(0, convert(new ConvertedPackageCache(pcm, "2"), pi, first));
+    Assert.assertEquals(21, convert(new ConvertedPackageCache(pcm, "1"), pi, first));
+  }
+
+  @Test
+  public void testR5Version() throws Exception {
+    NpmPackage pi = install("1.0.0", "20200101000000");
+    Map<String, byte[]> first = new ConvertedPackageCache(pcm, "1").convert(pi, source(), convertor);
+    Assert.assertEquals(21, convert(new ConvertedPackageCache(pcm, "1", "5.0.0-other"), pi, first));
+    Assert.assertEquals(0, convert(new ConvertedPackageCache(pcm, "1", "5.0.0-other"), pi, first));
+    Assert.assertEquals(21, convert(new ConvertedPackageCache(pcm, "1"), pi, first));
+  }
+
+  @Test
+  public void testPackageDate() throws Exception {
+    NpmPackage pi = install("1.0.0", "20200101000000");
+    Map<String, byte[]> first = new ConvertedPackageCache(pcm, "1").convert(pi, source(), convertor);
+    byte[] cached = TextFile.fileToBytes(cacheFile("1.0.0"));
+
+    // the same package, republished: the old cache content is found, but doesn't match
+    pcm.removePackage(ID, "1.0.0");
+    pi = install("1.0.0", "20200202000000");
+    Assert.assertTrue(pcm.saveDerived(ID, "1.0.0", ConvertedPackageCache.FILE_NAME, cached));
+    Assert.assertEquals(21, convert(new ConvertedPackageCache(pcm, "1"), pi, first));
+    Assert.assertEquals(0, convert(new ConvertedPackageCache(pcm, "1"), pi, first));
+  }
+
+  @Test
+  public void testPackageIdentity() throws Exception {
+    NpmPackage pi = install("1.0.0", "20200101000000");
+    Map<String, byte[]> first = new ConvertedPackageCache(pcm, "1").convert(pi, source(), convertor);
+    byte[] cached = TextFile.fileToBytes(cacheFile("1.0.0"));
+
+    // content cached for another version of the package isn't used
+    NpmPackage pi2 = install("1.0.1", "20200101000000");
+    Assert.assertTrue(pcm.saveDerived(ID, "1.0.1", ConvertedPackageCache.FILE_NAME, cached));
+    Assert.assertEquals(21, convert(new ConvertedPackageCache(pcm, "1"), pi2, first));
+    Assert.assertEquals(0, convert(new ConvertedPackageCache(pcm, "1"), pi2, first));
+    // and the original is untouched
+    Assert.assertEquals(0, convert(new ConvertedPackageCache(pcm, "1"), pi, first));
+  }
+
+  @Test
+  public void testCorrupt() throws Exception {
+    NpmPackage pi = install("1.0.0", "20200101000000");
+    Map<String, byte[]> first = new ConvertedPackageCache(pcm, "1").convert(pi, source(), convertor);
+    byte[] cached = TextFile.fileToBytes(cacheFile("1.0.0"));
+    Assert.assertTrue(pcm.saveDerived(ID, "1.0.0", ConvertedPackageCache.FILE_NAME, Arrays.copyOf(cached, cached.length / 2)));
+    Assert.assertEquals(21, convert(new ConvertedPackageCache(pcm, "1"), pi, first));
+    Assert.assertEquals(0, convert(new ConvertedPackageCache(pcm, "1"), pi, first));
+  }
+
+}
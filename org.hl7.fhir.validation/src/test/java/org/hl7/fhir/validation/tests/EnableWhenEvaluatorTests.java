@@ -0,0 +1,359 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.model.BooleanType;
+import org.hl7.fhir.r5.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.Questionnaire;
+import org.hl7.fhir.r5.model.Questionnaire.EnableWhenBehavior;
+import org.hl7.fhir.r5.model.Questionnaire.QuestionnaireItemComponent;
+import org.hl7.fhir.r5.model.Questionnaire.QuestionnaireItemEnableWhenComponent;
+import org.hl7.fhir.r5.model.Questionnaire.QuestionnaireItemOperator;
+import org.hl7.fhir.r5.model.Questionnaire.QuestionnaireItemType;
+import org.hl7.fhir.r5.model.Type;
+import org.hl7.fhir.r5.validation.EnableWhenEvaluator;
+import org.hl7.fhir.r5.validation.EnableWhenEvaluator.QStack;
+import org.hl7.fhir.r5.validation.InstanceValidator;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EnableWhenEvaluatorTests {
+
+  private static final String Q_URL = "http://example.org/fhir/Questionnaire/generated";
+
+  /**
+   * the evaluator as it is, with the answers it finds for a condition made visible
+   */
+  private static class Evaluator extends EnableWhenEvaluator {
+    public List<Element> answers(QStack qstack, QuestionnaireItemComponent sourceQ, QuestionnaireItemEnableWhenComponent ew) {
+      return findQuestionAnswers(qstack, sourceQ, ew);
+    }
+  }
+
+  /**
+   * the evaluator as it was before the questionnaire and response were indexed: every lookup walks the
+   * questionnaire or the response. This returns each answer twice when it's below the group, once when
+   * it's on the group itself
+   */
+  private static class OldEvaluator extends Evaluator {
+    @Override
+    protected List<Element> findQuestionAnswers(QStack qstack, QuestionnaireItemComponent sourceQ, QuestionnaireItemEnableWhenComponent ew) {
+      QuestionnaireItemComponent targetQ = qstack.getQ().getQuestion(ew.getQuestion());
+      if (targetQ != null) {
+        QuestionnaireItemComponent groupQ = qstack.getQ().getCommonGroup(sourceQ, targetQ);
+        if (groupQ == null) {
+          return findOnItem(qstack.getA(), ew.getQuestion());
+        } else {
+          for (int i = qstack.size() - 1; i >= 0; i--) {
+            if (qstack.get(i).getQ() == groupQ) {
+              return findOnItem(qstack.get(i).getA(), ew.getQuestion());
+            }
+          }
+        }
+      }
+      return new ArrayList<>();
+    }
+
+    private List<Element> findOnItem(Element focus, String question) {
+      List<Element> retVal = new ArrayList<>();
+      for (Element item : focus.getChildren(ITEM_ELEMENT)) {
+        if (hasLinkId(item, question))
+          retVal.addAll(extractAnswer(item));
+        retVal.addAll(findOnItem(item, question));
+      }
+      if (hasLinkId(focus, question))
+        retVal.addAll(extractAnswer(focus));
+      return retVal;
+    }
+
+    private List<Element> extractAnswer(Element item) {
+      List<Element> res = new ArrayList<>();
+      for (Element a : item.getChildrenByName(ANSWER_ELEMENT))
+        res.addAll(a.getChildren());
+      return res;
+    }
+
+    private boolean hasLinkId(Element item, String linkId) {
+      Element linkIdChild = item.getNamedChild(LINKID_ELEMENT);
+      return linkIdChild != null && linkIdChild.getValue().equals(linkId);
+    }
+  }
+
+  private Element parse(String json) throws IOException, FHIRException {
+    return Manager.parse(TestUtilities.context(), new ByteArrayInputStream(json.getBytes("UTF-8")), FhirFormat.JSON);
+  }
+
+  private QuestionnaireItemComponent item(List<QuestionnaireItemComponent> list, String linkId, QuestionnaireItemType type) {
+    QuestionnaireItemComponent res = new QuestionnaireItemComponent();
+    res.setLinkId(linkId);
+    res.setType(type);
+    list.add(res);
+    return res;
+  }
+
+  private QuestionnaireItemEnableWhenComponent enableWhen(QuestionnaireItemComponent item, String question, QuestionnaireItemOperator op, Type answer) {
+    QuestionnaireItemEnableWhenComponent res = item.addEnableWhen();
+    res.setQuestion(question);
+    res.setOperator(op);
+    res.setAnswer(answer);
+    return res;
+  }
+
+  private List<Element> items(Element e) {
+    return e.getChildrenByName("item");
+  }
+
+  @Test
+  public void testNestedGroups() throws Exception {
+    Questionnaire q = new Questionnaire();
+    QuestionnaireItemComponent g1 = item(q.getItem(), "g1", QuestionnaireItemType.GROUP);
+    g1.setRepeats(true);
+    item(g1.getItem(), "q1", QuestionnaireItemType.BOOLEAN);
+    QuestionnaireItemComponent g2 = item(g1.getItem(), "g2", QuestionnaireItemType.GROUP);
+    QuestionnaireItemComponent q2 = item(g2.getItem(), "q2", QuestionnaireItemType.BOOLEAN);
+    enableWhen(q2, "q1", QuestionnaireItemOperator.EQUAL, new BooleanType(true));
+    QuestionnaireItemComponent g3 = item(q.getItem(), "g3", QuestionnaireItemType.GROUP);
+    QuestionnaireItemComponent q3 = item(g3.getItem(), "q3", QuestionnaireItemType.BOOLEAN);
+    enableWhen(q3, "q2", QuestionnaireItemOperator.EXISTS, new BooleanType(true));
+
+    Element qr = parse("{\"resourceType\":\"QuestionnaireResponse\",\"status\":\"completed\",\"item\":["
+        +"{\"linkId\":\"g1\",\"item\":[{\"linkId\":\"q1\",\"answer\":[{\"valueBoolean\":true}]},{\"linkId\":\"g2\",\"item\":[{\"linkId\":\"q2\",\"answer\":[{\"valueBoolean\":false}]}]}]},"
+        +"{\"linkId\":\"g1\",\"item\":[{\"linkId\":\"q1\",\"answer\":[{\"valueBoolean\":false}]},{\"linkId\":\"g2\",\"item\":[{\"linkId\":\"q2\"}]}]},"
+        +"{\"linkId\":\"g3\",\"item\":[{\"linkId\":\"q3\"}]}]}");
+    Evaluator ev = new Evaluator();
+    QStack root = new QStack(q, qr);
+    Element g1a = items(qr).get(0);
+    Element g1b = items(qr).get(1);
+
+    // q1 is looked for in the instance of g1 that q2 is in, not in the other one
+    QStack s = root.push(g1, g1a).push(g2, items(g1a).get(1));
+    Assert.assertTrue(ev.isQuestionEnabled(null, q2, s, null));
+    Assert.assertEquals(1, ev.answers(s, q2, q2.getEnableWhenFirstRep()).size());
+    s = root.push(g1, g1b).push(g2, items(g1b).get(1));
+    Assert.assertFalse(ev.isQuestionEnabled(null, q2, s, null));
+    Assert.assertEquals(1, ev.answers(s, q2, q2.getEnableWhenFirstRep()).size());
+
+    // q2 and q3 have only the questionnaire in common, so q2 is looked for anywhere in the response
+    s = root.push(g3, items(qr).get(2));
+    Assert.assertTrue(ev.isQuestionEnabled(null, q3, s, null));
+    Assert.assertEquals(1, ev.answers(s, q3, q3.getEnableWhenFirstRep()).size());
+    q3.getEnableWhenFirstRep().setAnswer(new BooleanType(false));
+    Assert.assertFalse(ev.isQuestionEnabled(null, q3, s, null));
+  }
+
+  @Test
+  public void testAnswerOnParent() throws Exception {
+    // the "BO_ConsDrop" case: the question with the enableWhen is a child of the question it depends on
+    Questionnaire q = new Questionnaire();
+    QuestionnaireItemComponent q1 = item(q.getItem(), "q1", QuestionnaireItemType.BOOLEAN);
+    QuestionnaireItemComponent q1a = item(q1.getItem(), "q1a", QuestionnaireItemType.STRING);
+    enableWhen(q1a, "q1", QuestionnaireItemOperator.EQUAL, new BooleanType(true));
+
+    Evaluator ev = new Evaluator();
+    for (boolean b : new boolean[] { true, false }) {
+      Element qr = parse("{\"resourceType\":\"QuestionnaireResponse\",\"status\":\"completed\",\"item\":["
+          +"{\"linkId\":\"q1\",\"answer\":[{\"valueBoolean\":"+b+",\"item\":[{\"linkId\":\"q1a\",\"answer\":[{\"valueString\":\"test\"}]}]}]}]}");
+      QStack s = new QStack(q, qr).push(q1, items(qr).get(0));
+      Assert.assertEquals(b, ev.isQuestionEnabled(null, q1a, s, null));
+      Assert.assertEquals(b, new OldEvaluator().isQuestionEnabled(null, q1a, s, null));
+      // the answer on the parent is found once, with the old code too: the value, and the nested item
+      Assert.assertEquals(2, ev.answers(s, q1a, q1a.getEnableWhenFirstRep()).size());
+      Assert.assertEquals(2, new OldEvaluator().answers(s, q1a, q1a.getEnableWhenFirstRep()).size());
+    }
+  }
+
+  @Test
+  public void testAnswersFoundOnce() throws Exception {
+    Questionnaire q = new Questionnaire();
+    QuestionnaireItemComponent g1 = item(q.getItem(), "g1", QuestionnaireItemType.GROUP);
+    QuestionnaireItemComponent g2 = item(g1.getItem(), "g2", QuestionnaireItemType.GROUP);
+    item(g2.getItem(), "q1", QuestionnaireItemType.INTEGER);
+    QuestionnaireItemComponent q2 = item(q.getItem(), "q2", QuestionnaireItemType.BOOLEAN);
+    enableWhen(q2, "q1", QuestionnaireItemOperator.GREATER_THAN, new IntegerType(3));
+
+    Element qr = parse("{\"resourceType\":\"QuestionnaireResponse\",\"status\":\"completed\",\"item\":["
+        +"{\"linkId\":\"g1\",\"item\":[{\"linkId\":\"g2\",\"item\":[{\"linkId\":\"q1\",\"answer\":[{\"valueInteger\":2},{\"valueInteger\":5}]}]}]},"
+        +"{\"linkId\":\"q2\"}]}");
+    QStack s = new QStack(q, qr).push(q2, items(qr).get(1));
+    List<Element> answers = new Evaluator().answers(s, q2, q2.getEnableWhenFirstRep());
+    List<Element> old = new OldEvaluator().answers(s, q2, q2.getEnableWhenFirstRep());
+    // the old code returned each answer twice. That made no difference to the outcome, which is whether any answer matches
+    Assert.assertEquals(2, answers.size());
+    Assert.assertEquals(4, old.size());
+    Assert.assertEquals(distinct(old), answers);
+    Assert.assertTrue(new Evaluator().isQuestionEnabled(null, q2, s, null));
+    Assert.assertTrue(new OldEvaluator().isQuestionEnabled(null, q2, s, null));
+    // the answers in a group are indexed once, and shared by the stacks pushed from the same root
+    Assert.assertSame(answers, new Evaluator().answers(s, q2, q2.getEnableWhenFirstRep()));
+  }
+
+  private List<Element> distinct(List<Element> list) {
+    Set<Element> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    List<Element> res = new ArrayList<>();
+    for (Element e : list)
+      if (seen.add(e))
+        res.add(e);
+    return res;
+  }
+
+  // -- a generated questionnaire and response, checked against the old evaluator -------------------------------
+
+  private class Generator {
+    private final Random random;
+    private final Questionnaire q = new Questionnaire();
+    private final List<QuestionnaireItemComponent> questions = new ArrayList<>();
+    private int count;
+    private int responseItems;
+
+    private Generator(long seed) {
+      random = new Random(seed);
+    }
+
+    private void questionnaire(int size) {
+      q.setUrl(Q_URL);
+      q.setStatus(PublicationStatus.ACTIVE);
+      while (count < size)
+        group(q.getItem(), 0);
+      for (QuestionnaireItemComponent item : questions)
+        if (random.nextInt(3) == 0)
+          conditions(item);
+    }
+
+    private void group(List<QuestionnaireItemComponent> list, int depth) {
+      QuestionnaireItemComponent g = item(list, "g"+(count++), QuestionnaireItemType.GROUP);
+      g.setRepeats(random.nextInt(4) == 0);
+      int n = 2 + random.nextInt(10);
+      for (int i = 0; i < n; i++) {
+        if (depth < 3 && random.nextInt(5) == 0)
+          group(g.getItem(), depth+1);
+        else
+          question(g.getItem(), random.nextInt(6) == 0);
+      }
+    }
+
+    private void question(List<QuestionnaireItemComponent> list, boolean children) {
+      QuestionnaireItemComponent item = item(list, "q"+(count++), random.nextBoolean() ? QuestionnaireItemType.BOOLEAN : QuestionnaireItemType.INTEGER);
+      questions.add(item);
+      if (children) {
+        for (int i = 1 + random.nextInt(3); i > 0; i--) {
+          QuestionnaireItemComponent child = item(item.getItem(), "q"+(count++), QuestionnaireItemType.BOOLEAN);
+          questions.add(child);
+          if (random.nextBoolean())
+            condition(child, item);
+        }
+      }
+    }
+
+    private void conditions(QuestionnaireItemComponent item) {
+      int n = 1 + random.nextInt(2);
+      for (int i = 0; i < n; i++) {
+        QuestionnaireItemComponent target = questions.get(random.nextInt(questions.size()));
+        if (target != item)
+          condition(item, target);
+      }
+      if (item.getEnableWhen().size() > 1)
+        item.setEnableBehavior(random.nextBoolean() ? EnableWhenBehavior.ALL : EnableWhenBehavior.ANY);
+    }
+
+    private void condition(QuestionnaireItemComponent item, QuestionnaireItemComponent target) {
+      if (random.nextInt(4) == 0)
+        enableWhen(item, target.getLinkId(), QuestionnaireItemOperator.EXISTS, new BooleanType(random.nextBoolean()));
+      else if (target.getType() == QuestionnaireItemType.BOOLEAN)
+        enableWhen(item, target.getLinkId(), random.nextBoolean() ? QuestionnaireItemOperator.EQUAL : QuestionnaireItemOperator.NOT_EQUAL, new BooleanType(random.nextBoolean()));
+      else {
+        QuestionnaireItemOperator[] ops = { QuestionnaireItemOperator.EQUAL, QuestionnaireItemOperator.GREATER_THAN, QuestionnaireItemOperator.LESS_OR_EQUAL };
+        enableWhen(item, target.getLinkId(), ops[random.nextInt(ops.length)], new IntegerType(random.nextInt(10)));
+      }
+    }
+
+    private String response() {
+      StringBuilder b = new StringBuilder();
+      b.append("{\"resourceType\":\"QuestionnaireResponse\",\"questionnaire\":\""+Q_URL+"\",\"status\":\"completed\"");
+      items(b, q.getItem());
+      return b.append("}").toString();
+    }
+
+    private void items(StringBuilder b, List<QuestionnaireItemComponent> list) {
+      boolean first = true;
+      for (QuestionnaireItemComponent item : list) {
+        int instances = item.getType() == QuestionnaireItemType.GROUP ? (item.getRepeats() ? 2 : 1) : random.nextInt(6) == 0 ? 0 : 1;
+        for (int i = 0; i < instances; i++) {
+          b.append(first ? ",\"item\":[" : ",");
+          first = false;
+          responseItems++;
+          b.append("{\"linkId\":\""+item.getLinkId()+"\"");
+          if (item.getType() == QuestionnaireItemType.GROUP)
+            items(b, item.getItem());
+          else {
+            String value = item.getType() == QuestionnaireItemType.BOOLEAN ? "\"valueBoolean\":"+random.nextBoolean() : "\"valueInteger\":"+random.nextInt(10);
+            b.append(",\"answer\":[{"+value);
+            items(b, item.getItem());
+            b.append("}]");
+          }
+          b.append("}");
+        }
+      }
+      if (!first)
+        b.append("]");
+    }
+  }
+
+  private int compare(Evaluator ev, OldEvaluator old, Element focus, QStack qstack) {
+    int disabled = 0;
+    for (Element e : items(focus)) {
+      QuestionnaireItemComponent qItem = qstack.getIndex().getQuestion(e.getNamedChildValue("linkId"));
+      boolean enabled = ev.isQuestionEnabled(null, qItem, qstack, null);
+      Assert.assertEquals(qItem.getLinkId(), old.isQuestionEnabled(null, qItem, qstack, null), enabled);
+      for (QuestionnaireItemEnableWhenComponent ew : qItem.getEnableWhen())
+        Assert.assertEquals(qItem.getLinkId(), distinct(old.answers(qstack, qItem, ew)), ev.answers(qstack, qItem, ew));
+      // the validator reports the items that have an answer or items, and aren't enabled
+      if (!enabled && (e.hasChildren("answer") || e.hasChildren("item")))
+        disabled++;
+      QStack child = qstack.push(qItem, e);
+      disabled += compare(ev, old, e, child);
+      for (Element a : e.getChildrenByName("answer"))
+        disabled += compare(ev, old, a, child);
+    }
+    return disabled;
+  }
+
+  @Test
+  public void testGenerated() throws Exception {
+    Generator gen = new Generator(4000);
+    gen.questionnaire(3600);
+    Element qr = parse(gen.response());
+    Assert.assertTrue(gen.responseItems >= 4000);
+
+    int disabled = compare(new Evaluator(), new OldEvaluator(), qr, new QStack(gen.q, qr));
+    Assert.assertTrue(disabled > 0);
+
+    SimpleWorkerContext context = TestUtilities.newContext();
+    context.cacheResource(gen.q);
+    InstanceValidator validator = new InstanceValidator(context, null);
+    List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
+    validator.validate(null, messages, qr);
+    int c = 0;
+    for (ValidationMessage vm : messages) {
+      Assert.assertFalse(vm.getMessage(), vm.getMessage().contains("not found in questionnaire") || vm.getMessage().contains("out of order"));
+      if (vm.getMessage().contains("Item has answer, even though it is not enabled"))
+        c++;
+    }
+    Assert.assertEquals(disabled, c);
+  }
+
+}
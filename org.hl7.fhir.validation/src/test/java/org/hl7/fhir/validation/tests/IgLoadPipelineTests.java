@@ -0,0 +1,218 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.MetadataResource;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.validation.IgLoadPipeline;
+import org.hl7.fhir.r5.validation.IgLoadPipeline.LoadTimings;
+import org.hl7.fhir.r5.validation.ValidationEngine;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IgLoadPipelineTests {
+
+  private static final String VS_URL = "http://example.org/fhir/ValueSet/";
+
+  private String name(int i) {
+    return String.format("f%03d", i);
+  }
+
+  /**
+   * every 7th file is skipped. The rest take a random time to load, so they finish out of order
+   */
+  private List<String> load(int threads, int count, long seed) throws Exception {
+    Random random = new Random(seed);
+    long[] delays = new long[count];
+    for (int i = 0; i < count; i++)
+      delays[i] = random.nextInt(5);
+    Thread caller = Thread.currentThread();
+    List<String> registered = new ArrayList<>();
+    IgLoadPipeline pipeline = new IgLoadPipeline(threads, (fn, content, timings) -> {
+      int i = Integer.parseInt(fn.substring(1));
+      Thread.sleep(delays[i]);
+      if (i % 7 == 0)
+        return null;
+      ValueSet vs = new ValueSet();
+      vs.setId(fn);
+      return vs;
+    }, (fn, r) -> {
+      Assert.assertSame(caller, Thread.currentThread());
+      Assert.assertEquals(fn, r.getId());
+      registered.add(fn);
+    });
+    for (int i = 0; i < count; i++)
+      pipeline.submit(name(i), new byte[0]);
+    LoadTimings timings = pipeline.finish();
+    Assert.assertEquals(count, timings.getFiles());
+    Assert.assertEquals((count+6) / 7, timings.getSkipped());
+    Assert.assertEquals(Math.max(1, threads), timings.getThreads());
+    return registered;
+  }
+
+  @Test
+  public void testRegistrationOrder() throws Exception {
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 200; i++)
+      if (i % 7 != 0)
+        expected.add(name(i));
+    for (int threads : new int[] { 0, 1, 4, 16 }) {
+      for (long seed = 1; seed <= 3; seed++)
+        Assert.assertEquals("threads = "+threads+", seed = "+seed, expected, load(threads, 200, seed));
+    }
+  }
+
+  @Test
+  public void testLoaderFailure() throws Exception {
+    List<String> registered = new ArrayList<>();
+    IgLoadPipeline pipeline = new IgLoadPipeline(4, (fn, content, timings) -> {
+      if (fn.equals(name(5)))
+        throw new IOException("bad content");
+      if (fn.equals(name(8)))
+        throw new Error("not an exception");
+      ValueSet vs = new ValueSet();
+      vs.setId(fn);
+      return vs;
+    }, (fn, r) -> registered.add(fn));
+    try {
+      for (int i = 0; i < 10; i++)
+        pipeline.submit(name(i), new byte[0]);
+      pipeline.finish();
+      Assert.fail("should have failed");
+    } catch (FHIRException e) {
+      Assert.assertEquals("Error loading f005: bad content", e.getMessage());
+      Assert.assertTrue(e.getCause() instanceof IOException);
+    }
+    // everything before the bad file, and nothing after it
+    Assert.assertEquals("[f000, f001, f002, f003, f004]", registered.toString());
+
+    pipeline = new IgLoadPipeline(2, (fn, content, timings) -> {
+      throw new Error("not an exception");
+    }, (fn, r) -> Assert.fail("nothing to register"));
+    try {
+      pipeline.submit("f000", new byte[0]);
+      pipeline.finish();
+      Assert.fail("should have failed");
+    } catch (FHIRException e) {
+      Assert.assertEquals("Error loading f000: not an exception", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testRegistrarFailure() throws Exception {
+    IgLoadPipeline pipeline = new IgLoadPipeline(2, (fn, content, timings) -> new ValueSet(), (fn, r) -> {
+      if (fn.equals(name(3)))
+        throw new FHIRException("duplicate");
+    });
+    try {
+      for (int i = 0; i < 6; i++)
+        pipeline.submit(name(i), new byte[0]);
+      pipeline.finish();
+      Assert.fail("should have failed");
+    } catch (FHIRException e) {
+      Assert.assertEquals("duplicate", e.getMessage());
+    }
+  }
+
+  private String valueSet(int i) {
+    return "{\"resourceType\" : \"ValueSet\", \"id\" : \"vs"+i+"\", \"url\" : \""+VS_URL+"vs"+i+"\", \"status\" : \"active\", "+
+      "\"compose\" : {\"include\" : [{\"system\" : \"http://example.org/codes\", \"concept\" : [{\"code\" : \"c"+i+"\"}]}]}}";
+  }
+
+  private File folder(String... files) throws IOException {
+    File dir = Files.createTempDirectory("ig-load").toFile();
+    for (int i = 0; i < files.length; i += 2)
+      TextFile.stringToFile(files[i+1], new File(dir, files[i]).getAbsolutePath());
+    return dir;
+  }
+
+  private List<String> loaded(SimpleWorkerContext context) {
+    List<String> res = new ArrayList<>();
+    for (MetadataResource r : context.allConformanceResources())
+      if (r.getUrl() != null && r.getUrl().startsWith(VS_URL))
+        res.add(r.getId());
+    return res;
+  }
+
+  private ValidationEngine engine(int threads) throws Exception {
+    ValidationEngine engine = new ValidationEngine(TestUtilities.newContext());
+    engine.setVersion("4.0.1");
+    engine.setLoadThreads(threads);
+    return engine;
+  }
+
+  @Test
+  public void testEngineOrder() throws Exception {
+    // the file names don't sort in the same order as the ids
+    Random random = new Random(45);
+    List<String> files = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < 60; i++)
+      order.add(i);
+    Collections.shuffle(order, random);
+    for (int i = 0; i < order.size(); i++) {
+      files.add(String.format("vs-%02d.json", i));
+      files.add(valueSet(order.get(i)));
+      expected.add("vs"+order.get(i));
+    }
+    File dir = folder(files.toArray(new String[files.size()]));
+    try {
+      ValidationEngine one = engine(1);
+      one.loadIg(dir.getAbsolutePath(), false);
+      ValidationEngine many = engine(8);
+      many.loadIg(dir.getAbsolutePath(), false);
+      Assert.assertEquals(expected, loaded(one.getContext()));
+      Assert.assertEquals(expected, loaded(many.getContext()));
+      Assert.assertEquals(60, many.getLastLoadTimings().getFiles());
+      Assert.assertEquals(0, many.getLastLoadTimings().getSkipped());
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testEngineFailures() throws Exception {
+    // a file that can't be read is reported and skipped
+    File dir = folder("a.json", valueSet(1), "b.json", "{\"resourceType\" : \"ValueSet\", \"id\" : ", "c.json", valueSet(3));
+    PrintStream out = System.out;
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    try {
+      System.setOut(new PrintStream(log, true));
+      ValidationEngine engine = engine(4);
+      engine.loadIg(dir.getAbsolutePath(), false);
+      Assert.assertEquals("[vs1, vs3]", loaded(engine.getContext()).toString());
+      Assert.assertEquals(1, engine.getLastLoadTimings().getSkipped());
+    } finally {
+      System.setOut(out);
+      FileUtils.deleteDirectory(dir);
+    }
+    Assert.assertTrue(log.toString(), log.toString().contains("* load file: b.json - ignored due to error: "));
+
+    // a resource that can't be converted stops the load
+    dir = folder("a.json", valueSet(1), "b.json", "{\"resourceType\" : \"MedicinalProduct\", \"id\" : \"mp\"}");
+    try {
+      engine(4).loadIg(dir.getAbsolutePath(), false);
+      Assert.fail("should have failed");
+    } catch (FHIRException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Error loading b.json: "));
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("MedicinalProduct"));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+}
@@ -0,0 +1,166 @@
+package org.hl7.fhir.validation.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r5.utils.IResourceValidator.BestPracticeWarningLevel;
+import org.hl7.fhir.r5.utils.IResourceValidator.CheckDisplayOption;
+import org.hl7.fhir.r5.utils.IResourceValidator.IdStatus;
+import org.hl7.fhir.r5.validation.InstanceValidator;
+import org.hl7.fhir.r5.validation.NativeHostServices;
+import org.hl7.fhir.r5.validation.NativeHostServices.ValidationOptions;
+import org.hl7.fhir.r5.validation.ValidationEngine;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * The validator pool and the request options. NativeHostServiceTester covers the rest (and needs the network)
+ */
+public class NativeHostServicesTests {
+
+  private static final byte[] PATIENT = ("{\"resourceType\" : \"Patient\", \"active\" : true, "+
+      "\"extension\" : [{\"url\" : \"http://unknown.test/fhir/StructureDefinition/unknown\", \"valueString\" : \"x\"}], \"name\" : [{\"family\" : \"Smith\"}]}").getBytes();
+  private static final byte[] PATIENT_WITH_ID = ("{\"resourceType\" : \"Patient\", \"id\" : \"p1\", \"active\" : true, \"name\" : [{\"family\" : \"Smith\"}]}").getBytes();
+  private static final String[] OPTIONS = { "", "id-required", "id-prohibited", "strict-extensions", "any-extensions id-required bp-warning" };
+
+  private NativeHostServices service(int poolSize) throws Exception {
+    NativeHostServices svc = new NativeHostServices();
+    svc.setPoolSize(poolSize);
+    svc.init(new ValidationEngine(TestUtilities.context()));
+    return svc;
+  }
+
+  private JsonObject status(NativeHostServices svc) {
+    return (JsonObject) new JsonParser().parse(svc.status());
+  }
+
+  @Test
+  public void testOptions() throws Exception {
+    ValidationOptions opts = ValidationOptions.parse(null);
+    Assert.assertEquals(IdStatus.OPTIONAL, opts.getResourceIdRule());
+    Assert.assertTrue(opts.isAnyExtensionsAllowed());
+    Assert.assertEquals(BestPracticeWarningLevel.Ignore, opts.getBpWarnings());
+    Assert.assertEquals(CheckDisplayOption.Ignore, opts.getDisplayOption());
+
+    opts = ValidationOptions.parse("  ID-Required strict-extensions  bp-error display-case-space ");
+    Assert.assertEquals(IdStatus.REQUIRED, opts.getResourceIdRule());
+    Assert.assertFalse(opts.isAnyExtensionsAllowed());
+    Assert.assertEquals(BestPracticeWarningLevel.Error, opts.getBpWarnings());
+    Assert.assertEquals(CheckDisplayOption.CheckCaseAndSpace, opts.getDisplayOption());
+
+    // the last one wins
+    opts = ValidationOptions.parse("id-prohibited id-optional bp-hint bp-warning display-check display-case display-space strict-extensions any-extensions");
+    Assert.assertEquals(IdStatus.OPTIONAL, opts.getResourceIdRule());
+    Assert.assertTrue(opts.isAnyExtensionsAllowed());
+    Assert.assertEquals(BestPracticeWarningLevel.Warning, opts.getBpWarnings());
+    Assert.assertEquals(CheckDisplayOption.CheckSpace, opts.getDisplayOption());
+
+    try {
+      ValidationOptions.parse("id-required no-such-option");
+      Assert.fail("should have failed");
+    } catch (Exception e) {
+      Assert.assertEquals("Unknown option no-such-option", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testOptionsApplied() throws Exception {
+    InstanceValidator iv = new ValidationEngine(TestUtilities.context()).getValidator();
+    ValidationOptions.parse("id-prohibited strict-extensions bp-error display-check").apply(iv);
+    Assert.assertEquals(IdStatus.PROHIBITED, iv.getResourceIdRule());
+    Assert.assertFalse(iv.isAnyExtensionsAllowed());
+    Assert.assertEquals(BestPracticeWarningLevel.Error, iv.getBestPracticeWarningLevel());
+    Assert.assertEquals(CheckDisplayOption.Check, iv.getCheckDisplay());
+    // everything is set, so nothing is left over from the last request
+    ValidationOptions.parse("").apply(iv);
+    Assert.assertEquals(IdStatus.OPTIONAL, iv.getResourceIdRule());
+    Assert.assertTrue(iv.isAnyExtensionsAllowed());
+    Assert.assertEquals(BestPracticeWarningLevel.Ignore, iv.getBestPracticeWarningLevel());
+    Assert.assertEquals(CheckDisplayOption.Ignore, iv.getCheckDisplay());
+  }
+
+  @Test
+  public void testConcurrentRequests() throws Exception {
+    NativeHostServices svc = service(3);
+    // what each request gets when it's the only one
+    Map<String, String> expected = new HashMap<>();
+    for (String o : OPTIONS) {
+      expected.put(o+"|0", new String(svc.validateResource("test", PATIENT, "JSON", o)));
+      expected.put(o+"|1", new String(svc.validateResource("test", PATIENT_WITH_ID, "JSON", o)));
+    }
+    // and make sure the options make a difference
+    Assert.assertNotEquals(expected.get("|0"), expected.get("id-required|0"));
+    Assert.assertNotEquals(expected.get("|1"), expected.get("id-prohibited|1"));
+    Assert.assertNotEquals(expected.get("|0"), expected.get("strict-extensions|0"));
+
+    ExecutorService ex = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        final String o = OPTIONS[i % OPTIONS.length];
+        final byte[] src = i % 3 == 0 ? PATIENT_WITH_ID : PATIENT;
+        results.add(ex.submit(() -> new String(svc.validateResource("test", src, "JSON", o))));
+      }
+      for (int i = 0; i < 200; i++)
+        Assert.assertEquals("request "+i, expected.get(OPTIONS[i % OPTIONS.length]+"|"+(i % 3 == 0 ? 1 : 0)), results.get(i).get());
+    } finally {
+      ex.shutdown();
+    }
+    JsonObject status = status(svc);
+    Assert.assertEquals(210, status.get("validation-count").getAsInt());
+    Assert.assertTrue(status.get("validation-pool-created").getAsInt() <= 3);
+    Assert.assertEquals(0, status.get("validation-active").getAsInt());
+    Assert.assertEquals(0, status.get("validation-queue").getAsInt());
+  }
+
+  @Test
+  public void testInitWhileValidating() throws Exception {
+    NativeHostServices svc = service(4);
+    String expected = new String(svc.validateResource("test", PATIENT, "JSON", "id-required"));
+    AtomicBoolean stop = new AtomicBoolean();
+    AtomicInteger count = new AtomicInteger();
+    ExecutorService ex = Executors.newFixedThreadPool(6);
+    try {
+      List<Future<Void>> results = new ArrayList<>();
+      for (int i = 0; i < 6; i++) {
+        results.add(ex.submit(() -> {
+          while (!stop.get()) {
+            Assert.assertEquals(expected, new String(svc.validateResource("test", PATIENT, "JSON", "id-required")));
+            count.incrementAndGet();
+          }
+          return null;
+        }));
+      }
+      while (count.get() < 20)
+        Thread.sleep(10);
+      // validations are running on the old engine's validators while the new one is put in place
+      svc.init(new ValidationEngine(TestUtilities.context()));
+      int at = count.get();
+      while (count.get() < at + 20)
+        Thread.sleep(10);
+      stop.set(true);
+      for (Future<Void> f : results)
+        f.get();
+    } finally {
+      ex.shutdown();
+    }
+    JsonObject status = status(svc);
+    Assert.assertEquals(2, status.get("validation-pool-generation").getAsInt());
+    // the validators from the first engine were dropped, not added to the new pool
+    int created = status.get("validation-pool-created").getAsInt();
+    Assert.assertTrue(created <= 4);
+    Assert.assertEquals(created, status.get("validation-pool-idle").getAsInt());
+    Assert.assertEquals(0, status.get("validation-active").getAsInt());
+  }
+}
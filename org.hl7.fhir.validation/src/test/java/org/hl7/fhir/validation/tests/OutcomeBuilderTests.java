@@ -0,0 +1,136 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.formats.XmlParser;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.utils.NarrativeGenerator;
+import org.hl7.fhir.r5.utils.OperationOutcomeUtilities;
+import org.hl7.fhir.r5.validation.OutcomeBuilder;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OutcomeBuilderTests {
+
+  private static final IssueSeverity[] LEVELS = { IssueSeverity.FATAL, IssueSeverity.ERROR, IssueSeverity.WARNING, IssueSeverity.INFORMATION };
+  private static final IssueType[] TYPES = { IssueType.INVALID, IssueType.STRUCTURE, IssueType.REQUIRED, IssueType.VALUE, IssueType.INVARIANT, 
+      IssueType.BUSINESSRULE, IssueType.CODEINVALID, IssueType.NOTFOUND, IssueType.INFORMATIONAL, IssueType.PROCESSING };
+  private static final String[] TEXTS = { "Unknown element", "Value is 'bad' & <wrong>", "Profile \"x\" not found", "Wert ist ungültig – ½", 
+      "line\nbreak", "tab\there", "Emoji 😀 here", "" };
+  private static final String[] LOCATIONS = { "Patient", "Patient.name[0]", "Patient.name[1].given[0]", "Bundle.entry[3].resource.ofType(Observation).code", 
+      "Observation.value.ofType(Quantity)", "Patient.extension('http://example.org/a&b')" };
+
+  /**
+   * seeded, with plenty of duplicates, and some without a message or a location (which are never duplicates)
+   */
+  private List<ValidationMessage> messages(int count, long seed) {
+    Random r = new Random(seed);
+    List<ValidationMessage> res = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      if (i > 0 && r.nextInt(5) == 0) {
+        ValidationMessage vm = res.get(r.nextInt(res.size()));
+        res.add(new ValidationMessage(vm.getSource(), vm.getType(), vm.getLine(), vm.getCol(), vm.getLocation(), vm.getMessage(), vm.getLevel()));
+      } else {
+        String msg = r.nextInt(50) == 0 ? null : TEXTS[r.nextInt(TEXTS.length)]+(r.nextBoolean() ? "" : " "+r.nextInt(40));
+        String loc = r.nextInt(50) == 0 ? null : LOCATIONS[r.nextInt(LOCATIONS.length)];
+        int line = r.nextInt(4) == 0 ? 0 : r.nextInt(2000);
+        int col = line == 0 ? 0 : r.nextInt(80);
+        ValidationMessage vm = new ValidationMessage(r.nextBoolean() ? Source.InstanceValidator : Source.ProfileValidator, TYPES[r.nextInt(TYPES.length)], line, col, loc, msg, LEVELS[r.nextInt(LEVELS.length)]);
+        if (r.nextInt(10) == 0)
+          vm.setSource(null);
+        res.add(vm);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * what ValidationEngine did before (less the location check)
+   */
+  private List<ValidationMessage> oldFilter(List<ValidationMessage> messages) {
+    List<ValidationMessage> filteredValidation = new ArrayList<ValidationMessage>();
+    for (ValidationMessage e : messages) {
+      if (!filteredValidation.contains(e))
+        filteredValidation.add(e);
+    }
+    filteredValidation.sort(null);
+    return filteredValidation;
+  }
+
+  private OperationOutcome oldOutcome(SimpleWorkerContext context, List<ValidationMessage> messages, boolean narrative) throws Exception {
+    OperationOutcome op = new OperationOutcome();
+    for (ValidationMessage vm : oldFilter(messages))
+      op.getIssue().add(OperationOutcomeUtilities.convertToIssue(vm, op));
+    if (narrative)
+      new NarrativeGenerator("", "", context).generate(null, op);
+    return op;
+  }
+
+  @Test
+  public void testFilter() throws Exception {
+    for (long seed = 1; seed <= 5; seed++) {
+      List<ValidationMessage> messages = messages(3000, seed);
+      List<ValidationMessage> expected = oldFilter(messages);
+      List<ValidationMessage> actual = new OutcomeBuilder(TestUtilities.context()).filter(messages);
+      Assert.assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++)
+        Assert.assertSame("seed "+seed+", message "+i, expected.get(i), actual.get(i));
+    }
+  }
+
+  @Test
+  public void testBuild() throws Exception {
+    SimpleWorkerContext context = TestUtilities.context();
+    List<ValidationMessage> messages = messages(3000, 42);
+    JsonParser json = new JsonParser();
+    Assert.assertEquals(json.composeString(oldOutcome(context, messages, true)), json.composeString(new OutcomeBuilder(context).build(messages)));
+    Assert.assertEquals(json.composeString(oldOutcome(context, messages, false)), json.composeString(new OutcomeBuilder(context).setNarrative(false).build(messages)));
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    SimpleWorkerContext context = TestUtilities.context();
+    for (long seed = 1; seed <= 3; seed++) {
+      List<ValidationMessage> messages = messages(3000, seed);
+      OperationOutcome op = oldOutcome(context, messages, false);
+      OutcomeBuilder builder = new OutcomeBuilder(context);
+      for (OutputStyle style : new OutputStyle[] { OutputStyle.NORMAL, OutputStyle.PRETTY }) {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new JsonParser().setOutputStyle(style).compose(expected, op);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        builder.write(messages, actual, FhirFormat.JSON, style);
+        Assert.assertArrayEquals("json, seed "+seed+", "+style, expected.toByteArray(), actual.toByteArray());
+
+        expected = new ByteArrayOutputStream();
+        new XmlParser().setOutputStyle(style).compose(expected, op);
+        actual = new ByteArrayOutputStream();
+        builder.write(messages, actual, FhirFormat.XML, style);
+        Assert.assertArrayEquals("xml, seed "+seed+", "+style, expected.toByteArray(), actual.toByteArray());
+      }
+    }
+  }
+
+  @Test
+  public void testWriteEmpty() throws Exception {
+    SimpleWorkerContext context = TestUtilities.context();
+    OperationOutcome op = new OperationOutcome();
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    new OutcomeBuilder(context).write(new ArrayList<ValidationMessage>(), actual, FhirFormat.JSON, OutputStyle.NORMAL);
+    Assert.assertEquals(new JsonParser().composeString(op), new String(actual.toByteArray(), "UTF-8"));
+    actual = new ByteArrayOutputStream();
+    new OutcomeBuilder(context).write(new ArrayList<ValidationMessage>(), actual, FhirFormat.XML, OutputStyle.NORMAL);
+    Assert.assertEquals(new XmlParser().composeString(op), new String(actual.toByteArray(), "UTF-8"));
+  }
+}
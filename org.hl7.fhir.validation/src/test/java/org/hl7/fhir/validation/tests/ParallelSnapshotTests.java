@@ -0,0 +1,151 @@
+package org.hl7.fhir.validation.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r5.conformance.ParallelSnapshotGenerator;
+import org.hl7.fhir.r5.conformance.ParallelSnapshotGenerator.SnapshotTiming;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition.StructureDefinitionKind;
+import org.hl7.fhir.r5.model.StructureDefinition.TypeDerivationRule;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelSnapshotTests {
+
+  private static final String[] PACKAGE = { "profile/profiles-others.xml", "extension/extension-definitions.xml" };
+
+  /**
+   * @return the profiles in the context, with the snapshots of all the constraints removed
+   */
+  private List<StructureDefinition> unsnapshotted(SimpleWorkerContext context) {
+    List<StructureDefinition> res = new ArrayList<StructureDefinition>();
+    for (StructureDefinition sd : context.listStructures()) {
+      if (sd.getDerivation() == TypeDerivationRule.CONSTRAINT && sd.hasDifferential()) {
+        sd.setSnapshot(null);
+        res.add(sd);
+      }
+    }
+    return res;
+  }
+
+  private Map<String, String> errors(List<SnapshotTiming> timings) {
+    Map<String, String> res = new HashMap<String, String>();
+    for (SnapshotTiming t : timings)
+      if (!t.isOk())
+        res.put(t.getProfile().getUrl(), t.getError().getMessage());
+    return res;
+  }
+
+  private void checkSame(List<StructureDefinition> expected, List<StructureDefinition> actual) throws Exception {
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      StructureDefinition e = expected.get(i);
+      StructureDefinition a = actual.get(i);
+      Assert.assertEquals(e.getUrl(), a.getUrl());
+      Assert.assertEquals(e.getUrl(), e.hasSnapshot(), a.hasSnapshot());
+      Assert.assertEquals(e.getUrl(), new JsonParser().composeString(e), new JsonParser().composeString(a));
+    }
+  }
+
+  @Test
+  public void testSameAsOneAtATime() throws Exception {
+    SimpleWorkerContext seqContext = TestUtilities.newContext(PACKAGE);
+    List<StructureDefinition> seq = unsnapshotted(seqContext);
+    List<SnapshotTiming> seqTimings = new ParallelSnapshotGenerator(seqContext).setParallelism(1).generate(seq);
+
+    SimpleWorkerContext parContext = TestUtilities.newContext(PACKAGE);
+    List<StructureDefinition> par = unsnapshotted(parContext);
+    List<SnapshotTiming> parTimings = new ParallelSnapshotGenerator(parContext).setParallelism(4).generate(par);
+
+    Assert.assertTrue(seq.size() > 100);
+    Assert.assertEquals(seq.size(), seqTimings.size());
+    Assert.assertEquals(par.size(), parTimings.size());
+    Assert.assertEquals(errors(seqTimings), errors(parTimings));
+    checkSame(seq, par);
+  }
+
+  @Test
+  public void testSameAsAllStructures() throws Exception {
+    // allStructures generates in the order the profiles were loaded, and profiles used by another 
+    // profile can get generated along the way, where errors aren't reported, so only compare the snapshots
+    SimpleWorkerContext seqContext = TestUtilities.newContext(PACKAGE);
+    seqContext.setIgnoreProfileErrors(true);
+    List<StructureDefinition> seq = unsnapshotted(seqContext);
+    seqContext.allStructures();
+
+    SimpleWorkerContext parContext = TestUtilities.newContext(PACKAGE);
+    parContext.setIgnoreProfileErrors(true);
+    List<StructureDefinition> par = unsnapshotted(parContext);
+    parContext.generateSnapshots(par);
+
+    checkSame(seq, par);
+  }
+
+  /**
+   * an extension whose extensions have to conform to another one
+   */
+  private StructureDefinition extension(SimpleWorkerContext context, String name, String other) {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setUrl("http://example.org/fhir/StructureDefinition/"+name);
+    sd.setName(name);
+    sd.setType("Extension");
+    sd.setKind(StructureDefinitionKind.COMPLEXTYPE);
+    sd.setAbstract(false);
+    sd.setDerivation(TypeDerivationRule.CONSTRAINT);
+    sd.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Extension");
+    element(sd, "Extension");
+    element(sd, "Extension.extension").addType().setCode("Extension").addProfile("http://example.org/fhir/StructureDefinition/"+other);
+    context.cacheResource(sd);
+    return sd;
+  }
+
+  private ElementDefinition element(StructureDefinition sd, String path) {
+    ElementDefinition ed = sd.getDifferential().addElement().setPath(path);
+    ed.setId(path);
+    return ed;
+  }
+
+  @Test
+  public void testProfilesThatUseEachOther() throws Exception {
+    // generating a and b on different threads, each needs the other's snapshot part way through its own
+    SimpleWorkerContext seqContext = TestUtilities.newContext();
+    List<StructureDefinition> seq = new ArrayList<StructureDefinition>();
+    seq.add(extension(seqContext, "a", "b"));
+    seq.add(extension(seqContext, "b", "a"));
+    for (StructureDefinition sd : seq)
+      seqContext.generateSnapshot(sd);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (int i = 0; i < 20; i++) {
+        SimpleWorkerContext parContext = TestUtilities.newContext();
+        List<StructureDefinition> par = new ArrayList<StructureDefinition>();
+        par.add(extension(parContext, "a", "b"));
+        par.add(extension(parContext, "b", "a"));
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (StructureDefinition sd : par)
+          futures.add(executor.submit(() -> { parContext.generateSnapshot(sd); return null; }));
+        for (Future<?> f : futures)
+          f.get(60, TimeUnit.SECONDS);
+        for (StructureDefinition sd : par)
+          Assert.assertTrue(sd.getUrl(), sd.hasSnapshot());
+        // which one finishes first depends on the timing, but each is complete
+        Assert.assertEquals(seq.get(1).getSnapshot().getElement().size(), par.get(1).getSnapshot().getElement().size());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
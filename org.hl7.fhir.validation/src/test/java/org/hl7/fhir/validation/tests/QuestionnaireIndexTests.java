@@ -0,0 +1,96 @@
+package org.hl7.fhir.validation.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.hl7.fhir.r5.model.Questionnaire;
+import org.hl7.fhir.r5.model.Questionnaire.QuestionnaireItemComponent;
+import org.hl7.fhir.r5.model.Questionnaire.QuestionnaireItemType;
+import org.hl7.fhir.r5.validation.QuestionnaireIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QuestionnaireIndexTests {
+
+  private QuestionnaireItemComponent item(List<QuestionnaireItemComponent> list, String linkId, QuestionnaireItemType type) {
+    QuestionnaireItemComponent res = new QuestionnaireItemComponent();
+    res.setLinkId(linkId);
+    res.setType(type);
+    list.add(res);
+    return res;
+  }
+
+  @Test
+  public void testNestedGroups() {
+    Questionnaire q = new Questionnaire();
+    QuestionnaireItemComponent g1 = item(q.getItem(), "g1", QuestionnaireItemType.GROUP);
+    QuestionnaireItemComponent q1 = item(g1.getItem(), "q1", QuestionnaireItemType.BOOLEAN);
+    QuestionnaireItemComponent g2 = item(g1.getItem(), "g2", QuestionnaireItemType.GROUP);
+    QuestionnaireItemComponent q2 = item(g2.getItem(), "q2", QuestionnaireItemType.BOOLEAN);
+    QuestionnaireItemComponent q3 = item(g2.getItem(), "q3", QuestionnaireItemType.BOOLEAN);
+    QuestionnaireItemComponent q3a = item(q3.getItem(), "q3a", QuestionnaireItemType.STRING);
+    QuestionnaireItemComponent g3 = item(q.getItem(), "g3", QuestionnaireItemType.GROUP);
+    QuestionnaireItemComponent q4 = item(g3.getItem(), "q4", QuestionnaireItemType.BOOLEAN);
+    item(g3.getItem(), "q1", QuestionnaireItemType.STRING);
+
+    QuestionnaireIndex ndx = new QuestionnaireIndex(q);
+    Assert.assertSame(q2, ndx.getQuestion("q2"));
+    Assert.assertSame(q3a, ndx.getQuestion("q3a"));
+    Assert.assertSame(g3, ndx.getQuestion("g3"));
+    // a repeated linkId finds the first one in document order, as Questionnaire.getQuestion does
+    Assert.assertSame(q1, ndx.getQuestion("q1"));
+    Assert.assertSame(q.getQuestion("q1"), ndx.getQuestion("q1"));
+    Assert.assertNull(ndx.getQuestion("x"));
+    Assert.assertNull(ndx.getQuestion(null));
+
+    Assert.assertSame(g2, ndx.getCommonGroup(q2, q3));
+    Assert.assertSame(g2, ndx.getCommonGroup(q3a, q2));
+    Assert.assertSame(g1, ndx.getCommonGroup(q1, q3a));
+    Assert.assertSame(g2, ndx.getCommonGroup(g2, q2));
+    // a question that contains the other is the common group - the answer on the parent item case
+    Assert.assertSame(q3, ndx.getCommonGroup(q3a, q3));
+    Assert.assertSame(q3, ndx.getCommonGroup(q3, q3));
+    // nothing in common but the questionnaire itself
+    Assert.assertNull(ndx.getCommonGroup(q2, q4));
+    Assert.assertNull(ndx.getCommonGroup(g1, g3));
+    Assert.assertNull(ndx.getCommonGroup(q1, null));
+    // an item that isn't in the questionnaire
+    Assert.assertNull(ndx.getCommonGroup(q1, new QuestionnaireItemComponent()));
+
+    // the index is built when it's created
+    item(g3.getItem(), "q5", QuestionnaireItemType.BOOLEAN);
+    Assert.assertNull(ndx.getQuestion("q5"));
+    Assert.assertNotNull(new QuestionnaireIndex(q).getQuestion("q5"));
+  }
+
+  @Test
+  public void testMatchesQuestionnaire() {
+    Random random = new Random(20191019);
+    for (int n = 0; n < 20; n++) {
+      Questionnaire q = new Questionnaire();
+      List<QuestionnaireItemComponent> all = new ArrayList<>();
+      generate(random, q.getItem(), all, 0);
+      QuestionnaireIndex ndx = new QuestionnaireIndex(q);
+      for (QuestionnaireItemComponent i : all)
+        Assert.assertSame(q.getQuestion(i.getLinkId()), ndx.getQuestion(i.getLinkId()));
+      for (int i = 0; i < 500; i++) {
+        QuestionnaireItemComponent q1 = all.get(random.nextInt(all.size()));
+        QuestionnaireItemComponent q2 = all.get(random.nextInt(all.size()));
+        Assert.assertSame(q.getCommonGroup(q1, q2), ndx.getCommonGroup(q1, q2));
+      }
+    }
+  }
+
+  private void generate(Random random, List<QuestionnaireItemComponent> list, List<QuestionnaireItemComponent> all, int depth) {
+    int count = 1 + random.nextInt(5);
+    for (int i = 0; i < count; i++) {
+      boolean group = depth < 4 && random.nextInt(3) == 0;
+      QuestionnaireItemComponent item = item(list, "i"+all.size(), group ? QuestionnaireItemType.GROUP : QuestionnaireItemType.BOOLEAN);
+      all.add(item);
+      if (group || (depth < 4 && random.nextInt(8) == 0))
+        generate(random, item.getItem(), all, depth+1);
+    }
+  }
+
+}
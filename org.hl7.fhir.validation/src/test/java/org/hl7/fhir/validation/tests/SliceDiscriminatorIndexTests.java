@@ -0,0 +1,277 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.conformance.ProfileUtilities;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.model.CodeableConcept;
+import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.DiscriminatorType;
+import org.hl7.fhir.r5.model.ElementDefinition.SlicingRules;
+import org.hl7.fhir.r5.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition.StructureDefinitionKind;
+import org.hl7.fhir.r5.model.StructureDefinition.TypeDerivationRule;
+import org.hl7.fhir.r5.model.UriType;
+import org.hl7.fhir.r5.validation.InstanceValidator;
+import org.hl7.fhir.r5.validation.SliceDiscriminatorIndex;
+import org.hl7.fhir.r5.validation.ValidatorCache;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The slices that an element is in must be the same whether they are matched by value, or by FHIRPath
+ */
+public class SliceDiscriminatorIndexTests {
+
+  private static final String LOINC = "http://loinc.org";
+  private static final String SNOMED = "http://snomed.info/sct";
+
+  private ElementDefinition element(StructureDefinition sd, String path, String sliceName) {
+    ElementDefinition ed = sd.getDifferential().addElement();
+    ed.setPath(path);
+    String id = path;
+    if (sliceName != null) {
+      ed.setSliceName(sliceName);
+      id = path+":"+sliceName;
+    }
+    ed.setId(id);
+    return ed;
+  }
+
+  private ElementDefinition child(StructureDefinition sd, ElementDefinition parent, String name) {
+    ElementDefinition ed = sd.getDifferential().addElement();
+    ed.setPath(parent.getPath()+"."+name);
+    ed.setId(parent.getId()+"."+name);
+    return ed;
+  }
+
+  private void slicing(ElementDefinition ed, DiscriminatorType type, String path) {
+    ed.getSlicing().setRules(SlicingRules.OPEN).addDiscriminator().setType(type).setPath(path);
+  }
+
+  private StructureDefinition profile(SimpleWorkerContext context) throws Exception {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setUrl("http://example.org/fhir/StructureDefinition/slices");
+    sd.setName("Slices");
+    sd.setStatus(PublicationStatus.ACTIVE);
+    sd.setKind(StructureDefinitionKind.RESOURCE);
+    sd.setAbstract(false);
+    sd.setType("Observation");
+    sd.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Observation");
+    sd.setDerivation(TypeDerivationRule.CONSTRAINT);
+
+    // discriminated by a fixed value, with two slices for the same value
+    slicing(element(sd, "Observation.identifier", null), DiscriminatorType.VALUE, "system");
+    child(sd, element(sd, "Observation.identifier", "a"), "system").setFixed(new UriType("http://example.org/a"));
+    ElementDefinition b = element(sd, "Observation.identifier", "b");
+    b.setMin(1).setMax("1");
+    child(sd, b, "system").setFixed(new UriType("http://example.org/b"));
+    child(sd, element(sd, "Observation.identifier", "a2"), "system").setFixed(new UriType("http://example.org/a"));
+
+    // not a simple path, so matched with FHIRPath
+    slicing(element(sd, "Observation.category", null), DiscriminatorType.PATTERN, "$this");
+    element(sd, "Observation.category", "vs").setMin(1).setPattern(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/observation-category", "vital-signs", null)));
+
+    // discriminated by a pattern
+    slicing(element(sd, "Observation.component", null), DiscriminatorType.PATTERN, "code");
+    child(sd, element(sd, "Observation.component", "systolic"), "code").setPattern(new CodeableConcept(new Coding(LOINC, "8480-6", null)));
+    ElementDefinition dia = element(sd, "Observation.component", "diastolic");
+    dia.setMin(1);
+    child(sd, dia, "code").setPattern(new CodeableConcept(new Coding(LOINC, "8462-4", null)));
+
+    List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
+    StructureDefinition base = context.fetchResource(StructureDefinition.class, sd.getBaseDefinition());
+    new ProfileUtilities(context, messages, null).generateSnapshot(base, sd, sd.getUrl(), "http://example.org/fhir", sd.getName());
+    Assert.assertTrue(messages.toString(), messages.isEmpty());
+    context.cacheResource(sd);
+    return sd;
+  }
+
+  /**
+   * components sliced on the system of their codings, which can repeat
+   */
+  private StructureDefinition repeatingProfile(SimpleWorkerContext context) throws Exception {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setUrl("http://example.org/fhir/StructureDefinition/slices-repeating");
+    sd.setName("RepeatingSlices");
+    sd.setStatus(PublicationStatus.ACTIVE);
+    sd.setKind(StructureDefinitionKind.RESOURCE);
+    sd.setAbstract(false);
+    sd.setType("Observation");
+    sd.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Observation");
+    sd.setDerivation(TypeDerivationRule.CONSTRAINT);
+
+    slicing(element(sd, "Observation.component", null), DiscriminatorType.VALUE, "code.coding.system");
+    child(sd, child(sd, child(sd, element(sd, "Observation.component", "loinc"), "code"), "coding"), "system").setFixed(new UriType(LOINC));
+    child(sd, child(sd, child(sd, element(sd, "Observation.component", "snomed"), "code"), "coding"), "system").setFixed(new UriType(SNOMED));
+
+    List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
+    StructureDefinition base = context.fetchResource(StructureDefinition.class, sd.getBaseDefinition());
+    new ProfileUtilities(context, messages, null).generateSnapshot(base, sd, sd.getUrl(), "http://example.org/fhir", sd.getName());
+    Assert.assertTrue(messages.toString(), messages.isEmpty());
+    context.cacheResource(sd);
+    return sd;
+  }
+
+  private String identifier(String system, String value) {
+    return "{\"system\":\""+system+"\",\"value\":\""+value+"\"}";
+  }
+
+  private String component(String code) {
+    return "{\"code\":{\"coding\":[{\"system\":\""+LOINC+"\",\"code\":\""+code+"\"}]},\"valueQuantity\":{\"value\":80}}";
+  }
+
+  private String observation(String identifiers, String components, String category) {
+    return "{\"resourceType\":\"Observation\",\"identifier\":["+identifiers+"],\"status\":\"final\","
+        +"\"category\":[{\"coding\":[{\"system\":\"http://terminology.hl7.org/CodeSystem/observation-category\",\"code\":\""+category+"\"}]}],"
+        +"\"code\":{\"text\":\"test\"},\"component\":["+components+"]}";
+  }
+
+  private String[] instances() {
+    return new String[] {
+      observation(identifier("http://example.org/a", "1")+","+identifier("http://example.org/b", "2")+","+identifier("http://example.org/c", "3"),
+          component("8480-6")+","+component("8462-4")+","+component("1234-5"), "vital-signs"),
+      observation(identifier("http://example.org/c", "3"), component("8480-6"), "laboratory"),
+      observation(identifier("http://example.org/b", "1")+","+identifier("http://example.org/b", "2"), component("8462-4")+","+component("8462-4"), "vital-signs"),
+    };
+  }
+
+  private List<String> validate(SimpleWorkerContext context, StructureDefinition profile, String json) throws Exception {
+    Element e = Manager.parse(context, new ByteArrayInputStream(json.getBytes("UTF-8")), FhirFormat.JSON);
+    List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
+    InstanceValidator validator = new InstanceValidator(context, null);
+    validator.setAnyExtensionsAllowed(true);
+    validator.validate(null, messages, e, profile);
+    List<String> res = new ArrayList<String>();
+    for (ValidationMessage vm : messages)
+      res.add(vm.getLocation()+": "+vm.getLevel()+" "+vm.getMessage());
+    return res;
+  }
+
+  @Test
+  public void testSameAsFHIRPath() throws Exception {
+    SimpleWorkerContext byValue = TestUtilities.newContext();
+    StructureDefinition p1 = profile(byValue);
+    SimpleWorkerContext byPath = TestUtilities.newContext();
+    StructureDefinition p2 = profile(byPath);
+
+    // mark every slice as having no key, so that they are all matched using FHIRPath
+    ValidatorCache cache = ValidatorCache.forContext(byPath);
+    Map<String, ElementDefinition> slicers = new HashMap<String, ElementDefinition>();
+    for (ElementDefinition ed : p2.getSnapshot().getElement()) {
+      if (ed.hasSlicing())
+        slicers.put(ed.getPath(), ed);
+      else if (ed.hasSliceName())
+        cache.getSliceIndex(slicers.get(ed.getPath())).setKey(ed, null);
+    }
+
+    for (String json : instances()) {
+      List<String> m1 = validate(byValue, p1, json);
+      List<String> m2 = validate(byPath, p2, json);
+      Assert.assertEquals(m2, m1);
+    }
+
+    // check that the value path was actually used for the simple discriminators, and not for the other
+    cache = ValidatorCache.forContext(byValue);
+    int keys = 0;
+    int none = 0;
+    slicers.clear();
+    for (ElementDefinition ed : p1.getSnapshot().getElement()) {
+      if (ed.hasSlicing())
+        slicers.put(ed.getPath(), ed);
+      else if (ed.hasSliceName()) {
+        SliceDiscriminatorIndex index = cache.getSliceIndex(slicers.get(ed.getPath()));
+        Assert.assertTrue(ed.getId(), index.isKnown(ed));
+        if (index.getKey(ed) != null)
+          keys++;
+        else {
+          none++;
+          Assert.assertEquals("Observation.category", ed.getPath());
+        }
+      }
+    }
+    Assert.assertEquals(5, keys);
+    Assert.assertEquals(1, none);
+  }
+
+  @Test
+  public void testRepeatingPath() throws Exception {
+    SimpleWorkerContext byValue = TestUtilities.newContext();
+    StructureDefinition p1 = repeatingProfile(byValue);
+    SimpleWorkerContext byPath = TestUtilities.newContext();
+    StructureDefinition p2 = repeatingProfile(byPath);
+    ValidatorCache cache = ValidatorCache.forContext(byPath);
+    ElementDefinition slicer = null;
+    for (ElementDefinition ed : p2.getSnapshot().getElement()) {
+      if (ed.hasSlicing() && ed.getPath().equals("Observation.component"))
+        slicer = ed;
+      else if (ed.hasSliceName() && ed.getPath().equals("Observation.component"))
+        cache.getSliceIndex(slicer).setKey(ed, null);
+    }
+
+    String both = "{\"code\":{\"coding\":[{\"system\":\""+LOINC+"\",\"code\":\"8480-6\"},{\"system\":\""+SNOMED+"\",\"code\":\"271649006\"}]},\"valueQuantity\":{\"value\":80}}";
+    String snomed = "{\"code\":{\"coding\":[{\"system\":\""+SNOMED+"\",\"code\":\"271649006\"}]},\"valueQuantity\":{\"value\":80}}";
+    for (String json : new String[] { observation(identifier("http://example.org/a", "1"), component("8480-6")+","+both+","+snomed, "vital-signs"),
+        observation(identifier("http://example.org/a", "1"), both, "vital-signs") }) {
+      List<String> m1 = validate(byValue, p1, json);
+      List<String> m2 = validate(byPath, p2, json);
+      Assert.assertEquals(m2, m1);
+    }
+
+    // a path that can have more than one value is left to FHIRPath
+    cache = ValidatorCache.forContext(byValue);
+    int none = 0;
+    for (ElementDefinition ed : p1.getSnapshot().getElement()) {
+      if (ed.hasSlicing() && ed.getPath().equals("Observation.component"))
+        slicer = ed;
+      else if (ed.hasSliceName() && ed.getPath().equals("Observation.component")) {
+        Assert.assertTrue(ed.getId(), cache.getSliceIndex(slicer).isKnown(ed));
+        Assert.assertNull(ed.getId(), cache.getSliceIndex(slicer).getKey(ed));
+        none++;
+      }
+    }
+    Assert.assertEquals(2, none);
+  }
+
+  @Test
+  public void testSliceErrors() throws Exception {
+    SimpleWorkerContext context = TestUtilities.newContext();
+    StructureDefinition p = profile(context);
+    String[] instances = instances();
+    // the first identifier is in both a and a2 - the only error
+    List<String> errors = errors(validate(context, p, instances[0]));
+    Assert.assertEquals(errors.toString(), 1, errors.size());
+    Assert.assertTrue(errors.get(0), errors.get(0).contains("Element matches more than one slice - a, a2"));
+    // b, diastolic and vs are missing
+    Assert.assertEquals(3, count(validate(context, p, instances[1]), "minimum required = 1, but only found 0"));
+    // b is repeated
+    Assert.assertEquals(1, count(validate(context, p, instances[2]), "max allowed = 1, but found 2"));
+  }
+
+  private List<String> errors(List<String> messages) {
+    List<String> res = new ArrayList<String>();
+    for (String s : messages)
+      if (s.contains(": ERROR ") || s.contains(": FATAL "))
+        res.add(s);
+    return res;
+  }
+
+  private int count(List<String> messages, String text) {
+    int res = 0;
+    for (String s : messages)
+      if (s.contains(text))
+        res++;
+    return res;
+  }
+}
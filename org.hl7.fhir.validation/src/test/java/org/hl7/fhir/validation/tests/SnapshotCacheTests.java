@@ -0,0 +1,180 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.exceptions.DefinitionException;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.context.SnapshotCache;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition.StructureDefinitionKind;
+import org.hl7.fhir.r5.model.StructureDefinition.TypeDerivationRule;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SnapshotCacheTests {
+
+  private static SimpleWorkerContext context;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    context = TestUtilities.newContext();
+  }
+
+  private SnapshotCache newCache() throws Exception {
+    return new SnapshotCache(Files.createTempDirectory("snapshots").toFile().getAbsolutePath());
+  }
+
+  private StructureDefinition profile(String name, String type, String base) {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setUrl("http://example.org/fhir/StructureDefinition/"+name);
+    sd.setName(name);
+    sd.setStatus(PublicationStatus.ACTIVE);
+    sd.setKind(StructureDefinitionKind.RESOURCE);
+    sd.setAbstract(false);
+    sd.setType(type);
+    sd.setBaseDefinition(base);
+    sd.setDerivation(TypeDerivationRule.CONSTRAINT);
+    return sd;
+  }
+
+  private StructureDefinition patient(String name) {
+    StructureDefinition sd = profile(name, "Patient", "http://hl7.org/fhir/StructureDefinition/Patient");
+    sd.getDifferential().addElement().setPath("Patient.identifier").setMin(1).setShort("the identifier");
+    return sd;
+  }
+
+  private StructureDefinition fetch(String url) {
+    return context.fetchResource(StructureDefinition.class, url);
+  }
+
+  @Test
+  public void testHitAndMiss() throws Exception {
+    SnapshotCache cache = newCache();
+    context.setSnapshotCache(cache);
+    try {
+      StructureDefinition p1 = patient("cache-hit");
+      context.generateSnapshot(p1);
+      Assert.assertTrue(p1.hasSnapshot());
+      Assert.assertEquals(0, cache.getHits());
+      Assert.assertEquals(1, cache.getMisses());
+
+      StructureDefinition p2 = patient("cache-hit");
+      ElementDefinition diff = p2.getDifferential().getElementFirstRep();
+      context.generateSnapshot(p2);
+      Assert.assertEquals(1, cache.getHits());
+      Assert.assertEquals(1, cache.getMisses());
+      // the differential is the caller's, with the generated ids
+      Assert.assertSame(diff, p2.getDifferential().getElementFirstRep());
+      Assert.assertEquals("Patient.identifier", diff.getId());
+      Assert.assertEquals(new JsonParser().composeString(p1), new JsonParser().composeString(p2));
+
+      // something else misses
+      StructureDefinition p3 = patient("cache-miss");
+      context.generateSnapshot(p3);
+      Assert.assertEquals(1, cache.getHits());
+      Assert.assertEquals(2, cache.getMisses());
+    } finally {
+      context.setSnapshotCache(null);
+    }
+  }
+
+  @Test
+  public void testMessagesKept() throws Exception {
+    SnapshotCache cache = newCache();
+    context.setSnapshotCache(cache);
+    try {
+      String first = null;
+      for (int i = 0; i < 2; i++) {
+        StructureDefinition sd = patient("cache-errors");
+        sd.getDifferential().addElement().setPath("Patient.nonsense").setMin(1);
+        try {
+          context.generateSnapshot(sd);
+          Assert.fail("no error generating the snapshot");
+        } catch (DefinitionException e) {
+          if (first == null)
+            first = e.getMessage();
+          else
+            Assert.assertEquals(first, e.getMessage());
+        }
+      }
+      Assert.assertEquals(1, cache.getHits());
+    } finally {
+      context.setSnapshotCache(null);
+    }
+  }
+
+  @Test
+  public void testBaseChanged() throws Exception {
+    SnapshotCache cache = newCache();
+    StructureDefinition a = patient("cache-base");
+    context.cacheResource(a);
+    StructureDefinition b = profile("cache-derived", "Patient", a.getUrl());
+    b.getDifferential().addElement().setPath("Patient.name").setMin(1);
+    StructureDefinition ext = profile("cache-extension", "Extension", "http://hl7.org/fhir/StructureDefinition/Extension");
+    ext.setKind(StructureDefinitionKind.COMPLEXTYPE);
+    ext.getDifferential().addElement().setPath("Extension.url").setMin(1);
+    context.cacheResource(ext);
+    b.getDifferential().addElement().setPath("Patient.extension").setSliceName("x").addType().setCode("Extension").addProfile(ext.getUrl());
+
+    String key = cache.key(context, a, b);
+    Assert.assertEquals(key, cache.key(context, a, b));
+
+    // change the base, before it has a snapshot
+    a.getDifferential().getElementFirstRep().setShort("another short");
+    String k = cache.key(context, a, b);
+    Assert.assertNotEquals(key, k);
+    key = k;
+
+    // the base chain of a profile the differential refers to
+    StructureDefinition ext2 = profile("cache-extension2", "Extension", ext.getBaseDefinition());
+    ext2.setKind(StructureDefinitionKind.COMPLEXTYPE);
+    context.cacheResource(ext2);
+    ext.setBaseDefinition(ext2.getUrl());
+    k = cache.key(context, a, b);
+    Assert.assertNotEquals(key, k);
+    key = k;
+    ext2.getDifferential().addElement().setPath("Extension.value[x]").setMax("0");
+    k = cache.key(context, a, b);
+    Assert.assertNotEquals(key, k);
+    key = k;
+
+    // once the base has a snapshot, it's the snapshot that counts
+    context.generateSnapshot(a);
+    k = cache.key(context, a, b);
+    Assert.assertNotEquals(key, k);
+    StructureDefinition a2 = patient("cache-base");
+    a2.getDifferential().getElementFirstRep().setShort("different again");
+    context.generateSnapshot(a2);
+    Assert.assertNotEquals(k, cache.key(context, a2, b));
+  }
+
+  @Test
+  public void testPrune() throws Exception {
+    SnapshotCache cache = newCache();
+    List<ValidationMessage> msgs = new ArrayList<ValidationMessage>();
+    StructureDefinition sd = patient("cache-prune");
+    context.generateSnapshot(sd);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 3; i++) {
+      cache.store("key"+i, sd, msgs);
+      new File(cache.getFolder(), "key"+i+".json").setLastModified(now - (10 - i) * 60000);
+    }
+    // using an entry makes it the most recent
+    Assert.assertTrue(cache.load("key0", patient("cache-prune"), msgs));
+    cache.setMaxEntries(2);
+    cache.prune();
+    Assert.assertTrue(new File(cache.getFolder(), "key0.json").exists());
+    Assert.assertFalse(new File(cache.getFolder(), "key1.json").exists());
+    Assert.assertTrue(new File(cache.getFolder(), "key2.json").exists());
+  }
+
+}
@@ -0,0 +1,68 @@
+package org.hl7.fhir.validation.tests;
+
+import java.lang.ref.WeakReference;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.Questionnaire;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.validation.QuestionnaireIndex;
+import org.hl7.fhir.r5.validation.ValidatorCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ValidatorCacheTests {
+
+  private boolean collected(WeakReference<?> ref) throws InterruptedException {
+    for (int i = 0; i < 50 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    return ref.get() == null;
+  }
+
+  @Test
+  public void testSameContext() throws Exception {
+    SimpleWorkerContext context = new SimpleWorkerContext();
+    Assert.assertSame(ValidatorCache.forContext(context), ValidatorCache.forContext(context));
+    Assert.assertNotSame(ValidatorCache.forContext(context), ValidatorCache.forContext(new SimpleWorkerContext()));
+
+    Questionnaire q = new Questionnaire();
+    q.addItem().setLinkId("1");
+    QuestionnaireIndex ndx = ValidatorCache.forContext(context).getQuestionnaireIndex(q);
+    Assert.assertSame(ndx, ValidatorCache.forContext(context).getQuestionnaireIndex(q));
+    // a copy is a different questionnaire
+    Assert.assertNotSame(ndx, ValidatorCache.forContext(context).getQuestionnaireIndex(q.copy()));
+  }
+
+  @Test
+  public void testDefinitionsNotRetained() throws Exception {
+    ValidatorCache cache = ValidatorCache.forContext(new SimpleWorkerContext());
+
+    Questionnaire q = new Questionnaire();
+    q.addItem().setLinkId("1");
+    cache.getQuestionnaireIndex(q);
+    WeakReference<Questionnaire> qref = new WeakReference<Questionnaire>(q);
+
+    ElementDefinition slicer = new ElementDefinition();
+    cache.getSliceIndex(slicer);
+    WeakReference<ElementDefinition> eref = new WeakReference<ElementDefinition>(slicer);
+
+    StructureDefinition container = new StructureDefinition();
+    StructureDefinition contained = new StructureDefinition();
+    contained.setId("c");
+    container.getContained().add(contained);
+    cache.setContainer(contained, container);
+    cache.setUsesMustSupport(contained, true);
+    Assert.assertSame(container, cache.getContainer(contained));
+    WeakReference<StructureDefinition> sref = new WeakReference<StructureDefinition>(contained);
+
+    q = null;
+    slicer = null;
+    container = null;
+    contained = null;
+    Assert.assertTrue(collected(qref));
+    Assert.assertTrue(collected(eref));
+    Assert.assertTrue(collected(sref));
+  }
+}
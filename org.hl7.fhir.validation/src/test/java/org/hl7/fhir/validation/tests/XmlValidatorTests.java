@@ -0,0 +1,164 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.hl7.fhir.r5.validation.XmlValidator;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.XsltUtilities;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * The streaming checks in XmlValidator against the way it used to do them (a DOM for the schema, 
+ * and the SVRL written out and parsed for the schematron). 
+ * 
+ * The R4 schemas and schematrons come from hapi-fhir-validation-resources-r4. There's no ISO schematron
+ * skeleton on the classpath, so the schematron is compiled with a cut down one (see xmlvalidator/iso_svrl_for_xslt2.xsl) 
+ */
+public class XmlValidatorTests {
+
+  private static final String SCHEMA_PATH = "org/hl7/fhir/r4/model/schema/";
+  private static final String SCH = "patient.sch";
+
+  private static Map<String, byte[]> schemas;
+  private static Map<String, byte[]> transforms;
+
+  private static final String VALID = "<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"p1\"/><active value=\"true\"/><name><family value=\"Smith\"/><given value=\"John\"/></name></Patient>";
+  private static final String SCHEMA_ERRORS = "<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"p1\"/><active value=\"yes\"/><foo value=\"x\"/>\r\n<name><given value=\"John\"/><family value=\"Smith\"/></name></Patient>";
+  private static final String SCHEMATRON_ERRORS = "<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"p1\"/>\r\n"+
+      "<text><status value=\"generated\"/><div xmlns=\"http://www.w3.org/1999/xhtml\"> </div></text>\r\n"+
+      "<extension url=\"http://example.org/a\"><extension url=\"b\"><valueString value=\"x\"/></extension><valueString value=\"y\"/></extension>\r\n"+
+      "<telecom><value value=\"555\"/></telecom><telecom><system value=\"phone\"/><value value=\"556\"/><period><start value=\"2020-01-01T00:00:00Z\"/><end value=\"2019-01-01T00:00:00Z\"/></period></telecom>\r\n"+
+      "<gender/></Patient>";
+  private static final String NOT_WELL_FORMED = "<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"p1\">\r\n<active value=\"true\"/></Patient>";
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    // fhir-single.xsd has all the resources in it, so it's the only FHIR schema needed
+    schemas = new HashMap<String, byte[]>();
+    for (String name : new String[] { "fhir-single.xsd", "fhir-xhtml.xsd", SCH })
+      schemas.put(name, TextFile.streamToBytes(XmlValidatorTests.class.getClassLoader().getResourceAsStream(SCHEMA_PATH+name)));
+    schemas.put("xml.xsd", resource("xml.xsd"));
+    transforms = new HashMap<String, byte[]>();
+    transforms.put("iso_svrl_for_xslt2.xsl", resource("iso_svrl_for_xslt2.xsl"));
+  }
+
+  private static byte[] resource(String name) throws IOException {
+    return TextFile.streamToBytes(XmlValidatorTests.class.getClassLoader().getResourceAsStream("xmlvalidator/"+name));
+  }
+
+  private String summary(List<ValidationMessage> list) {
+    StringBuilder b = new StringBuilder();
+    for (ValidationMessage vm : list)
+      b.append(vm.getLevel()+" "+vm.getType()+" "+vm.getLine()+":"+vm.getCol()+" @"+vm.getLocation()+" "+vm.getMessage()+"\r\n");
+    return b.toString();
+  }
+
+  private File file(String content) throws IOException {
+    File f = Files.createTempFile("xmlvalidator", ".xml").toFile();
+    f.deleteOnExit();
+    TextFile.bytesToFile(content.getBytes(StandardCharsets.UTF_8), f.getAbsolutePath());
+    return f;
+  }
+
+  /**
+   * what checkBySchematron did before it was compiled and streamed
+   */
+  private List<ValidationMessage> oldSchematron(String filename, byte[] content) throws Exception {
+    List<ValidationMessage> errors = new ArrayList<ValidationMessage>();
+    byte[] out = XsltUtilities.saxonTransform(transforms, schemas.get(SCH), transforms.get("iso_svrl_for_xslt2.xsl"));
+    out = XsltUtilities.saxonTransform(transforms, content, out);
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document doc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(out));
+    NodeList nl = doc.getDocumentElement().getElementsByTagNameNS("http://purl.oclc.org/dsdl/svrl", "failed-assert");
+    for (int i = 0; i < nl.getLength(); i++) {
+      Element e = (Element) nl.item(i);
+      errors.add(new ValidationMessage(Source.InstanceValidator, IssueType.STRUCTURE, -1, -1, filename + ":" + e.getAttribute("location"), e.getTextContent(), IssueSeverity.ERROR));
+    }
+    return errors;
+  }
+
+  @Test
+  public void testSchema() throws Exception {
+    List<ValidationMessage> old = new ArrayList<ValidationMessage>();
+    XmlValidator xv = new XmlValidator(old, schemas, transforms);
+    Assert.assertEquals("", summary(old)); // the schemas compiled cleanly
+    for (String content : new String[] { VALID, SCHEMA_ERRORS, SCHEMATRON_ERRORS, NOT_WELL_FORMED }) {
+      File f = file(content);
+      old.clear();
+      try {
+        xv.checkBySchema(f.getAbsolutePath(), false);
+      } catch (SAXException e) {
+        // not well formed - already reported
+      }
+      List<ValidationMessage> list = new ArrayList<ValidationMessage>();
+      int c = xv.checkBySchema(f.getAbsolutePath(), new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), list);
+      Assert.assertEquals(summary(old), summary(list));
+      if (content == VALID || content == SCHEMATRON_ERRORS)
+        Assert.assertEquals(0, c);
+      else
+        Assert.assertTrue(c > 0);
+    }
+  }
+
+  @Test
+  public void testSchematron() throws Exception {
+    XmlValidator xv = new XmlValidator(schemas, transforms, "fhir-single.xsd");
+    for (String content : new String[] { VALID, SCHEMA_ERRORS, SCHEMATRON_ERRORS }) {
+      List<ValidationMessage> old = oldSchematron("test.xml", content.getBytes(StandardCharsets.UTF_8));
+      List<ValidationMessage> list = new ArrayList<ValidationMessage>();
+      int c = xv.checkBySchematron("test.xml", new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), SCH, list);
+      Assert.assertEquals(summary(old), summary(list));
+      Assert.assertEquals(old.size(), c);
+    }
+    // make sure the comparison was worth doing
+    String s = summary(oldSchematron("test.xml", SCHEMATRON_ERRORS.getBytes(StandardCharsets.UTF_8)));
+    for (String id : new String[] { "ext-1", "global-1", "txt-2", "cpt-2", "per-1" })
+      Assert.assertTrue(id, s.contains(id+":"));
+  }
+
+  @Test
+  public void testSchematronFile() throws Exception {
+    // the file based form logs, and adds to the validator's list
+    List<ValidationMessage> errors = new ArrayList<ValidationMessage>();
+    XmlValidator xv = new XmlValidator(errors, schemas, transforms);
+    File f = file(SCHEMATRON_ERRORS);
+    xv.checkBySchematron(f.getAbsolutePath(), SCH, false);
+    Assert.assertEquals(summary(oldSchematron(f.getAbsolutePath(), SCHEMATRON_ERRORS.getBytes(StandardCharsets.UTF_8))), summary(errors));
+  }
+
+  @Test
+  public void testValidate() throws Exception {
+    XmlValidator xv = new XmlValidator(schemas, transforms, "fhir-single.xsd");
+    for (String content : new String[] { VALID, SCHEMA_ERRORS, SCHEMATRON_ERRORS, NOT_WELL_FORMED }) {
+      byte[] source = content.getBytes(StandardCharsets.UTF_8);
+      List<ValidationMessage> expected = new ArrayList<ValidationMessage>();
+      int ec = xv.checkBySchema("test.xml", new ByteArrayInputStream(source), expected);
+      if (content != NOT_WELL_FORMED) // no point running the schematron
+        ec = ec + xv.checkBySchematron("test.xml", new ByteArrayInputStream(source), SCH, expected);
+      List<ValidationMessage> list = new ArrayList<ValidationMessage>();
+      Assert.assertEquals(ec, xv.validate("test.xml", source, list));
+      Assert.assertEquals(summary(expected), summary(list));
+    }
+  }
+}
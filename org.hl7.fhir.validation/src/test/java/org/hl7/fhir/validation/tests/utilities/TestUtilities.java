@@ -2,8 +2,15 @@ package org.hl7.fhir.validation.tests.utilities;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.convertors.R4ToR5Loader;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.validation.tests.ValidationTestSuite;
 
@@ -12,6 +19,55 @@ import com.google.common.base.Charsets;
 public class TestUtilities {
 
   public static boolean silent = false;
+
+  private static SimpleWorkerContext context;
+
+  /**
+   * A context with the R4 core definitions (from hapi-fhir-validation-resources-r4, converted 
+   * to R5), for tests that can't go to the network. No terminology server
+   */
+  public static synchronized SimpleWorkerContext context() throws IOException, FHIRException {
+    if (context == null)
+      context = newContext();
+    return context;
+  }
+
+  /**
+   * @return a new context, for tests that change it
+   */
+  public static SimpleWorkerContext newContext() throws IOException, FHIRException {
+    return newContext(new String[0]);
+  }
+
+  /**
+   * @param others more definition files to load (e.g. "profile/profiles-others.xml")
+   */
+  public static SimpleWorkerContext newContext(String... others) throws IOException, FHIRException {
+    Map<String, byte[]> source = new HashMap<String, byte[]>();
+    source.put("version.info", "[FHIR]\r\nversion=4.0.1\r\n".getBytes());
+    source.put("profiles-types.xml", definition("profile/profiles-types.xml"));
+    source.put("profiles-resources.xml", definition("profile/profiles-resources.xml"));
+    source.put("valuesets.xml", definition("valueset/valuesets.xml"));
+    for (String n : others)
+      source.put(n.substring(n.lastIndexOf("/")+1), definition(n));
+    SimpleWorkerContext res = SimpleWorkerContext.fromDefinitions(source, new R4ToR5Loader(new String[] { "StructureDefinition", "ValueSet", "CodeSystem", "SearchParameter", "OperationDefinition" }));
+    res.setCanRunWithoutTerminology(true);
+    Parameters ep = new Parameters();
+    ep.addParameter("profile-url", "http://hl7.org/fhir/ExpansionProfile/dc8fd4bc-091a-424a-8a3b-6198ef146891");
+    res.setExpansionProfile(ep);
+    return res;
+  }
+
+  private static byte[] definition(String name) throws IOException {
+    InputStream stream = TestUtilities.class.getResourceAsStream("/org/hl7/fhir/r4/model/"+name);
+    if (stream == null)
+      throw new IOException("Unable to find "+name+" - is hapi-fhir-validation-resources-r4 on the class path?");
+    try {
+      return TextFile.streamToBytes(stream);
+    } finally {
+      stream.close();
+    }
+  }
   
 //  public static String resourceNameToFile(String name) throws IOException {
 //    return org.hl7.fhir.utilities.Utilities.path(System.getProperty("user.dir"), "src", "test", "resources", name);
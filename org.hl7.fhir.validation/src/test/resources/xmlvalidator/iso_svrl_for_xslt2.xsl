@@ -0,0 +1,47 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!-- 
+  A cut down stand in for the ISO schematron skeleton (iso_svrl_for_xslt2.xsl), for testing XmlValidator. 
+  It handles what the FHIR schematrons use: sch:ns, and patterns of rules with asserts. As in the 
+  skeleton, a node is only checked by the first rule in a pattern that matches it
+-->
+<xsl:stylesheet version="2.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform" xmlns:axsl="http://www.w3.org/1999/XSL/TransformAlias"
+    xmlns:sch="http://purl.oclc.org/dsdl/schematron" xmlns:svrl="http://purl.oclc.org/dsdl/svrl" xmlns:xs="http://www.w3.org/2001/XMLSchema"
+    exclude-result-prefixes="sch">
+  <xsl:namespace-alias stylesheet-prefix="axsl" result-prefix="xsl"/>
+
+  <xsl:template match="sch:schema">
+    <axsl:stylesheet version="2.0">
+      <xsl:for-each select="sch:ns">
+        <xsl:namespace name="{@prefix}" select="@uri"/>
+      </xsl:for-each>
+      <axsl:template match="/">
+        <svrl:schematron-output>
+          <xsl:for-each select="sch:pattern">
+            <svrl:active-pattern name="{sch:title}"/>
+            <axsl:apply-templates select="/" mode="p{position()}"/>
+          </xsl:for-each>
+        </svrl:schematron-output>
+      </axsl:template>
+      <xsl:for-each select="sch:pattern">
+        <xsl:variable name="mode" select="concat('p', position())"/>
+        <xsl:for-each select="sch:rule">
+          <axsl:template match="{@context}" mode="{$mode}" priority="{1000 - position()}">
+            <svrl:fired-rule context="{@context}"/>
+            <xsl:for-each select="sch:assert">
+              <axsl:if test="not({@test})">
+                <svrl:failed-assert test="{@test}">
+                  <axsl:attribute name="location" select="string-join(for $n in ancestor-or-self::* return concat(name($n), '[', count($n/preceding-sibling::*[name() = name($n)]) + 1, ']'), '/')"/>
+                  <svrl:text><xsl:value-of select="."/></svrl:text>
+                </svrl:failed-assert>
+              </axsl:if>
+            </xsl:for-each>
+            <axsl:apply-templates select="*" mode="{$mode}"/>
+          </axsl:template>
+        </xsl:for-each>
+        <axsl:template match="*" mode="{$mode}" priority="-1">
+          <axsl:apply-templates select="*" mode="{$mode}"/>
+        </axsl:template>
+      </xsl:for-each>
+    </axsl:stylesheet>
+  </xsl:template>
+</xsl:stylesheet>